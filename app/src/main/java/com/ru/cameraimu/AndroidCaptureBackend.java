@@ -0,0 +1,10 @@
+package com.ru.cameraimu;
+
+import android.view.SurfaceHolder;
+
+// A CaptureBackend on a device camera, which also draws its preview into the surface of CamPreview
+public interface AndroidCaptureBackend extends CaptureBackend {
+
+  // Called from the surface callbacks of the preview, null once the surface is gone
+  void setPreviewDisplay(SurfaceHolder holder);
+}
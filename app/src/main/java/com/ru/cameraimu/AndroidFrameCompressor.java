@@ -0,0 +1,58 @@
+package com.ru.cameraimu;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Compresses NV21 frames with the platform codecs: YuvImage for JPEG and Bitmap for PNG.
+// GRAY frames are written as the bare luma plane, see LumaFrameCompressor for their pyramids.
+public class AndroidFrameCompressor implements FrameCompressor {
+
+  private final LumaFrameCompressor mLuma = new LumaFrameCompressor(1, true);
+
+  // Per thread scratch for the NV21 to ARGB conversion needed by PNG
+  private final ThreadLocal<int[]> mArgbScratch = new ThreadLocal<>();
+
+  @Override
+  public void compress(FrameEncodePipeline.Frame frame, FrameFormat format, int quality, OutputStream out)
+      throws IOException {
+    int w = frame.width();
+    int h = frame.height();
+    switch (format) {
+      case JPEG: {
+        // Note: The default original data is in NV21 format
+        YuvImage img = new YuvImage(frame.data(), ImageFormat.NV21, w, h, null);
+        if (!img.compressToJpeg(new Rect(0, 0, w, h), quality, out))
+          throw new IOException("Failed to compress image as JPEG");
+        break;
+      }
+      case PNG: {
+        int[] argb = mArgbScratch.get();
+        if (argb == null || argb.length < w * h) {
+          argb = new int[w * h];
+          mArgbScratch.set(argb);
+        }
+        Nv21.toArgb(frame.data(), w, h, argb);
+        Bitmap bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+        try {
+          bitmap.setPixels(argb, 0, w, 0, 0, w, h);
+          if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, out))
+            throw new IOException("Failed to compress image as PNG");
+        } finally {
+          bitmap.recycle();
+        }
+        break;
+      }
+      case RAW:
+        out.write(frame.data(), 0, Nv21.bufferSize(w, h));
+        break;
+      case GRAY:
+        mLuma.compress(frame, format, quality, out);
+        break;
+    }
+  }
+}
@@ -1,123 +1,65 @@
 package com.ru.cameraimu;
 
-import android.graphics.ImageFormat;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
-import android.hardware.Camera;
-import android.os.AsyncTask;
-import android.os.Environment;
-import android.util.Log;
-
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.Locale;
-
 public class CamCallbacks {
 
-  private static long mLastTimestampNanos;
-
-  static { mLastTimestampNanos = -1; }
-
-  public static class ShutterCallback implements Camera.ShutterCallback {
-    @Override
-    public void onShutter() {
-      mLastTimestampNanos = System.nanoTime();
-    }
-  }
-
-  public static class PictureCallback implements Camera.PictureCallback {
-    private MainActivity mActivity;
-
-    private final String TAG = "TAG/CameraIMU";
-
-    public PictureCallback(MainActivity activity) { mActivity = activity; }
-
-    @Override
-    public void onPictureTaken(byte[] data, Camera camera) {
-      long timestampMillis = mLastTimestampNanos;
-      if (mActivity.NEED_RECORD && mActivity.isCapturing())
-        recordPicture(data, camera, timestampMillis);
-
-      // Take pictures continuously
-      camera.startPreview();
-      if (mActivity.isCapturing())
-        camera.takePicture(mActivity.getShutterCallback(), null, mActivity.getPictureCallback());
-    }
-
-    private void recordPicture(byte[] data, Camera camera, long timestampMillis) {
-      String filename = String.format(Locale.US, "%013d.jpg", timestampMillis);
-      File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS),
-          mActivity.mStorageDir + File.separator + "IMG" + File.separator + filename);
-
-      // Write file
-      try {
-        FileOutputStream fos = new FileOutputStream(file);
-        fos.write(data);
-        fos.close();
-      } catch (IOException e) {
-        Log.e(TAG, "recordPicture: " + e.getMessage());
-      }
-    }
-  }
-
-  public static class PreviewCallback implements Camera.PreviewCallback {
+  // Handles the frames of whichever CaptureBackend is in use, on its thread
+  public static class FrameCallback implements CaptureBackend.FrameListener {
     private MainActivity mActivity;
     private float mCurrentFPS = 0f;
     private int mLocalFrameCount = 0;
+    private long mFpsWindowStartNanos = -1;
 
-    private final String TAG = "TAG/CameraIMU";
-
-    public PreviewCallback(MainActivity activity) { mActivity = activity; }
+    public FrameCallback(MainActivity activity) { mActivity = activity; }
 
+    // Stamped with System.nanoTime() on delivery or by the camera on the sensor clock, see
+    // CaptureBackend.isSensorClock()
     @Override
-    public void onPreviewFrame(byte[] data, Camera camera) {
-      final long timestampNanos = System.nanoTime();
-      final int frameW = camera.getParameters().getPreviewSize().width;
-      final int frameH = camera.getParameters().getPreviewSize().height;
-      if (mActivity.NEED_RECORD && mActivity.isCapturing()) {
-        // Instantiate an AsyncTask to do the compressing and saving jobs
-        // in order to prevent blocking
-        new AsyncTask<byte[], Void, Void>() {
-          @Override
-          protected Void doInBackground(byte[]... params) {
-            byte[] data = params[0];
-            compressAndSaveAsJPEG(data, frameW, frameH, timestampNanos);
-            return null;
-          }
-        }.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, data);
-      }
-
-      if (mLastTimestampNanos == -1) {
+    public void onFrame(byte[] data, int width, int height, long timestampNanos) {
+      FrameBufferPool pool = mActivity.getFrameBufferPool();
+      if (pool != null)
+        pool.onFrameReceived(data);
+
+      // Frames that add nothing to the last one kept are neither encoded nor synchronized, the
+      // preintegration then spans from one kept frame to the next
+      boolean recording = mActivity.NEED_RECORD && mActivity.isCapturing();
+      KeyframeFilter filter = mActivity.getKeyframeFilter();
+      if (recording && filter != null)
+        recording = filter.accept(data, timestampNanos);
+      // Likewise for the frames the governor decimates while the device cannot keep up
+      CaptureGovernor governor = mActivity.getGovernor();
+      if (recording && governor != null)
+        recording = governor.admit();
+
+      // Hand the frame to the bounded encode pipeline in order to prevent blocking,
+      // frames are dropped according to its policy when encoding falls behind.
+      // The pipeline gives the buffer back to the pool once it is done with it.
+      FrameEncodePipeline pipeline = mActivity.getEncodePipeline();
+      if (recording && pipeline != null)
+        pipeline.submit(data, width, height, timestampNanos);
+      else if (pool != null)
+        pool.recycle(data);
+
+      CameraImuSynchronizer synchronizer = mActivity.getSynchronizer();
+      if (recording && synchronizer != null)
+        synchronizer.addFrame(timestampNanos);
+
+      StreamMetrics metrics = mActivity.getFrameMetrics();
+      if (metrics != null)
+        metrics.onSample(timestampNanos);
+
+      if (mFpsWindowStartNanos == -1) {
         mCurrentFPS = 0f;
-        mLastTimestampNanos = timestampNanos;
+        mFpsWindowStartNanos = timestampNanos;
       } else {
         ++mLocalFrameCount;
         if (mLocalFrameCount == MainActivity.INFO_VIEW_UPDATE_RATE) {
-          mCurrentFPS = MainActivity.INFO_VIEW_UPDATE_RATE * 1e9f / (timestampNanos - mLastTimestampNanos);
-          mLastTimestampNanos = timestampNanos;
+          mCurrentFPS = MainActivity.INFO_VIEW_UPDATE_RATE * 1e9f / (timestampNanos - mFpsWindowStartNanos);
+          mFpsWindowStartNanos = timestampNanos;
           mLocalFrameCount = 0;
         }
       }
     }
 
-    private void compressAndSaveAsJPEG(byte[] data, int w, int h, long timestampMillis) {
-      // Note: The default original data is in NV21 format
-      YuvImage img = new YuvImage(data, ImageFormat.NV21, w, h, null);
-      String filename = String.format(Locale.US, "%013d.jpg", timestampMillis);
-      File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS),
-          mActivity.mStorageDir + File.separator + "IMG" + File.separator + filename);
-
-      try {
-        FileOutputStream fos = new FileOutputStream(file);
-        if (!img.compressToJpeg(new Rect(0, 0, w, h), 95, fos))
-          Log.e(TAG, "compressAndSaveAsJPEG: Failed to compress image!");
-        fos.close();
-      } catch (IOException e) {
-        Log.e(TAG, "recordPicture: " + e.getMessage());
-      }
-    }
-
     public float getCurrentFPS() { return mCurrentFPS; }
   }
 }
@@ -1,22 +1,19 @@
 package com.ru.cameraimu;
 
 import android.content.Context;
-import android.hardware.Camera;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 public class CamPreview extends SurfaceView implements SurfaceHolder.Callback {
   private SurfaceHolder mHolder;
-  private Camera mCamera;
-  private int mOldW = 0;
-  private int mOldH = 0;
+  private AndroidCaptureBackend mBackend;
 
   private final String TAG = "TAG/CameraIMU";
 
-  public CamPreview(Context context, Camera camera) {
+  public CamPreview(Context context, AndroidCaptureBackend backend) {
     super(context);
-    mCamera = camera;
+    mBackend = backend;
     mHolder = getHolder();
     mHolder.addCallback(this);
     mHolder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
@@ -25,12 +22,6 @@ public class CamPreview extends SurfaceView implements SurfaceHolder.Callback {
   @Override
   public void surfaceCreated(SurfaceHolder holder) {
     Log.i(TAG, "surfaceCreated");
-    try {
-      mCamera.setPreviewDisplay(holder);
-      mCamera.startPreview();
-    } catch (Exception e) {
-      Log.e(TAG, "surfaceCreated: " + e.getMessage());
-    }
   }
 
   @Override
@@ -43,30 +34,20 @@ public class CamPreview extends SurfaceView implements SurfaceHolder.Callback {
       return;
     }
 
-    try {
-      mCamera.stopPreview();
-    } catch (Exception e) {
-      Log.e(TAG, "surfaceChanged: " + e.getMessage());
-    }
-
-    if (mOldH != h || mOldW != w) {
-      int newH = h;
-      int newW = (int) (newH * 1f / MainActivity.DEFAULT_CAPTURE_H * MainActivity.DEFAULT_CAPTURE_W);
-      mHolder.setFixedSize(newW, newH);
-    }
-    mOldW = w;
-    mOldH = h;
-
-    try {
-      mCamera.setPreviewDisplay(mHolder);
-      mCamera.startPreview();
-    } catch (Exception e) {
-      Log.e(TAG, "surfaceChanged: " + e.getMessage());
+    // The surface buffers are the size of the frames, which Camera2 requires, and are scaled to
+    // the view. Resizing them calls back here.
+    int frameW = mBackend.getFrameWidth();
+    int frameH = mBackend.getFrameHeight();
+    if (w != frameW || h != frameH) {
+      mHolder.setFixedSize(frameW, frameH);
+      return;
     }
+    mBackend.setPreviewDisplay(mHolder);
   }
 
   @Override
   public void surfaceDestroyed(SurfaceHolder holder) {
     Log.i(TAG, "surfaceDestroyed");
+    mBackend.setPreviewDisplay(null);
   }
 }
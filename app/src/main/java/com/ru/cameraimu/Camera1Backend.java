@@ -0,0 +1,152 @@
+package com.ru.cameraimu;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+import java.util.List;
+
+// The deprecated android.hardware.Camera, kept for devices whose Camera2 support is legacy only.
+// Preview frames come back through setPreviewCallbackWithBuffer() into the buffers the pool
+// handed to addCallbackBuffer(), stamped with System.nanoTime() when the callback runs.
+public class Camera1Backend implements AndroidCaptureBackend {
+
+  private final int mRequestedW;
+  private final int mRequestedH;
+  private volatile Camera mCamera;  // Buffers are handed back to it from the encoder threads
+  private SurfaceHolder mHolder;
+  private int mFrameW;
+  private int mFrameH;
+  private int mFrameBufferSize;
+
+  private final String TAG = "TAG/CameraIMU";
+
+  public Camera1Backend(int width, int height) {
+    mRequestedW = mFrameW = width;
+    mRequestedH = mFrameH = height;
+  }
+
+  @Override
+  public String getName() { return "camera1"; }
+
+  @Override
+  public void open() throws IOException {
+    if (mCamera != null)
+      return;
+    Camera camera;
+    try {
+      camera = Camera.open();
+    } catch (RuntimeException e) {
+      throw new IOException("Cannot open the camera: " + e.getMessage());
+    }
+    if (camera == null)
+      throw new IOException("No back-facing camera");
+    setCamFeatures(camera);
+    Camera.Parameters params = camera.getParameters();
+    Camera.Size previewSize = params.getPreviewSize();
+    mFrameW = previewSize.width;
+    mFrameH = previewSize.height;
+    mFrameBufferSize = mFrameW * mFrameH * ImageFormat.getBitsPerPixel(params.getPreviewFormat()) / 8;
+    mCamera = camera;
+    if (mHolder != null)
+      startPreview();
+  }
+
+  @Override
+  public void release() {
+    Camera camera = mCamera;
+    mCamera = null;
+    if (camera != null) {
+      camera.setPreviewCallbackWithBuffer(null);
+      camera.release();
+    }
+  }
+
+  @Override
+  public int getFrameWidth() { return mFrameW; }
+
+  @Override
+  public int getFrameHeight() { return mFrameH; }
+
+  @Override
+  public int getFrameBufferSize() { return mFrameBufferSize; }
+
+  @Override
+  public boolean isSensorClock() { return false; }
+
+  @Override
+  public FrameBufferPool.BufferSink getBufferSink(int buffersNum) {
+    return new FrameBufferPool.BufferSink() {
+      @Override
+      public void onBufferAvailable(byte[] buffer) {
+        Camera camera = mCamera;
+        if (camera != null)
+          camera.addCallbackBuffer(buffer);
+      }
+    };
+  }
+
+  @Override
+  public void startFrames(final FrameListener listener) {
+    mCamera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
+      @Override
+      public void onPreviewFrame(byte[] data, Camera camera) {
+        listener.onFrame(data, mFrameW, mFrameH, System.nanoTime());
+      }
+    });
+  }
+
+  @Override
+  public void stopFrames() {
+    Camera camera = mCamera;
+    if (camera != null)
+      camera.setPreviewCallbackWithBuffer(null);
+  }
+
+  @Override
+  public void setPreviewDisplay(SurfaceHolder holder) {
+    mHolder = holder;
+    Camera camera = mCamera;
+    if (camera == null)
+      return;
+    try {
+      camera.stopPreview();
+    } catch (Exception e) {
+      Log.e(TAG, "setPreviewDisplay: " + e.getMessage());
+    }
+    if (holder != null)
+      startPreview();
+  }
+
+  private void startPreview() {
+    try {
+      mCamera.setPreviewDisplay(mHolder);
+      mCamera.startPreview();
+    } catch (Exception e) {
+      Log.e(TAG, "startPreview: " + e.getMessage());
+    }
+  }
+
+  private void setCamFeatures(Camera camera) {
+    Camera.Parameters params = camera.getParameters();
+
+    List<String> focusModes = params.getSupportedFocusModes();
+    if (focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
+      params.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+      camera.autoFocus(null);
+    }
+    List<String> flashModes = params.getSupportedFlashModes();
+    if (flashModes != null && flashModes.contains(Camera.Parameters.FLASH_MODE_OFF))
+      params.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
+    List<String> whiteBalanceModes = params.getSupportedWhiteBalance();
+    if (whiteBalanceModes.contains(Camera.Parameters.WHITE_BALANCE_DAYLIGHT))
+      params.setWhiteBalance(Camera.Parameters.WHITE_BALANCE_DAYLIGHT);
+
+    params.setPreviewSize(mRequestedW, mRequestedH);
+    params.setPictureSize(mRequestedW, mRequestedH);
+
+    camera.setParameters(params);
+  }
+}
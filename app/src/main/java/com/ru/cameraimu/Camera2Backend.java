@@ -0,0 +1,326 @@
+package com.ru.cameraimu;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// The back-facing camera through Camera2: a repeating request streams YUV_420_888 frames into an
+// ImageReader of MAX_IMAGES buffers, so that the camera keeps filling images while one is being
+// converted, and draws the preview next to it. Every image is converted to NV21 into a free pool
+// buffer and closed right away on the camera thread.
+//
+// Frames carry the SENSOR_TIMESTAMP of their exposure start, which on devices whose timestamp
+// source is REALTIME is on the clock of SensorEvent.timestamp, so they are aligned with the IMU
+// streams without a clock offset. Other devices stamp their frames with System.nanoTime() on
+// delivery, as Camera1 does. Devices whose Camera2 support is legacy only, i.e. Camera1 underneath,
+// are left to Camera1Backend (see findCamera()).
+public class Camera2Backend implements AndroidCaptureBackend {
+
+  // Images the camera may fill ahead of the conversion
+  public static final int MAX_IMAGES = 4;
+
+  private final Context mContext;
+  private final int mFrameW;
+  private final int mFrameH;
+  private boolean mSensorClock = false;
+  private int[] mAfModes;
+  private int[] mAwbModes;
+
+  // Camera state, touched from the UI and the camera thread under the lock of this
+  private HandlerThread mThread;
+  private Handler mHandler;
+  private ImageReader mReader;
+  private CameraDevice mDevice;
+  private CameraCaptureSession mSession;
+  private Surface mPreviewSurface;
+
+  // Frame delivery, under mFrameLock so that stopFrames() waits for a frame being delivered
+  private final Object mFrameLock = new Object();
+  private volatile FrameListener mListener;
+  private volatile FrameBufferPool.QueueSink mSink;
+
+  private final String TAG = "TAG/CameraIMU";
+
+  public Camera2Backend(Context context, int width, int height) {
+    mContext = context;
+    mFrameW = width;
+    mFrameH = height;
+  }
+
+  // The back-facing camera that streams width x height YUV_420_888 frames beyond the legacy
+  // hardware level, null if there is none
+  public static String findCamera(CameraManager manager, int width, int height) throws CameraAccessException {
+    for (String id : manager.getCameraIdList()) {
+      CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+      Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+      Integer level = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+      StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+      if (facing == null || facing != CameraMetadata.LENS_FACING_BACK || map == null
+          || level == null || level == CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY)
+        continue;
+      for (Size size : map.getOutputSizes(ImageFormat.YUV_420_888))
+        if (size.getWidth() == width && size.getHeight() == height)
+          return id;
+    }
+    return null;
+  }
+
+  public static boolean isSupported(Context context, int width, int height) {
+    try {
+      return findCamera((CameraManager) context.getSystemService(Context.CAMERA_SERVICE), width, height) != null;
+    } catch (CameraAccessException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public String getName() { return "camera2"; }
+
+  @Override
+  public synchronized void open() throws IOException {
+    if (mThread != null)
+      return;
+    CameraManager manager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+    try {
+      String id = findCamera(manager, mFrameW, mFrameH);
+      if (id == null)
+        throw new IOException("No back-facing camera with " + mFrameW + " x " + mFrameH + " YUV_420_888 frames");
+      CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+      Integer source = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+      mSensorClock = source != null && source == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+      mAfModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+      mAwbModes = characteristics.get(CameraCharacteristics.CONTROL_AWB_AVAILABLE_MODES);
+
+      mThread = new HandlerThread("Camera2");
+      mThread.start();
+      mHandler = new Handler(mThread.getLooper());
+      mReader = ImageReader.newInstance(mFrameW, mFrameH, ImageFormat.YUV_420_888, MAX_IMAGES);
+      mReader.setOnImageAvailableListener(mImageListener, mHandler);
+      manager.openCamera(id, mStateCallback, mHandler);
+    } catch (CameraAccessException | SecurityException e) {
+      release();
+      throw new IOException("Cannot open the camera: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public void release() {
+    stopFrames();
+    HandlerThread thread;
+    synchronized (this) {
+      closeCamera();
+      thread = mThread;
+      mThread = null;
+      mHandler = null;
+    }
+    if (thread == null)
+      return;
+    thread.quitSafely();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public int getFrameWidth() { return mFrameW; }
+
+  @Override
+  public int getFrameHeight() { return mFrameH; }
+
+  @Override
+  public int getFrameBufferSize() { return Nv21.bufferSize(mFrameW, mFrameH); }
+
+  @Override
+  public boolean isSensorClock() { return mSensorClock; }
+
+  @Override
+  public FrameBufferPool.BufferSink getBufferSink(int buffersNum) {
+    FrameBufferPool.QueueSink sink = new FrameBufferPool.QueueSink(buffersNum);
+    mSink = sink;
+    return sink;
+  }
+
+  // The camera streams from open() on for the preview, images are only converted in between
+  @Override
+  public void startFrames(FrameListener listener) {
+    synchronized (mFrameLock) {
+      mListener = listener;
+    }
+  }
+
+  @Override
+  public void stopFrames() {
+    synchronized (mFrameLock) {
+      mListener = null;
+      FrameBufferPool.QueueSink sink = mSink;
+      if (sink != null)
+        sink.clear();
+    }
+  }
+
+  @Override
+  public synchronized void setPreviewDisplay(SurfaceHolder holder) {
+    Surface surface = holder != null ? holder.getSurface() : null;
+    if (surface == mPreviewSurface)
+      return;
+    mPreviewSurface = surface;
+    if (mDevice != null)
+      createSession();
+  }
+
+  private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+    @Override
+    public void onOpened(CameraDevice device) {
+      synchronized (Camera2Backend.this) {
+        if (mThread == null) {
+          device.close();  // Released while opening
+          return;
+        }
+        mDevice = device;
+        createSession();
+      }
+    }
+
+    @Override
+    public void onDisconnected(CameraDevice device) {
+      Log.w(TAG, "onDisconnected: " + device.getId());
+      closeDevice(device);
+    }
+
+    @Override
+    public void onError(CameraDevice device, int error) {
+      Log.e(TAG, "onError: " + device.getId() + ": " + error);
+      closeDevice(device);
+    }
+  };
+
+  private final ImageReader.OnImageAvailableListener mImageListener = new ImageReader.OnImageAvailableListener() {
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+      Image image = reader.acquireNextImage();
+      if (image == null)
+        return;
+      try {
+        synchronized (mFrameLock) {
+          FrameListener listener = mListener;
+          FrameBufferPool.QueueSink sink = mSink;
+          if (listener == null || sink == null)
+            return;
+          // Without a free buffer the frame is skipped, as Camera1 does, which the pool counts
+          // as starvation when the last one was taken
+          byte[] buffer = sink.poll();
+          if (buffer == null)
+            return;
+          long timestampNanos = mSensorClock ? image.getTimestamp() : System.nanoTime();
+          Image.Plane[] planes = image.getPlanes();
+          Nv21.fromYuv420(mFrameW, mFrameH, planes[0].getBuffer(), planes[0].getRowStride(),
+              planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(), buffer);
+          listener.onFrame(buffer, mFrameW, mFrameH, timestampNanos);
+        }
+      } finally {
+        image.close();
+      }
+    }
+  };
+
+  // Streams to the image reader and, if there is one, the preview surface
+  private void createSession() {
+    if (mSession != null) {
+      mSession.close();
+      mSession = null;
+    }
+    final List<Surface> outputs = new ArrayList<>(2);
+    outputs.add(mReader.getSurface());
+    if (mPreviewSurface != null)
+      outputs.add(mPreviewSurface);
+    try {
+      mDevice.createCaptureSession(outputs, new CameraCaptureSession.StateCallback() {
+        @Override
+        public void onConfigured(CameraCaptureSession session) {
+          synchronized (Camera2Backend.this) {
+            if (mDevice == null) {
+              session.close();
+              return;
+            }
+            mSession = session;
+            startRepeating(session, outputs);
+          }
+        }
+
+        @Override
+        public void onConfigureFailed(CameraCaptureSession session) {
+          Log.e(TAG, "onConfigureFailed: " + outputs.size() + " outputs");
+        }
+      }, mHandler);
+    } catch (CameraAccessException e) {
+      Log.e(TAG, "createSession: " + e.getMessage());
+    }
+  }
+
+  // The features Camera1Backend sets, for video rather than stills
+  private void startRepeating(CameraCaptureSession session, List<Surface> outputs) {
+    try {
+      CaptureRequest.Builder builder = mDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+      for (Surface surface : outputs)
+        builder.addTarget(surface);
+      if (contains(mAfModes, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO))
+        builder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+      builder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_OFF);
+      if (contains(mAwbModes, CameraMetadata.CONTROL_AWB_MODE_DAYLIGHT))
+        builder.set(CaptureRequest.CONTROL_AWB_MODE, CameraMetadata.CONTROL_AWB_MODE_DAYLIGHT);
+      session.setRepeatingRequest(builder.build(), null, mHandler);
+    } catch (CameraAccessException e) {
+      Log.e(TAG, "startRepeating: " + e.getMessage());
+    }
+  }
+
+  private synchronized void closeDevice(CameraDevice device) {
+    device.close();
+    if (mDevice == device) {
+      mDevice = null;
+      mSession = null;
+    }
+  }
+
+  private void closeCamera() {
+    if (mSession != null)
+      mSession.close();
+    if (mDevice != null)
+      mDevice.close();
+    if (mReader != null)
+      mReader.close();
+    mSession = null;
+    mDevice = null;
+    mReader = null;
+  }
+
+  private static boolean contains(int[] modes, int mode) {
+    if (modes == null)
+      return false;
+    for (int m : modes)
+      if (m == mode)
+        return true;
+    return false;
+  }
+}
@@ -2,11 +2,13 @@ package com.ru.cameraimu;
 
 import android.app.Activity;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
-import android.hardware.Camera;
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
-import android.hardware.camera2.CameraAccessException;
+import android.os.BatteryManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.util.Log;
@@ -17,10 +19,13 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends Activity {
 
@@ -28,26 +33,99 @@ public class MainActivity extends Activity {
   public static final int DEFAULT_CAPTURE_W = 640;
   public static final int DEFAULT_CAPTURE_H = 480;
   public static final int INFO_VIEW_UPDATE_RATE = 10;
+  // Capture through Camera2 with sensor timestamped frames where the device supports it beyond
+  // the legacy level, through Camera1 otherwise
+  public static final boolean PREFER_CAMERA2 = true;
+
+  // Frame encoding
+  public static final int ENCODE_QUEUE_CAPACITY = 8;
+  public static final int ENCODE_WORKERS_NUM = ParallelFrameEncoder.defaultWorkersNum();
+  public static final FrameFormat FRAME_FORMAT = FrameFormat.JPEG;
+  public static final int JPEG_QUALITY = 95;
+  // With FrameFormat.RAW or GRAY, append frames to preallocated memory mapped segments instead of one file each
+  public static final boolean RAW_FRAMES_IN_SEGMENTS = true;
+  // With FrameFormat.GRAY, the luma plane and this many levels of its pyramid in all, see LumaPyramid
+  public static final int GRAY_PYRAMID_LEVELS = 3;
+  // At most, large frames get as many as fit in a segment, see RawSegmentFormat.maxCapacity()
+  public static final int RAW_FRAMES_PER_SEGMENT = 256;
+  public static final long ENCODE_SHUTDOWN_TIMEOUT_MILLIS = 10000;
+  public static final long SESSION_SHUTDOWN_TIMEOUT_MILLIS = 10000;
+  public static final double HUD_RATE_HZ = SensorHud.DEFAULT_RATE_HZ;
+  // Skip preview frames that add nothing to the last one kept, see KeyframeFilter
+  public static final boolean FILTER_REDUNDANT_FRAMES = false;
+  // Lower the JPEG quality, the flush cadence and then the frame rate while the device cannot keep
+  // up, e.g. once it throttles, see CaptureGovernor
+  public static final boolean GOVERN_CAPTURE = true;
+  public static final long GOVERNOR_PERIOD_MILLIS = CaptureGovernor.DEFAULT_PERIOD_NANOS / 1000000;
+  public static final FrameEncodePipeline.DropPolicy ENCODE_DROP_POLICY = FrameEncodePipeline.DropPolicy.DROP_OLDEST;
+  // Enough preview buffers for a full encode queue, one per worker and a couple for the camera to fill
+  public static final int FRAME_BUFFERS_NUM = ENCODE_QUEUE_CAPACITY + ENCODE_WORKERS_NUM + 2;
+  // Sensor channels and the sensors they are recorded from, see ImuChannelRegistry. The first
+  // REQUIRED_CHANNELS_NUM are needed to capture, the others are left out on devices without them.
+  public static final char[] CHANNEL_TYPES = {ImuChannelRegistry.GYROSCOPE, ImuChannelRegistry.ACCELEROMETER,
+      ImuChannelRegistry.MAGNETOMETER, ImuChannelRegistry.ROTATION_VECTOR, ImuChannelRegistry.BAROMETER,
+      ImuChannelRegistry.ACCELEROMETER_UNCALIBRATED};
+  public static final int[] CHANNEL_SENSORS = {Sensor.TYPE_GYROSCOPE_UNCALIBRATED, Sensor.TYPE_ACCELEROMETER,
+      Sensor.TYPE_MAGNETIC_FIELD, Sensor.TYPE_ROTATION_VECTOR, Sensor.TYPE_PRESSURE,
+      Sensor.TYPE_ACCELEROMETER_UNCALIBRATED};
+  public static final int REQUIRED_CHANNELS_NUM = 2;
+  // Record the channels as compressed <type>.imz logs instead of binary ones, null to keep them
+  // binary. QUANTIZED rounds the values to ImuBlockCodec.DEFAULT_STEP, XOR keeps them exact.
+  public static final ImuBlockCodec.Mode IMU_LOG_COMPRESSION = null;
+
+  // Sessions are recovered once per process, and nothing is captured until that is done
+  private static final AtomicBoolean sRecoveryStarted = new AtomicBoolean();
+  private static volatile boolean sRecoveryDone = false;
 
   public String mDateString;
   public String mStorageDir;
 
   // Sensor
-  private Sensor mGyroscope;
-  private Sensor mAccelerometer;
-  private IMUEventListener mGyroListener;  // The gyroscope event listener
-  private IMUEventListener mAcceListener;  // The accelerometer event listener
+  private final ImuChannelRegistry mChannels = new ImuChannelRegistry();
+  private final List<IMUEventListener> mSensorListeners = new ArrayList<>();  // One per channel
   private SensorManager mSensorManager;
 
   // Camera
-  private Camera mCamera;
-  private Boolean mIsCapturing = false;
-  private CamCallbacks.ShutterCallback mShutterCallback;
-  private CamCallbacks.PictureCallback mPictureCallback;
-  private CamCallbacks.PreviewCallback mPreviewCallback;
+  private AndroidCaptureBackend mCaptureBackend;
+  private volatile boolean mIsCapturing = false;  // Read from the sensor and camera callbacks
+  private CamCallbacks.FrameCallback mFrameCallback;
+  private FrameEncodePipeline mEncodePipeline;
+  private ParallelFrameEncoder mFrameEncoder;
+  private OrderedFrameCommitter.CommitSink mFrameCommitSink;
+  private volatile FrameBufferPool mFrameBufferPool;  // Read from the encoder threads
+  private SessionWriter mSessionWriter;  // All disk output of the current capture
+  private SessionMetrics mMetrics;  // Rates, jitter and latencies of the current capture
+  private volatile StreamMetrics mFrameMetrics;  // Read from the preview callback
+  private volatile KeyframeFilter mKeyframeFilter;  // Read from the preview and sensor callbacks
+  private volatile CaptureGovernor mGovernor;  // Read from the preview callback
+  // Where the last governor update left off
+  private long mGovernedNanos;
+  private long mGovernedFramesNum;
+  private SessionWriter.Stats mGovernedWrites;
+
+  // Camera-IMU alignment
+  private volatile CameraImuSynchronizer mSynchronizer;
+  private PreintegrationRecorder mPreintegrationRecorder;
 
   // UI
   private TextView mInfoView;
+  private SensorHud mHud;
+  // Polled on every display frame, the HUD itself keeps to HUD_RATE_HZ
+  private final Runnable mHudUpdater = new Runnable() {
+    @Override
+    public void run() {
+      updateHud();
+      mInfoView.postOnAnimation(this);
+    }
+  };
+
+  private final Runnable mGovernorUpdater = new Runnable() {
+    @Override
+    public void run() {
+      updateGovernor();
+      mInfoView.postDelayed(this, GOVERNOR_PERIOD_MILLIS);
+    }
+  };
 
   // Debug
   private final String TAG = "TAG/CameraIMU";
@@ -62,14 +140,19 @@ public class MainActivity extends Activity {
     Context context = getApplicationContext();
 
     mSensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
-    mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-    mGyroscope = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE_UNCALIBRATED);
-
-    if (mAccelerometer == null || mGyroscope == null) {
-      Toast toast = Toast.makeText(context, R.string.fail_to_load_imu, Toast.LENGTH_SHORT);
-      toast.show();
-      finish();
-      return;
+    for (int i = 0; i < CHANNEL_TYPES.length; ++i) {
+      Sensor sensor = mSensorManager.getDefaultSensor(CHANNEL_SENSORS[i]);
+      if (sensor == null && i < REQUIRED_CHANNELS_NUM) {
+        Toast toast = Toast.makeText(context, R.string.fail_to_load_imu, Toast.LENGTH_SHORT);
+        toast.show();
+        finish();
+        return;
+      }
+      if (sensor == null)
+        continue;
+      ImuChannel channel = mChannels.register(ImuChannelRegistry.standard(CHANNEL_TYPES[i]));
+      channel.setCompression(IMU_LOG_COMPRESSION);
+      mSensorListeners.add(new IMUEventListener(this, channel, sensor));
     }
 
     if (!isExternalStorageWritable() && NEED_RECORD) {
@@ -86,22 +169,20 @@ public class MainActivity extends Activity {
       return;
     }
 
-    getCameraInstance();
-    if (mCamera == null) {
-      Toast toast = Toast.makeText(context, R.string.failed_to_access_camere, Toast.LENGTH_SHORT);
-      toast.show();
-      finish();
-    }
-
-    mGyroListener = new IMUEventListener(this, IMUEventListener.TypeE.G);
-    mAcceListener = new IMUEventListener(this, IMUEventListener.TypeE.A);
+    if (PREFER_CAMERA2 && Camera2Backend.isSupported(context, DEFAULT_CAPTURE_W, DEFAULT_CAPTURE_H))
+      mCaptureBackend = new Camera2Backend(context, DEFAULT_CAPTURE_W, DEFAULT_CAPTURE_H);
+    else
+      mCaptureBackend = new Camera1Backend(DEFAULT_CAPTURE_W, DEFAULT_CAPTURE_H);
+    Log.i(TAG, "onCreate: capture through " + mCaptureBackend.getName());
 
-    ((FrameLayout) findViewById(R.id.cam_layout)).addView(new CamPreview(context, mCamera));
+    ((FrameLayout) findViewById(R.id.cam_layout)).addView(new CamPreview(context, mCaptureBackend));
     mInfoView = (TextView) findViewById(R.id.info_view);
+    mHud = new SensorHud(HUD_RATE_HZ, mChannels.labels(), mChannels.stats());
 
-    mShutterCallback = new CamCallbacks.ShutterCallback();
-    mPictureCallback = new CamCallbacks.PictureCallback(this);
-    mPreviewCallback = new CamCallbacks.PreviewCallback(this);
+    mFrameCallback = new CamCallbacks.FrameCallback(this);
+
+    if (NEED_RECORD)
+      recoverSessions();
   }
 
   @Override
@@ -114,15 +195,24 @@ public class MainActivity extends Activity {
   protected void onResume() {
     Log.i(TAG, "onResume");
     super.onResume();
-    mSensorManager.registerListener(mGyroListener, mGyroscope, SensorManager.SENSOR_DELAY_FASTEST);
-    mSensorManager.registerListener(mAcceListener, mAccelerometer, SensorManager.SENSOR_DELAY_FASTEST);
-
-    getCameraInstance();
-    setCamFeatures();
+    // Every channel at the native rate of its sensor
+    for (IMUEventListener listener : mSensorListeners)
+      mSensorManager.registerListener(listener, listener.getSensor(), SensorManager.SENSOR_DELAY_FASTEST);
+    mInfoView.postOnAnimation(mHudUpdater);
 
-    Camera.Size previewSize = mCamera.getParameters().getPreviewSize();
     Context context = getApplicationContext();
-    Toast toast = Toast.makeText(context, previewSize.width + " x " + previewSize.height, Toast.LENGTH_LONG);
+    try {
+      mCaptureBackend.open();
+    } catch (IOException e) {
+      Log.e(TAG, "onResume: " + e.getMessage());
+      Toast toast = Toast.makeText(context, R.string.failed_to_access_camere, Toast.LENGTH_SHORT);
+      toast.show();
+      finish();
+      return;
+    }
+
+    Toast toast = Toast.makeText(context, mCaptureBackend.getFrameWidth() + " x " + mCaptureBackend.getFrameHeight(),
+        Toast.LENGTH_LONG);
     toast.setGravity(Gravity.CENTER, 0, 0);
     toast.show();
   }
@@ -131,10 +221,11 @@ public class MainActivity extends Activity {
   protected void onPause() {
     Log.i(TAG, "onPause");
     super.onPause();
-    mSensorManager.unregisterListener(mGyroListener);
-    mSensorManager.unregisterListener(mAcceListener);
+    for (IMUEventListener listener : mSensorListeners)
+      mSensorManager.unregisterListener(listener);
+    mInfoView.removeCallbacks(mHudUpdater);
 
-    releaseCamera();
+    mCaptureBackend.release();
   }
 
   @Override
@@ -149,31 +240,32 @@ public class MainActivity extends Activity {
     super.onDestroy();
   }
 
-  public Boolean isCapturing() {
-    synchronized (mIsCapturing) {
-      return mIsCapturing;
-    }
-  }
-
-  public CamCallbacks.ShutterCallback getShutterCallback() { return mShutterCallback; }
-  public CamCallbacks.PictureCallback getPictureCallback() { return mPictureCallback; }
+  public boolean isCapturing() { return mIsCapturing; }
 
-  public void printSensorInfo(long timestampNanos) {
-    mInfoView.setText("Sensor Information:\n");
+  public FrameEncodePipeline getEncodePipeline() { return mEncodePipeline; }
+  public FrameBufferPool getFrameBufferPool() { return mFrameBufferPool; }
+  public CameraImuSynchronizer getSynchronizer() { return mSynchronizer; }
+  public StreamMetrics getFrameMetrics() { return mFrameMetrics; }
+  public KeyframeFilter getKeyframeFilter() { return mKeyframeFilter; }
+  public CaptureGovernor getGovernor() { return mGovernor; }
 
-    IMUEventListener.DataTupleT gyroData = mGyroListener.getCurrentTuple();
-    IMUEventListener.DataTupleT acceData = mAcceListener.getCurrentTuple();
-
-    mInfoView.append(String.format(Locale.US, "GX: %08.6f\t\tAX: %08.6f\n", gyroData.x(), acceData.x()));
-    mInfoView.append(String.format(Locale.US, "GY: %08.6f\t\tAY: %08.6f\n", gyroData.y(), acceData.y()));
-    mInfoView.append(String.format(Locale.US, "GZ: %08.6f\t\tAZ: %08.6f\n", gyroData.z(), acceData.z()));
-    mInfoView.append(String.format(Locale.US, "Timestamp Nanos: %d", timestampNanos));
+  private void updateHud() {
+    if (!mHud.render(System.nanoTime()))
+      return;
+    HudText text = mHud.text();
     if (mIsCapturing)
-      mInfoView.append(String.format(Locale.US, "\nCurrent FPS: %.2f", mPreviewCallback.getCurrentFPS()));
+      text.append("\nCurrent FPS: ").append(mFrameCallback.getCurrentFPS(), 2);
+    mInfoView.setText(text.chars(), 0, text.length());
   }
 
   public void onCaptureBtnClick(View view) {
     if (!mIsCapturing) {
+      if (NEED_RECORD && !sRecoveryDone) {
+        Context context = getApplicationContext();
+        Toast toast = Toast.makeText(context, R.string.recovering_sessions_msg, Toast.LENGTH_SHORT);
+        toast.show();
+        return;
+      }
       if (NEED_RECORD) {
         mDateString = (new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US)).format(Calendar.getInstance().getTime());
         mStorageDir = getResources().getString(R.string.app_name) + File.separator + mDateString;
@@ -187,73 +279,327 @@ public class MainActivity extends Activity {
         }
       }
 
-      synchronized (mIsCapturing) { mIsCapturing = true; }
+      if (NEED_RECORD) {
+        // Everything of the session is written out by a single I/O thread
+        mSessionWriter = new SessionWriter(getSessionDir());
+        // Time ranges of the session can be looked up without listing or reading its data
+        mSessionWriter.setIndex(new SessionIndexWriter(mSessionWriter.file(SessionIndex.FILENAME), FRAME_FORMAT));
+        // What each fsync made durable, so that a capture cut short is recovered on the next launch
+        mSessionWriter.setJournal(new SessionJournalWriter(getSessionDir()));
+        startMetrics();
+        mSessionWriter.start();
+        startEncodePipeline();
+        startSynchronizer();
+        startKeyframeFilter();
+        mChannels.startRecording(mSessionWriter, mMetrics);
+        mFrameMetrics = mMetrics.stream("camera");
+        startGovernor();
+      }
+      mIsCapturing = true;
 
       Context context = getApplicationContext();
       Toast toast = Toast.makeText(context, R.string.start_capturing_msg, Toast.LENGTH_SHORT);
       toast.show();
-      mCamera.setPreviewCallback(mPreviewCallback);
+      startFrameBufferPool();
+      mCaptureBackend.startFrames(mFrameCallback);
     } else {
-      synchronized (mIsCapturing) { mIsCapturing = false; }
+      mIsCapturing = false;
 
       Context context = getApplicationContext();
       Toast toast = Toast.makeText(context, R.string.stop_capturing_msg, Toast.LENGTH_SHORT);
       toast.show();
-      mCamera.setPreviewCallback(null);
+      mCaptureBackend.stopFrames();
+      stopFrameBufferPool();
       if (NEED_RECORD) {
-        mGyroListener.flushData();
-        mAcceListener.flushData();
+        ImuStreamRecorder governorLog = stopGovernor();
+        mFrameMetrics = null;
+        // The synchronizer goes first so that its last records still reach their recorder
+        ImuStreamRecorder preintegrationRecorder = stopSynchronizer();
+        List<ImuStreamRecorder> recorders = mChannels.stopRecording();
+        recorders.add(preintegrationRecorder);
+        ImuStreamRecorder keyframeLog = stopKeyframeFilter();
+        if (keyframeLog != null)
+          recorders.add(keyframeLog);
+        if (governorLog != null)
+          recorders.add(governorLog);
+        stopSession(recorders);
       }
     }
   }
 
-  private boolean isExternalStorageWritable() {
-    String state = Environment.getExternalStorageState();
-    return Environment.MEDIA_MOUNTED.equals(state);
+  private void startEncodePipeline() {
+    boolean inSegments = (FRAME_FORMAT == FrameFormat.RAW || FRAME_FORMAT == FrameFormat.GRAY) && RAW_FRAMES_IN_SEGMENTS;
+    if (inSegments) {
+      // Frames go straight into the mapped segments, the session only schedules their fsync
+      int frameW = mCaptureBackend.getFrameWidth();
+      int frameH = mCaptureBackend.getFrameHeight();
+      boolean gray = FRAME_FORMAT == FrameFormat.GRAY;
+      int frameSize = gray ? LumaPyramid.size(frameW, frameH, GRAY_PYRAMID_LEVELS) : Nv21.bufferSize(frameW, frameH);
+      int capacity = Math.min(RAW_FRAMES_PER_SEGMENT, RawSegmentFormat.maxCapacity(frameSize));
+      RawFrameSegmentWriter segmentWriter = new RawFrameSegmentWriter(mSessionWriter.file("IMG"),
+          gray ? RawSegmentFormat.luma(frameW, frameH, GRAY_PYRAMID_LEVELS, capacity)
+              : RawSegmentFormat.nv21(frameW, frameH, capacity));
+      segmentWriter.setIndex(mSessionWriter.getIndex());
+      mSessionWriter.addSource(segmentWriter);
+      mFrameCommitSink = segmentWriter;
+    } else {
+      mFrameCommitSink = new FileFrameCommitSink(mSessionWriter, "IMG", FRAME_FORMAT);
+    }
+
+    // Frames are encoded on all workers at once and committed to disk in timestamp order
+    // Grayscale frames skip the platform codecs altogether, as PGM files or bare levels in segments
+    FrameCompressor compressor = FRAME_FORMAT == FrameFormat.GRAY
+        ? new LumaFrameCompressor(GRAY_PYRAMID_LEVELS, !inSegments) : new AndroidFrameCompressor();
+    mFrameEncoder = new ParallelFrameEncoder(compressor, FRAME_FORMAT, JPEG_QUALITY,
+        new OrderedFrameCommitter(ParallelFrameEncoder.defaultWindow(ENCODE_WORKERS_NUM), mFrameCommitSink));
+    final ParallelFrameEncoder encoder = mFrameEncoder;
+    mEncodePipeline = new FrameEncodePipeline(encoder, ENCODE_QUEUE_CAPACITY, ENCODE_WORKERS_NUM, ENCODE_DROP_POLICY,
+        new FrameEncodePipeline.Listener() {
+      @Override
+      public void onFrameDone(FrameEncodePipeline.Frame frame, boolean encoded) {
+        encoder.onFrameDone(frame, encoded);
+        FrameBufferPool pool = mFrameBufferPool;
+        if (pool != null)
+          pool.recycle(frame.data());
+      }
+
+      @Override
+      public void onEncodeFailed(FrameEncodePipeline.Frame frame, Exception e) {
+        Log.e(TAG, "onEncodeFailed: " + e.getMessage());
+      }
+    });
+    mEncodePipeline.setLatencyHistograms(mMetrics.latency("queue_wait"), mMetrics.latency("encode"));
   }
 
-  private boolean checkCamera() {
-    if (getPackageManager().hasSystemFeature(PackageManager.FEATURE_CAMERA))
-      return true;
-    else
-      return false;
+  private void startMetrics() {
+    // Exported as metrics.json next to the data, so that devices can be compared afterwards
+    mMetrics = new SessionMetrics();
+    mMetrics.putInfo("session", mDateString);
+    mMetrics.putInfo("device", Build.MANUFACTURER + " " + Build.MODEL);
+    mMetrics.putInfo("sdk", Integer.toString(Build.VERSION.SDK_INT));
+    mMetrics.putInfo("frame_format", FRAME_FORMAT.toString());
+    if (FRAME_FORMAT == FrameFormat.GRAY)
+      mMetrics.putInfo("pyramid_levels", Integer.toString(GRAY_PYRAMID_LEVELS));
+    mMetrics.putInfo("encode_workers", Integer.toString(ENCODE_WORKERS_NUM));
+    mMetrics.putInfo("capture_backend", mCaptureBackend.getName());
+    mMetrics.putInfo(SessionMetrics.INFO_FRAME_CLOCK, mCaptureBackend.isSensorClock() ? "sensor" : "host");
+    mSessionWriter.setLatencyHistograms(mMetrics.latency("write"), mMetrics.latency("sync"));
   }
 
-  private void getCameraInstance() {
-    if (mCamera == null) {
-      try {
-        mCamera = Camera.open();
-      } catch (Exception e) {
-        Log.e(TAG, "getCameraInstance: " + e.getMessage());
-      }
-    }
+  private void startSynchronizer() {
+    // Frames are aligned to the IMU streams incrementally as both come in, and the motion
+    // between consecutive frames is preintegrated and logged with them
+    mPreintegrationRecorder = new PreintegrationRecorder(mSessionWriter);
+    CameraImuSynchronizer synchronizer = new CameraImuSynchronizer(mPreintegrationRecorder);
+    synchronizer.setPreintegrator(new ImuPreintegrator());
+    // Camera2 frames stamped at exposure on the SensorEvent clock need no clock offset
+    synchronizer.setFramesOnSensorClock(mCaptureBackend.isSensorClock());
+    mSynchronizer = synchronizer;
   }
 
-  private void releaseCamera() {
-    if (mCamera != null) {
-      mCamera.release();
-      mCamera = null;
+  private ImuStreamRecorder stopSynchronizer() {
+    CameraImuSynchronizer synchronizer = mSynchronizer;
+    mSynchronizer = null;
+    synchronizer.flush();
+    // So that the offline tools can place host clock frames against the IMU streams
+    if (!mCaptureBackend.isSensorClock() && synchronizer.hasClockOffset()) {
+      SensorRateStats.Snapshot gyro = new SensorRateStats.Snapshot(3);
+      mChannels.get(ImuChannelRegistry.GYROSCOPE).getStats().snapshot(gyro);
+      mMetrics.putInfo(SessionMetrics.INFO_FRAME_OFFSET_NANOS,
+          Long.toString(-synchronizer.getClockOffsetNanos(gyro.timestampNanos)));
     }
+    Log.i(TAG, "stopSynchronizer: " + synchronizer);
+    return mPreintegrationRecorder.close();
   }
 
-  private void setCamFeatures() {
-    Camera.Parameters params = mCamera.getParameters();
+  private void startKeyframeFilter() {
+    if (!FILTER_REDUNDANT_FRAMES)
+      return;
+    KeyframeFilter filter = new KeyframeFilter(mCaptureBackend.getFrameWidth(), mCaptureBackend.getFrameHeight());
+    filter.setMetrics(mMetrics);
+    filter.startLog(mSessionWriter);
+    mKeyframeFilter = filter;
+  }
 
-    List<String> focusModes = params.getSupportedFocusModes();
-    if (focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
-      params.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
-      mCamera.autoFocus(null);
-    }
-    List<String> flashModes = params.getSupportedFlashModes();
-    if (flashModes != null && flashModes.contains(Camera.Parameters.FLASH_MODE_OFF))
-      params.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
-    List<String> whiteBalanceModes = params.getSupportedWhiteBalance();
-    if (whiteBalanceModes.contains(Camera.Parameters.WHITE_BALANCE_DAYLIGHT))
-      params.setWhiteBalance(Camera.Parameters.WHITE_BALANCE_DAYLIGHT);
+  private ImuStreamRecorder stopKeyframeFilter() {
+    KeyframeFilter filter = mKeyframeFilter;
+    mKeyframeFilter = null;
+    if (filter == null)
+      return null;
+    Log.i(TAG, "stopKeyframeFilter: " + filter);
+    return filter.stopLog();
+  }
+
+  private void startGovernor() {
+    if (!GOVERN_CAPTURE)
+      return;
+    CaptureGovernor governor = new CaptureGovernor(JPEG_QUALITY);
+    governor.setEncoder(mFrameEncoder);
+    for (ImuChannel channel : mChannels)
+      if (channel.isRecording())
+        governor.addFlushPolicy(channel.getFlushPolicy());
+    governor.setMetrics(mMetrics);
+    governor.startLog(mSessionWriter);
+    mGovernedNanos = System.nanoTime();
+    mGovernedFramesNum = 0;
+    mGovernedWrites = mSessionWriter.getStats();
+    mGovernor = governor;
+    mInfoView.postDelayed(mGovernorUpdater, GOVERNOR_PERIOD_MILLIS);
+  }
+
+  private ImuStreamRecorder stopGovernor() {
+    CaptureGovernor governor = mGovernor;
+    mGovernor = null;
+    if (governor == null)
+      return null;
+    mInfoView.removeCallbacks(mGovernorUpdater);
+    Log.i(TAG, "stopGovernor: " + governor);
+    return governor.stopLog();
+  }
+
+  // Feeds the governor the load since the last update, on the UI thread
+  private void updateGovernor() {
+    CaptureGovernor governor = mGovernor;
+    StreamMetrics frameMetrics = mFrameMetrics;
+    if (governor == null || frameMetrics == null)
+      return;
+    long now = System.nanoTime();
+    long framesNum = frameMetrics.getSamplesNum();
+    double frameRateHz = (framesNum - mGovernedFramesNum) * 1e9 / Math.max(1, now - mGovernedNanos);
+    SessionWriter.Stats writes = mSessionWriter.getStats();
+    long writesNum = writes.writesNum - mGovernedWrites.writesNum;
+    long writeLatencyNanos = writesNum > 0 ? (writes.meanWriteNanos * writes.writesNum
+        - mGovernedWrites.meanWriteNanos * mGovernedWrites.writesNum) / writesNum : -1;
+    double backlog = (double) mEncodePipeline.getQueueDepth() / mEncodePipeline.getQueueCapacity();
+    mGovernedNanos = now;
+    mGovernedFramesNum = framesNum;
+    mGovernedWrites = writes;
+
+    if (governor.update(now, backlog, writeLatencyNanos, frameRateHz, getBatteryTemperature()))
+      Log.i(TAG, "updateGovernor: " + governor);
+  }
 
-    params.setPreviewSize(DEFAULT_CAPTURE_W, DEFAULT_CAPTURE_H);
-    params.setPictureSize(DEFAULT_CAPTURE_W, DEFAULT_CAPTURE_H);
+  // In degrees Celsius, NaN if unknown. The thermal status of PowerManager is not available
+  // before API 29, the battery heats up along with the SoC.
+  private double getBatteryTemperature() {
+    Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    if (battery == null)
+      return Double.NaN;
+    int tenths = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+    return tenths == Integer.MIN_VALUE ? Double.NaN : tenths / 10.0;
+  }
 
-    mCamera.setParameters(params);
+  private void startFrameBufferPool() {
+    mFrameBufferPool = new FrameBufferPool(mCaptureBackend.getFrameBufferSize(), FRAME_BUFFERS_NUM,
+        mCaptureBackend.getBufferSink(FRAME_BUFFERS_NUM));
+    mFrameBufferPool.prime();
+  }
+
+  private void stopFrameBufferPool() {
+    // Buffers still held by the encoder are dropped instead of being returned to the backend
+    mFrameBufferPool.close();
+    Log.i(TAG, "stopFrameBufferPool: " + mFrameBufferPool);
+  }
+
+  private void stopSession(final List<ImuStreamRecorder> recorders) {
+    // Queued frames are still encoded by the workers, which exit once the queue is empty.
+    // The session writer is stopped off the UI thread once they are done, it then writes what
+    // is left of every stream, syncs and closes the files.
+    final FrameEncodePipeline pipeline = mEncodePipeline;
+    final OrderedFrameCommitter committer = mFrameEncoder.getCommitter();
+    final OrderedFrameCommitter.CommitSink commitSink = mFrameCommitSink;
+    final SessionWriter session = mSessionWriter;
+    final SessionMetrics metrics = mMetrics;
+    pipeline.shutdown();
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (!pipeline.awaitTermination(ENCODE_SHUTDOWN_TIMEOUT_MILLIS))
+            Log.w(TAG, "stopSession: encoder did not finish in time");
+          IOException e = committer.takeException();
+          if (e != null)
+            Log.e(TAG, "stopSession: " + e.getMessage());
+          commitSink.close();
+        } catch (InterruptedException | IOException e) {
+          Log.e(TAG, "stopSession: " + e.getMessage());
+        }
+        FrameEncodePipeline.Stats stats = pipeline.getStats();
+        Log.i(TAG, "stopSession: " + stats + ", committed " + committer.getCommittedNum()
+            + ", skipped " + committer.getSkippedNum());
+
+        // Frames the pipeline dropped never reached the disk, frames the camera skipped show as
+        // long intervals instead
+        metrics.stream("camera").addDropped(stats.dropped());
+        try {
+          byte[] json = metrics.toJsonBytes();
+          session.writeFile(SessionMetrics.FILENAME, json, 0, json.length);
+        } catch (IOException e) {
+          Log.e(TAG, "stopSession: " + e.getMessage());
+        }
+        Log.i(TAG, "stopSession: " + metrics);
+
+        session.stop();
+        try {
+          if (!session.awaitTermination(SESSION_SHUTDOWN_TIMEOUT_MILLIS))
+            Log.w(TAG, "stopSession: session writer did not finish in time");
+        } catch (InterruptedException e) {
+          Log.e(TAG, "stopSession: " + e.getMessage());
+        }
+        IOException e = session.takeException();
+        if (e != null)
+          Log.e(TAG, "stopSession: " + e.getMessage());
+        for (ImuStreamRecorder recorder : recorders)
+          Log.i(TAG, "stopSession: " + recorder);
+        Log.i(TAG, "stopSession: " + session.getStats());
+      }
+    }, "SessionShutdown").start();
+  }
+
+  // Brings the sessions of earlier launches that were killed mid-capture back to what their
+  // journal committed, off the UI thread. Runs once per process, the first time an activity is
+  // created, and never touches a session this process is still writing, e.g. one whose
+  // SessionShutdown thread outlived its activity.
+  private void recoverSessions() {
+    if (!sRecoveryStarted.compareAndSet(false, true))
+      return;
+    final File root = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS),
+        getResources().getString(R.string.app_name));
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (File dir : SessionJournal.listIncomplete(root)) {
+            if (SessionWriter.isActive(dir)) {
+              Log.i(TAG, "recoverSessions: " + dir.getName() + ": still being written");
+              continue;
+            }
+            try {
+              Log.i(TAG, "recoverSessions: " + dir.getName() + ": " + SessionJournal.recover(dir, FRAME_FORMAT));
+            } catch (IOException e) {
+              Log.e(TAG, "recoverSessions: " + dir.getName() + ": " + e.getMessage());
+            }
+          }
+        } finally {
+          sRecoveryDone = true;
+        }
+      }
+    }, "SessionRecovery").start();
+  }
+
+  private File getSessionDir() {
+    return new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS), mStorageDir);
+  }
+
+  private boolean isExternalStorageWritable() {
+    String state = Environment.getExternalStorageState();
+    return Environment.MEDIA_MOUNTED.equals(state);
+  }
+
+  private boolean checkCamera() {
+    if (getPackageManager().hasSystemFeature(PackageManager.FEATURE_CAMERA))
+      return true;
+    else
+      return false;
   }
 }
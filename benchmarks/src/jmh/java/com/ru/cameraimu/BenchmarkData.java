@@ -0,0 +1,60 @@
+package com.ru.cameraimu;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+// Synthetic inputs shared by the benchmarks, sized like the capture defaults of MainActivity
+final class BenchmarkData {
+
+  static final int W = 640;
+  static final int H = 480;
+  static final int JPEG_QUALITY = 95;
+  static final long IMU_PERIOD_NANOS = 5000000L;  // 200 Hz
+  static final long FRAME_PERIOD_NANOS = 33333333L;  // 30 Hz
+
+  private BenchmarkData() {}
+
+  // Smooth gradients with some noise, closer to camera content than random bytes
+  static byte[][] nv21Frames(int count) {
+    Random random = new Random(42);
+    byte[][] frames = new byte[count][Nv21.bufferSize(W, H)];
+    for (int f = 0; f < count; ++f) {
+      byte[] frame = frames[f];
+      for (int y = 0; y < H; ++y)
+        for (int x = 0; x < W; ++x)
+          frame[y * W + x] = (byte) ((x + y + 4 * f) / 5 + random.nextInt(8));
+      for (int i = W * H; i < frame.length; ++i)
+        frame[i] = (byte) (128 + random.nextInt(16) - 8);
+    }
+    return frames;
+  }
+
+  // Gyroscope in the first three values and accelerometer in the last three, count must be a
+  // power of two so that callers can wrap around with a mask
+  static float[][] imuSamples(int count) {
+    Random random = new Random(42);
+    float[][] samples = new float[count][6];
+    for (float[] s : samples) {
+      for (int i = 0; i < 3; ++i)
+        s[i] = (float) (0.5 * random.nextGaussian());
+      s[3] = (float) random.nextGaussian();
+      s[4] = (float) (9.81 + random.nextGaussian());
+      s[5] = (float) random.nextGaussian();
+    }
+    return samples;
+  }
+
+  static File newTempDir(String prefix) throws IOException {
+    return Files.createTempDirectory(prefix).toFile();
+  }
+
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children)
+        delete(child);
+    file.delete();
+  }
+}
@@ -0,0 +1,104 @@
+package com.ru.cameraimu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Disk paths of one captured frame:
+//  - fileOutputStream: one file per frame opened, written and closed on the caller's thread, as
+//    compressAndSaveAsJPEG did
+//  - sessionWriteFile: the same file handed to the SessionWriter I/O thread, which paces the
+//    caller through its queued bytes limit once the disk falls behind
+//  - rawSegment: a raw frame copied into the memory mapped segments of a RawFrameSegmentWriter
+// File names cycle over a fixed set so that a long run does not fill the disk.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class FileWriteBenchmark {
+
+  private static final int FILES_NUM = 64;
+
+  // The segments are started over this often, which is included in the measurement
+  private static final int SEGMENT_FRAMES_NUM = 32;
+  private static final int SEGMENTS_NUM = 4;
+
+  // About a 640x480 JPEG, and the raw NV21 frame of the same size
+  @Param({"40960", "460800"})
+  public int frameBytes;
+
+  private byte[] mFrame;
+  private File mDir;
+  private SessionWriter mSession;
+  private RawFrameSegmentWriter mSegmentWriter;
+  private int mFileIndex = 0;
+  private long mTimestampNanos = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    mFrame = new byte[frameBytes];
+    new Random(42).nextBytes(mFrame);
+    mDir = BenchmarkData.newTempDir("FileWriteBenchmark");
+    mSession = new SessionWriter(mDir);
+    mSession.start();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException, InterruptedException {
+    mSession.stop();
+    mSession.awaitTermination(10000);
+    if (mSegmentWriter != null)
+      mSegmentWriter.close();
+    BenchmarkData.delete(mDir);
+  }
+
+  @Benchmark
+  public File fileOutputStream() throws IOException {
+    File file = new File(mDir, nextName());
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(mFrame);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  @Benchmark
+  public int sessionWriteFile() throws IOException {
+    mSession.writeFile(nextName(), mFrame, 0, mFrame.length);
+    return mFileIndex;
+  }
+
+  @Benchmark
+  public long rawSegment() throws IOException {
+    if (mSegmentWriter == null || mSegmentWriter.getFramesNum() == SEGMENT_FRAMES_NUM * SEGMENTS_NUM) {
+      if (mSegmentWriter != null)
+        mSegmentWriter.close();
+      File segmentsDir = new File(mDir, "segments");
+      BenchmarkData.delete(segmentsDir);
+      segmentsDir.mkdirs();
+      mSegmentWriter = new RawFrameSegmentWriter(segmentsDir, new RawSegmentFormat(BenchmarkData.W,
+          BenchmarkData.H, RawSegmentFormat.PIXEL_FORMAT_NV21, frameBytes, SEGMENT_FRAMES_NUM));
+    }
+    mSegmentWriter.append(mFrame, mFrame.length, mTimestampNanos++);
+    return mSegmentWriter.getFramesNum();
+  }
+
+  private String nextName() {
+    mFileIndex = (mFileIndex + 1) % FILES_NUM;
+    return mFileIndex + ".bin";
+  }
+}
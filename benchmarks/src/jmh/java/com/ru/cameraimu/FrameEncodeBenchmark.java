@@ -0,0 +1,138 @@
+package com.ru.cameraimu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+// Frame encoding throughput of the former serial path (one frame at a time on a single thread)
+// and of the ParallelFrameEncoder, using the JDK JPEG codec as a stand-in for YuvImage.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class FrameEncodeBenchmark {
+
+  private static final int FRAMES_NUM = 16;
+
+  // JPEG through javax.imageio, for desktop JVMs only
+  static class ImageIoCompressor implements FrameCompressor {
+    private final ThreadLocal<BufferedImage> mImage = new ThreadLocal<>();
+    private final ThreadLocal<int[]> mArgb = new ThreadLocal<>();
+
+    @Override
+    public void compress(FrameEncodePipeline.Frame frame, FrameFormat format, int quality, OutputStream out)
+        throws IOException {
+      int w = frame.width();
+      int h = frame.height();
+      if (mImage.get() == null) {
+        mImage.set(new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB));
+        mArgb.set(new int[w * h]);
+      }
+      int[] argb = mArgb.get();
+      Nv21.toArgb(frame.data(), w, h, argb);
+      BufferedImage image = mImage.get();
+      image.setRGB(0, 0, w, h, argb, 0, w);
+
+      Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format == FrameFormat.PNG ? "png" : "jpeg");
+      ImageWriter writer = writers.next();
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      if (format == FrameFormat.JPEG) {
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+      }
+      ImageOutputStream ios = new MemoryCacheImageOutputStream(out);
+      try {
+        writer.setOutput(ios);
+        writer.write(null, new IIOImage(image, null, null), param);
+      } finally {
+        ios.close();
+        writer.dispose();
+      }
+    }
+  }
+
+  @Param({"1", "2", "4"})
+  public int workersNum;
+
+  private final ImageIoCompressor mCompressor = new ImageIoCompressor();
+  private byte[][] mFrames;
+  private FrameEncodePipeline.Frame mFrame;
+  private OrderedFrameCommitter.Slot mSlot;
+  private ParallelFrameEncoder mEncoder;
+  private FrameEncodePipeline mPipeline;
+  private long mSubmittedNum = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() throws InterruptedException {
+    mFrames = BenchmarkData.nv21Frames(8);
+    mFrame = new FrameEncodePipeline.Frame();
+    mSlot = new OrderedFrameCommitter(1, null).acquire(0);
+
+    mEncoder = new ParallelFrameEncoder(mCompressor, FrameFormat.JPEG, BenchmarkData.JPEG_QUALITY,
+        new OrderedFrameCommitter(ParallelFrameEncoder.defaultWindow(workersNum),
+        new OrderedFrameCommitter.CommitSink() {
+      @Override
+      public void commit(long sequence, long timestampNanos, byte[] data, int length) {}
+
+      @Override
+      public void close() {}
+    }));
+    final ParallelFrameEncoder encoder = mEncoder;
+    mPipeline = new FrameEncodePipeline(encoder, 2 * workersNum, workersNum,
+        FrameEncodePipeline.DropPolicy.BLOCK, new FrameEncodePipeline.Listener() {
+      @Override
+      public void onFrameDone(FrameEncodePipeline.Frame frame, boolean encoded) { encoder.onFrameDone(frame, encoded); }
+
+      @Override
+      public void onEncodeFailed(FrameEncodePipeline.Frame frame, Exception e) { e.printStackTrace(); }
+    });
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    mPipeline.shutdown();
+    mPipeline.awaitTermination(10000);
+  }
+
+  // Mirrors the old compressAndSaveAsJPEG loop, the same for every workersNum
+  @Benchmark
+  @OperationsPerInvocation(FRAMES_NUM)
+  public int serial() throws IOException {
+    for (int i = 0; i < FRAMES_NUM; ++i) {
+      mFrame.set(mFrames[i % mFrames.length], BenchmarkData.W, BenchmarkData.H, i, i, 0);
+      mSlot.reset();
+      mCompressor.compress(mFrame, FrameFormat.JPEG, BenchmarkData.JPEG_QUALITY, mSlot);
+    }
+    return mSlot.length();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FRAMES_NUM)
+  public long parallel() {
+    for (int i = 0; i < FRAMES_NUM; ++i)
+      mPipeline.submit(mFrames[i % mFrames.length], BenchmarkData.W, BenchmarkData.H, mSubmittedNum++);
+    while (mEncoder.getCommitter().getNextSequence() < mSubmittedNum)
+      Thread.yield();
+    return mSubmittedNum;
+  }
+}
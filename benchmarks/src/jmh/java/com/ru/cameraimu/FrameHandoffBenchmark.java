@@ -0,0 +1,74 @@
+package com.ru.cameraimu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Round trip of a preview buffer through the FrameBufferPool and the FrameEncodePipeline with an
+// encoder that does nothing, i.e. what the camera callback and the workers pay per frame on top
+// of the encoding itself. The queue stands in for the camera's callback buffers.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class FrameHandoffBenchmark {
+
+  private static final int QUEUE_CAPACITY = 4;
+
+  @Param({"1", "2", "4"})
+  public int workersNum;
+
+  @Param({"BLOCK", "DROP_OLDEST"})
+  public FrameEncodePipeline.DropPolicy dropPolicy;
+
+  private ArrayBlockingQueue<byte[]> mCameraBuffers;
+  private FrameBufferPool mPool;
+  private FrameEncodePipeline mPipeline;
+  private long mTimestampNanos = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    // As many buffers as MainActivity allocates for the same queue and workers
+    int buffersNum = QUEUE_CAPACITY + workersNum + 2;
+    mCameraBuffers = new ArrayBlockingQueue<>(buffersNum);
+    mPool = new FrameBufferPool(Nv21.bufferSize(BenchmarkData.W, BenchmarkData.H), buffersNum,
+        new FrameBufferPool.BufferSink() {
+      @Override
+      public void onBufferAvailable(byte[] buffer) { mCameraBuffers.offer(buffer); }
+    });
+    mPool.prime();
+    mPipeline = new FrameEncodePipeline(new FrameEncodePipeline.FrameEncoder() {
+      @Override
+      public void encode(FrameEncodePipeline.Frame frame) {}
+    }, QUEUE_CAPACITY, workersNum, dropPolicy, new FrameEncodePipeline.Listener() {
+      @Override
+      public void onFrameDone(FrameEncodePipeline.Frame frame, boolean encoded) { mPool.recycle(frame.data()); }
+
+      @Override
+      public void onEncodeFailed(FrameEncodePipeline.Frame frame, Exception e) {}
+    });
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    mPipeline.shutdown();
+    mPipeline.awaitTermination(10000);
+    mPool.close();
+  }
+
+  @Benchmark
+  public boolean handoff() throws InterruptedException {
+    byte[] buffer = mCameraBuffers.take();
+    mPool.onFrameReceived(buffer);
+    return mPipeline.submit(buffer, BenchmarkData.W, BenchmarkData.H, mTimestampNanos++);
+  }
+}
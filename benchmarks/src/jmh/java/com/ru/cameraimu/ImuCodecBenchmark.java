@@ -0,0 +1,133 @@
+package com.ru.cameraimu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Cost and size of one gyroscope sample in each of the IMU log encodings:
+//  - encode: serialized into memory
+//  - decode: parsed back into arrays, as SessionReader and the converters do
+// for the legacy text lines, the binary records of ImuLogFormat and both ImuBlockCodec modes.
+// The bytes per sample of each encoding are printed once per trial, next to the compression
+// ratio against the text lines.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ImuCodecBenchmark {
+
+  private static final int BATCH = CompressedImuLogWriter.DEFAULT_BLOCK_SIZE;
+  private static final int ARITY = 3;
+  // What a typical phone gyroscope reports per count
+  private static final float RESOLUTION = 0.0010652645f;
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  @Param({"TEXT", "BINARY", "QUANTIZED", "XOR"})
+  public String encoding;
+
+  private final float[][] mValues = new float[ARITY][BATCH];
+  private final long[] mTimestamps = new long[BATCH];
+  private final float[][] mDecodedValues = new float[ARITY][BATCH];
+  private final long[] mDecodedTimestamps = new long[BATCH];
+  private final float[][] mLineValues = new float[ARITY][1];
+  private final long[] mLineTimestamps = new long[1];
+  private ImuBlockCodec mCodec;
+  private ByteBuffer mEncoded;
+  private int mEncodedSize;
+
+  // The gyroscope samples of BenchmarkData in whole counts of the sensor resolution, sampled
+  // on a slightly jittery 200 Hz clock
+  @Setup(Level.Trial)
+  public void setUp() {
+    float[][] samples = BenchmarkData.imuSamples(BATCH);
+    Random random = new Random(42);
+    long timestampNanos = 0;
+    for (int i = 0; i < BATCH; ++i) {
+      timestampNanos += BenchmarkData.IMU_PERIOD_NANOS + random.nextInt(20000) - 10000;
+      mTimestamps[i] = timestampNanos;
+      for (int axis = 0; axis < ARITY; ++axis)
+        mValues[axis][i] = Math.round(samples[i][axis] / RESOLUTION) * RESOLUTION;
+    }
+    if (!encoding.equals("TEXT") && !encoding.equals("BINARY"))
+      mCodec = new ImuBlockCodec(ARITY, ImuBlockCodec.Mode.valueOf(encoding), RESOLUTION);
+    mEncoded = ByteBuffer.allocate(64 * BATCH * (1 + ARITY)).order(ImuLogFormat.BYTE_ORDER);
+    mEncodedSize = encode();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    mEncoded.clear();
+    int textSize = encodeText();
+    System.out.printf(Locale.US, "%n%s: %.2f bytes per sample, %.1fx smaller than text%n", encoding,
+        (double) mEncodedSize / BATCH, (double) textSize / mEncodedSize);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public int encode() {
+    mEncoded.clear();
+    if (encoding.equals("TEXT"))
+      return encodeText();
+    if (encoding.equals("BINARY")) {
+      for (int i = 0; i < BATCH; ++i) {
+        mEncoded.putLong(mTimestamps[i]);
+        for (int axis = 0; axis < ARITY; ++axis)
+          mEncoded.putFloat(mValues[axis][i]);
+      }
+      return mEncoded.position();
+    }
+    return mCodec.encode(mValues, mTimestamps, 0, BATCH, mEncoded);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public long decode() throws IOException {
+    mEncoded.position(0).limit(mEncodedSize);
+    if (encoding.equals("TEXT")) {
+      // The line parsing of SessionReader for legacy sessions
+      String text = new String(mEncoded.array(), 0, mEncodedSize, ASCII);
+      int start = 0;
+      for (int i = 0; i < BATCH; ++i) {
+        int end = text.indexOf('\n', start);
+        String[] fields = text.substring(start, end).split(" ");
+        for (int axis = 0; axis < ARITY; ++axis)
+          mDecodedValues[axis][i] = Float.parseFloat(fields[axis]);
+        mDecodedTimestamps[i] = Long.parseLong(fields[ARITY]);
+        start = end + 1;
+      }
+    } else if (encoding.equals("BINARY")) {
+      for (int i = 0; i < BATCH; ++i) {
+        mDecodedTimestamps[i] = mEncoded.getLong();
+        for (int axis = 0; axis < ARITY; ++axis)
+          mDecodedValues[axis][i] = mEncoded.getFloat();
+      }
+    } else {
+      mCodec.decode(mEncoded, mDecodedValues, mDecodedTimestamps, 0);
+    }
+    return mDecodedTimestamps[BATCH - 1] + (long) mDecodedValues[0][BATCH - 1];
+  }
+
+  private int encodeText() {
+    for (int i = 0; i < BATCH; ++i) {
+      for (int axis = 0; axis < ARITY; ++axis)
+        mLineValues[axis][0] = mValues[axis][i];
+      mLineTimestamps[0] = mTimestamps[i];
+      mEncoded.put(ImuLogConverter.formatLine(mLineValues, mLineTimestamps, 0).getBytes(ASCII));
+    }
+    return mEncoded.position();
+  }
+}
@@ -0,0 +1,75 @@
+package com.ru.cameraimu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost per IMU sample of the preintegrator alone, and of the CameraImuSynchronizer with 200 Hz
+// gyroscope and accelerometer and 30 Hz frames, preintegrating between frames.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ImuPreintegrationBenchmark {
+
+  private static final int SAMPLES_NUM = 4096;
+  private static final long CLOCK_OFFSET_NANOS = 1000000000L;
+
+  private float[][] mSamples;
+  private ImuPreintegrator mPreintegrator;
+  private CameraImuSynchronizer mSynchronizer;
+  private long mPreintegratedNum;
+  private long mSampleIndex;
+  private long mNextFrameNanos;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    mSamples = BenchmarkData.imuSamples(SAMPLES_NUM);
+    mPreintegrator = new ImuPreintegrator();
+    mSynchronizer = new CameraImuSynchronizer(new CameraImuSynchronizer.Listener() {
+      @Override
+      public void onFrameSynced(CameraImuSynchronizer.SyncedFrame frame) {
+        if (frame.preintegration() != null)
+          ++mPreintegratedNum;
+      }
+    });
+    mSynchronizer.setPreintegrator(new ImuPreintegrator());
+    mSampleIndex = 0;
+    mNextFrameNanos = CLOCK_OFFSET_NANOS + BenchmarkData.FRAME_PERIOD_NANOS;
+  }
+
+  @Benchmark
+  public ImuPreintegrator preintegrate() {
+    long i = mSampleIndex++;
+    float[] s = mSamples[(int) i & (SAMPLES_NUM - 1)];
+    mPreintegrator.integrate(s[0], s[1], s[2], s[3], s[4], s[5], BenchmarkData.IMU_PERIOD_NANOS * 1e-9);
+    // One frame interval every six or seven samples, as at 30 Hz
+    if (i % 7 == 6)
+      mPreintegrator.reset();
+    return mPreintegrator;
+  }
+
+  // One gyroscope and one accelerometer sample per invocation
+  @Benchmark
+  @OperationsPerInvocation(2)
+  public long synchronize() {
+    long i = mSampleIndex++;
+    float[] s = mSamples[(int) i & (SAMPLES_NUM - 1)];
+    long t = i * BenchmarkData.IMU_PERIOD_NANOS;
+    long hostNanos = t + CLOCK_OFFSET_NANOS + 100000;
+    if (mNextFrameNanos < hostNanos) {
+      mSynchronizer.addFrame(mNextFrameNanos);
+      mNextFrameNanos += BenchmarkData.FRAME_PERIOD_NANOS;
+    }
+    mSynchronizer.addGyro(s[0], s[1], s[2], t, hostNanos);
+    mSynchronizer.addAccel(s[3], s[4], s[5], t, hostNanos);
+    return mPreintegratedNum;
+  }
+}
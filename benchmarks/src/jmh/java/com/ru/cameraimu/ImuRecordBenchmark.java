@@ -0,0 +1,157 @@
+package com.ru.cameraimu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Cost of one IMU sample from the sensor callback to its serialized form:
+//  - ringBuffer: recorded into an ImuRingBuffer and drained, as IMUEventListener does
+//  - binaryLog: offered to an ImuStreamRecorder and drained into its binary log file
+//  - textLine: formatted as a line of the legacy text layout, what every sample used to cost
+//  - handoff: the ring buffer shared between a producer and a consumer thread
+//  - latest: the latest sample published by the sensor thread and read by the display through
+//    the SeqLock of SensorRateStats
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ImuRecordBenchmark {
+
+  private static final int BATCH = 256;
+  private static final int SAMPLES_NUM = 4096;
+  private static final ImuLogFormat FORMAT = new ImuLogFormat('G', 3, "rad/s");
+
+  // Keeps the drained samples alive, only ever touched from one thread
+  private static final class ChecksumDrain implements ImuRingBuffer.Drain {
+    long checksum;
+
+    @Override
+    public void onSamples(float[][] values, long[] timestampsNanos, int offset, int count) {
+      checksum += timestampsNanos[offset + count - 1] + (long) values[0][offset];
+    }
+  }
+
+  @State(Scope.Group)
+  public static class Handoff {
+    final ImuRingBuffer ring = new ImuRingBuffer(FORMAT.arity, ImuStreamRecorder.DEFAULT_QUEUE_CAPACITY);
+    final ChecksumDrain drain = new ChecksumDrain();
+    final float[][] samples = BenchmarkData.imuSamples(SAMPLES_NUM);
+    long timestampNanos = 0;  // Producer only
+  }
+
+  @State(Scope.Group)
+  public static class Latest {
+    final SensorRateStats stats = new SensorRateStats(FORMAT.arity);
+    final float[][] samples = BenchmarkData.imuSamples(SAMPLES_NUM);
+    long timestampNanos = 0;  // Publisher only
+  }
+
+  @State(Scope.Thread)
+  public static class Display {
+    final SensorRateStats.Snapshot snapshot = new SensorRateStats.Snapshot(FORMAT.arity);
+  }
+
+  private float[][] mSamples;
+  private long mTimestampNanos = 0;
+  private final ImuRingBuffer mRing = new ImuRingBuffer(FORMAT.arity, 2 * BATCH);
+  private final ChecksumDrain mDrain = new ChecksumDrain();
+  private final float[][] mLineValues = new float[FORMAT.arity][1];
+  private final long[] mLineTimestamps = new long[1];
+
+  private File mDir;
+  private ImuStreamRecorder mRecorder;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    mSamples = BenchmarkData.imuSamples(SAMPLES_NUM);
+    mDir = BenchmarkData.newTempDir("ImuRecordBenchmark");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    BenchmarkData.delete(mDir);
+  }
+
+  // A fresh log per iteration keeps the file from growing over the whole run
+  @Setup(Level.Iteration)
+  public void openLog() {
+    mRecorder = new ImuStreamRecorder("G", new File(mDir, "G" + ImuLogFormat.FILE_EXTENSION), FORMAT, BATCH);
+  }
+
+  @TearDown(Level.Iteration)
+  public void closeLog() throws IOException {
+    mRecorder.stop();
+    mRecorder.close();
+    new File(mDir, "G" + ImuLogFormat.FILE_EXTENSION).delete();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public long ringBuffer() {
+    for (int i = 0; i < BATCH; ++i)
+      mRing.record(mSamples[(int) mTimestampNanos & (SAMPLES_NUM - 1)], mTimestampNanos++);
+    mRing.drainTo(mDrain);
+    return mDrain.checksum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public long binaryLog() throws IOException {
+    for (int i = 0; i < BATCH; ++i)
+      mRecorder.offer(mSamples[(int) mTimestampNanos & (SAMPLES_NUM - 1)], mTimestampNanos++);
+    return mRecorder.drain();
+  }
+
+  @Benchmark
+  public String textLine() {
+    float[] s = mSamples[(int) mTimestampNanos & (SAMPLES_NUM - 1)];
+    for (int axis = 0; axis < FORMAT.arity; ++axis)
+      mLineValues[axis][0] = s[axis];
+    mLineTimestamps[0] = mTimestampNanos++;
+    return ImuLogConverter.formatLine(mLineValues, mLineTimestamps, 0);
+  }
+
+  // A full ring drops the sample, as the sensor callback would
+  @Benchmark
+  @Group("handoff")
+  @GroupThreads(1)
+  public boolean handoffOffer(Handoff handoff) {
+    long t = handoff.timestampNanos++;
+    return handoff.ring.record(handoff.samples[(int) t & (SAMPLES_NUM - 1)], t);
+  }
+
+  @Benchmark
+  @Group("handoff")
+  @GroupThreads(1)
+  public int handoffDrain(Handoff handoff) {
+    return handoff.ring.drainTo(handoff.drain);
+  }
+
+  @Benchmark
+  @Group("latest")
+  @GroupThreads(1)
+  public void latestPublish(Latest latest) {
+    long t = latest.timestampNanos++;
+    latest.stats.onSample(latest.samples[(int) t & (SAMPLES_NUM - 1)], t * BenchmarkData.IMU_PERIOD_NANOS);
+  }
+
+  @Benchmark
+  @Group("latest")
+  @GroupThreads(1)
+  public long latestSnapshot(Latest latest, Display display) {
+    latest.stats.snapshot(display.snapshot);
+    return display.snapshot.timestampNanos;
+  }
+}
@@ -0,0 +1,41 @@
+package com.ru.cameraimu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of the keyframe decision on one VGA preview frame, to be compared with the 33 ms a frame
+// lasts at 30 Hz and the encode cost of FrameEncodeBenchmark:
+//  - decide: thumbnail, histogram and comparison against the keyframe, as the preview callback
+//    runs it; the frames alternate so that some are kept and the keyframe moves
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class KeyframeFilterBenchmark {
+
+  private static final int FRAMES_NUM = 8;
+
+  private byte[][] mFrames;
+  private KeyframeFilter mFilter;
+  private int mNext = 0;
+  private long mTimestampNanos = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    mFrames = BenchmarkData.nv21Frames(FRAMES_NUM);
+    mFilter = new KeyframeFilter(BenchmarkData.W, BenchmarkData.H);
+  }
+
+  @Benchmark
+  public KeyframeFilter.Decision decide() {
+    mTimestampNanos += BenchmarkData.FRAME_PERIOD_NANOS;
+    return mFilter.decide(mFrames[mNext++ & (FRAMES_NUM - 1)], mTimestampNanos);
+  }
+}
@@ -0,0 +1,72 @@
+package com.ru.cameraimu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Per frame cost of writing a VGA preview frame on one encoder thread:
+//  - jpeg: the full color JPEG of the current path, through the JDK codec as in FrameEncodeBenchmark
+//  - luma: the luma plane and levels - 1 levels of its pyramid as PGM, see LumaFrameCompressor
+//  - downsample: the 2x2 box filter alone, from the full luma plane to its first level
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class LumaPyramidBenchmark {
+
+  private static final int FRAMES_NUM = 8;
+
+  @Param({"1", "3"})
+  public int levels;
+
+  private byte[][] mFrames;
+  private byte[] mLevel;
+  private FrameEncodePipeline.Frame mFrame;
+  private OrderedFrameCommitter.Slot mSlot;
+  private final FrameEncodeBenchmark.ImageIoCompressor mJpeg = new FrameEncodeBenchmark.ImageIoCompressor();
+  private LumaFrameCompressor mLuma;
+  private int mNext = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() throws InterruptedException {
+    mFrames = BenchmarkData.nv21Frames(FRAMES_NUM);
+    mLevel = new byte[(BenchmarkData.W / 2) * (BenchmarkData.H / 2)];
+    mFrame = new FrameEncodePipeline.Frame();
+    mSlot = new OrderedFrameCommitter(1, null).acquire(0);
+    mLuma = new LumaFrameCompressor(levels, true);
+  }
+
+  @Benchmark
+  public int jpeg() throws IOException {
+    nextFrame();
+    mJpeg.compress(mFrame, FrameFormat.JPEG, BenchmarkData.JPEG_QUALITY, mSlot);
+    return mSlot.length();
+  }
+
+  @Benchmark
+  public int luma() throws IOException {
+    nextFrame();
+    mLuma.compress(mFrame, FrameFormat.GRAY, 0, mSlot);
+    return mSlot.length();
+  }
+
+  @Benchmark
+  public byte[] downsample() {
+    LumaPyramid.downsample(mFrames[mNext++ & (FRAMES_NUM - 1)], 0, BenchmarkData.W, BenchmarkData.H, mLevel, 0);
+    return mLevel;
+  }
+
+  private void nextFrame() {
+    mFrame.set(mFrames[mNext & (FRAMES_NUM - 1)], BenchmarkData.W, BenchmarkData.H, mNext, mNext, 0);
+    ++mNext;
+    mSlot.reset();
+  }
+}
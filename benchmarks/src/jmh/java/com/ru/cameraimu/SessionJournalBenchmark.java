@@ -0,0 +1,80 @@
+package com.ru.cameraimu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Cost of the session journal per record, next to the frame and chunk writes it covers:
+//  - stage: one record encoded and checksummed into the staging buffer, what every frame file
+//    and every synced stream costs the I/O thread
+//  - commit: a batch of records staged and appended with one write and one fsync, 1 for a record
+//    forced out on its own and 64 for about an fsync pass worth of frames and streams; the time
+//    is that of the whole batch
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class SessionJournalBenchmark {
+
+  private static final int BATCH = 64;
+  private static final int FILES_NUM = 64;
+
+  @Param({"1", "64"})
+  public int batch;
+
+  private File mDir;
+  private File[] mFiles;
+  private SessionJournalWriter mJournal;
+  private final ByteBuffer mStaging = ByteBuffer.allocate(BATCH * SessionJournal.RECORD_SIZE)
+      .order(SessionJournal.BYTE_ORDER);
+  private final CRC32 mCrc = new CRC32();
+  private int mNext = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    mDir = BenchmarkData.newTempDir("SessionJournalBenchmark");
+    mFiles = new File[FILES_NUM];
+    for (int i = 0; i < FILES_NUM; ++i)
+      mFiles[i] = new File(mDir, SessionReader.IMAGE_DIR + File.separator
+          + FileFrameCommitSink.filename(i * BenchmarkData.FRAME_PERIOD_NANOS, FrameFormat.JPEG));
+    mJournal = new SessionJournalWriter(mDir);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    mJournal.close();
+    BenchmarkData.delete(mDir);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public int stage() {
+    mStaging.clear();
+    for (int i = 0; i < BATCH; ++i) {
+      String path = mFiles[i & (FILES_NUM - 1)].getPath();
+      SessionJournal.writeRecord(mStaging, SessionJournal.TYPE_FILE, path, mDir.getPath().length() + 1, 40960, mCrc);
+    }
+    return mStaging.position();
+  }
+
+  @Benchmark
+  public long commit() throws IOException {
+    for (int i = 0; i < batch; ++i)
+      mJournal.commitFile(mFiles[mNext++ & (FILES_NUM - 1)], 40960);
+    mJournal.sync();
+    return mJournal.getRecordsNum();
+  }
+}
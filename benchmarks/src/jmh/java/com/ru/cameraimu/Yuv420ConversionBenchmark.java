@@ -0,0 +1,66 @@
+package com.ru.cameraimu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Per frame cost Camera2Backend adds on the camera thread before a frame reaches the pipeline:
+//  - convert: a VGA YUV_420_888 image in direct buffers, as ImageReader hands them out, into a
+//    pool buffer as NV21; chroma pixels 1 byte apart for planar layouts and 2 for semi-planar ones
+//  - copy: the bulk copy of a whole NV21 frame out of one direct buffer, the least any conversion costs
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class Yuv420ConversionBenchmark {
+
+  @Param({"1", "2"})
+  public int pixelStride;
+
+  private ByteBuffer mY;
+  private ByteBuffer mU;
+  private ByteBuffer mV;
+  private ByteBuffer mWhole;
+  private int mUvRowStride;
+  private byte[] mNv21;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    int w = BenchmarkData.W;
+    int h = BenchmarkData.H;
+    byte[] frame = BenchmarkData.nv21Frames(1)[0];
+    mNv21 = new byte[Nv21.bufferSize(w, h)];
+    mUvRowStride = pixelStride * w / 2;
+    mY = ByteBuffer.allocateDirect(w * h);
+    mY.put(frame, 0, w * h);
+    mU = ByteBuffer.allocateDirect(mUvRowStride * h / 2);
+    mV = ByteBuffer.allocateDirect(mUvRowStride * h / 2);
+    for (int i = 0; i < w * h / 4; ++i) {
+      mV.put(i * pixelStride, frame[w * h + 2 * i]);
+      mU.put(i * pixelStride, frame[w * h + 2 * i + 1]);
+    }
+    mWhole = ByteBuffer.allocateDirect(mNv21.length);
+    mWhole.put(frame);
+  }
+
+  @Benchmark
+  public byte[] convert() {
+    Nv21.fromYuv420(BenchmarkData.W, BenchmarkData.H, mY, BenchmarkData.W, mU, mV, mUvRowStride, pixelStride, mNv21);
+    return mNv21;
+  }
+
+  @Benchmark
+  public byte[] copy() {
+    mWhole.position(0);
+    mWhole.get(mNv21);
+    return mNv21;
+  }
+}
@@ -0,0 +1,263 @@
+package com.ru.cameraimu;
+
+// Aligns camera frames stamped with System.nanoTime() to the gyroscope and accelerometer streams
+// stamped with SensorEvent.timestamp.
+//
+// Every IMU sample also carries the host time at which it was delivered, which feeds a
+// ClockOffsetEstimator mapping between the two clocks. Frames wait in a small queue until both
+// IMU windows are stable past the frame time in sensor clock, then the listener receives the
+// accelerometer and gyroscope interpolated linearly and the integrated gyroscope orientation
+// interpolated by slerp. Nothing is kept beyond the sliding windows, so sessions of any length
+// run in constant memory, and frames are delivered with at most the reorder delay of latency.
+// With an ImuPreintegrator set, the IMU samples between consecutive frames are also
+// preintegrated and handed out with the later frame.
+// Frames stamped by the camera on the sensor clock already, e.g. by Camera2 with a realtime
+// timestamp source, skip the clock offset (see setFramesOnSensorClock()).
+// The methods are synchronized since the sensor and camera callbacks may run on different
+// threads; the listener is called with the lock held.
+public class CameraImuSynchronizer {
+
+  public interface Listener {
+    // The frame is only valid during the call
+    void onFrameSynced(SyncedFrame frame);
+  }
+
+  public static final class SyncedFrame {
+    private long mHostNanos;
+    private long mSensorNanos;
+    private long mClockOffsetNanos;
+    private boolean mValid;
+    private final float[] mGyro = new float[3];
+    private final float[] mAccel = new float[3];
+    private final double[] mOrientation = new double[4];
+    private ImuPreintegrator mPreintegration;
+
+    SyncedFrame() {}
+
+    // The frame stamp as added, in sensor clock already for frames on the sensor clock
+    public long hostNanos() { return mHostNanos; }
+    // Frame time in sensor clock, only meaningful if the clock offset was known or not needed
+    public long sensorNanos() { return mSensorNanos; }
+    public long clockOffsetNanos() { return mClockOffsetNanos; }
+    // False if the IMU windows did not cover the frame, the samples are then left at zero
+    public boolean isValid() { return mValid; }
+    public float[] gyro() { return mGyro; }
+    public float[] accel() { return mAccel; }
+    // Integrated gyroscope orientation {w, x, y, z} relative to the first gyroscope sample
+    public double[] orientation() { return mOrientation; }
+    // Motion since the previous frame, null without a preintegrator or if either frame was invalid
+    public ImuPreintegrator preintegration() { return mPreintegration; }
+  }
+
+  // Samples younger than this relative to the newest one may still be reordered
+  public static final long DEFAULT_REORDER_NANOS = 30000000L;
+  // About five seconds at the fastest sensor rate
+  public static final int DEFAULT_HISTORY_CAPACITY = 2048;
+  public static final int DEFAULT_PENDING_FRAMES_NUM = 32;
+
+  private static final int STAGING_CAPACITY = 64;
+
+  private final Listener mListener;
+  private final ClockOffsetEstimator mClock = new ClockOffsetEstimator();
+  private final ImuStreamWindow mGyroWindow;
+  private final ImuStreamWindow mAccelWindow;
+  private final SyncedFrame mSynced = new SyncedFrame();
+
+  // Pending frame host stamps in arrival order
+  private final long[] mPendingFrames;
+  private int mPendingHead = 0;
+  private int mPendingNum = 0;
+
+  private ImuPreintegrator mPreintegrator = null;
+  private boolean mHasPreviousFrame = false;
+  private long mPreviousFrameNanos;
+  private final float[] mGyroFrom = new float[3];
+  private final float[] mAccelFrom = new float[3];
+  private final float[] mGyroTo = new float[3];
+  private final float[] mAccelTo = new float[3];
+
+  private long mFrameLatencyNanos = 0;
+  private boolean mFramesOnSensorClock = false;
+  private long mSyncedNum = 0;
+  private long mUnsyncedNum = 0;
+
+  public CameraImuSynchronizer(Listener listener) {
+    this(DEFAULT_REORDER_NANOS, DEFAULT_HISTORY_CAPACITY, DEFAULT_PENDING_FRAMES_NUM, listener);
+  }
+
+  public CameraImuSynchronizer(long reorderNanos, int historyCapacity, int pendingFramesNum, Listener listener) {
+    if (pendingFramesNum <= 0)
+      throw new IllegalArgumentException("Invalid pending frames number " + pendingFramesNum);
+    mListener = listener;
+    mGyroWindow = new ImuStreamWindow(STAGING_CAPACITY, historyCapacity, reorderNanos, true);
+    mAccelWindow = new ImuStreamWindow(STAGING_CAPACITY, historyCapacity, reorderNanos, false);
+    mPendingFrames = new long[pendingFramesNum];
+  }
+
+  // Frame stamps are taken when the frame is delivered, this is subtracted from them to get
+  // closer to the exposure time
+  public synchronized void setFrameLatencyNanos(long latencyNanos) { mFrameLatencyNanos = latencyNanos; }
+
+  // Frames are stamped with their exposure time on the clock of SensorEvent.timestamp, they are
+  // then aligned as they are and resolved before the clock offset is known. The frame latency
+  // still applies.
+  public synchronized void setFramesOnSensorClock(boolean onSensorClock) { mFramesOnSensorClock = onSensorClock; }
+
+  public synchronized void setPreintegrator(ImuPreintegrator preintegrator) {
+    mPreintegrator = preintegrator;
+    mHasPreviousFrame = false;
+  }
+
+  public synchronized void addGyro(float x, float y, float z, long sensorNanos, long hostNanos) {
+    mClock.addObservation(sensorNanos, hostNanos);
+    mGyroWindow.add(x, y, z, sensorNanos);
+    resolvePending(false);
+  }
+
+  public synchronized void addAccel(float x, float y, float z, long sensorNanos, long hostNanos) {
+    mClock.addObservation(sensorNanos, hostNanos);
+    mAccelWindow.add(x, y, z, sensorNanos);
+    resolvePending(false);
+  }
+
+  public synchronized void addFrame(long hostNanos) {
+    if (mPendingNum == mPendingFrames.length) {
+      // The IMU streams stalled, give up on the oldest frame
+      resolve(mPendingFrames[mPendingHead]);
+      popPending();
+    }
+    mPendingFrames[(mPendingHead + mPendingNum) % mPendingFrames.length] = hostNanos;
+    ++mPendingNum;
+    resolvePending(false);
+  }
+
+  // Resolves every pending frame with whatever the windows hold, e.g. at the end of a session
+  public synchronized void flush() {
+    mGyroWindow.flush();
+    mAccelWindow.flush();
+    resolvePending(true);
+  }
+
+  public synchronized void reset() {
+    mClock.reset();
+    mGyroWindow.clear();
+    mAccelWindow.clear();
+    mPendingHead = mPendingNum = 0;
+    mHasPreviousFrame = false;
+  }
+
+  public synchronized boolean hasClockOffset() { return mClock.hasEstimate(); }
+
+  // host = sensor + offset, at the given sensor time
+  public synchronized long getClockOffsetNanos(long sensorNanos) { return mClock.offsetAt(sensorNanos); }
+
+  public synchronized double getClockDriftPpm() { return mClock.getDriftPpm(); }
+
+  public synchronized long getSyncedNum() { return mSyncedNum; }
+
+  public synchronized long getUnsyncedNum() { return mUnsyncedNum; }
+
+  public synchronized long getLateSamplesNum() { return mGyroWindow.getLateNum() + mAccelWindow.getLateNum(); }
+
+  public synchronized int getPendingFramesNum() { return mPendingNum; }
+
+  @Override
+  public synchronized String toString() {
+    return "synced " + mSyncedNum + ", unsynced " + mUnsyncedNum + ", late samples " + getLateSamplesNum()
+        + (mClock.hasEstimate() ? ", drift " + mClock.getDriftPpm() + " ppm" : ", no clock offset");
+  }
+
+  private void resolvePending(boolean force) {
+    if (!force && !mFramesOnSensorClock && !mClock.hasEstimate())
+      return;
+    long stableNanos = Math.min(mGyroWindow.newestStableNanos(), mAccelWindow.newestStableNanos());
+    while (mPendingNum > 0) {
+      long hostNanos = mPendingFrames[mPendingHead];
+      if (!force && toSensorNanos(hostNanos) > stableNanos)
+        break;
+      resolve(hostNanos);
+      popPending();
+    }
+  }
+
+  // Integrates every gyroscope interval between the two frames, with the accelerometer
+  // interpolated at the gyroscope timestamps
+  private boolean preintegrate(long fromNanos, SyncedFrame to) {
+    mPreintegrator.reset();
+    if (fromNanos >= to.mSensorNanos)
+      return false;
+    if (!mGyroWindow.interpolate(fromNanos, mGyroFrom, null) || !mAccelWindow.interpolate(fromNanos, mAccelFrom, null))
+      return false;  // The previous frame already left the windows
+
+    long t = fromNanos;
+    long end = mGyroWindow.endIndex();
+    for (long i = mGyroWindow.higherIndex(fromNanos); i < end; ++i) {
+      long next = mGyroWindow.timestampAt(i);
+      if (next >= to.mSensorNanos)
+        break;
+      mGyroWindow.valuesAt(i, mGyroTo);
+      mAccelWindow.interpolate(next, mAccelTo, null);
+      integrate(mGyroTo, mAccelTo, next - t);
+      t = next;
+    }
+    System.arraycopy(to.mGyro, 0, mGyroTo, 0, 3);
+    System.arraycopy(to.mAccel, 0, mAccelTo, 0, 3);
+    integrate(mGyroTo, mAccelTo, to.mSensorNanos - t);
+    return true;
+  }
+
+  // Midpoint of the interval from the previous values, which then become the given ones
+  private void integrate(float[] gyro, float[] accel, long dtNanos) {
+    mPreintegrator.integrate(
+        0.5 * (mGyroFrom[0] + gyro[0]), 0.5 * (mGyroFrom[1] + gyro[1]), 0.5 * (mGyroFrom[2] + gyro[2]),
+        0.5 * (mAccelFrom[0] + accel[0]), 0.5 * (mAccelFrom[1] + accel[1]), 0.5 * (mAccelFrom[2] + accel[2]),
+        dtNanos * 1e-9);
+    System.arraycopy(gyro, 0, mGyroFrom, 0, 3);
+    System.arraycopy(accel, 0, mAccelFrom, 0, 3);
+  }
+
+  private long toSensorNanos(long frameNanos) {
+    frameNanos -= mFrameLatencyNanos;
+    return mFramesOnSensorClock ? frameNanos : mClock.toSensorNanos(frameNanos);
+  }
+
+  private void popPending() {
+    mPendingHead = (mPendingHead + 1) % mPendingFrames.length;
+    --mPendingNum;
+  }
+
+  private void resolve(long hostNanos) {
+    SyncedFrame frame = mSynced;
+    frame.mHostNanos = hostNanos;
+    frame.mValid = false;
+    if (mFramesOnSensorClock || mClock.hasEstimate()) {
+      long sensorNanos = toSensorNanos(hostNanos);
+      frame.mSensorNanos = sensorNanos;
+      frame.mClockOffsetNanos = mClock.hasEstimate() ? mClock.offsetAt(sensorNanos) : 0;
+      frame.mValid = mGyroWindow.interpolate(sensorNanos, frame.mGyro, frame.mOrientation)
+          && mAccelWindow.interpolate(sensorNanos, frame.mAccel, null);
+    } else {
+      frame.mSensorNanos = 0;
+      frame.mClockOffsetNanos = 0;
+    }
+
+    frame.mPreintegration = null;
+    if (frame.mValid) {
+      ++mSyncedNum;
+      if (mPreintegrator != null) {
+        if (mHasPreviousFrame && preintegrate(mPreviousFrameNanos, frame))
+          frame.mPreintegration = mPreintegrator;
+        mHasPreviousFrame = true;
+        mPreviousFrameNanos = frame.mSensorNanos;
+      }
+    } else {
+      mHasPreviousFrame = false;
+      ++mUnsyncedNum;
+      for (int axis = 0; axis < 3; ++axis)
+        frame.mGyro[axis] = frame.mAccel[axis] = 0;
+      Quaternion.setIdentity(frame.mOrientation);
+    }
+    if (mListener != null)
+      mListener.onFrameSynced(frame);
+  }
+}
@@ -0,0 +1,45 @@
+package com.ru.cameraimu;
+
+import java.io.IOException;
+
+// A source of NV21 preview frames, whatever camera API is behind it. Frames are written into
+// buffers of a FrameBufferPool, which hands its free buffers to getBufferSink(), and are
+// delivered one at a time to the FrameListener on the thread of the backend.
+//
+// Frame timestamps are either System.nanoTime() taken on delivery, or the exposure time stamped
+// by the camera itself on the clock of SensorEvent.timestamp (isSensorClock()), in which case
+// the frames need no clock offset to be aligned with the IMU streams (see
+// CameraImuSynchronizer.setFramesOnSensorClock()).
+public interface CaptureBackend {
+
+  interface FrameListener {
+    // nv21 was delivered by the buffer pool and is given back to it by the listener through
+    // FrameBufferPool.recycle() once it is done with it
+    void onFrame(byte[] nv21, int width, int height, long timestampNanos);
+  }
+
+  // Short name for logs and session metrics
+  String getName();
+
+  // Opens the camera, the frame size is only known afterwards
+  void open() throws IOException;
+
+  // Closes the camera, frames are no longer delivered
+  void release();
+
+  int getFrameWidth();
+  int getFrameHeight();
+  // Bytes of a frame buffer
+  int getFrameBufferSize();
+
+  boolean isSensorClock();
+
+  // Where a pool of buffersNum buffers puts those that are free for new frames
+  FrameBufferPool.BufferSink getBufferSink(int buffersNum);
+
+  // Frames are delivered to the listener from now on, into buffers from the sink
+  void startFrames(FrameListener listener);
+
+  // No frame is delivered after this returns, free buffers left in the sink are dropped
+  void stopFrames();
+}
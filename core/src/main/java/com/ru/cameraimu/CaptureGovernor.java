@@ -0,0 +1,227 @@
+package com.ru.cameraimu;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Trades frame quality for a capture that keeps up on a device that throttles, instead of
+// running at full tilt until frames silently go missing.
+//
+// update() is fed the load once per period: the share of the encode queue in use, the mean
+// latency of the session writes since the last update, the rate the camera delivers frames at
+// and the battery temperature. The load counts as high once any of them is beyond its high
+// threshold and as low once all of them are below their low thresholds. A high load steps the
+// governor up one level at once, RELAX_UPDATES low ones in a row step it back down one level.
+// Loads in between hold the level.
+//
+// The frame rate is taken against the highest one seen lately, a peak that decays by
+// PEAK_RATE_RETENTION per update, and its deficit only counts as high while the encode queue or
+// the writes are not low as well: the camera also slows down on its own, e.g. for longer
+// exposures in low light, with nothing behind it that degrading the capture would relieve.
+//
+// The levels lower the JPEG quality by QUALITY_STEP down to minQuality first, then double the
+// maximum age of the IMU chunks up to maxFlushAgeNanos, so the I/O thread makes fewer, larger
+// writes, and only then encode every second, third, ... frame up to maxDecimation.
+//
+// Every adjustment is logged to V.imu with the update time as one record of the level, the
+// quality, the decimation, the flush age in ms, the encode backlog, the write latency in ms, the
+// frame rate deficit and the temperature in degrees Celsius.
+//
+// update() is called from a single thread, admit() from the preview thread.
+public class CaptureGovernor {
+
+  public static final char LOG_TYPE = 'V';
+  public static final String LOG_FILENAME = LOG_TYPE + ImuLogFormat.FILE_EXTENSION;
+  public static final int LOG_ARITY = 8;
+
+  public static final long DEFAULT_PERIOD_NANOS = 1000000000L;
+  public static final int DEFAULT_MIN_QUALITY = 70;
+  public static final int DEFAULT_MAX_DECIMATION = 3;
+  public static final long DEFAULT_MAX_FLUSH_AGE_NANOS = 1000000000L;
+  public static final int QUALITY_STEP = 5;
+  public static final int RELAX_UPDATES = 5;
+  // A camera that settles at a lower rate stops counting as a deficit after about 30 updates
+  public static final double PEAK_RATE_RETENTION = 0.98;
+
+  // High and low thresholds of the load
+  public static final double BACKLOG_HIGH = 0.5;
+  public static final double BACKLOG_LOW = 0.125;
+  public static final long WRITE_LATENCY_HIGH_NANOS = 50000000L;
+  public static final long WRITE_LATENCY_LOW_NANOS = 15000000L;
+  public static final double FRAME_DEFICIT_HIGH = 0.15;
+  public static final double FRAME_DEFICIT_LOW = 0.05;
+  public static final double TEMPERATURE_HIGH = 43;
+  public static final double TEMPERATURE_LOW = 40;
+
+  private static final int LOG_QUEUE_CAPACITY = 256;
+
+  private final int mMaxQuality;
+  private final int mMinQuality;
+  private final int mMaxDecimation;
+  private final long mMinFlushAgeNanos;
+  private final long mMaxFlushAgeNanos;
+  private final int mQualityLevels;
+  private final int mFlushLevels;
+  private final int mMaxLevel;
+
+  private ParallelFrameEncoder mEncoder = null;
+  private final List<FlushPolicy> mFlushPolicies = new ArrayList<>();
+
+  // Only touched from the updating thread
+  private int mLevel = 0;
+  private int mLowUpdates = 0;
+  private double mPeakFrameRateHz = 0;
+  private double mFrameDeficit = 0;
+  private final float[] mRecord = new float[LOG_ARITY];
+  private ImuStreamRecorder mLog = null;
+
+  private volatile int mQuality;
+  private volatile int mDecimation = 1;
+  private volatile long mFlushAgeNanos;
+  // Only touched from the preview thread
+  private int mSinceAdmitted = 0;
+
+  private AtomicLong mStepsUpNum = new AtomicLong();
+  private AtomicLong mStepsDownNum = new AtomicLong();
+
+  public CaptureGovernor(int maxQuality) {
+    this(maxQuality, Math.min(maxQuality, DEFAULT_MIN_QUALITY), DEFAULT_MAX_DECIMATION,
+        FlushPolicy.DEFAULT_MAX_AGE_NANOS, DEFAULT_MAX_FLUSH_AGE_NANOS);
+  }
+
+  // The quality in [minQuality, maxQuality], the decimation in [1, maxDecimation] and the flush
+  // age in [minFlushAgeNanos, maxFlushAgeNanos], each starting from the least degraded end
+  public CaptureGovernor(int maxQuality, int minQuality, int maxDecimation, long minFlushAgeNanos,
+                         long maxFlushAgeNanos) {
+    if (minQuality < 0 || maxQuality > 100 || minQuality > maxQuality || maxDecimation < 1
+        || minFlushAgeNanos <= 0 || maxFlushAgeNanos < minFlushAgeNanos)
+      throw new IllegalArgumentException("Invalid governor bounds quality " + minQuality + "-" + maxQuality
+          + ", decimation " + maxDecimation + ", flush age " + minFlushAgeNanos + "-" + maxFlushAgeNanos + " ns");
+    mMaxQuality = maxQuality;
+    mMinQuality = minQuality;
+    mMaxDecimation = maxDecimation;
+    mMinFlushAgeNanos = minFlushAgeNanos;
+    mMaxFlushAgeNanos = maxFlushAgeNanos;
+    mQualityLevels = (maxQuality - minQuality + QUALITY_STEP - 1) / QUALITY_STEP;
+    int flushLevels = 0;
+    for (long age = minFlushAgeNanos; age < maxFlushAgeNanos; age *= 2)
+      ++flushLevels;
+    mFlushLevels = flushLevels;
+    mMaxLevel = mQualityLevels + mFlushLevels + maxDecimation - 1;
+    mQuality = maxQuality;
+    mFlushAgeNanos = minFlushAgeNanos;
+  }
+
+  public static ImuLogFormat logFormat() { return new ImuLogFormat(LOG_TYPE, LOG_ARITY, "level"); }
+
+  // The encoder whose quality is governed, before the first update
+  public void setEncoder(ParallelFrameEncoder encoder) { mEncoder = encoder; }
+
+  // A flush policy whose maximum age is governed, before the first update
+  public void addFlushPolicy(FlushPolicy policy) {
+    policy.setMaxAgeNanos(mFlushAgeNanos);
+    mFlushPolicies.add(policy);
+  }
+
+  // Logs the adjustments to the session from now on, before the first update
+  public void startLog(SessionWriter session) {
+    mLog = session.addLog(String.valueOf(LOG_TYPE), logFormat(), LOG_QUEUE_CAPACITY);
+  }
+
+  // Stops accepting log records, what is left is still written by the session.
+  // Returns the log for its statistics, null if there was none.
+  public ImuStreamRecorder stopLog() {
+    ImuStreamRecorder log = mLog;
+    if (log != null)
+      log.stop();
+    return log;
+  }
+
+  // Counts the adjustments as governor_steps_up and governor_steps_down, before the first update
+  public void setMetrics(SessionMetrics metrics) {
+    mStepsUpNum = metrics.counter("governor_steps_up");
+    mStepsDownNum = metrics.counter("governor_steps_down");
+  }
+
+  // Takes in the load of the last period and adjusts the level to it, returns whether it changed.
+  // writeLatencyNanos is negative without writes and temperatureCelsius NaN if unknown.
+  public boolean update(long nowNanos, double encodeBacklog, long writeLatencyNanos, double frameRateHz,
+                        double temperatureCelsius) {
+    mPeakFrameRateHz = Math.max(frameRateHz, PEAK_RATE_RETENTION * mPeakFrameRateHz);
+    mFrameDeficit = mPeakFrameRateHz > 0 ? 1 - frameRateHz / mPeakFrameRateHz : 0;
+    boolean strained = encodeBacklog >= BACKLOG_LOW || writeLatencyNanos >= WRITE_LATENCY_LOW_NANOS;
+    boolean high = encodeBacklog > BACKLOG_HIGH || writeLatencyNanos > WRITE_LATENCY_HIGH_NANOS
+        || (strained && mFrameDeficit > FRAME_DEFICIT_HIGH) || temperatureCelsius > TEMPERATURE_HIGH;
+    boolean low = encodeBacklog < BACKLOG_LOW && writeLatencyNanos < WRITE_LATENCY_LOW_NANOS
+        && mFrameDeficit < FRAME_DEFICIT_LOW && !(temperatureCelsius >= TEMPERATURE_LOW);
+
+    int level = mLevel;
+    if (high) {
+      mLowUpdates = 0;
+      level = Math.min(mMaxLevel, level + 1);
+    } else if (low) {
+      if (++mLowUpdates >= RELAX_UPDATES) {
+        mLowUpdates = 0;
+        level = Math.max(0, level - 1);
+      }
+    } else {
+      mLowUpdates = 0;
+    }
+    if (level == mLevel)
+      return false;
+
+    (level > mLevel ? mStepsUpNum : mStepsDownNum).incrementAndGet();
+    setLevel(level);
+    ImuStreamRecorder log = mLog;
+    if (log != null) {
+      mRecord[0] = level;
+      mRecord[1] = mQuality;
+      mRecord[2] = mDecimation;
+      mRecord[3] = (float) (mFlushAgeNanos / 1e6);
+      mRecord[4] = (float) encodeBacklog;
+      mRecord[5] = (float) (writeLatencyNanos / 1e6);
+      mRecord[6] = (float) mFrameDeficit;
+      mRecord[7] = (float) temperatureCelsius;
+      log.offer(mRecord, nowNanos);
+    }
+    return true;
+  }
+
+  // Whether the frame should be encoded under the current decimation
+  public boolean admit() {
+    if (++mSinceAdmitted < mDecimation)
+      return false;
+    mSinceAdmitted = 0;
+    return true;
+  }
+
+  public int getLevel() { return mLevel; }
+  public int getMaxLevel() { return mMaxLevel; }
+  public int getQuality() { return mQuality; }
+  public int getDecimation() { return mDecimation; }
+  public long getFlushAgeNanos() { return mFlushAgeNanos; }
+  // Of the last update against the decaying peak frame rate
+  public double getFrameDeficit() { return mFrameDeficit; }
+  public long getStepsUpNum() { return mStepsUpNum.get(); }
+  public long getStepsDownNum() { return mStepsDownNum.get(); }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US, "level %d/%d, quality %d, decimation %d, flush age %d ms, steps up %d down %d",
+        mLevel, mMaxLevel, mQuality, mDecimation, mFlushAgeNanos / 1000000, getStepsUpNum(), getStepsDownNum());
+  }
+
+  private void setLevel(int level) {
+    mLevel = level;
+    int qualityLevel = Math.min(level, mQualityLevels);
+    int flushLevel = Math.min(level - qualityLevel, mFlushLevels);
+    mQuality = Math.max(mMinQuality, mMaxQuality - QUALITY_STEP * qualityLevel);
+    mFlushAgeNanos = Math.min(mMaxFlushAgeNanos, mMinFlushAgeNanos << flushLevel);
+    mDecimation = 1 + level - qualityLevel - flushLevel;
+    if (mEncoder != null)
+      mEncoder.setQuality(mQuality);
+    for (FlushPolicy policy : mFlushPolicies)
+      policy.setMaxAgeNanos(mFlushAgeNanos);
+  }
+}
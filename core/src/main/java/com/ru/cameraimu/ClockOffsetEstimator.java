@@ -0,0 +1,163 @@
+package com.ru.cameraimu;
+
+// Estimates the offset between the sensor clock (SensorEvent.timestamp) and the host clock
+// (System.nanoTime) from samples stamped on both.
+//
+// The host time of an observation is the true offset plus a non negative delivery latency, so
+// the minimum of host - sensor over a short bucket is a tight upper bound of the offset.
+// Bucket minima over a sliding window of sensor time are fitted with a line to follow slow drift.
+// Observations may arrive out of order as long as their bucket is still inside the window.
+public class ClockOffsetEstimator {
+
+  public static final long DEFAULT_BUCKET_NANOS = 500000000L;
+  public static final int DEFAULT_BUCKETS_NUM = 20;
+
+  // With fewer buckets than this the offset is taken as constant instead of fitting a drift
+  private static final int MIN_BUCKETS_FOR_DRIFT = 4;
+
+  private final long mBucketNanos;
+  private final long[] mBucketIds;
+  private final long[] mBucketMinOffsets;
+  private final long[] mBucketSensorNanos;
+  private long mNewestBucketId = Long.MIN_VALUE;
+
+  private boolean mDirty = false;
+  private boolean mHasEstimate = false;
+  private long mReferenceSensorNanos;
+  private double mOffsetAtReference;
+  private double mDrift;  // Offset change per nanosecond of sensor time
+
+  public ClockOffsetEstimator() { this(DEFAULT_BUCKET_NANOS, DEFAULT_BUCKETS_NUM); }
+
+  public ClockOffsetEstimator(long bucketNanos, int bucketsNum) {
+    if (bucketNanos <= 0 || bucketsNum <= 0)
+      throw new IllegalArgumentException("Invalid window " + bucketsNum + " x " + bucketNanos + " ns");
+    mBucketNanos = bucketNanos;
+    mBucketIds = new long[bucketsNum];
+    mBucketMinOffsets = new long[bucketsNum];
+    mBucketSensorNanos = new long[bucketsNum];
+    reset();
+  }
+
+  public void reset() {
+    for (int i = 0; i < mBucketIds.length; ++i)
+      mBucketIds[i] = Long.MIN_VALUE;
+    mNewestBucketId = Long.MIN_VALUE;
+    mHasEstimate = false;
+    mDirty = false;
+  }
+
+  public void addObservation(long sensorNanos, long hostNanos) {
+    long bucketId = Math.floorDiv(sensorNanos, mBucketNanos);
+    if (mNewestBucketId != Long.MIN_VALUE && bucketId <= mNewestBucketId - mBucketIds.length)
+      return;  // Too old for the window
+    mNewestBucketId = Math.max(mNewestBucketId, bucketId);
+
+    int slot = (int) Math.floorMod(bucketId, (long) mBucketIds.length);
+    long offset = hostNanos - sensorNanos;
+    if (mBucketIds[slot] != bucketId) {
+      mBucketIds[slot] = bucketId;
+      mBucketMinOffsets[slot] = offset;
+      mBucketSensorNanos[slot] = sensorNanos;
+    } else if (offset < mBucketMinOffsets[slot]) {
+      mBucketMinOffsets[slot] = offset;
+      mBucketSensorNanos[slot] = sensorNanos;
+    } else {
+      return;
+    }
+    mDirty = true;
+  }
+
+  public boolean hasEstimate() {
+    update();
+    return mHasEstimate;
+  }
+
+  // host = sensor + offsetAt(sensor)
+  public long offsetAt(long sensorNanos) {
+    update();
+    if (!mHasEstimate)
+      throw new IllegalStateException("No clock offset estimate yet");
+    return Math.round(mOffsetAtReference + mDrift * (sensorNanos - mReferenceSensorNanos));
+  }
+
+  public long toHostNanos(long sensorNanos) { return sensorNanos + offsetAt(sensorNanos); }
+
+  public long toSensorNanos(long hostNanos) {
+    // One fixed point step is plenty since the drift is tiny
+    long sensorNanos = hostNanos - offsetAt(hostNanos - offsetAt(mReferenceSensorNanos));
+    return hostNanos - offsetAt(sensorNanos);
+  }
+
+  // Relative drift of the host clock against the sensor clock in parts per million
+  public double getDriftPpm() {
+    update();
+    return mDrift * 1e6;
+  }
+
+  private void update() {
+    if (!mDirty)
+      return;
+    mDirty = false;
+
+    // The newest bucket is still filling and its minimum may be far off, it only counts until
+    // there is another one
+    int n = 0;
+    boolean skipNewest = false;
+    for (int i = 0; i < mBucketIds.length; ++i) {
+      if (!isUsable(i, false))
+        continue;
+      ++n;
+      if (mBucketIds[i] != mNewestBucketId)
+        skipNewest = true;
+    }
+    if (n == 0) {
+      mHasEstimate = false;
+      return;
+    }
+    if (skipNewest)
+      --n;
+
+    long referenceSensorNanos = Long.MIN_VALUE;
+    long minOffset = Long.MAX_VALUE;
+    for (int i = 0; i < mBucketIds.length; ++i) {
+      if (!isUsable(i, skipNewest))
+        continue;
+      referenceSensorNanos = Math.max(referenceSensorNanos, mBucketSensorNanos[i]);
+      minOffset = Math.min(minOffset, mBucketMinOffsets[i]);
+    }
+    mReferenceSensorNanos = referenceSensorNanos;
+    mHasEstimate = true;
+    if (n < MIN_BUCKETS_FOR_DRIFT) {
+      mDrift = 0;
+      mOffsetAtReference = minOffset;
+      return;
+    }
+
+    // Least squares in doubles relative to the newest observation to keep the numbers small
+    double sumT = 0;
+    double sumO = 0;
+    double sumTT = 0;
+    double sumTO = 0;
+    for (int i = 0; i < mBucketIds.length; ++i) {
+      if (!isUsable(i, skipNewest))
+        continue;
+      double t = mBucketSensorNanos[i] - referenceSensorNanos;
+      double o = mBucketMinOffsets[i] - minOffset;
+      sumT += t;
+      sumO += o;
+      sumTT += t * t;
+      sumTO += t * o;
+    }
+    double meanT = sumT / n;
+    double meanO = sumO / n;
+    double varT = sumTT / n - meanT * meanT;
+    mDrift = varT > 0 ? (sumTO / n - meanT * meanO) / varT : 0;
+    mOffsetAtReference = minOffset + meanO - mDrift * meanT;
+  }
+
+  private boolean isUsable(int slot, boolean skipNewest) {
+    long id = mBucketIds[slot];
+    return id != Long.MIN_VALUE && id > mNewestBucketId - mBucketIds.length && !(skipNewest && id == mNewestBucketId);
+  }
+}
@@ -0,0 +1,179 @@
+package com.ru.cameraimu;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Streams the samples of a compressed IMU log (see CompressedImuLogWriter) back out one block
+// at a time. Opening hops over the block headers only, so seeking to a block or a timestamp
+// decodes nothing but the block read next. A trailing partial block, e.g. left by a crash, is
+// ignored.
+public class CompressedImuLogReader implements Closeable {
+
+  private final FileChannel mChannel;
+  private final ImuLogFormat mFormat;
+  private final ImuBlockCodec mCodec;
+  private int mBlocksNum = 0;
+  private long[] mOffsets = new long[64];
+  private long[] mFirstRecords = new long[64];
+  private long[] mFirstNanos = new long[64];
+  private long mRecordsNum = 0;
+  private ByteBuffer mBlock;
+  private final float[][] mValues;
+  private final long[] mTimestamps;
+  private final CRC32 mCrc = new CRC32();
+  private int mNextBlock = 0;
+
+  public CompressedImuLogReader(File file) throws IOException {
+    mChannel = new RandomAccessFile(file, "r").getChannel();
+    try {
+      ByteBuffer header = ByteBuffer.allocate(CompressedImuLogWriter.HEADER_SIZE)
+          .order(CompressedImuLogWriter.BYTE_ORDER);
+      readFully(header, 0, "Truncated compressed IMU log header: " + file);
+      header.flip();
+      if (header.getInt() != CompressedImuLogWriter.MAGIC)
+        throw new IOException("Not a compressed IMU log: bad magic");
+      short version = header.getShort();
+      if (version != CompressedImuLogWriter.VERSION)
+        throw new IOException("Unsupported compressed IMU log version: " + version);
+      if (header.getShort() != CompressedImuLogWriter.HEADER_SIZE)
+        throw new IOException("Unexpected compressed IMU log header size");
+      int mode = header.get();
+      header.position(header.position() + 3);
+      float step = header.getFloat();
+      int blockSize = header.getInt();
+      if (mode < 0 || mode >= ImuBlockCodec.Mode.values().length || blockSize <= 0)
+        throw new IOException("Corrupt compressed IMU log header: mode " + mode + ", block size " + blockSize);
+      header.position(CompressedImuLogWriter.HEADER_SIZE - ImuLogFormat.HEADER_SIZE);
+      mFormat = ImuLogFormat.readHeader(header);
+      mCodec = new ImuBlockCodec(mFormat.arity, ImuBlockCodec.Mode.values()[mode], step);
+      mValues = new float[mFormat.arity][blockSize];
+      mTimestamps = new long[blockSize];
+      scanBlocks();
+    } catch (IOException | RuntimeException e) {
+      mChannel.close();
+      throw e;
+    }
+  }
+
+  public ImuLogFormat getFormat() { return mFormat; }
+  public ImuBlockCodec getCodec() { return mCodec; }
+  public long getRecordsNum() { return mRecordsNum; }
+  public int getBlocksNum() { return mBlocksNum; }
+  public int getPosition() { return mNextBlock; }
+
+  public long blockFirstRecord(int block) {
+    checkBlock(block);
+    return mFirstRecords[block];
+  }
+
+  public long blockFirstNanos(int block) {
+    checkBlock(block);
+    return mFirstNanos[block];
+  }
+
+  public void seekBlock(int block) {
+    if (block < 0 || block > mBlocksNum)
+      throw new IndexOutOfBoundsException("block " + block + ", count " + mBlocksNum);
+    mNextBlock = block;
+  }
+
+  // Index of the last block starting at or before timestampNanos, i.e. the one to read first
+  // for the samples from timestampNanos on, or 0 if they all start after it. Blocks are expected
+  // in timestamp order.
+  public int floorBlock(long timestampNanos) {
+    int block = Arrays.binarySearch(mFirstNanos, 0, mBlocksNum, timestampNanos);
+    if (block < 0)
+      block = -block - 2;
+    else
+      while (block > 0 && mFirstNanos[block - 1] == timestampNanos)
+        --block;
+    return Math.max(0, block);
+  }
+
+  // Decodes the next block and hands it to the drain, returns its number of samples or 0 at the end
+  public int read(ImuRingBuffer.Drain drain) throws IOException {
+    if (mNextBlock == mBlocksNum)
+      return 0;
+    long offset = mOffsets[mNextBlock];
+    int length = (int) (mOffsets[mNextBlock + 1] - offset);
+    if (mBlock == null || mBlock.capacity() < length)
+      mBlock = ByteBuffer.allocate(length).order(CompressedImuLogWriter.BYTE_ORDER);
+    mBlock.clear();
+    mBlock.limit(length);
+    readFully(mBlock, offset, "Compressed IMU log shrank while reading");
+    mBlock.flip();
+
+    int count = mBlock.getInt(4);
+    int crc = mBlock.getInt(24);
+    mCrc.reset();
+    mCrc.update(mBlock.array(), CompressedImuLogWriter.BLOCK_HEADER_SIZE, length - CompressedImuLogWriter.BLOCK_HEADER_SIZE);
+    if ((int) mCrc.getValue() != crc)
+      throw new IOException("Corrupt compressed IMU log: bad checksum in block " + mNextBlock);
+    mBlock.position(CompressedImuLogWriter.BLOCK_HEADER_SIZE);
+    if (mCodec.decode(mBlock, mValues, mTimestamps, 0) != count)
+      throw new IOException("Corrupt compressed IMU log: bad count in block " + mNextBlock);
+    ++mNextBlock;
+    drain.onSamples(mValues, mTimestamps, 0, count);
+    return count;
+  }
+
+  public long readAll(ImuRingBuffer.Drain drain) throws IOException {
+    long total = 0;
+    int n;
+    while ((n = read(drain)) > 0)
+      total += n;
+    return total;
+  }
+
+  @Override
+  public void close() throws IOException { mChannel.close(); }
+
+  private void scanBlocks() throws IOException {
+    ByteBuffer blockHeader = ByteBuffer.allocate(CompressedImuLogWriter.BLOCK_HEADER_SIZE)
+        .order(CompressedImuLogWriter.BYTE_ORDER);
+    long size = mChannel.size();
+    long offset = CompressedImuLogWriter.HEADER_SIZE;
+    while (offset + CompressedImuLogWriter.BLOCK_HEADER_SIZE <= size) {
+      blockHeader.clear();
+      readFully(blockHeader, offset, "Compressed IMU log shrank while reading");
+      int length = blockHeader.getInt(0);
+      int count = blockHeader.getInt(4);
+      long end = offset + CompressedImuLogWriter.BLOCK_HEADER_SIZE + length;
+      if (length <= 0 || count <= 0 || count > mTimestamps.length || end > size)
+        break;
+      if (mBlocksNum + 1 >= mOffsets.length) {
+        mOffsets = Arrays.copyOf(mOffsets, 2 * mOffsets.length);
+        mFirstRecords = Arrays.copyOf(mFirstRecords, mOffsets.length);
+        mFirstNanos = Arrays.copyOf(mFirstNanos, mOffsets.length);
+      }
+      mOffsets[mBlocksNum] = offset;
+      mFirstRecords[mBlocksNum] = mRecordsNum;
+      mFirstNanos[mBlocksNum] = blockHeader.getLong(8);
+      ++mBlocksNum;
+      mRecordsNum += count;
+      offset = end;
+    }
+    // The end of the last block, for its length
+    mOffsets[mBlocksNum] = offset;
+  }
+
+  private void checkBlock(int block) {
+    if (block < 0 || block >= mBlocksNum)
+      throw new IndexOutOfBoundsException("block " + block + ", count " + mBlocksNum);
+  }
+
+  private void readFully(ByteBuffer dst, long position, String message) throws IOException {
+    while (dst.hasRemaining()) {
+      int n = mChannel.read(dst, position);
+      if (n < 0)
+        throw new IOException(message);
+      position += n;
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package com.ru.cameraimu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+// Writes IMU samples as a compressed log of ImuBlockCodec blocks, a denser alternative to the
+// binary log (see ImuLogFormat) for long sessions.
+//
+// The file starts with a HEADER_SIZE byte header (all little endian):
+//   int    magic         'CIMZ', so that an ImuLogReader refuses the file
+//   short  version
+//   short  header size
+//   byte   mode          ImuBlockCodec.Mode.ordinal()
+//   byte[] reserved      3 zeros
+//   float  step          quantization step
+//   int    block size    samples per full block
+//   ...    reserved      zeros up to offset 32
+//   byte[] format        the ImuLogFormat header, for the sensor type, arity and units
+// followed by blocks, each behind a BLOCK_HEADER_SIZE byte header:
+//   int    length        of the encoded block
+//   int    count         samples in the block
+//   long   first         timestamp of the first sample
+//   long   last          timestamp of the last sample
+//   int    crc           CRC32 of the encoded block
+// so that a reader can hop from block to block without decoding any of them. Blocks are only
+// ever written whole; a block cut short by a crash is dropped by the reader.
+//
+// Not thread safe, all calls are expected to come from the single writer thread.
+public class CompressedImuLogWriter implements ImuLogSink {
+
+  public static final int MAGIC = 0x5A4D4943;  // "CIMZ" read as a little endian int
+  public static final short VERSION = 1;
+  public static final int HEADER_SIZE = 32 + ImuLogFormat.HEADER_SIZE;
+  public static final int BLOCK_HEADER_SIZE = 28;
+  public static final ByteOrder BYTE_ORDER = ImuLogFormat.BYTE_ORDER;
+  public static final String FILE_EXTENSION = ".imz";
+  public static final int DEFAULT_BLOCK_SIZE = 512;
+
+  private final ImuLogFormat mFormat;
+  private final ImuBlockCodec mCodec;
+  private final FileChannel mChannel;
+  private final float[][] mValues;
+  private final long[] mTimestamps;
+  private final ByteBuffer mBlock;
+  private final CRC32 mCrc = new CRC32();
+  private int mPendingNum = 0;
+  private long mRecordsNum = 0;
+  private long mBlocksNum = 0;
+  private long mSize = HEADER_SIZE;
+  private IOException mPendingException = null;
+
+  private CompressedImuLogWriter(ImuLogFormat format, ImuBlockCodec codec, FileChannel channel, int blockSize) {
+    mFormat = format;
+    mCodec = codec;
+    mChannel = channel;
+    mValues = new float[format.arity][blockSize];
+    mTimestamps = new long[blockSize];
+    mBlock = ByteBuffer.allocate(BLOCK_HEADER_SIZE + codec.maxBlockSize(blockSize)).order(BYTE_ORDER);
+  }
+
+  public static CompressedImuLogWriter open(File file, ImuLogFormat format, ImuBlockCodec.Mode mode) throws IOException {
+    return open(file, format, mode, ImuBlockCodec.DEFAULT_STEP, DEFAULT_BLOCK_SIZE);
+  }
+
+  // Creates the log, replacing any existing file
+  public static CompressedImuLogWriter open(File file, ImuLogFormat format, ImuBlockCodec.Mode mode, float step,
+                                            int blockSize) throws IOException {
+    if (blockSize <= 0)
+      throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+    ImuBlockCodec codec = new ImuBlockCodec(format.arity, mode, step);
+    FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(BYTE_ORDER);
+      header.putInt(MAGIC);
+      header.putShort(VERSION);
+      header.putShort((short) HEADER_SIZE);
+      header.put((byte) mode.ordinal());
+      header.put(new byte[3]);
+      header.putFloat(step);
+      header.putInt(blockSize);
+      header.position(HEADER_SIZE - ImuLogFormat.HEADER_SIZE);
+      format.writeHeader(header);
+      header.flip();
+      channel.truncate(0);
+      while (header.hasRemaining())
+        channel.write(header);
+      return new CompressedImuLogWriter(format, codec, channel, blockSize);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  public ImuLogFormat getFormat() { return mFormat; }
+  public ImuBlockCodec getCodec() { return mCodec; }
+
+  // Records accepted so far, including those still waiting for their block to fill
+  @Override
+  public long getRecordsNum() { return mRecordsNum; }
+  public long getBlocksNum() { return mBlocksNum; }
+  // Bytes written to the file so far, header included
+  @Override
+  public long getSize() { return mSize; }
+
+  @Override
+  public void onSamples(float[][] values, long[] timestampsNanos, int offset, int count) {
+    if (mPendingException != null)
+      return;
+    try {
+      write(values, timestampsNanos, offset, count);
+    } catch (IOException e) {
+      // Drain callbacks cannot throw, the failure is reported by the next flush() or close()
+      mPendingException = e;
+    }
+  }
+
+  public void write(float[][] values, long[] timestampsNanos, int offset, int count) throws IOException {
+    int blockSize = mTimestamps.length;
+    int end = offset + count;
+    while (offset < end) {
+      int n = Math.min(end - offset, blockSize - mPendingNum);
+      for (int axis = 0; axis < mFormat.arity; ++axis)
+        System.arraycopy(values[axis], offset, mValues[axis], mPendingNum, n);
+      System.arraycopy(timestampsNanos, offset, mTimestamps, mPendingNum, n);
+      mPendingNum += n;
+      offset += n;
+      if (mPendingNum == blockSize)
+        writeBlock();
+    }
+    mRecordsNum += count;
+  }
+
+  // Writes the pending samples as a block of their own, which costs some compression, so that
+  // they survive a crash
+  @Override
+  public void flush() throws IOException {
+    if (mPendingException != null) {
+      IOException e = mPendingException;
+      mPendingException = null;
+      throw e;
+    }
+    if (mPendingNum > 0)
+      writeBlock();
+  }
+
+  // Flushes and forces the written blocks to the storage device
+  @Override
+  public void sync() throws IOException {
+    flush();
+    mChannel.force(false);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      mChannel.close();
+    }
+  }
+
+  private void writeBlock() throws IOException {
+    mBlock.clear();
+    mBlock.position(BLOCK_HEADER_SIZE);
+    int length = mCodec.encode(mValues, mTimestamps, 0, mPendingNum, mBlock);
+    mCrc.reset();
+    mCrc.update(mBlock.array(), BLOCK_HEADER_SIZE, length);
+    mBlock.putInt(0, length);
+    mBlock.putInt(4, mPendingNum);
+    mBlock.putLong(8, mTimestamps[0]);
+    mBlock.putLong(16, mTimestamps[mPendingNum - 1]);
+    mBlock.putInt(24, (int) mCrc.getValue());
+    mBlock.flip();
+    while (mBlock.hasRemaining())
+      mChannel.write(mBlock);
+    mSize += BLOCK_HEADER_SIZE + length;
+    ++mBlocksNum;
+    mPendingNum = 0;
+  }
+}
@@ -0,0 +1,33 @@
+package com.ru.cameraimu;
+
+// Lets through at most one update per period, e.g. to redraw a view at a fixed rate however
+// often it is asked to. Deadlines advance by whole periods so that the rate does not drift, and
+// start over after a stall instead of letting a burst of updates through.
+public class DisplayThrottle {
+
+  private final long mPeriodNanos;
+  private long mNextNanos;
+  private boolean mStarted = false;
+
+  public DisplayThrottle(double rateHz) {
+    if (!(rateHz > 0))
+      throw new IllegalArgumentException("Invalid rate " + rateHz);
+    mPeriodNanos = Math.round(1e9 / rateHz);
+  }
+
+  public long getPeriodNanos() { return mPeriodNanos; }
+
+  public boolean tryAcquire(long nowNanos) {
+    if (mStarted && nowNanos < mNextNanos)
+      return false;
+    if (mStarted && nowNanos - mNextNanos < mPeriodNanos)
+      mNextNanos += mPeriodNanos;
+    else
+      mNextNanos = nowNanos + mPeriodNanos;
+    mStarted = true;
+    return true;
+  }
+
+  // The next call goes through
+  public void reset() { mStarted = false; }
+}
@@ -0,0 +1,133 @@
+package com.ru.cameraimu;
+
+// Synthetic NV21 frames for running the capture pipeline on a desktop JVM: a luma gradient that
+// moves by a pixel per frame over flat chroma, delivered every periodNanos from a thread of its
+// own like a camera would. Frames are stamped with the System.nanoTime() at which they were due,
+// or with setSensorClockOffsetNanos() on a sensor clock that far behind it, as a Camera2 device
+// with a realtime timestamp source would. A frame that finds no free buffer is skipped and
+// counted, as a camera does.
+public class FakeCaptureBackend implements CaptureBackend {
+
+  private final int mWidth;
+  private final int mHeight;
+  private final long mPeriodNanos;
+  private boolean mSensorClock = false;
+  private long mSensorOffsetNanos = 0;
+
+  private FrameBufferPool.QueueSink mSink;
+  private Thread mThread;
+  private volatile boolean mRunning = false;
+  private volatile long mDeliveredNum = 0;
+  private volatile long mSkippedNum = 0;
+
+  public FakeCaptureBackend(int width, int height, long periodNanos) {
+    if (width <= 0 || height <= 0 || periodNanos <= 0)
+      throw new IllegalArgumentException("Invalid frames " + width + " x " + height + " every " + periodNanos + " ns");
+    mWidth = width;
+    mHeight = height;
+    mPeriodNanos = periodNanos;
+  }
+
+  // Stamps frames on a sensor clock that is offsetNanos behind System.nanoTime()
+  public void setSensorClockOffsetNanos(long offsetNanos) {
+    mSensorClock = true;
+    mSensorOffsetNanos = offsetNanos;
+  }
+
+  public long getDeliveredNum() { return mDeliveredNum; }
+  public long getSkippedNum() { return mSkippedNum; }
+
+  @Override
+  public String getName() { return "fake"; }
+
+  @Override
+  public void open() {}
+
+  @Override
+  public void release() { stopFrames(); }
+
+  @Override
+  public int getFrameWidth() { return mWidth; }
+
+  @Override
+  public int getFrameHeight() { return mHeight; }
+
+  @Override
+  public int getFrameBufferSize() { return Nv21.bufferSize(mWidth, mHeight); }
+
+  @Override
+  public boolean isSensorClock() { return mSensorClock; }
+
+  @Override
+  public FrameBufferPool.BufferSink getBufferSink(int buffersNum) {
+    mSink = new FrameBufferPool.QueueSink(buffersNum);
+    return mSink;
+  }
+
+  @Override
+  public void startFrames(final FrameListener listener) {
+    if (mSink == null)
+      throw new IllegalStateException("No buffer sink to take frame buffers from");
+    if (mThread != null)
+      return;
+    mRunning = true;
+    final FrameBufferPool.QueueSink sink = mSink;
+    mThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        long index = 0;
+        long due = System.nanoTime();
+        while (mRunning) {
+          long waitNanos = due - System.nanoTime();
+          if (waitNanos > 0) {
+            try {
+              Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException e) {
+              break;
+            }
+          }
+          byte[] buffer = sink.poll();
+          if (buffer == null) {
+            ++mSkippedNum;
+          } else {
+            fill(buffer, mWidth, mHeight, index);
+            listener.onFrame(buffer, mWidth, mHeight, mSensorClock ? due - mSensorOffsetNanos : due);
+            ++mDeliveredNum;
+          }
+          ++index;
+          due += mPeriodNanos;
+        }
+      }
+    }, "FakeCapture");
+    mThread.start();
+  }
+
+  @Override
+  public void stopFrames() {
+    Thread thread = mThread;
+    if (thread == null)
+      return;
+    mRunning = false;
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    mThread = null;
+    if (mSink != null)
+      mSink.clear();
+  }
+
+  // The pattern of frame index, luma (x + y + index) mod 256 and chroma 128
+  static void fill(byte[] nv21, int width, int height, long index) {
+    int shift = (int) (index & 0xFF);
+    for (int y = 0; y < height; ++y) {
+      int row = y * width;
+      for (int x = 0; x < width; ++x)
+        nv21[row + x] = (byte) (x + y + shift);
+    }
+    for (int i = width * height; i < Nv21.bufferSize(width, height); ++i)
+      nv21[i] = (byte) 128;
+  }
+}
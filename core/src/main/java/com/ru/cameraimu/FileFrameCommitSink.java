@@ -0,0 +1,43 @@
+package com.ru.cameraimu;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+// Writes each committed frame to <image dir>/%013d<extension> and appends a manifest line
+// "<sequence> <timestamp nanos> <file name> <bytes>" for it, both through the SessionWriter.
+// The frame also goes into the session index, if the session has one.
+public class FileFrameCommitSink implements OrderedFrameCommitter.CommitSink {
+
+  public static final String MANIFEST_FILENAME = "manifest.txt";
+
+  private final SessionWriter mSession;
+  private final String mImageDir;
+  private final FrameFormat mFormat;
+  private final SessionWriter.Stream mManifest;
+
+  // imageDir is relative to the session directory and must exist
+  public FileFrameCommitSink(SessionWriter session, String imageDir, FrameFormat format) {
+    mSession = session;
+    mImageDir = imageDir;
+    mFormat = format;
+    mManifest = session.openStream(MANIFEST_FILENAME);
+  }
+
+  public static String filename(long timestampNanos, FrameFormat format) {
+    return String.format(Locale.US, "%013d", timestampNanos) + format.extension;
+  }
+
+  @Override
+  public void commit(long sequence, long timestampNanos, byte[] data, int length) throws IOException {
+    String filename = filename(timestampNanos, mFormat);
+    mSession.writeFile(mImageDir + File.separator + filename, data, 0, length);
+    mManifest.write((sequence + " " + timestampNanos + " " + filename + " " + length + "\n").getBytes("US-ASCII"));
+    SessionIndexWriter index = mSession.getIndex();
+    if (index != null)
+      index.addFrame(sequence, timestampNanos, length);
+  }
+
+  @Override
+  public void close() throws IOException { mManifest.close(); }
+}
@@ -0,0 +1,151 @@
+package com.ru.cameraimu;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides when a buffered stream such as an ImuStreamRecorder is written out, instead of on
+// every pass of the I/O thread or after a fixed number of samples.
+//
+// Samples waiting in memory are lost if the process is killed, so none may wait longer than
+// maxAgeNanos. Within that bound chunks are sized by bytes: a stream is written once it has
+// about the observed rate times half the maximum age pending, clamped to [minBytes, maxBytes],
+// so a fast gyroscope and a slow sensor both get a few writes per maxAge. While the session
+// writer is backlogged, e.g. behind a burst of frames, the chunks grow to the full maximum age
+// to compete with fewer requests. A queue that is half full is written at once either way.
+//
+// Every decision is counted by its reason and the chunk sizes and ages are recorded, see
+// setMetrics(). Only used from the I/O thread, the getters and setMaxAgeNanos() may be used
+// from any thread.
+public class FlushPolicy {
+
+  public enum Reason { SIZE, AGE, QUEUE, FINAL }
+
+  public static final long DEFAULT_MAX_AGE_NANOS = 250000000L;
+  public static final int DEFAULT_MIN_BYTES = 4 * 1024;
+  public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+  // The session writer counts as backlogged beyond this share of its queue
+  public static final double BACKLOG_THRESHOLD = 0.25;
+
+  // The rate estimate is updated over windows at least this long
+  private static final long RATE_WINDOW_NANOS = 500000000L;
+  private static final double RATE_SMOOTHING = 0.5;
+
+  private final SessionWriter mSession;
+  private volatile long mMaxAgeNanos;
+  private final int mMinBytes;
+  private final int mMaxBytes;
+
+  private long mPendingSinceNanos = -1;
+  private long mFlushedBytes = 0;
+  private long mWindowStartNanos = -1;
+  private long mWindowStartBytes = 0;
+  private volatile double mBytesPerSecond = 0;
+  private volatile int mTargetBytes;
+  private final AtomicLong[] mFlushesNum = new AtomicLong[Reason.values().length];
+  private LatencyHistogram mChunkBytes = new LatencyHistogram();
+  private LatencyHistogram mChunkAgeNanos = new LatencyHistogram();
+
+  // session may be null, its backlog is then not taken into account
+  public FlushPolicy(SessionWriter session) {
+    this(session, DEFAULT_MAX_AGE_NANOS, DEFAULT_MIN_BYTES, DEFAULT_MAX_BYTES);
+  }
+
+  public FlushPolicy(SessionWriter session, long maxAgeNanos, int minBytes, int maxBytes) {
+    if (maxAgeNanos <= 0 || minBytes <= 0 || maxBytes < minBytes)
+      throw new IllegalArgumentException("Invalid flush policy " + maxAgeNanos + " ns, " + minBytes + "-" + maxBytes);
+    mSession = session;
+    mMaxAgeNanos = maxAgeNanos;
+    mMinBytes = minBytes;
+    mMaxBytes = maxBytes;
+    mTargetBytes = minBytes;
+    for (int i = 0; i < mFlushesNum.length; ++i)
+      mFlushesNum[i] = new AtomicLong();
+  }
+
+  // Counts the decisions as <name>_flushes_<reason> and records the chunks into the
+  // <name>_flush_bytes and <name>_flush_age histograms of the session metrics. Before use.
+  public void setMetrics(SessionMetrics metrics, String name) {
+    for (Reason reason : Reason.values())
+      mFlushesNum[reason.ordinal()] = metrics.counter(name + "_flushes_" + reason.name().toLowerCase(Locale.US));
+    mChunkBytes = metrics.histogram(name + "_flush_bytes");
+    mChunkAgeNanos = metrics.latency(name + "_flush_age");
+  }
+
+  // Returns the reason to write the pending bytes now, or null to let them wait.
+  // queueFill is the share of the stream's own queue in use.
+  public Reason check(int pendingBytes, double queueFill, long nowNanos) {
+    updateRate(pendingBytes, nowNanos);
+    if (pendingBytes == 0) {
+      mPendingSinceNanos = -1;
+      return null;
+    }
+    if (mPendingSinceNanos < 0)
+      mPendingSinceNanos = nowNanos;
+
+    if (queueFill >= 0.5)
+      return Reason.QUEUE;
+    long maxAgeNanos = mMaxAgeNanos;
+    if (nowNanos - mPendingSinceNanos >= maxAgeNanos)
+      return Reason.AGE;
+    long targetAgeNanos = isSessionBacklogged() ? maxAgeNanos : maxAgeNanos / 2;
+    long target = Math.max(mMinBytes, Math.min(mMaxBytes, (long) (mBytesPerSecond * targetAgeNanos / 1e9)));
+    mTargetBytes = (int) target;
+    return pendingBytes >= target ? Reason.SIZE : null;
+  }
+
+  // Takes effect from the next check, e.g. to write in fewer, larger chunks while the device is
+  // under load, see CaptureGovernor
+  public void setMaxAgeNanos(long maxAgeNanos) {
+    if (maxAgeNanos <= 0)
+      throw new IllegalArgumentException("Invalid flush age " + maxAgeNanos + " ns");
+    mMaxAgeNanos = maxAgeNanos;
+  }
+
+  // After the pending bytes were written for the given reason
+  public void onFlushed(Reason reason, int bytes, long nowNanos) {
+    mFlushesNum[reason.ordinal()].incrementAndGet();
+    mChunkBytes.record(bytes);
+    if (mPendingSinceNanos >= 0)
+      mChunkAgeNanos.record(nowNanos - mPendingSinceNanos);
+    mFlushedBytes += bytes;
+    mPendingSinceNanos = -1;
+  }
+
+  public long getFlushesNum(Reason reason) { return mFlushesNum[reason.ordinal()].get(); }
+  public LatencyHistogram getChunkBytes() { return mChunkBytes; }
+  public LatencyHistogram getChunkAgeNanos() { return mChunkAgeNanos; }
+
+  public int getTargetBytes() { return mTargetBytes; }
+  public double getBytesPerSecond() { return mBytesPerSecond; }
+  public long getMaxAgeNanos() { return mMaxAgeNanos; }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(String.format(Locale.US, "%.0f B/s, target %d B, flushes",
+        mBytesPerSecond, mTargetBytes));
+    for (Reason reason : Reason.values())
+      sb.append(' ').append(reason.name().toLowerCase(Locale.US)).append(' ').append(getFlushesNum(reason));
+    return sb.toString();
+  }
+
+  private boolean isSessionBacklogged() {
+    return mSession != null && mSession.getBacklog() > BACKLOG_THRESHOLD;
+  }
+
+  // The bytes produced so far are those written plus those pending
+  private void updateRate(int pendingBytes, long nowNanos) {
+    long producedBytes = mFlushedBytes + pendingBytes;
+    if (mWindowStartNanos < 0) {
+      mWindowStartNanos = nowNanos;
+      mWindowStartBytes = producedBytes;
+      return;
+    }
+    long elapsed = nowNanos - mWindowStartNanos;
+    if (elapsed < RATE_WINDOW_NANOS)
+      return;
+    double rate = (producedBytes - mWindowStartBytes) * 1e9 / elapsed;
+    mBytesPerSecond = mBytesPerSecond == 0 ? rate : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * mBytesPerSecond;
+    mWindowStartNanos = nowNanos;
+    mWindowStartBytes = producedBytes;
+  }
+}
@@ -0,0 +1,129 @@
+package com.ru.cameraimu;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A fixed set of preallocated frame buffers cycling between the camera and the encoder,
+// in the style of Camera.addCallbackBuffer: buffers are handed to a BufferSink (the camera),
+// come back filled through onFrameReceived, and are given back to the sink by recycle() once the
+// frame has been encoded. Nothing is allocated after construction.
+//
+// A camera that has run out of buffers silently skips frames, so every time the last buffer
+// leaves the sink a starvation event is counted.
+//
+// Backends that fill buffers themselves rather than handing them to a camera ahead of time take
+// the free ones from a QueueSink.
+public class FrameBufferPool {
+
+  public interface BufferSink {
+    void onBufferAvailable(byte[] buffer);
+  }
+
+  // Free buffers waiting to be taken by the thread that fills them, in a bounded queue so that
+  // passing them around does not allocate either
+  public static class QueueSink implements BufferSink {
+    private final ArrayBlockingQueue<byte[]> mBuffers;
+
+    public QueueSink(int buffersNum) { mBuffers = new ArrayBlockingQueue<>(buffersNum); }
+
+    @Override
+    public void onBufferAvailable(byte[] buffer) { mBuffers.offer(buffer); }
+
+    // A free buffer, null if the pool has run out of them
+    public byte[] poll() { return mBuffers.poll(); }
+
+    public void clear() { mBuffers.clear(); }
+  }
+
+  private final int mBufferSize;
+  private final byte[][] mBuffers;
+  private final BufferSink mSink;
+  private volatile boolean mClosed = false;
+
+  private final AtomicInteger mInSinkNum = new AtomicInteger();
+  private final AtomicInteger mMinInSinkNum = new AtomicInteger();
+  private final AtomicLong mReceivedNum = new AtomicLong();
+  private final AtomicLong mRecycledNum = new AtomicLong();
+  private final AtomicLong mStarvationNum = new AtomicLong();
+  private final AtomicLong mForeignNum = new AtomicLong();
+
+  public FrameBufferPool(int bufferSize, int buffersNum, BufferSink sink) {
+    if (bufferSize <= 0)
+      throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+    if (buffersNum <= 0)
+      throw new IllegalArgumentException("buffersNum must be positive: " + buffersNum);
+    mBufferSize = bufferSize;
+    mSink = sink;
+    mBuffers = new byte[buffersNum][];
+    for (int i = 0; i < buffersNum; ++i)
+      mBuffers[i] = new byte[bufferSize];
+  }
+
+  // Hands every buffer to the sink, to be called once before the camera starts delivering frames
+  public void prime() {
+    mInSinkNum.set(mBuffers.length);
+    mMinInSinkNum.set(mBuffers.length);
+    for (byte[] buffer : mBuffers)
+      mSink.onBufferAvailable(buffer);
+  }
+
+  // Called when the sink delivers a filled buffer
+  public void onFrameReceived(byte[] buffer) {
+    if (buffer == null || buffer.length != mBufferSize) {
+      mForeignNum.incrementAndGet();
+      return;
+    }
+    mReceivedNum.incrementAndGet();
+    int inSink = mInSinkNum.decrementAndGet();
+    updateMin(inSink);
+    if (inSink <= 0)
+      mStarvationNum.incrementAndGet();
+  }
+
+  // Called once the consumer is done with a buffer, from any thread
+  public void recycle(byte[] buffer) {
+    if (buffer == null || buffer.length != mBufferSize) {
+      mForeignNum.incrementAndGet();
+      return;
+    }
+    mRecycledNum.incrementAndGet();
+    if (mClosed)
+      return;
+    mInSinkNum.incrementAndGet();
+    mSink.onBufferAvailable(buffer);
+  }
+
+  // Stops handing buffers back to the sink, e.g. once the camera has been released
+  public void close() { mClosed = true; }
+
+  public int getBufferSize() { return mBufferSize; }
+  public int getBuffersNum() { return mBuffers.length; }
+
+  // Buffers currently owned by the sink, i.e. available for new frames
+  public int getAvailableNum() { return Math.max(0, mInSinkNum.get()); }
+  // Buffers delivered by the sink and not yet recycled
+  public int getInFlightNum() { return mBuffers.length - getAvailableNum(); }
+  // Lowest number of available buffers seen since prime()
+  public int getMinAvailableNum() { return Math.max(0, mMinInSinkNum.get()); }
+
+  public long getReceivedNum() { return mReceivedNum.get(); }
+  public long getRecycledNum() { return mRecycledNum.get(); }
+  public long getStarvationNum() { return mStarvationNum.get(); }
+  // Buffers that did not come from this pool, which indicates a preview size mismatch
+  public long getForeignNum() { return mForeignNum.get(); }
+
+  @Override
+  public String toString() {
+    return "buffers " + mBuffers.length + " x " + mBufferSize + " bytes, available " + getAvailableNum()
+        + " (min " + getMinAvailableNum() + "), received " + getReceivedNum() + ", recycled " + getRecycledNum()
+        + ", starved " + getStarvationNum() + ", foreign " + getForeignNum();
+  }
+
+  private void updateMin(int value) {
+    int current;
+    while (value < (current = mMinInSinkNum.get()))
+      if (mMinInSinkNum.compareAndSet(current, value))
+        return;
+  }
+}
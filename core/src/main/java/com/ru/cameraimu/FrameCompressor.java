@@ -0,0 +1,12 @@
+package com.ru.cameraimu;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Turns an NV21 frame into the bytes of an image file. Implementations are called concurrently
+// from several encoder threads and must not keep state between calls.
+public interface FrameCompressor {
+  // quality is in [0, 100] and ignored by lossless formats
+  void compress(FrameEncodePipeline.Frame frame, FrameFormat format, int quality, OutputStream out)
+      throws IOException;
+}
@@ -0,0 +1,327 @@
+package com.ru.cameraimu;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Encodes preview frames on a fixed set of worker threads fed through a bounded queue.
+// When the workers fall behind, the DropPolicy decides what happens to new frames instead of
+// letting the backlog grow without limit.
+//
+// Frame holders are recycled, so submitting a frame does not allocate in the steady state.
+// The frame data itself is only borrowed: it is handed back through Listener.onFrameDone once
+// the frame has been encoded, dropped or failed.
+public class FrameEncodePipeline {
+
+  public enum DropPolicy {
+    DROP_OLDEST,  // Evict the oldest queued frame to make room for the new one
+    DROP_NEWEST,  // Reject the new frame
+    BLOCK,        // Block the submitting thread until there is room
+  }
+
+  public interface FrameEncoder {
+    // Called concurrently from the worker threads
+    void encode(Frame frame) throws Exception;
+  }
+
+  public interface Listener {
+    // Called exactly once per submitted frame, after which the pipeline no longer touches its data
+    void onFrameDone(Frame frame, boolean encoded);
+    void onEncodeFailed(Frame frame, Exception e);
+  }
+
+  public static final class Frame {
+    private byte[] mData;
+    private int mWidth;
+    private int mHeight;
+    private long mTimestampNanos;
+    private long mSequence;
+    private long mEnqueueNanos;
+
+    Frame() {}
+
+    void set(byte[] data, int width, int height, long timestampNanos, long sequence, long enqueueNanos) {
+      mData = data;
+      mWidth = width;
+      mHeight = height;
+      mTimestampNanos = timestampNanos;
+      mSequence = sequence;
+      mEnqueueNanos = enqueueNanos;
+    }
+
+    public byte[] data() { return mData; }
+    public int width() { return mWidth; }
+    public int height() { return mHeight; }
+    public long timestampNanos() { return mTimestampNanos; }
+    // Position of the frame in submission order, starting from 0
+    public long sequence() { return mSequence; }
+  }
+
+  public static final class Stats {
+    public final long submitted;
+    public final long encoded;
+    public final long failed;
+    public final long droppedOldest;
+    public final long droppedNewest;
+    public final int queueDepth;
+    public final int maxQueueDepth;
+    public final long meanQueueWaitNanos;
+    public final long meanEncodeNanos;
+    public final long maxEncodeNanos;
+
+    Stats(long submitted, long encoded, long failed, long droppedOldest, long droppedNewest,
+          int queueDepth, int maxQueueDepth, long meanQueueWaitNanos, long meanEncodeNanos, long maxEncodeNanos) {
+      this.submitted = submitted;
+      this.encoded = encoded;
+      this.failed = failed;
+      this.droppedOldest = droppedOldest;
+      this.droppedNewest = droppedNewest;
+      this.queueDepth = queueDepth;
+      this.maxQueueDepth = maxQueueDepth;
+      this.meanQueueWaitNanos = meanQueueWaitNanos;
+      this.meanEncodeNanos = meanEncodeNanos;
+      this.maxEncodeNanos = maxEncodeNanos;
+    }
+
+    public long dropped() { return droppedOldest + droppedNewest; }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "submitted %d, encoded %d, failed %d, dropped %d (oldest %d, newest %d), queue %d (max %d), "
+              + "wait %.2f ms, encode %.2f ms (max %.2f ms)",
+          submitted, encoded, failed, dropped(), droppedOldest, droppedNewest, queueDepth, maxQueueDepth,
+          meanQueueWaitNanos / 1e6, meanEncodeNanos / 1e6, maxEncodeNanos / 1e6);
+    }
+  }
+
+  // How long an idle worker waits before checking whether the pipeline was shut down
+  private static final long IDLE_POLL_MILLIS = 20;
+
+  private final FrameEncoder mEncoder;
+  private final Listener mListener;
+  private final DropPolicy mDropPolicy;
+  private final ArrayBlockingQueue<Frame> mQueue;
+  private final ArrayBlockingQueue<Frame> mFreeFrames;
+  private final Thread[] mWorkers;
+  private final AtomicInteger mLiveWorkersNum;
+  private volatile boolean mShutdown = false;
+  private long mNextSequence = 0;
+
+  private final AtomicLong mSubmittedNum = new AtomicLong();
+  private final AtomicLong mEncodedNum = new AtomicLong();
+  private final AtomicLong mFailedNum = new AtomicLong();
+  private final AtomicLong mDroppedOldestNum = new AtomicLong();
+  private final AtomicLong mDroppedNewestNum = new AtomicLong();
+  private final AtomicLong mMaxQueueDepth = new AtomicLong();
+  private final AtomicLong mTotalQueueWaitNanos = new AtomicLong();
+  private final AtomicLong mTotalEncodeNanos = new AtomicLong();
+  private final AtomicLong mMaxEncodeNanos = new AtomicLong();
+  private volatile LatencyHistogram mQueueWaitLatency = null;
+  private volatile LatencyHistogram mEncodeLatency = null;
+
+  public FrameEncodePipeline(FrameEncoder encoder, int queueCapacity, int workersNum,
+                             DropPolicy dropPolicy, Listener listener) {
+    if (queueCapacity <= 0)
+      throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+    if (workersNum <= 0)
+      throw new IllegalArgumentException("workersNum must be positive: " + workersNum);
+
+    mEncoder = encoder;
+    mListener = listener;
+    mDropPolicy = dropPolicy;
+    mQueue = new ArrayBlockingQueue<>(queueCapacity);
+
+    // Enough holders for a full queue, one frame per worker and one being submitted
+    int framesNum = queueCapacity + workersNum + 1;
+    mFreeFrames = new ArrayBlockingQueue<>(framesNum);
+    for (int i = 0; i < framesNum; ++i)
+      mFreeFrames.offer(new Frame());
+
+    mWorkers = new Thread[workersNum];
+    mLiveWorkersNum = new AtomicInteger(workersNum);
+    for (int i = 0; i < workersNum; ++i) {
+      mWorkers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            workerLoop();
+          } finally {
+            // Frames that came in after the others had found the queue empty are not left behind
+            if (mLiveWorkersNum.decrementAndGet() == 0)
+              drainQueue();
+          }
+        }
+      }, "FrameEncoder-" + i);
+      mWorkers[i].start();
+    }
+  }
+
+  // Records the queue wait and the encode time of every frame from now on, either may be null
+  public void setLatencyHistograms(LatencyHistogram queueWait, LatencyHistogram encode) {
+    mQueueWaitLatency = queueWait;
+    mEncodeLatency = encode;
+  }
+
+  public DropPolicy getDropPolicy() { return mDropPolicy; }
+  public int getQueueCapacity() { return mQueue.size() + mQueue.remainingCapacity(); }
+  public int getQueueDepth() { return mQueue.size(); }
+
+  // Returns false if the frame was not queued, in which case it has already been released
+  // through the listener. A frame queued as the pipeline shuts down is released unencoded if
+  // no worker is left to take it. Meant to be called from a single thread, e.g. the camera callback.
+  public boolean submit(byte[] data, int width, int height, long timestampNanos) {
+    Frame frame = mFreeFrames.poll();
+    if (frame == null)
+      frame = new Frame();
+    frame.set(data, width, height, timestampNanos, mNextSequence++, System.nanoTime());
+    mSubmittedNum.incrementAndGet();
+
+    if (mShutdown) {
+      mDroppedNewestNum.incrementAndGet();
+      release(frame, false);
+      return false;
+    }
+
+    boolean queued;
+    switch (mDropPolicy) {
+      case DROP_OLDEST:
+        queued = mQueue.offer(frame);
+        while (!queued) {
+          Frame oldest = mQueue.poll();
+          if (oldest != null) {
+            mDroppedOldestNum.incrementAndGet();
+            release(oldest, false);
+          }
+          queued = mQueue.offer(frame);
+        }
+        break;
+      case BLOCK:
+        queued = false;
+        try {
+          while (!queued && !mShutdown)
+            queued = mQueue.offer(frame, IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        break;
+      case DROP_NEWEST:
+      default:
+        queued = mQueue.offer(frame);
+        break;
+    }
+
+    if (!queued) {
+      mDroppedNewestNum.incrementAndGet();
+      release(frame, false);
+      return false;
+    }
+    updateMax(mMaxQueueDepth, mQueue.size());
+    // The workers may have found the queue empty after a shutdown in between the check above and
+    // the offer, and exited. Either this sees the last of them gone or it drains after the offer.
+    if (mShutdown && mLiveWorkersNum.get() == 0)
+      drainQueue();
+    return true;
+  }
+
+  // Stops accepting frames. Frames already queued are still encoded.
+  public void shutdown() { mShutdown = true; }
+
+  public boolean isShutdown() { return mShutdown; }
+
+  // Returns true if all workers finished within the timeout
+  public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    for (Thread worker : mWorkers) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0)
+        return !isAnyWorkerAlive();
+      worker.join(remaining);
+    }
+    return !isAnyWorkerAlive();
+  }
+
+  public Stats getStats() {
+    long encoded = mEncodedNum.get();
+    long failed = mFailedNum.get();
+    long started = encoded + failed;
+    return new Stats(mSubmittedNum.get(), encoded, failed, mDroppedOldestNum.get(), mDroppedNewestNum.get(),
+        mQueue.size(), (int) mMaxQueueDepth.get(),
+        started == 0 ? 0 : mTotalQueueWaitNanos.get() / started,
+        started == 0 ? 0 : mTotalEncodeNanos.get() / started,
+        mMaxEncodeNanos.get());
+  }
+
+  private void workerLoop() {
+    while (true) {
+      Frame frame;
+      try {
+        frame = mQueue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (frame == null) {
+        if (mShutdown && mQueue.isEmpty())
+          return;
+        continue;
+      }
+
+      long startNanos = System.nanoTime();
+      long queueWaitNanos = startNanos - frame.mEnqueueNanos;
+      mTotalQueueWaitNanos.addAndGet(queueWaitNanos);
+      LatencyHistogram queueWaitLatency = mQueueWaitLatency;
+      if (queueWaitLatency != null)
+        queueWaitLatency.record(queueWaitNanos);
+      boolean encoded = false;
+      try {
+        mEncoder.encode(frame);
+        encoded = true;
+      } catch (Exception e) {
+        mFailedNum.incrementAndGet();
+        if (mListener != null)
+          mListener.onEncodeFailed(frame, e);
+      }
+      long encodeNanos = System.nanoTime() - startNanos;
+      mTotalEncodeNanos.addAndGet(encodeNanos);
+      updateMax(mMaxEncodeNanos, encodeNanos);
+      LatencyHistogram encodeLatency = mEncodeLatency;
+      if (encodeLatency != null)
+        encodeLatency.record(encodeNanos);
+      if (encoded)
+        mEncodedNum.incrementAndGet();
+      release(frame, encoded);
+    }
+  }
+
+  // Releases what is left in the queue once no worker is left to take it
+  private void drainQueue() {
+    Frame frame;
+    while ((frame = mQueue.poll()) != null) {
+      mDroppedNewestNum.incrementAndGet();
+      release(frame, false);
+    }
+  }
+
+  private void release(Frame frame, boolean encoded) {
+    if (mListener != null)
+      mListener.onFrameDone(frame, encoded);
+    frame.set(null, 0, 0, 0, 0, 0);
+    mFreeFrames.offer(frame);
+  }
+
+  private boolean isAnyWorkerAlive() {
+    for (Thread worker : mWorkers)
+      if (worker.isAlive())
+        return true;
+    return false;
+  }
+
+  private static void updateMax(AtomicLong max, long value) {
+    long current;
+    while (value > (current = max.get()))
+      if (max.compareAndSet(current, value))
+        return;
+  }
+}
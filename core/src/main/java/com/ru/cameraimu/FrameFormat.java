@@ -0,0 +1,18 @@
+package com.ru.cameraimu;
+
+// Output formats for encoded preview frames
+public enum FrameFormat {
+  JPEG(".jpg", false),
+  PNG(".png", true),
+  RAW(".nv21", true),  // The NV21 bytes as delivered by the camera
+  GRAY(".pgm", true),  // The luma plane and its pyramid levels as binary PGM, see LumaFrameCompressor
+  ;
+
+  public final String extension;
+  public final boolean lossless;
+
+  FrameFormat(String extension, boolean lossless) {
+    this.extension = extension;
+    this.lossless = lossless;
+  }
+}
@@ -0,0 +1,110 @@
+package com.ru.cameraimu;
+
+import java.util.Arrays;
+
+// A reusable char buffer for text that is rebuilt many times per second, e.g. the sensor HUD.
+// Numbers are formatted digit by digit instead of through String.format, so once the buffer has
+// grown to its working size nothing is allocated. Views should take chars() and length()
+// directly, toString() is for tests and logs.
+public final class HudText {
+
+  private static final long[] POW10 = {
+      1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L };
+
+  private char[] mChars;
+  private int mLength = 0;
+
+  public HudText(int capacity) { mChars = new char[Math.max(1, capacity)]; }
+
+  // Valid up to length(), may be replaced by a larger array when appending
+  public char[] chars() { return mChars; }
+
+  public int length() { return mLength; }
+
+  @Override
+  public String toString() { return new String(mChars, 0, mLength); }
+
+  public HudText clear() {
+    mLength = 0;
+    return this;
+  }
+
+  public HudText append(char c) {
+    ensureRoom(1);
+    mChars[mLength++] = c;
+    return this;
+  }
+
+  public HudText append(String s) {
+    int n = s.length();
+    ensureRoom(n);
+    s.getChars(0, n, mChars, mLength);
+    mLength += n;
+    return this;
+  }
+
+  public HudText append(long value) {
+    if (value == Long.MIN_VALUE)
+      return append(Long.toString(value));
+    if (value < 0) {
+      append('-');
+      value = -value;
+    }
+    int digits = 1;
+    for (long rest = value / 10; rest > 0; rest /= 10)
+      ++digits;
+    ensureRoom(digits);
+    for (int i = mLength + digits - 1; i >= mLength; --i) {
+      mChars[i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+    mLength += digits;
+    return this;
+  }
+
+  // Fixed point with up to 9 decimals, rounded half away from zero and without "-0"
+  public HudText append(double value, int decimals) {
+    if (decimals < 0 || decimals >= POW10.length)
+      throw new IllegalArgumentException("Unsupported number of decimals " + decimals);
+    if (Double.isNaN(value) || Double.isInfinite(value))
+      return append(Double.toString(value));
+    long scale = POW10[decimals];
+    double scaled = Math.abs(value) * scale + 0.5;
+    if (scaled >= Long.MAX_VALUE)
+      return append(Double.toString(value));  // Far beyond anything worth displaying
+
+    long units = (long) scaled;
+    if (value < 0 && units != 0)
+      append('-');
+    append(units / scale);
+    if (decimals > 0) {
+      append('.');
+      long fraction = units % scale;
+      ensureRoom(decimals);
+      for (int i = mLength + decimals - 1; i >= mLength; --i) {
+        mChars[i] = (char) ('0' + fraction % 10);
+        fraction /= 10;
+      }
+      mLength += decimals;
+    }
+    return this;
+  }
+
+  // Right aligns everything appended since start within width chars
+  public HudText padLeft(int start, int width) {
+    int n = mLength - start;
+    if (n >= width)
+      return this;
+    int pad = width - n;
+    ensureRoom(pad);
+    System.arraycopy(mChars, start, mChars, start + pad, n);
+    Arrays.fill(mChars, start, start + pad, ' ');
+    mLength += pad;
+    return this;
+  }
+
+  private void ensureRoom(int n) {
+    if (mLength + n > mChars.length)
+      mChars = Arrays.copyOf(mChars, Math.max(2 * mChars.length, mLength + n));
+  }
+}
@@ -0,0 +1,272 @@
+package com.ru.cameraimu;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+// Compresses runs of IMU samples into self contained blocks, for logs of long sessions.
+//
+// A block holds its samples column by column (all little endian varints):
+//   byte    mode          Mode.ordinal() used for this block
+//   varint  count
+//   varlong first timestamp, zig-zag
+//   varlong ...           count - 1 zig-zag deltas of the deltas between timestamps
+//   ...                   arity columns of values, in the block's mode
+// A block decodes without any of the others, so reading can start at any of them.
+//
+// QUANTIZED rounds every value to a multiple of the step and stores the zig-zag deltas of the
+// multiples, which is lossless for sensors that report integer counts of a fixed resolution and
+// within step / 2 otherwise. DEFAULT_STEP keeps what the legacy "%08.6f" text logs kept. A block
+// with values that cannot be quantized, e.g. NaN, falls back to XOR.
+//
+// XOR stores the float bits as in Gorilla (Pelkonen et al., VLDB 2015): a 0 bit for a value
+// equal to the previous one, otherwise the meaningful bits of their XOR, either within the
+// previous window of leading and trailing zeros or with a new one. It is always lossless.
+//
+// Not thread safe, one codec per writer or reader thread.
+public final class ImuBlockCodec {
+
+  public enum Mode { QUANTIZED, XOR }
+
+  public static final float DEFAULT_STEP = 1e-6f;
+
+  // Multiples beyond this lose their integer precision as doubles
+  private static final double MAX_MULTIPLE = (double) (1L << 52);
+
+  private final int mArity;
+  private final Mode mMode;
+  private final float mStep;
+  private final BitWriter mBitWriter = new BitWriter();
+  private final BitReader mBitReader = new BitReader();
+
+  public ImuBlockCodec(int arity, Mode mode, float step) {
+    if (arity <= 0)
+      throw new IllegalArgumentException("arity out of range: " + arity);
+    if (mode == Mode.QUANTIZED && !(step > 0 && !Float.isInfinite(step)))
+      throw new IllegalArgumentException("Invalid quantization step " + step);
+    mArity = arity;
+    mMode = mode;
+    mStep = step;
+  }
+
+  public int getArity() { return mArity; }
+  public Mode getMode() { return mMode; }
+  public float getStep() { return mStep; }
+
+  // Bound on the size of a block of count samples, whatever their values
+  public int maxBlockSize(int count) {
+    return 1 + 5 + 10 * count * (1 + mArity);
+  }
+
+  // Encodes samples [offset, offset + count) at the buffer's position, which must have
+  // maxBlockSize(count) bytes remaining. Returns the size of the block.
+  public int encode(float[][] values, long[] timestampsNanos, int offset, int count, ByteBuffer dst) {
+    int start = dst.position();
+    Mode mode = mMode == Mode.QUANTIZED && canQuantize(values, offset, count) ? Mode.QUANTIZED : Mode.XOR;
+    dst.put((byte) mode.ordinal());
+    putVarLong(dst, count);
+    long previous = 0;
+    long previousDelta = 0;
+    for (int i = offset; i < offset + count; ++i) {
+      if (i == offset) {
+        putVarLong(dst, zigZag(timestampsNanos[i]));
+      } else {
+        long delta = timestampsNanos[i] - previous;
+        putVarLong(dst, zigZag(delta - previousDelta));
+        previousDelta = delta;
+      }
+      previous = timestampsNanos[i];
+    }
+
+    if (mode == Mode.QUANTIZED) {
+      for (int axis = 0; axis < mArity; ++axis) {
+        long previousMultiple = 0;
+        for (int i = offset; i < offset + count; ++i) {
+          long multiple = Math.round(values[axis][i] / (double) mStep);
+          putVarLong(dst, zigZag(multiple - previousMultiple));
+          previousMultiple = multiple;
+        }
+      }
+    } else {
+      mBitWriter.start(dst);
+      for (int axis = 0; axis < mArity; ++axis)
+        encodeXor(values[axis], offset, count);
+      mBitWriter.finish();
+    }
+    return dst.position() - start;
+  }
+
+  // Decodes a block at the buffer's position into [offset, offset + count) of the arrays, which
+  // must be large enough for it. Returns count.
+  public int decode(ByteBuffer src, float[][] values, long[] timestampsNanos, int offset) throws IOException {
+    try {
+      int modeOrdinal = src.get();
+      if (modeOrdinal < 0 || modeOrdinal >= Mode.values().length)
+        throw new IOException("Corrupt IMU block: mode " + modeOrdinal);
+      long count = getVarLong(src);
+      if (count < 0 || count > timestampsNanos.length - offset)
+        throw new IOException("Corrupt IMU block: " + count + " samples");
+      int end = offset + (int) count;
+      long previous = 0;
+      long previousDelta = 0;
+      for (int i = offset; i < end; ++i) {
+        if (i == offset) {
+          previous = unZigZag(getVarLong(src));
+        } else {
+          previousDelta += unZigZag(getVarLong(src));
+          previous += previousDelta;
+        }
+        timestampsNanos[i] = previous;
+      }
+
+      if (modeOrdinal == Mode.QUANTIZED.ordinal()) {
+        for (int axis = 0; axis < mArity; ++axis) {
+          long multiple = 0;
+          for (int i = offset; i < end; ++i) {
+            multiple += unZigZag(getVarLong(src));
+            values[axis][i] = (float) (multiple * (double) mStep);
+          }
+        }
+      } else {
+        mBitReader.start(src);
+        for (int axis = 0; axis < mArity; ++axis)
+          decodeXor(values[axis], offset, (int) count);
+      }
+      return (int) count;
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated IMU block");
+    }
+  }
+
+  private boolean canQuantize(float[][] values, int offset, int count) {
+    for (int axis = 0; axis < mArity; ++axis)
+      for (int i = offset; i < offset + count; ++i)
+        if (!(Math.abs(values[axis][i] / (double) mStep) < MAX_MULTIPLE))
+          return false;
+    return true;
+  }
+
+  private void encodeXor(float[] column, int offset, int count) {
+    int previous = 0;
+    int leading = -1;
+    int trailing = 0;
+    for (int i = offset; i < offset + count; ++i) {
+      int bits = Float.floatToRawIntBits(column[i]);
+      if (i == offset) {
+        mBitWriter.write(bits, 32);
+      } else {
+        int xor = bits ^ previous;
+        if (xor == 0) {
+          mBitWriter.write(0, 1);
+        } else {
+          int newLeading = Integer.numberOfLeadingZeros(xor);
+          int newTrailing = Integer.numberOfTrailingZeros(xor);
+          if (leading >= 0 && newLeading >= leading && newTrailing >= trailing) {
+            mBitWriter.write(2, 2);
+            mBitWriter.write(xor >>> trailing, 32 - leading - trailing);
+          } else {
+            leading = newLeading;
+            trailing = newTrailing;
+            int meaningful = 32 - leading - trailing;
+            mBitWriter.write(3, 2);
+            mBitWriter.write(leading, 5);
+            mBitWriter.write(meaningful - 1, 5);
+            mBitWriter.write(xor >>> trailing, meaningful);
+          }
+        }
+      }
+      previous = bits;
+    }
+  }
+
+  private void decodeXor(float[] column, int offset, int count) {
+    int previous = 0;
+    int leading = 0;
+    int trailing = 0;
+    for (int i = offset; i < offset + count; ++i) {
+      if (i == offset) {
+        previous = mBitReader.read(32);
+      } else if (mBitReader.read(1) != 0) {
+        if (mBitReader.read(1) != 0) {
+          leading = mBitReader.read(5);
+          trailing = 32 - leading - (mBitReader.read(5) + 1);
+        }
+        previous ^= mBitReader.read(32 - leading - trailing) << trailing;
+      }
+      column[i] = Float.intBitsToFloat(previous);
+    }
+  }
+
+  static long zigZag(long value) { return (value << 1) ^ (value >> 63); }
+
+  static long unZigZag(long value) { return (value >>> 1) ^ -(value & 1); }
+
+  static void putVarLong(ByteBuffer dst, long value) {
+    while ((value & ~0x7FL) != 0) {
+      dst.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    dst.put((byte) value);
+  }
+
+  static long getVarLong(ByteBuffer src) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = src.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0)
+        return value;
+    }
+    throw new IOException("Corrupt IMU block: varint too long");
+  }
+
+  // Packs bits most significant first, the last byte of a block is padded with zeros
+  private static final class BitWriter {
+    private ByteBuffer mDst;
+    private long mBits;
+    private int mBitsNum;
+
+    void start(ByteBuffer dst) {
+      mDst = dst;
+      mBits = 0;
+      mBitsNum = 0;
+    }
+
+    // The low bitsNum <= 32 bits of value
+    void write(int value, int bitsNum) {
+      mBits = (mBits << bitsNum) | (value & (-1L >>> (64 - bitsNum)));
+      mBitsNum += bitsNum;
+      while (mBitsNum >= 8) {
+        mBitsNum -= 8;
+        mDst.put((byte) (mBits >>> mBitsNum));
+      }
+    }
+
+    void finish() {
+      if (mBitsNum > 0)
+        mDst.put((byte) (mBits << (8 - mBitsNum)));
+      mDst = null;
+    }
+  }
+
+  private static final class BitReader {
+    private ByteBuffer mSrc;
+    private long mBits;
+    private int mBitsNum;
+
+    void start(ByteBuffer src) {
+      mSrc = src;
+      mBits = 0;
+      mBitsNum = 0;
+    }
+
+    int read(int bitsNum) {
+      while (mBitsNum < bitsNum) {
+        mBits = (mBits << 8) | (mSrc.get() & 0xFF);
+        mBitsNum += 8;
+      }
+      mBitsNum -= bitsNum;
+      return (int) ((mBits >>> mBitsNum) & (-1L >>> (64 - bitsNum)));
+    }
+  }
+}
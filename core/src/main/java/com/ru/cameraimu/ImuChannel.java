@@ -0,0 +1,114 @@
+package com.ru.cameraimu;
+
+// One sensor stream of the capture, e.g. the gyroscope or the barometer, declared by its log
+// type, name, arity and units (see ImuChannelRegistry) and recorded through the same path as
+// every other one: an ImuStreamRecorder into <type>.imu with its own FlushPolicy, index blocks,
+// and StreamMetrics and flush decisions under its name. With compression set, the log is a
+// compressed one, <type>.imz (see CompressedImuLogWriter).
+//
+// onSample() is meant to be called from the single thread delivering the stream and never
+// blocks or allocates. Values shorter than the arity, e.g. a rotation vector without its
+// optional entries on older devices, are padded with NaN. startRecording() and stopRecording()
+// are called from the thread controlling the capture.
+public class ImuChannel {
+
+  private final char mType;
+  private final String mName;
+  private final int mArity;
+  private final String mUnits;
+  private final int mQueueCapacity;
+
+  // Latest values and rate statistics for the live display
+  private final SensorRateStats mStats;
+  private ImuBlockCodec.Mode mCompression = null;
+  private final float[] mPadded;  // Only touched from the delivering thread
+
+  // Owned by the capture session, the delivering thread only ever offers samples to it
+  private volatile ImuStreamRecorder mRecorder = null;
+  private volatile StreamMetrics mMetrics = null;
+
+  public ImuChannel(char type, String name, int arity, String units) {
+    this(type, name, arity, units, ImuStreamRecorder.DEFAULT_QUEUE_CAPACITY);
+  }
+
+  public ImuChannel(char type, String name, int arity, String units, int queueCapacity) {
+    // Validates the type, arity and units the way the log header will
+    new ImuLogFormat(type, arity, units);
+    if (type == ImuPreintegrator.LOG_TYPE || type == KeyframeFilter.LOG_TYPE)
+      throw new IllegalArgumentException("Type " + type + " is reserved for the preintegration and keyframe logs");
+    if (name.isEmpty())
+      throw new IllegalArgumentException("Channel " + type + " needs a name");
+    mType = type;
+    mName = name;
+    mArity = arity;
+    mUnits = units;
+    mQueueCapacity = queueCapacity;
+    mStats = new SensorRateStats(arity);
+    mPadded = new float[arity];
+  }
+
+  public char getType() { return mType; }
+  public String getName() { return mName; }
+  public int getArity() { return mArity; }
+  public String getUnits() { return mUnits; }
+  public ImuLogFormat getFormat() { return new ImuLogFormat(mType, mArity, mUnits); }
+  public String getLogFilename() { return ImuStreamRecorder.logFilename(mType, mCompression); }
+  public SensorRateStats getStats() { return mStats; }
+  public boolean isRecording() { return mRecorder != null; }
+
+  // Applies from the next startRecording(), null for the binary log
+  public void setCompression(ImuBlockCodec.Mode mode) { mCompression = mode; }
+
+  public ImuBlockCodec.Mode getCompression() { return mCompression; }
+
+  // null if the channel is not recording
+  public FlushPolicy getFlushPolicy() {
+    ImuStreamRecorder recorder = mRecorder;
+    return recorder != null ? recorder.getFlushPolicy() : null;
+  }
+
+  // Starts writing this channel to its log in the session, with its arrival statistics and
+  // flush decisions recorded into metrics under its name
+  public void startRecording(SessionWriter session, SessionMetrics metrics) {
+    mMetrics = metrics.stream(mName);
+    // Written in chunks sized to the sensor rate rather than on every pass of the I/O thread
+    FlushPolicy flushPolicy = new FlushPolicy(session);
+    flushPolicy.setMetrics(metrics, mName);
+    mRecorder = session.addLog(mName, getFormat(), mQueueCapacity, mCompression, flushPolicy);
+  }
+
+  // Stops accepting samples, everything accepted so far is still written by the session.
+  // Returns the recorder for its statistics, null if the channel was not recording.
+  public ImuStreamRecorder stopRecording() {
+    ImuStreamRecorder recorder = mRecorder;
+    mRecorder = null;
+    mMetrics = null;
+    if (recorder != null)
+      recorder.stop();
+    return recorder;
+  }
+
+  // Records the sample if the channel is recording and updates the display statistics either way.
+  // Returns the values as recorded, v itself unless it had to be padded.
+  public float[] onSample(float[] v, long timestampNanos) {
+    if (v.length < mArity) {
+      System.arraycopy(v, 0, mPadded, 0, v.length);
+      for (int i = v.length; i < mArity; ++i)
+        mPadded[i] = Float.NaN;
+      v = mPadded;
+    }
+    StreamMetrics metrics = mMetrics;
+    if (metrics != null)
+      metrics.onSample(timestampNanos);
+    // Never blocks, a sample that does not fit in the queue is counted by the recorder and dropped
+    ImuStreamRecorder recorder = mRecorder;
+    if (recorder != null && !recorder.offer(v, timestampNanos) && metrics != null)
+      metrics.onDropped();
+    // Only recorded here, the display samples it at its own rate
+    mStats.onSample(v, timestampNanos);
+    return v;
+  }
+
+  @Override
+  public String toString() { return mName + " " + getFormat(); }
+}
@@ -0,0 +1,117 @@
+package com.ru.cameraimu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+// The sensor channels of a capture, in registration order. Every registered channel is
+// recorded, measured and displayed the same way (see ImuChannel), so adding a sensor is a
+// matter of registering one more channel, e.g. standard(MAGNETOMETER) for a device that has one.
+//
+// Channels are registered up front, before any recording starts, and the registry is only read
+// afterwards.
+public class ImuChannelRegistry implements Iterable<ImuChannel> {
+
+  // Log types of the standard channels
+  public static final char GYROSCOPE = 'G';
+  public static final char ACCELEROMETER = 'A';
+  public static final char MAGNETOMETER = 'M';
+  public static final char ROTATION_VECTOR = 'R';
+  public static final char BAROMETER = 'B';
+  public static final char ACCELEROMETER_UNCALIBRATED = 'U';
+
+  // In merge order, see SessionReader
+  public static final char[] STANDARD_TYPES = {
+      GYROSCOPE, ACCELEROMETER, MAGNETOMETER, ROTATION_VECTOR, BAROMETER, ACCELEROMETER_UNCALIBRATED};
+
+  private final List<ImuChannel> mChannels = new ArrayList<>();
+
+  // A new channel of one of the STANDARD_TYPES
+  public static ImuChannel standard(char type) {
+    switch (type) {
+      case GYROSCOPE:
+        return new ImuChannel(type, "gyro", 3, "rad/s");
+      case ACCELEROMETER:
+        return new ImuChannel(type, "accel", 3, "m/s^2");
+      case MAGNETOMETER:
+        return new ImuChannel(type, "mag", 3, "uT");
+      case ROTATION_VECTOR:
+        // x, y, z and w of the unit quaternion
+        return new ImuChannel(type, "rotation", 4, "1");
+      case BAROMETER:
+        return new ImuChannel(type, "pressure", 1, "hPa");
+      case ACCELEROMETER_UNCALIBRATED:
+        // The uncalibrated x, y and z followed by the estimated bias of each
+        return new ImuChannel(type, "accel_uncal", 6, "m/s^2");
+      default:
+        throw new IllegalArgumentException("No standard channel of type " + type);
+    }
+  }
+
+  // Returns the channel, which must differ from those registered in both its type and its name
+  public ImuChannel register(ImuChannel channel) {
+    for (ImuChannel registered : mChannels) {
+      if (registered.getType() == channel.getType() || registered.getName().equals(channel.getName()))
+        throw new IllegalArgumentException("Channel " + channel + " clashes with " + registered);
+    }
+    mChannels.add(channel);
+    return channel;
+  }
+
+  // null if there is no channel of this type
+  public ImuChannel get(char type) {
+    for (ImuChannel channel : mChannels)
+      if (channel.getType() == type)
+        return channel;
+    return null;
+  }
+
+  public int size() { return mChannels.size(); }
+  public List<ImuChannel> channels() { return Collections.unmodifiableList(mChannels); }
+
+  @Override
+  public Iterator<ImuChannel> iterator() { return channels().iterator(); }
+
+  public char[] types() {
+    char[] types = new char[mChannels.size()];
+    for (int i = 0; i < types.length; ++i)
+      types[i] = mChannels.get(i).getType();
+    return types;
+  }
+
+  // For the SensorHud, one label and one statistics per channel
+  public String[] labels() {
+    String[] labels = new String[mChannels.size()];
+    for (int i = 0; i < labels.length; ++i)
+      labels[i] = String.valueOf(mChannels.get(i).getType());
+    return labels;
+  }
+
+  public SensorRateStats[] stats() {
+    SensorRateStats[] stats = new SensorRateStats[mChannels.size()];
+    for (int i = 0; i < stats.length; ++i)
+      stats[i] = mChannels.get(i).getStats();
+    return stats;
+  }
+
+  public void startRecording(SessionWriter session, SessionMetrics metrics) {
+    for (ImuChannel channel : mChannels)
+      channel.startRecording(session, metrics);
+    StringBuilder sb = new StringBuilder();
+    for (ImuChannel channel : mChannels)
+      sb.append(sb.length() > 0 ? " " : "").append(channel.getName());
+    metrics.putInfo("channels", sb.toString());
+  }
+
+  // Returns the recorders of the channels that were recording
+  public List<ImuStreamRecorder> stopRecording() {
+    List<ImuStreamRecorder> recorders = new ArrayList<>();
+    for (ImuChannel channel : mChannels) {
+      ImuStreamRecorder recorder = channel.stopRecording();
+      if (recorder != null)
+        recorders.add(recorder);
+    }
+    return recorders;
+  }
+}
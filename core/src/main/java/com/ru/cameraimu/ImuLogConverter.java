@@ -0,0 +1,101 @@
+package com.ru.cameraimu;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+// Converts a binary IMU log back into the legacy text layout, i.e. chunk files named
+// <type>%08d.txt holding one "%08.6f %08.6f %08.6f %d" line per sample, for downstream tools
+// that still expect it.
+//
+// Usage: ImuLogConverter <log.imu> <output dir> [samples per file]
+public class ImuLogConverter {
+
+  public static final int DEFAULT_SAMPLES_PER_FILE = 500;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: ImuLogConverter <log" + ImuLogFormat.FILE_EXTENSION
+          + "> <output dir> [samples per file]");
+      System.exit(1);
+    }
+    int samplesPerFile = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SAMPLES_PER_FILE;
+    int filesNum = convert(new File(args[0]), new File(args[1]), samplesPerFile);
+    System.out.println("Wrote " + filesNum + " files to " + args[1]);
+  }
+
+  // Returns the number of text files written
+  public static int convert(File log, File outputDir, int samplesPerFile) throws IOException {
+    if (samplesPerFile <= 0)
+      throw new IllegalArgumentException("samplesPerFile must be positive: " + samplesPerFile);
+    if (!outputDir.isDirectory() && !outputDir.mkdirs())
+      throw new IOException("Cannot create " + outputDir);
+
+    ImuLogReader reader = new ImuLogReader(log);
+    TextChunkDrain drain = new TextChunkDrain(outputDir, reader.getFormat().sensorType, samplesPerFile);
+    try {
+      reader.readAll(drain);
+      drain.close();
+    } finally {
+      reader.close();
+    }
+    if (drain.mPendingException != null)
+      throw drain.mPendingException;
+    return drain.mFilesNum;
+  }
+
+  public static String formatLine(float[][] values, long[] timestampsNanos, int i) {
+    StringBuilder sb = new StringBuilder();
+    for (float[] axis : values)
+      sb.append(String.format(Locale.US, "%08.6f ", axis[i]));
+    return sb.append(timestampsNanos[i]).append('\n').toString();
+  }
+
+  private static class TextChunkDrain implements ImuRingBuffer.Drain {
+    private final File mOutputDir;
+    private final char mType;
+    private final int mSamplesPerFile;
+    private Writer mWriter = null;
+    private int mSamplesInFile = 0;
+    private int mFilesNum = 0;
+    private IOException mPendingException = null;
+
+    TextChunkDrain(File outputDir, char type, int samplesPerFile) {
+      mOutputDir = outputDir;
+      mType = type;
+      mSamplesPerFile = samplesPerFile;
+    }
+
+    @Override
+    public void onSamples(float[][] values, long[] timestampsNanos, int offset, int count) {
+      if (mPendingException != null)
+        return;
+      try {
+        for (int i = offset; i < offset + count; ++i) {
+          if (mWriter == null) {
+            String filename = String.format(Locale.US, mType + "%08d.txt", mFilesNum++);
+            mWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(mOutputDir, filename)), "US-ASCII"));
+          }
+          mWriter.write(formatLine(values, timestampsNanos, i));
+          if (++mSamplesInFile == mSamplesPerFile)
+            close();
+        }
+      } catch (IOException e) {
+        mPendingException = e;
+      }
+    }
+
+    void close() throws IOException {
+      if (mWriter != null) {
+        mWriter.close();
+        mWriter = null;
+        mSamplesInFile = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package com.ru.cameraimu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+// Layout of the binary IMU log, one file per sensor per session.
+//
+// The file starts with a fixed HEADER_SIZE byte header (all little endian):
+//   int    magic         'CIMU'
+//   short  version
+//   short  header size
+//   byte   sensor type   e.g. 'G' or 'A'
+//   byte   arity         number of float values per record
+//   short  record size   8 + 4 * arity
+//   byte[] units         UNITS_SIZE bytes of zero padded US-ASCII, e.g. "rad/s"
+//   ...    reserved      zeros up to HEADER_SIZE
+// followed by packed records of one long timestamp in nanoseconds and arity floats.
+public final class ImuLogFormat {
+
+  public static final int MAGIC = 0x554D4943;  // "CIMU" read as a little endian int
+  public static final short VERSION = 1;
+  public static final int HEADER_SIZE = 64;
+  public static final int UNITS_SIZE = 16;
+  public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+  public static final String FILE_EXTENSION = ".imu";
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  public final char sensorType;
+  public final int arity;
+  public final String units;
+
+  public ImuLogFormat(char sensorType, int arity, String units) {
+    if (sensorType > 0x7F)
+      throw new IllegalArgumentException("sensor type must be ASCII: " + sensorType);
+    if (arity <= 0 || arity > Byte.MAX_VALUE)
+      throw new IllegalArgumentException("arity out of range: " + arity);
+    if (units.getBytes(ASCII).length > UNITS_SIZE)
+      throw new IllegalArgumentException("units longer than " + UNITS_SIZE + " bytes: " + units);
+    this.sensorType = sensorType;
+    this.arity = arity;
+    this.units = units;
+  }
+
+  public int recordSize() { return recordSize(arity); }
+
+  public static int recordSize(int arity) { return 8 + 4 * arity; }
+
+  // Writes the header at the buffer's position, which must have HEADER_SIZE bytes remaining
+  public void writeHeader(ByteBuffer dst) {
+    ByteOrder order = dst.order();
+    dst.order(BYTE_ORDER);
+    int start = dst.position();
+    dst.putInt(MAGIC);
+    dst.putShort(VERSION);
+    dst.putShort((short) HEADER_SIZE);
+    dst.put((byte) sensorType);
+    dst.put((byte) arity);
+    dst.putShort((short) recordSize());
+    byte[] unitsBytes = units.getBytes(ASCII);
+    dst.put(unitsBytes);
+    while (dst.position() < start + HEADER_SIZE)
+      dst.put((byte) 0);
+    dst.order(order);
+  }
+
+  // Parses a header at the buffer's position, which must have HEADER_SIZE bytes remaining
+  public static ImuLogFormat readHeader(ByteBuffer src) throws IOException {
+    ByteOrder order = src.order();
+    src.order(BYTE_ORDER);
+    try {
+      int start = src.position();
+      if (src.getInt() != MAGIC)
+        throw new IOException("Not an IMU log: bad magic");
+      short version = src.getShort();
+      if (version != VERSION)
+        throw new IOException("Unsupported IMU log version: " + version);
+      if (src.getShort() != HEADER_SIZE)
+        throw new IOException("Unexpected IMU log header size");
+      char sensorType = (char) src.get();
+      int arity = src.get();
+      if (arity <= 0 || src.getShort() != recordSize(arity))
+        throw new IOException("Corrupt IMU log header: arity " + arity);
+      byte[] unitsBytes = new byte[UNITS_SIZE];
+      src.get(unitsBytes);
+      int unitsLength = 0;
+      while (unitsLength < UNITS_SIZE && unitsBytes[unitsLength] != 0)
+        ++unitsLength;
+      src.position(start + HEADER_SIZE);
+      return new ImuLogFormat(sensorType, arity, new String(unitsBytes, 0, unitsLength, ASCII));
+    } finally {
+      src.order(order);
+    }
+  }
+
+  public boolean isCompatibleWith(ImuLogFormat other) {
+    return sensorType == other.sensorType && arity == other.arity && units.equals(other.units);
+  }
+
+  @Override
+  public String toString() { return sensorType + "[" + arity + "] " + units; }
+}
@@ -0,0 +1,122 @@
+package com.ru.cameraimu;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Streams the records of a binary IMU log (see ImuLogFormat) back out in batches.
+// A trailing partial record, e.g. left by a crash, is ignored.
+public class ImuLogReader implements Closeable {
+
+  public static final int DEFAULT_BATCH_SIZE = 4096;
+
+  private final FileChannel mChannel;
+  private final ImuLogFormat mFormat;
+  private final long mRecordsNum;
+  private final ByteBuffer mBuffer;
+  private final float[][] mValues;
+  private final long[] mTimestamps;
+  private long mNextRecord = 0;
+
+  public ImuLogReader(File file) throws IOException { this(file, DEFAULT_BATCH_SIZE); }
+
+  public ImuLogReader(File file, int batchSize) throws IOException {
+    mChannel = new RandomAccessFile(file, "r").getChannel();
+    try {
+      ByteBuffer header = ByteBuffer.allocate(ImuLogFormat.HEADER_SIZE);
+      while (header.hasRemaining())
+        if (mChannel.read(header) < 0)
+          throw new IOException("Truncated IMU log header: " + file);
+      header.flip();
+      mFormat = ImuLogFormat.readHeader(header);
+    } catch (IOException e) {
+      mChannel.close();
+      throw e;
+    }
+    mRecordsNum = (mChannel.size() - ImuLogFormat.HEADER_SIZE) / mFormat.recordSize();
+    mBuffer = ByteBuffer.allocateDirect(batchSize * mFormat.recordSize()).order(ImuLogFormat.BYTE_ORDER);
+    mValues = new float[mFormat.arity][batchSize];
+    mTimestamps = new long[batchSize];
+  }
+
+  public ImuLogFormat getFormat() { return mFormat; }
+  public long getRecordsNum() { return mRecordsNum; }
+  public long getPosition() { return mNextRecord; }
+
+  public void seek(long record) {
+    if (record < 0 || record > mRecordsNum)
+      throw new IndexOutOfBoundsException("record " + record + ", count " + mRecordsNum);
+    mNextRecord = record;
+  }
+
+  // Reads a single timestamp without moving the position, e.g. to binary search the log
+  public long timestampAt(long record) throws IOException {
+    if (record < 0 || record >= mRecordsNum)
+      throw new IndexOutOfBoundsException("record " + record + ", count " + mRecordsNum);
+    ByteBuffer timestamp = ByteBuffer.allocate(8).order(ImuLogFormat.BYTE_ORDER);
+    long position = ImuLogFormat.HEADER_SIZE + record * mFormat.recordSize();
+    while (timestamp.hasRemaining()) {
+      int n = mChannel.read(timestamp, position + timestamp.position());
+      if (n < 0)
+        throw new IOException("IMU log shrank while reading");
+    }
+    return timestamp.getLong(0);
+  }
+
+  // Index of the first record at or after timestampNanos, getRecordsNum() if there is none.
+  // Records are expected in timestamp order.
+  public long ceilRecord(long timestampNanos) throws IOException {
+    long low = 0;
+    long high = mRecordsNum;
+    while (low < high) {
+      long mid = (low + high) >>> 1;
+      if (timestampAt(mid) < timestampNanos)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  // Hands the next batch of records to the drain, returns the number of records read or 0 at the end
+  public int read(ImuRingBuffer.Drain drain) throws IOException {
+    int count = (int) Math.min(mTimestamps.length, mRecordsNum - mNextRecord);
+    if (count == 0)
+      return 0;
+
+    mBuffer.clear();
+    mBuffer.limit(count * mFormat.recordSize());
+    long position = ImuLogFormat.HEADER_SIZE + mNextRecord * mFormat.recordSize();
+    while (mBuffer.hasRemaining()) {
+      int n = mChannel.read(mBuffer, position);
+      if (n < 0)
+        throw new IOException("IMU log shrank while reading");
+      position += n;
+    }
+    mBuffer.flip();
+
+    int arity = mFormat.arity;
+    for (int i = 0; i < count; ++i) {
+      mTimestamps[i] = mBuffer.getLong();
+      for (int axis = 0; axis < arity; ++axis)
+        mValues[axis][i] = mBuffer.getFloat();
+    }
+    mNextRecord += count;
+    drain.onSamples(mValues, mTimestamps, 0, count);
+    return count;
+  }
+
+  public long readAll(ImuRingBuffer.Drain drain) throws IOException {
+    long total = 0;
+    int n;
+    while ((n = read(drain)) > 0)
+      total += n;
+    return total;
+  }
+
+  @Override
+  public void close() throws IOException { mChannel.close(); }
+}
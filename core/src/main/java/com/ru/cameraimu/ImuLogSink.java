@@ -0,0 +1,23 @@
+package com.ru.cameraimu;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// What an ImuStreamRecorder writes its stream into, the binary log (ImuLogWriter) or the
+// compressed one (CompressedImuLogWriter).
+//
+// Not thread safe, all calls are expected to come from the single writer thread.
+public interface ImuLogSink extends ImuRingBuffer.Drain, Closeable {
+
+  // Records accepted so far
+  long getRecordsNum();
+
+  // Of the file once everything accepted so far is synced
+  long getSize();
+
+  // Hands what is buffered over to the file and reports an earlier failure of onSamples()
+  void flush() throws IOException;
+
+  // Flushes and forces the written data to the storage device
+  void sync() throws IOException;
+}
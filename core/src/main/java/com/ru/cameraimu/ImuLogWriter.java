@@ -0,0 +1,150 @@
+package com.ru.cameraimu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Appends packed binary records (see ImuLogFormat) to a log file through a FileChannel.
+// Samples are encoded straight from the ring buffer arrays into a direct ByteBuffer, so the
+// steady state path neither formats strings nor allocates.
+//
+// Not thread safe, all calls are expected to come from the single writer thread.
+public class ImuLogWriter implements ImuLogSink {
+
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private final ImuLogFormat mFormat;
+  private final FileChannel mChannel;
+  private final ByteBuffer mBuffer;
+  private long mRecordsNum;
+  private IOException mPendingException = null;
+
+  private ImuLogWriter(ImuLogFormat format, FileChannel channel, long existingRecordsNum, int bufferSize) {
+    mFormat = format;
+    mChannel = channel;
+    mRecordsNum = existingRecordsNum;
+    int recordSize = format.recordSize();
+    mBuffer = ByteBuffer.allocateDirect(Math.max(recordSize, bufferSize / recordSize * recordSize))
+        .order(ImuLogFormat.BYTE_ORDER);
+  }
+
+  public static ImuLogWriter open(File file, ImuLogFormat format) throws IOException {
+    return open(file, format, DEFAULT_BUFFER_SIZE);
+  }
+
+  // Opens the log for appending. A new file gets a header, an existing one must have a compatible
+  // header and is trimmed of any partially written trailing record.
+  public static ImuLogWriter open(File file, ImuLogFormat format, int bufferSize) throws IOException {
+    FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+    try {
+      long existingRecordsNum = 0;
+      long size = channel.size();
+      if (size < ImuLogFormat.HEADER_SIZE) {
+        ByteBuffer header = ByteBuffer.allocate(ImuLogFormat.HEADER_SIZE);
+        format.writeHeader(header);
+        header.flip();
+        channel.truncate(0);
+        writeFully(channel, header, 0);
+        size = ImuLogFormat.HEADER_SIZE;
+      } else {
+        ByteBuffer header = ByteBuffer.allocate(ImuLogFormat.HEADER_SIZE);
+        readFully(channel, header, 0);
+        header.flip();
+        ImuLogFormat existing = ImuLogFormat.readHeader(header);
+        if (!existing.isCompatibleWith(format))
+          throw new IOException("Cannot append " + format + " records to a " + existing + " log: " + file);
+        existingRecordsNum = (size - ImuLogFormat.HEADER_SIZE) / format.recordSize();
+        size = ImuLogFormat.HEADER_SIZE + existingRecordsNum * format.recordSize();
+        channel.truncate(size);
+      }
+      channel.position(size);
+      return new ImuLogWriter(format, channel, existingRecordsNum, bufferSize);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  public ImuLogFormat getFormat() { return mFormat; }
+
+  // Records accepted so far, including those already in the file when it was opened
+  @Override
+  public long getRecordsNum() { return mRecordsNum; }
+
+  // Of the file once everything accepted so far is flushed
+  @Override
+  public long getSize() { return ImuLogFormat.HEADER_SIZE + mRecordsNum * mFormat.recordSize(); }
+
+  @Override
+  public void onSamples(float[][] values, long[] timestampsNanos, int offset, int count) {
+    if (mPendingException != null)
+      return;
+    try {
+      write(values, timestampsNanos, offset, count);
+    } catch (IOException e) {
+      // Drain callbacks cannot throw, the failure is reported by the next flush() or close()
+      mPendingException = e;
+    }
+  }
+
+  public void write(float[][] values, long[] timestampsNanos, int offset, int count) throws IOException {
+    int arity = mFormat.arity;
+    for (int i = offset; i < offset + count; ++i) {
+      if (mBuffer.remaining() < mFormat.recordSize())
+        drainBuffer();
+      mBuffer.putLong(timestampsNanos[i]);
+      for (int axis = 0; axis < arity; ++axis)
+        mBuffer.putFloat(values[axis][i]);
+    }
+    mRecordsNum += count;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (mPendingException != null) {
+      IOException e = mPendingException;
+      mPendingException = null;
+      throw e;
+    }
+    drainBuffer();
+  }
+
+  // Flushes and forces the written records to the storage device
+  @Override
+  public void sync() throws IOException {
+    flush();
+    mChannel.force(false);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      mChannel.close();
+    }
+  }
+
+  private void drainBuffer() throws IOException {
+    mBuffer.flip();
+    while (mBuffer.hasRemaining())
+      mChannel.write(mBuffer);
+    mBuffer.clear();
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+    while (src.hasRemaining())
+      position += channel.write(src, position);
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+    while (dst.hasRemaining()) {
+      int n = channel.read(dst, position);
+      if (n < 0)
+        throw new IOException("Unexpected end of IMU log");
+      position += n;
+    }
+  }
+}
@@ -0,0 +1,309 @@
+package com.ru.cameraimu;
+
+// Preintegrates gyroscope and accelerometer samples between two frames into a relative motion
+// increment that does not depend on the initial state:
+//   dR = prod Exp((w - bg) dt)
+//   dv = sum dR (a - ba) dt
+//   dp = sum dv dt + 1/2 dR (a - ba) dt^2
+// together with the 9x9 covariance of the (rotation, velocity, position) error propagated from
+// white gyroscope and accelerometer noise, following Forster et al., "On-Manifold
+// Preintegration for Real-Time Visual-Inertial Odometry".
+// Everything is preallocated, integrate() does not allocate. Not thread-safe.
+public class ImuPreintegrator {
+
+  // Record layout in the preintegration log: dR as quaternion {w, x, y, z}, dv, dp, the
+  // interval length in seconds and the upper triangle of the covariance row by row
+  public static final int RECORD_ARITY = 4 + 3 + 3 + 1 + 45;
+  public static final char LOG_TYPE = 'P';
+  public static final String LOG_UNITS = "q,m/s,m,s,cov";
+  public static final String LOG_FILENAME = LOG_TYPE + ImuLogFormat.FILE_EXTENSION;
+
+  // Continuous time noise densities, roughly those of a phone grade MEMS IMU
+  public static final double DEFAULT_GYRO_NOISE = 1.7e-4;  // rad/s/sqrt(Hz)
+  public static final double DEFAULT_ACCEL_NOISE = 2.0e-3;  // m/s^2/sqrt(Hz)
+
+  private final double mGyroVariance;
+  private final double mAccelVariance;
+  private final double[] mGyroBias = new double[3];
+  private final double[] mAccelBias = new double[3];
+
+  private final double[] mDeltaR = new double[9];  // Row major rotation matrix
+  private final double[] mDeltaV = new double[3];
+  private final double[] mDeltaP = new double[3];
+  private final double[] mCovariance = new double[81];
+  private double mDeltaT;
+  private int mSamplesNum;
+
+  // Scratch
+  private final double[] mIncrement = new double[9];
+  private final double[] mJacobian = new double[9];
+  private final double[] mRotatedSkew = new double[9];
+  private final double[] mA = new double[81];
+  private final double[] mProduct = new double[81];
+  private final double[] mQuaternion = new double[4];
+
+  public ImuPreintegrator() { this(DEFAULT_GYRO_NOISE, DEFAULT_ACCEL_NOISE); }
+
+  public ImuPreintegrator(double gyroNoiseDensity, double accelNoiseDensity) {
+    mGyroVariance = gyroNoiseDensity * gyroNoiseDensity;
+    mAccelVariance = accelNoiseDensity * accelNoiseDensity;
+    reset();
+  }
+
+  public static ImuLogFormat logFormat() { return new ImuLogFormat(LOG_TYPE, RECORD_ARITY, LOG_UNITS); }
+
+  public void setGyroBias(double x, double y, double z) {
+    mGyroBias[0] = x;
+    mGyroBias[1] = y;
+    mGyroBias[2] = z;
+  }
+
+  public void setAccelBias(double x, double y, double z) {
+    mAccelBias[0] = x;
+    mAccelBias[1] = y;
+    mAccelBias[2] = z;
+  }
+
+  public void reset() {
+    for (int i = 0; i < 9; ++i)
+      mDeltaR[i] = i % 4 == 0 ? 1 : 0;
+    for (int i = 0; i < 3; ++i)
+      mDeltaV[i] = mDeltaP[i] = 0;
+    for (int i = 0; i < 81; ++i)
+      mCovariance[i] = 0;
+    mDeltaT = 0;
+    mSamplesNum = 0;
+  }
+
+  // Integrates a constant angular rate (rad/s) and specific force (m/s^2) over dt seconds
+  public void integrate(double wx, double wy, double wz, double ax, double ay, double az, double dt) {
+    if (dt <= 0)
+      return;
+    wx -= mGyroBias[0];
+    wy -= mGyroBias[1];
+    wz -= mGyroBias[2];
+    ax -= mAccelBias[0];
+    ay -= mAccelBias[1];
+    az -= mAccelBias[2];
+    final double[] r = mDeltaR;
+
+    // Acceleration rotated into the frame of the first sample
+    double rax = r[0] * ax + r[1] * ay + r[2] * az;
+    double ray = r[3] * ax + r[4] * ay + r[5] * az;
+    double raz = r[6] * ax + r[7] * ay + r[8] * az;
+
+    // Rotation increment and its right Jacobian
+    double rx = wx * dt;
+    double ry = wy * dt;
+    double rz = wz * dt;
+    expAndRightJacobian(rx, ry, rz, mIncrement, mJacobian);
+
+    propagateCovariance(ax, ay, az, dt);
+
+    double dt2 = 0.5 * dt * dt;
+    mDeltaP[0] += mDeltaV[0] * dt + rax * dt2;
+    mDeltaP[1] += mDeltaV[1] * dt + ray * dt2;
+    mDeltaP[2] += mDeltaV[2] * dt + raz * dt2;
+    mDeltaV[0] += rax * dt;
+    mDeltaV[1] += ray * dt;
+    mDeltaV[2] += raz * dt;
+    multiply3(r, mIncrement, r);
+
+    mDeltaT += dt;
+    ++mSamplesNum;
+  }
+
+  public int getSamplesNum() { return mSamplesNum; }
+  public double getDeltaT() { return mDeltaT; }
+
+  // Views valid until the next call to integrate() or reset()
+  public double[] deltaR() { return mDeltaR; }
+  public double[] deltaV() { return mDeltaV; }
+  public double[] deltaP() { return mDeltaP; }
+  public double[] covariance() { return mCovariance; }
+
+  public void getDeltaRQuaternion(double[] q) {
+    final double[] r = mDeltaR;
+    // Shepperd's method, branching on the largest diagonal term for stability
+    double trace = r[0] + r[4] + r[8];
+    if (trace > 0) {
+      double s = 2 * Math.sqrt(1 + trace);
+      q[0] = 0.25 * s;
+      q[1] = (r[7] - r[5]) / s;
+      q[2] = (r[2] - r[6]) / s;
+      q[3] = (r[3] - r[1]) / s;
+    } else if (r[0] > r[4] && r[0] > r[8]) {
+      double s = 2 * Math.sqrt(1 + r[0] - r[4] - r[8]);
+      q[0] = (r[7] - r[5]) / s;
+      q[1] = 0.25 * s;
+      q[2] = (r[1] + r[3]) / s;
+      q[3] = (r[2] + r[6]) / s;
+    } else if (r[4] > r[8]) {
+      double s = 2 * Math.sqrt(1 + r[4] - r[0] - r[8]);
+      q[0] = (r[2] - r[6]) / s;
+      q[1] = (r[1] + r[3]) / s;
+      q[2] = 0.25 * s;
+      q[3] = (r[5] + r[7]) / s;
+    } else {
+      double s = 2 * Math.sqrt(1 + r[8] - r[0] - r[4]);
+      q[0] = (r[3] - r[1]) / s;
+      q[1] = (r[2] + r[6]) / s;
+      q[2] = (r[5] + r[7]) / s;
+      q[3] = 0.25 * s;
+    }
+    Quaternion.normalize(q);
+  }
+
+  // Packs the current increment into record, laid out as described by RECORD_ARITY
+  public void toRecord(float[] record) {
+    getDeltaRQuaternion(mQuaternion);
+    int k = 0;
+    for (int i = 0; i < 4; ++i)
+      record[k++] = (float) mQuaternion[i];
+    for (int i = 0; i < 3; ++i)
+      record[k++] = (float) mDeltaV[i];
+    for (int i = 0; i < 3; ++i)
+      record[k++] = (float) mDeltaP[i];
+    record[k++] = (float) mDeltaT;
+    for (int row = 0; row < 9; ++row)
+      for (int col = row; col < 9; ++col)
+        record[k++] = (float) mCovariance[row * 9 + col];
+  }
+
+  // cov = A cov A^T + B Q B^T with
+  //   A = | dRinc^T             0     0 |    B = | Jr dt   0         |
+  //       | -dR [a]x dt         I     0 |        | 0       dR dt     |
+  //       | -1/2 dR [a]x dt^2   I dt  I |        | 0       1/2 dR dt^2 |
+  // and Q = diag(gyro variance / dt, accel variance / dt)
+  private void propagateCovariance(double ax, double ay, double az, double dt) {
+    final double[] r = mDeltaR;
+    final double[] a = mA;
+
+    // dR [a]x
+    double[] rs = mRotatedSkew;
+    for (int i = 0; i < 3; ++i) {
+      double r0 = r[i * 3];
+      double r1 = r[i * 3 + 1];
+      double r2 = r[i * 3 + 2];
+      rs[i * 3] = r1 * az - r2 * ay;
+      rs[i * 3 + 1] = -r0 * az + r2 * ax;
+      rs[i * 3 + 2] = r0 * ay - r1 * ax;
+    }
+
+    for (int i = 0; i < 81; ++i)
+      a[i] = 0;
+    double dt2 = 0.5 * dt * dt;
+    for (int i = 0; i < 3; ++i) {
+      for (int j = 0; j < 3; ++j) {
+        a[i * 9 + j] = mIncrement[j * 3 + i];
+        a[(3 + i) * 9 + j] = -rs[i * 3 + j] * dt;
+        a[(6 + i) * 9 + j] = -rs[i * 3 + j] * dt2;
+      }
+      a[(3 + i) * 9 + 3 + i] = 1;
+      a[(6 + i) * 9 + 3 + i] = dt;
+      a[(6 + i) * 9 + 6 + i] = 1;
+    }
+
+    // A cov, skipping the zero blocks of A would save little and obscure the algebra
+    final double[] c = mCovariance;
+    final double[] p = mProduct;
+    for (int i = 0; i < 9; ++i) {
+      for (int j = 0; j < 9; ++j) {
+        double sum = 0;
+        for (int k = 0; k < 9; ++k)
+          sum += a[i * 9 + k] * c[k * 9 + j];
+        p[i * 9 + j] = sum;
+      }
+    }
+    // (A cov) A^T, only the upper triangle, mirrored to keep the result exactly symmetric
+    for (int i = 0; i < 9; ++i) {
+      for (int j = i; j < 9; ++j) {
+        double sum = 0;
+        for (int k = 0; k < 9; ++k)
+          sum += p[i * 9 + k] * a[j * 9 + k];
+        c[i * 9 + j] = sum;
+        c[j * 9 + i] = sum;
+      }
+    }
+
+    // B Q B^T, block diagonal in the gyroscope noise and dense in the accelerometer noise
+    double gyro = mGyroVariance * dt;
+    double accel = mAccelVariance / dt;
+    final double[] jr = mJacobian;
+    for (int i = 0; i < 3; ++i) {
+      for (int j = 0; j < 3; ++j) {
+        double jj = 0;
+        double rr = 0;
+        for (int k = 0; k < 3; ++k) {
+          jj += jr[i * 3 + k] * jr[j * 3 + k];
+          rr += r[i * 3 + k] * r[j * 3 + k];
+        }
+        c[i * 9 + j] += gyro * jj;
+        c[(3 + i) * 9 + 3 + j] += accel * rr * dt * dt;
+        c[(3 + i) * 9 + 6 + j] += accel * rr * dt * dt2;
+        c[(6 + i) * 9 + 3 + j] += accel * rr * dt2 * dt;
+        c[(6 + i) * 9 + 6 + j] += accel * rr * dt2 * dt2;
+      }
+    }
+  }
+
+  // Rotation matrix of the rotation vector and the right Jacobian of SO(3) there
+  private static void expAndRightJacobian(double rx, double ry, double rz, double[] rot, double[] jr) {
+    double theta2 = rx * rx + ry * ry + rz * rz;
+    double theta = Math.sqrt(theta2);
+    double a;  // sin(theta) / theta
+    double b;  // (1 - cos(theta)) / theta^2
+    double c;  // (theta - sin(theta)) / theta^3
+    if (theta < 1e-4) {
+      a = 1 - theta2 / 6;
+      b = 0.5 - theta2 / 24;
+      c = 1.0 / 6 - theta2 / 120;
+    } else {
+      a = Math.sin(theta) / theta;
+      b = (1 - Math.cos(theta)) / theta2;
+      c = (theta - Math.sin(theta)) / (theta2 * theta);
+    }
+
+    // [r]x^2 = r r^T - theta^2 I
+    double xx = rx * rx;
+    double yy = ry * ry;
+    double zz = rz * rz;
+    double xy = rx * ry;
+    double xz = rx * rz;
+    double yz = ry * rz;
+
+    // Exp = I + a [r]x + b [r]x^2
+    rot[0] = 1 + b * (xx - theta2);
+    rot[1] = -a * rz + b * xy;
+    rot[2] = a * ry + b * xz;
+    rot[3] = a * rz + b * xy;
+    rot[4] = 1 + b * (yy - theta2);
+    rot[5] = -a * rx + b * yz;
+    rot[6] = -a * ry + b * xz;
+    rot[7] = a * rx + b * yz;
+    rot[8] = 1 + b * (zz - theta2);
+
+    // Jr = I - b [r]x + c [r]x^2
+    jr[0] = 1 + c * (xx - theta2);
+    jr[1] = b * rz + c * xy;
+    jr[2] = -b * ry + c * xz;
+    jr[3] = -b * rz + c * xy;
+    jr[4] = 1 + c * (yy - theta2);
+    jr[5] = b * rx + c * yz;
+    jr[6] = b * ry + c * xz;
+    jr[7] = -b * rx + c * yz;
+    jr[8] = 1 + c * (zz - theta2);
+  }
+
+  // out = a b for row major 3x3 matrices, out may alias a
+  private static void multiply3(double[] a, double[] b, double[] out) {
+    for (int i = 0; i < 3; ++i) {
+      double a0 = a[i * 3];
+      double a1 = a[i * 3 + 1];
+      double a2 = a[i * 3 + 2];
+      out[i * 3] = a0 * b[0] + a1 * b[3] + a2 * b[6];
+      out[i * 3 + 1] = a0 * b[1] + a1 * b[4] + a2 * b[7];
+      out[i * 3 + 2] = a0 * b[2] + a1 * b[5] + a2 * b[8];
+    }
+  }
+}
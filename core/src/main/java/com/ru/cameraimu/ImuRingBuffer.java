@@ -0,0 +1,158 @@
+package com.ru.cameraimu;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A preallocated, primitive-backed ring buffer of sensor samples.
+// Values are kept as a structure of arrays (one float[] per axis) next to a long[] of timestamps,
+// so recording a sample never allocates.
+// It is a lock-free single-producer/single-consumer queue: one thread may record() while
+// another one drains, without blocking each other. Each index is only advanced by its owner and
+// published with an ordered store after the slot contents are written or read. The producer
+// never waits, it drops the sample when the buffer is full.
+// valueAt(), timestampAt() and clear() belong to the consumer side, reset() to neither and may
+// only be called while both sides are idle.
+public class ImuRingBuffer {
+
+  public interface Drain {
+    // Receives a contiguous run of samples: values[axis][offset, offset + count) and
+    // timestampsNanos[offset, offset + count). The arrays are owned by the buffer and must not be
+    // retained after returning.
+    void onSamples(float[][] values, long[] timestampsNanos, int offset, int count);
+  }
+
+  public static final int DEFAULT_ARITY = 3;
+
+  private final int mArity;
+  private final int mCapacity;
+  private final int mMask;
+  private final float[][] mValues;
+  private final long[] mTimestamps;
+
+  private final AtomicLong mHead = new AtomicLong();  // Index of the oldest sample, advanced by the consumer
+  private final AtomicLong mTail = new AtomicLong();  // Index of the next sample to be written, advanced by the producer
+  private long mCachedHead = 0;  // Producer side copy of mHead, refreshed only when the buffer looks full
+  private volatile long mDroppedNum = 0;  // Only written by the producer
+
+  public ImuRingBuffer(int capacity) { this(DEFAULT_ARITY, capacity); }
+
+  public ImuRingBuffer(int arity, int capacity) {
+    if (arity <= 0)
+      throw new IllegalArgumentException("arity must be positive: " + arity);
+    if (capacity <= 0 || capacity > (1 << 30))
+      throw new IllegalArgumentException("capacity out of range: " + capacity);
+
+    // Round up to a power of two so that wrapping is a mask instead of a modulo
+    int roundedCapacity = Integer.highestOneBit(capacity);
+    if (roundedCapacity < capacity)
+      roundedCapacity <<= 1;
+
+    mArity = arity;
+    mCapacity = roundedCapacity;
+    mMask = roundedCapacity - 1;
+    mValues = new float[arity][roundedCapacity];
+    mTimestamps = new long[roundedCapacity];
+  }
+
+  public int arity() { return mArity; }
+  public int capacity() { return mCapacity; }
+  // Exact from either side while the other one is idle, a snapshot otherwise
+  public int size() {
+    long head = mHead.get();
+    return (int) (mTail.get() - head);
+  }
+  public boolean isEmpty() { return size() == 0; }
+  public boolean isFull() { return size() == mCapacity; }
+
+  // Number of samples rejected because the buffer was full
+  public long getDroppedNum() { return mDroppedNum; }
+
+  public boolean record(float x, float y, float z, long timestampNanos) {
+    if (mArity != 3)
+      throw new IllegalStateException("record(x, y, z) on a buffer of arity " + mArity);
+    long tail = mTail.get();
+    if (!hasRoom(tail))
+      return false;
+
+    int i = (int) tail & mMask;
+    mValues[0][i] = x;
+    mValues[1][i] = y;
+    mValues[2][i] = z;
+    mTimestamps[i] = timestampNanos;
+    mTail.lazySet(tail + 1);
+    return true;
+  }
+
+  // Only the first arity() entries of v are read, so SensorEvent.values can be passed directly
+  public boolean record(float[] v, long timestampNanos) {
+    long tail = mTail.get();
+    if (!hasRoom(tail))
+      return false;
+
+    int i = (int) tail & mMask;
+    for (int axis = 0; axis < mArity; ++axis)
+      mValues[axis][i] = v[axis];
+    mTimestamps[i] = timestampNanos;
+    mTail.lazySet(tail + 1);
+    return true;
+  }
+
+  private boolean hasRoom(long tail) {
+    if (tail - mCachedHead < mCapacity)
+      return true;
+    mCachedHead = mHead.get();
+    if (tail - mCachedHead < mCapacity)
+      return true;
+    ++mDroppedNum;
+    return false;
+  }
+
+  // Random access relative to the oldest sample, mostly for inspection and tests
+  public float valueAt(int index, int axis) {
+    checkIndex(index);
+    return mValues[axis][(int) (mHead.get() + index) & mMask];
+  }
+
+  public long timestampAt(int index) {
+    checkIndex(index);
+    return mTimestamps[(int) (mHead.get() + index) & mMask];
+  }
+
+  public int drainTo(Drain drain) { return drainTo(drain, Integer.MAX_VALUE); }
+
+  // Hands at most maxCount of the oldest samples to the drain and removes them.
+  // The drain is called at most twice, once per contiguous run of the underlying arrays.
+  public int drainTo(Drain drain, int maxCount) {
+    long head = mHead.get();
+    int count = (int) Math.min(mTail.get() - head, maxCount);
+    int drained = 0;
+    while (drained < count) {
+      int start = (int) (head + drained) & mMask;
+      int run = Math.min(count - drained, mCapacity - start);
+      drain.onSamples(mValues, mTimestamps, start, run);
+      drained += run;
+    }
+    // The slots are only handed back to the producer once the drain is done with them
+    mHead.lazySet(head + drained);
+    return drained;
+  }
+
+  // Discards everything recorded so far
+  public void clear() {
+    mHead.lazySet(mTail.get());
+  }
+
+  // Clears the contents and the statistics so that the buffer can be reused for another session
+  public void reset() {
+    mHead.set(0);
+    mTail.set(0);
+    mCachedHead = 0;
+    mDroppedNum = 0;
+    Arrays.fill(mTimestamps, 0);
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size())
+      throw new IndexOutOfBoundsException("index " + index + ", size " + size());
+  }
+}
@@ -0,0 +1,211 @@
+package com.ru.cameraimu;
+
+import java.io.File;
+import java.io.IOException;
+
+// Records one sensor stream into an ImuLogWriter, or a CompressedImuLogWriter once compression is
+// set, drained by the SessionWriter I/O thread.
+//
+// The producer (the sensor callback) hands samples over through a lock-free ImuRingBuffer and
+// never blocks: offer() is a couple of stores and a volatile read, and a full buffer drops the
+// sample instead of waiting. The I/O thread writes whatever accumulated on each of its passes.
+//
+// Stop protocol: stop() closes the gate, after which offer() rejects new samples. The producer
+// marks itself busy before checking the gate and isFinished() checks the busy mark after
+// seeing the gate closed, so either the producer sees the gate closed and rejects the sample, or
+// the I/O thread sees it busy and waits for the sample to land before its final drain. Every
+// sample for which offer() returned true is therefore written before the log is closed.
+//
+// With a FlushPolicy set, the I/O thread lets samples accumulate in the queue until the policy
+// asks for them to be written instead of writing whatever is there on each of its passes.
+//
+// A compressed log keeps the samples of its current block in memory until the block fills,
+// rather than writing a partial block on every pass. With a FlushPolicy, a partial block is
+// still written whenever the policy asks for a write, so no sample waits longer than it allows;
+// without one, until the session syncs. The policy is told the record bytes of each chunk,
+// which its rate estimate is based on, and the session the bytes that reached the file.
+//
+// With a SessionIndexWriter set, every SessionIndex.IMU_BLOCK_RECORDS written records are
+// indexed as one block, and the last partial block when the log is closed. With a
+// SessionJournalWriter set, the length of the log is journaled whenever it was forced out.
+public class ImuStreamRecorder implements SessionWriter.Source {
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+
+  private final String mName;
+  private final File mFile;
+  private final ImuLogFormat mFormat;
+  private final ImuRingBuffer mQueue;
+  private ImuBlockCodec.Mode mCompression = null;
+  private ImuLogSink mWriter = null;  // Only touched from the I/O thread
+  private SessionIndexWriter mIndex = null;
+  private SessionJournalWriter mJournal = null;
+  private long mCommittedSize = -1;  // Only touched from the I/O thread
+  private FlushPolicy mFlushPolicy = null;
+  private final IndexingDrain mIndexingDrain = new IndexingDrain();
+
+  private volatile boolean mClosed = false;
+  private volatile boolean mProducerBusy = false;
+  private volatile long mRejectedNum = 0;  // Only written by the producer
+  private volatile long mWrittenNum = 0;  // Only written by the I/O thread
+
+  public ImuStreamRecorder(String name, File file, ImuLogFormat format) {
+    this(name, file, format, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  public ImuStreamRecorder(String name, File file, ImuLogFormat format, int queueCapacity) {
+    mName = name;
+    mFile = file;
+    mFormat = format;
+    mQueue = new ImuRingBuffer(format.arity, queueCapacity);
+  }
+
+  // <type>.imu, or <type>.imz for a compressed log
+  public static String logFilename(char type, ImuBlockCodec.Mode compression) {
+    return type + (compression != null ? CompressedImuLogWriter.FILE_EXTENSION : ImuLogFormat.FILE_EXTENSION);
+  }
+
+  // Producer side, from a single thread at a time. Returns false if the sample was dropped
+  // because the queue is full or rejected because the recorder is stopping.
+  public boolean offer(float[] v, long timestampNanos) {
+    mProducerBusy = true;
+    try {
+      if (mClosed) {
+        ++mRejectedNum;
+        return false;
+      }
+      return mQueue.record(v, timestampNanos);
+    } finally {
+      mProducerBusy = false;
+    }
+  }
+
+  // Before the recorder is added to the session
+  public void setIndex(SessionIndexWriter index) { mIndex = index; }
+
+  // Before the recorder is added to the session
+  public void setJournal(SessionJournalWriter journal) { mJournal = journal; }
+
+  // Before the recorder is added to the session
+  public void setFlushPolicy(FlushPolicy policy) { mFlushPolicy = policy; }
+
+  public FlushPolicy getFlushPolicy() { return mFlushPolicy; }
+
+  // Before the recorder is added to the session, null for the binary log
+  public void setCompression(ImuBlockCodec.Mode mode) { mCompression = mode; }
+
+  public ImuBlockCodec.Mode getCompression() { return mCompression; }
+
+  // Closes the gate, everything accepted so far is still written by the I/O thread
+  public void stop() { mClosed = true; }
+
+  public boolean isStopped() { return mClosed; }
+
+  public long getWrittenNum() { return mWrittenNum; }
+  public long getDroppedNum() { return mQueue.getDroppedNum(); }
+  public long getRejectedNum() { return mRejectedNum; }
+  public int getQueueDepth() { return mQueue.size(); }
+
+  @Override
+  public long drain() throws IOException {
+    FlushPolicy.Reason reason = null;
+    if (mFlushPolicy != null) {
+      int pending = mQueue.size();
+      reason = mClosed ? FlushPolicy.Reason.FINAL : mFlushPolicy.check(pending * mFormat.recordSize(),
+          (double) pending / mQueue.capacity(), System.nanoTime());
+      if (reason == null)
+        return 0;
+    }
+    if (mQueue.isEmpty())
+      return 0;
+    if (mWriter == null)
+      mWriter = openWriter();
+    long size = mWriter.getSize();
+    int drained = mQueue.drainTo(mIndex != null ? mIndexingDrain : mWriter);
+    if (mCompression == null || reason != null)
+      mWriter.flush();
+    mWrittenNum += drained;
+    if (reason != null)
+      mFlushPolicy.onFlushed(reason, drained * mFormat.recordSize(), System.nanoTime());
+    return mWriter.getSize() - size;
+  }
+
+  @Override
+  public void sync() throws IOException {
+    if (mWriter == null)
+      return;
+    mWriter.sync();
+    if (mJournal != null && mWriter.getSize() != mCommittedSize) {
+      mJournal.commitStream(mFile, mWriter.getSize());
+      mCommittedSize = mWriter.getSize();
+    }
+  }
+
+  @Override
+  public boolean isFinished() {
+    if (!mClosed)
+      return false;
+    // Let a sample that got past the gate land first
+    while (mProducerBusy)
+      Thread.yield();
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    // Samples that could not be written because of an earlier failure are discarded
+    mQueue.clear();
+    // A stream without samples still gets a log with its header
+    if (mWriter == null)
+      mWriter = openWriter();
+    mWriter.close();
+    mWriter = null;
+    mIndexingDrain.finishBlock();
+  }
+
+  @Override
+  public String toString() {
+    return mName + ": written " + mWrittenNum + ", dropped " + getDroppedNum() + ", rejected " + mRejectedNum
+        + (mFlushPolicy != null ? ", " + mFlushPolicy : "");
+  }
+
+  private ImuLogSink openWriter() throws IOException {
+    return mCompression != null ? CompressedImuLogWriter.open(mFile, mFormat, mCompression)
+        : ImuLogWriter.open(mFile, mFormat);
+  }
+
+  // Writes through to the log and gathers the timestamps of the current index block
+  private final class IndexingDrain implements ImuRingBuffer.Drain {
+    private long mBlockFirst = 0;
+    private int mBlockCount = 0;
+    private long mBlockMin;
+    private long mBlockMax;
+
+    @Override
+    public void onSamples(float[][] values, long[] timestampsNanos, int offset, int count) {
+      long first = mWriter.getRecordsNum();
+      mWriter.onSamples(values, timestampsNanos, offset, count);
+      if (mWriter.getRecordsNum() != first + count)
+        return;  // Failed, nothing was written
+      for (int i = offset; i < offset + count; ++i) {
+        long timestamp = timestampsNanos[i];
+        if (mBlockCount == 0) {
+          mBlockFirst = first + i - offset;
+          mBlockMin = mBlockMax = timestamp;
+        } else {
+          mBlockMin = Math.min(mBlockMin, timestamp);
+          mBlockMax = Math.max(mBlockMax, timestamp);
+        }
+        if (++mBlockCount == SessionIndex.IMU_BLOCK_RECORDS)
+          finishBlock();
+      }
+    }
+
+    void finishBlock() {
+      if (mBlockCount == 0 || mIndex == null)
+        return;
+      mIndex.addImuBlock(mFormat.sensorType, mBlockFirst, mBlockCount, mBlockMin, mBlockMax);
+      mBlockCount = 0;
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package com.ru.cameraimu;
+
+// Incremental sliding window over one 3-axis IMU stream in sensor time.
+//
+// New samples first land in a small staging area kept sorted by timestamp, which absorbs
+// out-of-order and bursty delivery. Once a sample is older than the newest one by more than the
+// reorder delay it is promoted, in order, into a bounded history ring that interpolation queries
+// run against. Samples arriving behind the promoted ones are too late and are dropped.
+// If integrating, the history also keeps the orientation obtained by integrating the rates
+// from the first promoted sample.
+// Not thread-safe.
+class ImuStreamWindow {
+
+  private final long mReorderNanos;
+  private final boolean mIntegrating;
+
+  // Staging area, sorted ascending
+  private final long[] mStagedTimestamps;
+  private final float[][] mStagedValues;
+  private int mStagedNum = 0;
+  private long mNewestNanos = Long.MIN_VALUE;
+
+  // History ring
+  private final int mMask;
+  private final long[] mTimestamps;
+  private final float[][] mValues;
+  private final double[][] mOrientations;
+  private long mHead = 0;  // Index of the oldest sample
+  private long mTail = 0;  // Index after the newest sample
+
+  private final double[] mDelta = new double[4];
+  private final double[] mFrom = new double[4];
+  private final double[] mTo = new double[4];
+  private long mLateNum = 0;
+
+  ImuStreamWindow(int stagingCapacity, int historyCapacity, long reorderNanos, boolean integrating) {
+    if (stagingCapacity <= 0 || historyCapacity < 2)
+      throw new IllegalArgumentException("Invalid capacities " + stagingCapacity + ", " + historyCapacity);
+    int capacity = Integer.highestOneBit(historyCapacity - 1) << 1;
+    mReorderNanos = reorderNanos;
+    mIntegrating = integrating;
+    mStagedTimestamps = new long[stagingCapacity];
+    mStagedValues = new float[3][stagingCapacity];
+    mMask = capacity - 1;
+    mTimestamps = new long[capacity];
+    mValues = new float[3][capacity];
+    mOrientations = integrating ? new double[4][capacity] : null;
+  }
+
+  // Returns false if the sample is too late to be placed in order
+  boolean add(float x, float y, float z, long timestampNanos) {
+    if (mTail > mHead && timestampNanos <= mTimestamps[(int) (mTail - 1) & mMask]) {
+      ++mLateNum;
+      return false;
+    }
+
+    int i = mStagedNum;
+    while (i > 0 && mStagedTimestamps[i - 1] > timestampNanos)
+      --i;
+    if (i > 0 && mStagedTimestamps[i - 1] == timestampNanos) {
+      // Duplicate delivery
+      ++mLateNum;
+      return false;
+    }
+
+    if (mStagedNum == mStagedTimestamps.length) {
+      promoteOldest();
+      if (i == 0) {
+        // It would belong before the sample just promoted, too late
+        ++mLateNum;
+        return false;
+      }
+      --i;
+    }
+    System.arraycopy(mStagedTimestamps, i, mStagedTimestamps, i + 1, mStagedNum - i);
+    for (int axis = 0; axis < 3; ++axis)
+      System.arraycopy(mStagedValues[axis], i, mStagedValues[axis], i + 1, mStagedNum - i);
+    mStagedTimestamps[i] = timestampNanos;
+    mStagedValues[0][i] = x;
+    mStagedValues[1][i] = y;
+    mStagedValues[2][i] = z;
+    ++mStagedNum;
+    mNewestNanos = Math.max(mNewestNanos, timestampNanos);
+
+    promoteUntil(mNewestNanos - mReorderNanos);
+    return true;
+  }
+
+  // Promotes every staged sample, e.g. when the stream ends
+  void flush() { promoteUntil(Long.MAX_VALUE); }
+
+  void clear() {
+    mStagedNum = 0;
+    mNewestNanos = Long.MIN_VALUE;
+    mHead = mTail = 0;
+  }
+
+  long getLateNum() { return mLateNum; }
+
+  int size() { return (int) (mTail - mHead); }
+
+  // Timestamp of the newest sample that queries can see, or Long.MIN_VALUE if there is none
+  long newestStableNanos() { return mTail > mHead ? mTimestamps[(int) (mTail - 1) & mMask] : Long.MIN_VALUE; }
+
+  long oldestStableNanos() { return mTail > mHead ? mTimestamps[(int) mHead & mMask] : Long.MAX_VALUE; }
+
+  // Interpolates the stream at t into values and, if integrating and non-null, orientation.
+  // Returns false if t is outside of the history.
+  boolean interpolate(long t, float[] values, double[] orientation) {
+    if (mTail - mHead < 1 || t < oldestStableNanos() || t > newestStableNanos())
+      return false;
+
+    long lo = floorIndex(t);
+    int a = (int) lo & mMask;
+    if (mTimestamps[a] == t || lo == mTail - 1) {
+      for (int axis = 0; axis < 3; ++axis)
+        values[axis] = mValues[axis][a];
+      if (mIntegrating && orientation != null)
+        for (int k = 0; k < 4; ++k)
+          orientation[k] = mOrientations[k][a];
+      return true;
+    }
+
+    int b = (int) (lo + 1) & mMask;
+    double alpha = (double) (t - mTimestamps[a]) / (mTimestamps[b] - mTimestamps[a]);
+    for (int axis = 0; axis < 3; ++axis)
+      values[axis] = (float) (mValues[axis][a] + alpha * (mValues[axis][b] - mValues[axis][a]));
+    if (mIntegrating && orientation != null) {
+      for (int k = 0; k < 4; ++k) {
+        mFrom[k] = mOrientations[k][a];
+        mTo[k] = mOrientations[k][b];
+      }
+      Quaternion.slerp(mFrom, mTo, alpha, orientation);
+    }
+    return true;
+  }
+
+  // Samples of the history are addressed by indices that stay valid until they are evicted,
+  // from the oldest at beginIndex() to the newest at endIndex() - 1
+  long beginIndex() { return mHead; }
+
+  long endIndex() { return mTail; }
+
+  // Index of the first sample after t, endIndex() if there is none
+  long higherIndex(long t) {
+    if (mTail == mHead || t < oldestStableNanos())
+      return mHead;
+    return floorIndex(t) + 1;
+  }
+
+  long timestampAt(long index) { return mTimestamps[(int) index & mMask]; }
+
+  void valuesAt(long index, float[] values) {
+    int i = (int) index & mMask;
+    for (int axis = 0; axis < 3; ++axis)
+      values[axis] = mValues[axis][i];
+  }
+
+  // Last sample at or before t, which must not be older than the oldest sample
+  private long floorIndex(long t) {
+    long lo = mHead;
+    long hi = mTail - 1;
+    while (lo < hi) {
+      long mid = (lo + hi + 1) >>> 1;
+      if (mTimestamps[(int) mid & mMask] <= t)
+        lo = mid;
+      else
+        hi = mid - 1;
+    }
+    return lo;
+  }
+
+  private void promoteUntil(long watermarkNanos) {
+    int promoted = 0;
+    while (promoted < mStagedNum && mStagedTimestamps[promoted] <= watermarkNanos) {
+      append(promoted);
+      ++promoted;
+    }
+    if (promoted > 0)
+      removeStaged(promoted);
+  }
+
+  private void promoteOldest() {
+    append(0);
+    removeStaged(1);
+  }
+
+  private void removeStaged(int n) {
+    mStagedNum -= n;
+    System.arraycopy(mStagedTimestamps, n, mStagedTimestamps, 0, mStagedNum);
+    for (int axis = 0; axis < 3; ++axis)
+      System.arraycopy(mStagedValues[axis], n, mStagedValues[axis], 0, mStagedNum);
+  }
+
+  private void append(int staged) {
+    if (mTail - mHead == mTimestamps.length)
+      ++mHead;
+    int i = (int) mTail & mMask;
+    mTimestamps[i] = mStagedTimestamps[staged];
+    for (int axis = 0; axis < 3; ++axis)
+      mValues[axis][i] = mStagedValues[axis][staged];
+
+    if (mIntegrating) {
+      if (mTail == 0) {
+        mOrientations[0][i] = 1;
+        mOrientations[1][i] = mOrientations[2][i] = mOrientations[3][i] = 0;
+      } else {
+        // Midpoint rule over the interval since the previous sample
+        int p = (int) (mTail - 1) & mMask;
+        double dt = (mTimestamps[i] - mTimestamps[p]) * 1e-9;
+        Quaternion.fromRotationVector(
+            0.5 * (mValues[0][p] + mValues[0][i]) * dt,
+            0.5 * (mValues[1][p] + mValues[1][i]) * dt,
+            0.5 * (mValues[2][p] + mValues[2][i]) * dt, mDelta);
+        for (int k = 0; k < 4; ++k)
+          mFrom[k] = mOrientations[k][p];
+        Quaternion.multiply(mFrom, mDelta, mTo);
+        Quaternion.normalize(mTo);
+        for (int k = 0; k < 4; ++k)
+          mOrientations[k][i] = mTo[k];
+      }
+    }
+    ++mTail;
+  }
+}
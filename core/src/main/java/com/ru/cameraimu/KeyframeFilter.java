@@ -0,0 +1,218 @@
+package com.ru.cameraimu;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Optional stage in front of the encoder that drops preview frames which add nothing to the
+// last frame kept, e.g. while the device lies still, so they cost neither encoding nor storage.
+//
+// Each frame is compared to the last kept one on a thumbnail of the luma plane, the mean of
+// every BLOCK x BLOCK block, by the mean absolute difference of the thumbnails and the difference
+// of their histograms, and by the rotation the gyroscope measured since. A frame is kept if any
+// of them reaches its threshold, and at least every maxIntervalNanos so that a static scene is
+// thinned rather than dropped altogether. The thumbnail is a single pass over the luma plane,
+// a fraction of a millisecond for a VGA frame (see KeyframeFilterBenchmark).
+//
+// Every decision is logged to K.imu with the frame timestamp as one record of the decision
+// ordinal, the mean absolute difference in luma levels, the histogram difference in [0, 1] and
+// the rotation in radians.
+//
+// accept() is called from the preview thread and onGyro() from the sensor thread.
+public class KeyframeFilter {
+
+  public enum Decision { FIRST, MOTION, HISTOGRAM, DIFFERENCE, INTERVAL, SKIP }
+
+  public static final char LOG_TYPE = 'K';
+  public static final String LOG_FILENAME = LOG_TYPE + ImuLogFormat.FILE_EXTENSION;
+  public static final int LOG_ARITY = 4;
+
+  public static final int BLOCK = 8;
+  public static final double DEFAULT_ROTATION_RADIANS = 0.05;
+  public static final double DEFAULT_MEAN_DIFFERENCE = 6;
+  public static final double DEFAULT_HISTOGRAM_DIFFERENCE = 0.15;
+  public static final long DEFAULT_MAX_INTERVAL_NANOS = 1000000000L;
+
+  private static final int HISTOGRAM_BINS = 32;
+  // From a block sum to its histogram bin
+  private static final int BIN_SHIFT = 6 + 3;
+  private static final int LOG_QUEUE_CAPACITY = 1024;
+
+  private final int mWidth;
+  private final int mHeight;
+  private final int mThumbW;
+  private final int mThumbH;
+  private final double mRotationRadians;
+  private final double mMeanDifference;
+  private final double mHistogramDifference;
+  private final long mMaxIntervalNanos;
+
+  // Only touched from the preview thread
+  private int[] mThumb;
+  private int[] mKeyThumb;
+  private final int[] mHistogram = new int[HISTOGRAM_BINS];
+  private final int[] mKeyHistogram = new int[HISTOGRAM_BINS];
+  private boolean mHasKeyframe = false;
+  private long mKeyframeNanos;
+  private double mKeyframeRotation;
+  private final float[] mRecord = new float[LOG_ARITY];
+  private ImuStreamRecorder mLog = null;
+  private double mLastMeanDifference;
+  private double mLastHistogramDifference;
+
+  // Only written by the sensor thread
+  private volatile double mRotation = 0;
+  private long mLastGyroNanos = -1;
+
+  private final AtomicLong[] mDecisionsNum = new AtomicLong[Decision.values().length];
+
+  public KeyframeFilter(int width, int height) {
+    this(width, height, DEFAULT_ROTATION_RADIANS, DEFAULT_MEAN_DIFFERENCE, DEFAULT_HISTOGRAM_DIFFERENCE,
+        DEFAULT_MAX_INTERVAL_NANOS);
+  }
+
+  public KeyframeFilter(int width, int height, double rotationRadians, double meanDifference,
+                        double histogramDifference, long maxIntervalNanos) {
+    if (width < BLOCK || height < BLOCK)
+      throw new IllegalArgumentException("Frame of " + width + " x " + height + " smaller than a block");
+    mWidth = width;
+    mHeight = height;
+    mThumbW = width / BLOCK;
+    mThumbH = height / BLOCK;
+    mRotationRadians = rotationRadians;
+    mMeanDifference = meanDifference;
+    mHistogramDifference = histogramDifference;
+    mMaxIntervalNanos = maxIntervalNanos;
+    mThumb = new int[mThumbW * mThumbH];
+    mKeyThumb = new int[mThumb.length];
+    for (int i = 0; i < mDecisionsNum.length; ++i)
+      mDecisionsNum[i] = new AtomicLong();
+  }
+
+  public static ImuLogFormat logFormat() { return new ImuLogFormat(LOG_TYPE, LOG_ARITY, "decision"); }
+
+  // Logs the decisions to the session from now on, before the first frame
+  public void startLog(SessionWriter session) {
+    mLog = session.addLog(String.valueOf(LOG_TYPE), logFormat(), LOG_QUEUE_CAPACITY);
+  }
+
+  // Stops accepting log records, what is left is still written by the session.
+  // Returns the log for its statistics, null if there was none.
+  public ImuStreamRecorder stopLog() {
+    ImuStreamRecorder log = mLog;
+    if (log != null)
+      log.stop();
+    return log;
+  }
+
+  // Counts the decisions as frames_<decision>, before the first frame
+  public void setMetrics(SessionMetrics metrics) {
+    for (Decision decision : Decision.values())
+      mDecisionsNum[decision.ordinal()] = metrics.counter("frames_" + decision.name().toLowerCase(Locale.US));
+  }
+
+  // Angular rate in rad/s, in timestamp order
+  public void onGyro(float x, float y, float z, long timestampNanos) {
+    if (mLastGyroNanos >= 0 && timestampNanos > mLastGyroNanos)
+      mRotation += Math.sqrt(x * x + y * y + z * z) * ((timestampNanos - mLastGyroNanos) * 1e-9);
+    mLastGyroNanos = timestampNanos;
+  }
+
+  // Whether the frame should be encoded, only its luma plane is read
+  public boolean accept(byte[] nv21, long timestampNanos) {
+    return decide(nv21, timestampNanos) != Decision.SKIP;
+  }
+
+  public Decision decide(byte[] nv21, long timestampNanos) {
+    if (nv21.length < mWidth * mHeight)
+      throw new IllegalArgumentException("Frame of " + nv21.length + " bytes, expected " + mWidth + " x " + mHeight);
+    downsample(nv21, mThumb, mHistogram);
+    double rotation = mRotation;
+    Decision decision;
+    if (!mHasKeyframe) {
+      mLastMeanDifference = 0;
+      mLastHistogramDifference = 0;
+      decision = Decision.FIRST;
+    } else {
+      mLastMeanDifference = meanDifference(mThumb, mKeyThumb);
+      mLastHistogramDifference = histogramDifference(mHistogram, mKeyHistogram, mThumb.length);
+      if (rotation - mKeyframeRotation >= mRotationRadians)
+        decision = Decision.MOTION;
+      else if (mLastHistogramDifference >= mHistogramDifference)
+        decision = Decision.HISTOGRAM;
+      else if (mLastMeanDifference >= mMeanDifference)
+        decision = Decision.DIFFERENCE;
+      else if (timestampNanos - mKeyframeNanos >= mMaxIntervalNanos)
+        decision = Decision.INTERVAL;
+      else
+        decision = Decision.SKIP;
+    }
+
+    mDecisionsNum[decision.ordinal()].incrementAndGet();
+    ImuStreamRecorder log = mLog;
+    if (log != null) {
+      mRecord[0] = decision.ordinal();
+      mRecord[1] = (float) mLastMeanDifference;
+      mRecord[2] = (float) mLastHistogramDifference;
+      mRecord[3] = (float) (rotation - mKeyframeRotation);
+      log.offer(mRecord, timestampNanos);
+    }
+    if (decision != Decision.SKIP) {
+      int[] thumb = mThumb;
+      mThumb = mKeyThumb;
+      mKeyThumb = thumb;
+      System.arraycopy(mHistogram, 0, mKeyHistogram, 0, HISTOGRAM_BINS);
+      mHasKeyframe = true;
+      mKeyframeNanos = timestampNanos;
+      mKeyframeRotation = rotation;
+    }
+    return decision;
+  }
+
+  public long getDecisionsNum(Decision decision) { return mDecisionsNum[decision.ordinal()].get(); }
+
+  // Of the last frame against the keyframe before it
+  public double getLastMeanDifference() { return mLastMeanDifference; }
+  public double getLastHistogramDifference() { return mLastHistogramDifference; }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("keyframes");
+    for (Decision decision : Decision.values())
+      sb.append(' ').append(decision.name().toLowerCase(Locale.US)).append(' ').append(getDecisionsNum(decision));
+    return sb.toString();
+  }
+
+  // Sums of the luma of every block into thumb, and their histogram
+  private void downsample(byte[] nv21, int[] thumb, int[] histogram) {
+    Arrays.fill(thumb, 0);
+    for (int y = 0; y < mThumbH * BLOCK; ++y) {
+      int row = y * mWidth;
+      int t = (y / BLOCK) * mThumbW;
+      for (int bx = 0; bx < mThumbW; ++bx) {
+        int x = row + bx * BLOCK;
+        thumb[t + bx] += (nv21[x] & 0xFF) + (nv21[x + 1] & 0xFF) + (nv21[x + 2] & 0xFF) + (nv21[x + 3] & 0xFF)
+            + (nv21[x + 4] & 0xFF) + (nv21[x + 5] & 0xFF) + (nv21[x + 6] & 0xFF) + (nv21[x + 7] & 0xFF);
+      }
+    }
+    Arrays.fill(histogram, 0);
+    for (int sum : thumb)
+      ++histogram[sum >>> BIN_SHIFT];
+  }
+
+  // In luma levels per pixel
+  private static double meanDifference(int[] a, int[] b) {
+    long sum = 0;
+    for (int i = 0; i < a.length; ++i)
+      sum += Math.abs(a[i] - b[i]);
+    return (double) sum / ((long) a.length * BLOCK * BLOCK);
+  }
+
+  // Share of the blocks that would have to move to another bin, in [0, 1]
+  private static double histogramDifference(int[] a, int[] b, int blocksNum) {
+    long sum = 0;
+    for (int i = 0; i < a.length; ++i)
+      sum += Math.abs(a[i] - b[i]);
+    return sum / (2.0 * blocksNum);
+  }
+}
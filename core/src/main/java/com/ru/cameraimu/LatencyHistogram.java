@@ -0,0 +1,125 @@
+package com.ru.cameraimu;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free histogram of non-negative values such as latencies or intervals in nanoseconds, in
+// the style of HdrHistogram: values below SUB_BUCKETS are counted exactly and larger ones in
+// log-linear buckets, SUB_BUCKETS per power of two, so every recorded value is known to within
+// about 3% over the whole long range in a fixed 15 KiB.
+//
+// record() is a few atomic updates and may be called from any number of threads. Readers see a
+// count that may be slightly ahead of or behind the buckets while values are being recorded.
+public class LatencyHistogram {
+
+  public interface BucketVisitor {
+    // Every value in [lowest, highest] counted in the same bucket
+    void onBucket(long lowest, long highest, long count);
+  }
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS_NUM = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS_NUM);
+  private final AtomicLong mCount = new AtomicLong();
+  private final AtomicLong mSum = new AtomicLong();
+  private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong mMax = new AtomicLong();
+
+  static int indexOf(long value) {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  static long lowestValueAt(int index) {
+    if (index < SUB_BUCKETS)
+      return index;
+    int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+    return (long) (SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+  }
+
+  static long highestValueAt(int index) {
+    if (index < SUB_BUCKETS)
+      return index;
+    int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+    return lowestValueAt(index) + (1L << shift) - 1;
+  }
+
+  // Negative values count as zero
+  public void record(long value) {
+    if (value < 0)
+      value = 0;
+    mCounts.incrementAndGet(indexOf(value));
+    mSum.addAndGet(value);
+    updateMin(value);
+    updateMax(value);
+    mCount.incrementAndGet();
+  }
+
+  public long getCount() { return mCount.get(); }
+
+  public long getMin() { return mCount.get() == 0 ? 0 : mMin.get(); }
+
+  public long getMax() { return mMax.get(); }
+
+  public double getMean() {
+    long count = mCount.get();
+    return count == 0 ? 0 : (double) mSum.get() / count;
+  }
+
+  // The highest value of the bucket holding the given percentile, capped by the maximum
+  public long valueAtPercentile(double percentile) {
+    long count = mCount.get();
+    if (count == 0)
+      return 0;
+    long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS_NUM; ++i) {
+      seen += mCounts.get(i);
+      if (seen >= rank)
+        return Math.min(highestValueAt(i), mMax.get());
+    }
+    return mMax.get();
+  }
+
+  public void forEachBucket(BucketVisitor visitor) {
+    for (int i = 0; i < BUCKETS_NUM; ++i) {
+      long count = mCounts.get(i);
+      if (count > 0)
+        visitor.onBucket(lowestValueAt(i), highestValueAt(i), count);
+    }
+  }
+
+  // Not atomic with respect to concurrent record() calls
+  public void reset() {
+    for (int i = 0; i < BUCKETS_NUM; ++i)
+      mCounts.set(i, 0);
+    mCount.set(0);
+    mSum.set(0);
+    mMin.set(Long.MAX_VALUE);
+    mMax.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return "count " + getCount() + ", p50 " + valueAtPercentile(50) + ", p99 " + valueAtPercentile(99)
+        + ", max " + getMax();
+  }
+
+  private void updateMin(long value) {
+    long current;
+    while (value < (current = mMin.get()))
+      if (mMin.compareAndSet(current, value))
+        return;
+  }
+
+  private void updateMax(long value) {
+    long current;
+    while (value > (current = mMax.get()))
+      if (mMax.compareAndSet(current, value))
+        return;
+  }
+}
@@ -0,0 +1,58 @@
+package com.ru.cameraimu;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Writes only the luma of NV21 frames, as FrameFormat.GRAY, optionally with the coarser levels
+// of its LumaPyramid: either as consecutive binary PGM images, one per level, or as the bare
+// levels for raw segments (see RawSegmentFormat.luma()). Level 0 goes out straight from the
+// frame, the coarser levels through a per thread scratch buffer.
+public class LumaFrameCompressor implements FrameCompressor {
+
+  private final int mLevels;
+  private final boolean mPgm;
+  private final ThreadLocal<byte[]> mScratch = new ThreadLocal<>();
+
+  public LumaFrameCompressor(int levels, boolean pgm) {
+    if (levels < 1)
+      throw new IllegalArgumentException("At least one level, got " + levels);
+    mLevels = levels;
+    mPgm = pgm;
+  }
+
+  public int getLevels() { return mLevels; }
+
+  // quality is ignored, the output is lossless
+  @Override
+  public void compress(FrameEncodePipeline.Frame frame, FrameFormat format, int quality, OutputStream out)
+      throws IOException {
+    if (format != FrameFormat.GRAY)
+      throw new IOException("Cannot write " + format + " frames, only " + FrameFormat.GRAY);
+    int w = frame.width();
+    int h = frame.height();
+    if (mLevels > LumaPyramid.maxLevels(w, h))
+      throw new IOException(mLevels + " levels for a " + w + " x " + h + " frame");
+
+    if (mPgm)
+      out.write(LumaPyramid.pgmHeader(w, h));
+    out.write(frame.data(), 0, w * h);
+    if (mLevels == 1)
+      return;
+
+    int coarseSize = LumaPyramid.size(w, h, mLevels) - w * h;
+    byte[] scratch = mScratch.get();
+    if (scratch == null || scratch.length < coarseSize) {
+      scratch = new byte[coarseSize];
+      mScratch.set(scratch);
+    }
+    LumaPyramid.buildLevels(frame.data(), 0, w, h, mLevels, scratch, 0);
+    int offset = 0;
+    for (int l = 1; l < mLevels; ++l) {
+      int size = (w >> l) * (h >> l);
+      if (mPgm)
+        out.write(LumaPyramid.pgmHeader(w >> l, h >> l));
+      out.write(scratch, offset, size);
+      offset += size;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package com.ru.cameraimu;
+
+import java.nio.charset.Charset;
+
+// Grayscale image pyramids from the Y plane of NV21 frames, for front ends that only look at
+// intensities. Level 0 is the luma plane itself and level l + 1 averages every 2x2 block of
+// level l, so level l is (width >> l) x (height >> l); odd trailing rows and columns are
+// dropped. The levels of a frame are stored one after the other, level 0 first.
+//
+// The kernels are straight loops over rows without branches in the inner loop, which the JIT
+// unrolls and vectorizes where the platform allows it.
+public final class LumaPyramid {
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private LumaPyramid() {}
+
+  // Levels of a width x height frame that are at least one pixel in each direction
+  public static int maxLevels(int width, int height) {
+    int levels = 0;
+    while ((width >> levels) > 0 && (height >> levels) > 0)
+      ++levels;
+    return levels;
+  }
+
+  // Bytes of the given number of levels
+  public static int size(int width, int height, int levels) {
+    checkLevels(width, height, levels);
+    return levelOffset(width, height, levels);
+  }
+
+  // Offset of level l among the levels of a frame
+  public static int levelOffset(int width, int height, int level) {
+    int offset = 0;
+    for (int l = 0; l < level; ++l)
+      offset += (width >> l) * (height >> l);
+    return offset;
+  }
+
+  // The number of levels stored in size bytes, -1 if it is not a whole number of them
+  public static int levelsOf(int width, int height, int size) {
+    int levels = 0;
+    int total = 0;
+    while (total < size && levels < maxLevels(width, height)) {
+      total += (width >> levels) * (height >> levels);
+      ++levels;
+    }
+    return total == size ? levels : -1;
+  }
+
+  // Writes the levels of the frame into dst from dstOffset on, see size() for the room needed
+  public static void build(byte[] nv21, int width, int height, int levels, byte[] dst, int dstOffset) {
+    checkLevels(width, height, levels);
+    System.arraycopy(nv21, 0, dst, dstOffset, width * height);
+    buildLevels(dst, dstOffset, width, height, levels, dst, dstOffset + width * height);
+  }
+
+  // Writes levels 1 to levels - 1 of the w x h image at src[srcOffset] into dst from dstOffset on
+  static void buildLevels(byte[] src, int srcOffset, int width, int height, int levels, byte[] dst, int dstOffset) {
+    for (int l = 1; l < levels; ++l) {
+      downsample(src, srcOffset, width >> (l - 1), height >> (l - 1), dst, dstOffset);
+      srcOffset = dstOffset;
+      dstOffset += (width >> l) * (height >> l);
+      src = dst;
+    }
+  }
+
+  // 2x2 box filter of the srcW x srcH image at src[srcOffset] into dst[dstOffset], rounded
+  public static void downsample(byte[] src, int srcOffset, int srcW, int srcH, byte[] dst, int dstOffset) {
+    int dstW = srcW >> 1;
+    int dstH = srcH >> 1;
+    for (int y = 0; y < dstH; ++y) {
+      int top = srcOffset + 2 * y * srcW;
+      int bottom = top + srcW;
+      int out = dstOffset + y * dstW;
+      for (int x = 0; x < dstW; ++x) {
+        int sum = (src[top + 2 * x] & 0xFF) + (src[top + 2 * x + 1] & 0xFF)
+            + (src[bottom + 2 * x] & 0xFF) + (src[bottom + 2 * x + 1] & 0xFF);
+        dst[out + x] = (byte) ((sum + 2) >>> 2);
+      }
+    }
+  }
+
+  // The header of a binary PGM image of the given size with 8 bit samples
+  public static byte[] pgmHeader(int width, int height) {
+    return ("P5\n" + width + " " + height + "\n255\n").getBytes(ASCII);
+  }
+
+  private static void checkLevels(int width, int height, int levels) {
+    if (levels < 1 || levels > maxLevels(width, height))
+      throw new IllegalArgumentException(levels + " levels for a " + width + " x " + height + " frame");
+  }
+}
@@ -0,0 +1,66 @@
+package com.ru.cameraimu;
+
+import java.nio.ByteBuffer;
+
+// Pixel helpers for NV21 frames: a full resolution Y plane followed by an interleaved V/U plane
+// subsampled by two in both directions.
+public final class Nv21 {
+
+  private Nv21() {}
+
+  public static int bufferSize(int width, int height) {
+    return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+  }
+
+  // Converts to packed ARGB_8888 pixels using the BT.601 full range integer approximation
+  public static void toArgb(byte[] nv21, int width, int height, int[] argb) {
+    int frameSize = width * height;
+    int chromaStride = 2 * ((width + 1) / 2);
+    for (int y = 0; y < height; ++y) {
+      int chromaRow = frameSize + (y >> 1) * chromaStride;
+      int row = y * width;
+      for (int x = 0; x < width; ++x) {
+        int luma = nv21[row + x] & 0xFF;
+        int chroma = chromaRow + (x & ~1);
+        int v = (nv21[chroma] & 0xFF) - 128;
+        int u = (nv21[chroma + 1] & 0xFF) - 128;
+
+        int r = luma + ((91881 * v) >> 16);
+        int g = luma - ((22554 * u + 46802 * v) >> 16);
+        int b = luma + ((116130 * u) >> 16);
+        r = r < 0 ? 0 : (r > 255 ? 255 : r);
+        g = g < 0 ? 0 : (g > 255 ? 255 : g);
+        b = b < 0 ? 0 : (b > 255 ? 255 : b);
+        argb[row + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+      }
+    }
+  }
+
+  // Converts a YUV_420_888 image given by its planes, as in android.media.Image: chroma pixels
+  // are uvPixelStride bytes apart, 1 for planar layouts and 2 for semi-planar ones where U and V
+  // interleave. Luma rows are copied in bulk, which moves the position of y.
+  public static void fromYuv420(int width, int height, ByteBuffer y, int yRowStride,
+                                ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride, byte[] nv21) {
+    if (yRowStride == width) {
+      y.position(0);
+      y.get(nv21, 0, width * height);
+    } else {
+      for (int row = 0; row < height; ++row) {
+        y.position(row * yRowStride);
+        y.get(nv21, row * width, width);
+      }
+    }
+
+    int chromaW = (width + 1) / 2;
+    int chromaH = (height + 1) / 2;
+    int out = width * height;
+    for (int row = 0; row < chromaH; ++row) {
+      int in = row * uvRowStride;
+      for (int x = 0; x < chromaW; ++x) {
+        nv21[out++] = v.get(in);
+        nv21[out++] = u.get(in);
+        in += uvPixelStride;
+      }
+    }
+  }
+}
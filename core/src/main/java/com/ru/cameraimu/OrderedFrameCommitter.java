@@ -0,0 +1,123 @@
+package com.ru.cameraimu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.TreeMap;
+
+// Commits frames encoded concurrently in the order they were submitted.
+//
+// Every frame sequence number must eventually be either completed or skipped (e.g. dropped by
+// the pipeline or failed to encode). Completed frames wait in a reorder buffer until all earlier
+// sequences have been committed or skipped. An encoder may run at most window frames ahead of the
+// oldest outstanding one, so the reorder buffer stays bounded while the oldest frame never waits.
+public class OrderedFrameCommitter {
+
+  // Closed by the owner once the last frame has been committed
+  public interface CommitSink extends Closeable {
+    // Called in sequence order, one frame at a time
+    void commit(long sequence, long timestampNanos, byte[] data, int length) throws IOException;
+  }
+
+  // Reusable destination for one encoded frame
+  public static final class Slot extends ByteArrayOutputStream {
+    private long mSequence;
+    private long mTimestampNanos;
+
+    Slot() { super(64 * 1024); }
+
+    public byte[] data() { return buf; }
+    public int length() { return count; }
+  }
+
+  private static final Slot SKIPPED = new Slot();
+
+  private final CommitSink mSink;
+  private final int mWindow;
+  private final TreeMap<Long, Slot> mPending = new TreeMap<>();
+  private final ArrayDeque<Slot> mFreeSlots = new ArrayDeque<>();
+  private long mNextSequence = 0;
+  private long mCommittedNum = 0;
+  private long mSkippedNum = 0;
+  private long mCommitFailedNum = 0;
+  private int mMaxPendingNum = 0;
+  private int mSlotsNum = 0;
+  private IOException mFirstException = null;
+
+  public OrderedFrameCommitter(int window, CommitSink sink) {
+    if (window <= 0)
+      throw new IllegalArgumentException("window must be positive: " + window);
+    mWindow = window;
+    mSink = sink;
+  }
+
+  // Blocks while sequence is window or more frames ahead of the oldest outstanding frame
+  public synchronized Slot acquire(long sequence) throws InterruptedException {
+    while (sequence >= mNextSequence + mWindow)
+      wait();
+    Slot slot = mFreeSlots.poll();
+    if (slot == null) {
+      slot = new Slot();
+      ++mSlotsNum;
+    }
+    slot.reset();
+    return slot;
+  }
+
+  // Returns a slot that will not be completed, e.g. because encoding failed
+  public synchronized void release(Slot slot) { mFreeSlots.push(slot); }
+
+  public synchronized void complete(Slot slot, long sequence, long timestampNanos) {
+    slot.mSequence = sequence;
+    slot.mTimestampNanos = timestampNanos;
+    enqueue(sequence, slot);
+  }
+
+  public synchronized void skip(long sequence) {
+    ++mSkippedNum;
+    enqueue(sequence, SKIPPED);
+  }
+
+  public synchronized long getNextSequence() { return mNextSequence; }
+  public synchronized long getCommittedNum() { return mCommittedNum; }
+  public synchronized long getSkippedNum() { return mSkippedNum; }
+  public synchronized long getCommitFailedNum() { return mCommitFailedNum; }
+  public synchronized int getPendingNum() { return mPending.size(); }
+  public synchronized int getMaxPendingNum() { return mMaxPendingNum; }
+  public synchronized int getSlotsNum() { return mSlotsNum; }
+
+  // The first error raised by the sink, cleared by this call
+  public synchronized IOException takeException() {
+    IOException e = mFirstException;
+    mFirstException = null;
+    return e;
+  }
+
+  private void enqueue(long sequence, Slot slot) {
+    if (sequence < mNextSequence || mPending.containsKey(sequence))
+      throw new IllegalStateException("frame " + sequence + " completed twice");
+    mPending.put(sequence, slot);
+    mMaxPendingNum = Math.max(mMaxPendingNum, mPending.size());
+
+    boolean advanced = false;
+    Slot next;
+    while ((next = mPending.remove(mNextSequence)) != null) {
+      if (next != SKIPPED) {
+        try {
+          mSink.commit(next.mSequence, next.mTimestampNanos, next.data(), next.length());
+          ++mCommittedNum;
+        } catch (IOException e) {
+          ++mCommitFailedNum;
+          if (mFirstException == null)
+            mFirstException = e;
+        }
+        mFreeSlots.push(next);
+      }
+      ++mNextSequence;
+      advanced = true;
+    }
+    if (advanced)
+      notifyAll();
+  }
+}
@@ -0,0 +1,56 @@
+package com.ru.cameraimu;
+
+// Encodes frames on every pipeline worker at once and commits the results in submission order.
+//
+// Each worker compresses into a slot of the OrderedFrameCommitter, which writes the frames out
+// in sequence once all earlier frames are done. Frames the pipeline drops or fails to encode
+// must be reported through onFrameDone so that later frames are not held back.
+public class ParallelFrameEncoder implements FrameEncodePipeline.FrameEncoder {
+
+  private final FrameCompressor mCompressor;
+  private final FrameFormat mFormat;
+  private final OrderedFrameCommitter mCommitter;
+  private volatile int mQuality;
+
+  public ParallelFrameEncoder(FrameCompressor compressor, FrameFormat format, int quality,
+                              OrderedFrameCommitter committer) {
+    mCompressor = compressor;
+    mFormat = format;
+    mCommitter = committer;
+    setQuality(quality);
+  }
+
+  // Reorder window large enough for every worker to be encoding while the oldest frame finishes
+  public static int defaultWindow(int workersNum) { return 2 * workersNum; }
+
+  public static int defaultWorkersNum() { return Math.max(1, Runtime.getRuntime().availableProcessors() - 1); }
+
+  public FrameFormat getFormat() { return mFormat; }
+  public int getQuality() { return mQuality; }
+  public OrderedFrameCommitter getCommitter() { return mCommitter; }
+
+  // Takes effect from the next frame a worker picks up
+  public void setQuality(int quality) {
+    if (quality < 0 || quality > 100)
+      throw new IllegalArgumentException("quality out of range: " + quality);
+    mQuality = quality;
+  }
+
+  @Override
+  public void encode(FrameEncodePipeline.Frame frame) throws Exception {
+    OrderedFrameCommitter.Slot slot = mCommitter.acquire(frame.sequence());
+    try {
+      mCompressor.compress(frame, mFormat, mQuality, slot);
+    } catch (Exception e) {
+      mCommitter.release(slot);
+      throw e;
+    }
+    mCommitter.complete(slot, frame.sequence(), frame.timestampNanos());
+  }
+
+  // To be forwarded from FrameEncodePipeline.Listener.onFrameDone
+  public void onFrameDone(FrameEncodePipeline.Frame frame, boolean encoded) {
+    if (!encoded)
+      mCommitter.skip(frame.sequence());
+  }
+}
@@ -0,0 +1,36 @@
+package com.ru.cameraimu;
+
+// Persists the preintegrated motion between consecutive frames next to the frame log, one
+// record per frame stamped with the frame time in the frame clock so that it matches the
+// frame filenames and the manifest.
+// Records go through an ImuStreamRecorder of the session, the synchronizer only hands them over.
+public class PreintegrationRecorder implements CameraImuSynchronizer.Listener {
+
+  // About half a minute of frames
+  private static final int QUEUE_CAPACITY = 1024;
+
+  private final ImuStreamRecorder mRecorder;
+  private final float[] mRecord = new float[ImuPreintegrator.RECORD_ARITY];
+
+  public PreintegrationRecorder(SessionWriter session) {
+    mRecorder = session.addLog(String.valueOf(ImuPreintegrator.LOG_TYPE), ImuPreintegrator.logFormat(),
+        QUEUE_CAPACITY);
+  }
+
+  // Called with the synchronizer lock held, which keeps the recorder single producer
+  @Override
+  public void onFrameSynced(CameraImuSynchronizer.SyncedFrame frame) {
+    ImuPreintegrator preintegration = frame.preintegration();
+    if (preintegration == null)
+      return;
+    preintegration.toRecord(mRecord);
+    mRecorder.offer(mRecord, frame.hostNanos());
+  }
+
+  // Stops accepting records, what is left is still written by the session.
+  // Returns the recorder for its statistics.
+  public ImuStreamRecorder close() {
+    mRecorder.stop();
+    return mRecorder;
+  }
+}
@@ -0,0 +1,96 @@
+package com.ru.cameraimu;
+
+// Unit quaternion helpers on double[4] arrays laid out as {w, x, y, z}.
+// All methods write into caller supplied arrays so that they never allocate; the output may
+// alias an input.
+public final class Quaternion {
+
+  private Quaternion() {}
+
+  public static void setIdentity(double[] q) {
+    q[0] = 1;
+    q[1] = 0;
+    q[2] = 0;
+    q[3] = 0;
+  }
+
+  // out = a * b, i.e. rotation b followed by rotation a in the frame of a
+  public static void multiply(double[] a, double[] b, double[] out) {
+    double w = a[0] * b[0] - a[1] * b[1] - a[2] * b[2] - a[3] * b[3];
+    double x = a[0] * b[1] + a[1] * b[0] + a[2] * b[3] - a[3] * b[2];
+    double y = a[0] * b[2] - a[1] * b[3] + a[2] * b[0] + a[3] * b[1];
+    double z = a[0] * b[3] + a[1] * b[2] - a[2] * b[1] + a[3] * b[0];
+    out[0] = w;
+    out[1] = x;
+    out[2] = y;
+    out[3] = z;
+  }
+
+  // Rotation by the vector (rx, ry, rz), whose norm is the angle in radians
+  public static void fromRotationVector(double rx, double ry, double rz, double[] out) {
+    double angle = Math.sqrt(rx * rx + ry * ry + rz * rz);
+    double half = 0.5 * angle;
+    // Second order Taylor expansion of sin(half) / angle near zero avoids the division
+    double s = angle < 1e-8 ? 0.5 - angle * angle / 48 : Math.sin(half) / angle;
+    out[0] = Math.cos(half);
+    out[1] = rx * s;
+    out[2] = ry * s;
+    out[3] = rz * s;
+  }
+
+  // Rotation vector of q, the inverse of fromRotationVector
+  public static void toRotationVector(double[] q, double[] out) {
+    double w = q[0];
+    double x = q[1];
+    double y = q[2];
+    double z = q[3];
+    if (w < 0) {
+      w = -w;
+      x = -x;
+      y = -y;
+      z = -z;
+    }
+    double sinHalf = Math.sqrt(x * x + y * y + z * z);
+    double scale = sinHalf < 1e-8 ? 2 / w : 2 * Math.atan2(sinHalf, w) / sinHalf;
+    out[0] = x * scale;
+    out[1] = y * scale;
+    out[2] = z * scale;
+  }
+
+  public static void normalize(double[] q) {
+    double n = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+    q[0] /= n;
+    q[1] /= n;
+    q[2] /= n;
+    q[3] /= n;
+  }
+
+  // Spherical linear interpolation from a (t = 0) to b (t = 1) along the shorter arc
+  public static void slerp(double[] a, double[] b, double t, double[] out) {
+    double dot = a[0] * b[0] + a[1] * b[1] + a[2] * b[2] + a[3] * b[3];
+    double sign = 1;
+    if (dot < 0) {
+      dot = -dot;
+      sign = -1;
+    }
+
+    double wa;
+    double wb;
+    if (dot > 0.9995) {
+      // Nearly parallel, fall back to normalized linear interpolation
+      wa = 1 - t;
+      wb = t;
+    } else {
+      double theta = Math.acos(dot);
+      double sinTheta = Math.sin(theta);
+      wa = Math.sin((1 - t) * theta) / sinTheta;
+      wb = Math.sin(t * theta) / sinTheta;
+    }
+    wb *= sign;
+    out[0] = wa * a[0] + wb * b[0];
+    out[1] = wa * a[1] + wb * b[1];
+    out[2] = wa * a[2] + wb * b[2];
+    out[3] = wa * a[3] + wb * b[3];
+    normalize(out);
+  }
+}
@@ -0,0 +1,126 @@
+package com.ru.cameraimu;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Random access to the frames of one raw segment (see RawSegmentFormat). The segment is
+// mapped read only, so frame(i) is an O(1) view without copying and readFrame(i) a single copy.
+//
+// Frames beyond the header frame count or without an index record, e.g. after a crash, are
+// not visible.
+public class RawFrameSegmentReader implements Closeable {
+
+  private final RandomAccessFile mFile;
+  private final MappedByteBuffer mMap;
+  private final RawSegmentFormat mFormat;
+  private final long[] mTimestamps;
+  private final long[] mOffsets;
+
+  public RawFrameSegmentReader(File segmentFile, File indexFile) throws IOException {
+    mFile = new RandomAccessFile(segmentFile, "r");
+    try {
+      FileChannel channel = mFile.getChannel();
+      mMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      mMap.order(RawSegmentFormat.BYTE_ORDER);
+      mFormat = RawSegmentFormat.readHeader(mMap);
+      if (channel.size() < mFormat.segmentSize())
+        throw new IOException("Truncated raw frame segment: " + segmentFile);
+
+      ByteBuffer index = readIndex(indexFile);
+      int count = Math.min(RawSegmentFormat.readFrameCount(mMap), index.remaining() / RawSegmentFormat.INDEX_RECORD_SIZE);
+      count = Math.max(0, Math.min(count, mFormat.capacity));
+      mTimestamps = new long[count];
+      mOffsets = new long[count];
+      for (int i = 0; i < count; ++i) {
+        mTimestamps[i] = index.getLong();
+        mOffsets[i] = index.getLong();
+        if (mOffsets[i] != mFormat.frameOffset(i))
+          throw new IOException("Corrupt raw frame index entry " + i + ": " + indexFile);
+      }
+    } catch (IOException e) {
+      mFile.close();
+      throw e;
+    }
+  }
+
+  // Opens a segment by number from a capture directory
+  public static RawFrameSegmentReader open(File dir, int segment) throws IOException {
+    return new RawFrameSegmentReader(new File(dir, RawSegmentFormat.segmentName(segment)),
+        new File(dir, RawSegmentFormat.indexName(segment)));
+  }
+
+  // Segment files of a capture directory in order
+  public static File[] listSegments(File dir) {
+    File[] segments = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File d, String name) {
+        return name.startsWith("RAW") && name.endsWith(RawSegmentFormat.SEGMENT_EXTENSION);
+      }
+    });
+    if (segments == null)
+      return new File[0];
+    Arrays.sort(segments);
+    return segments;
+  }
+
+  public RawSegmentFormat getFormat() { return mFormat; }
+  public int getFrameCount() { return mTimestamps.length; }
+  public long timestampAt(int frame) { return mTimestamps[frame]; }
+
+  // Read only view of the frame bytes backed by the mapping
+  public ByteBuffer frame(int frame) {
+    checkFrame(frame);
+    ByteBuffer view = mMap.duplicate();
+    view.position((int) mOffsets[frame]);
+    view.limit((int) mOffsets[frame] + mFormat.frameSize);
+    return view.slice();
+  }
+
+  public void readFrame(int frame, byte[] dst) {
+    checkFrame(frame);
+    ByteBuffer view = mMap.duplicate();
+    view.position((int) mOffsets[frame]);
+    view.get(dst, 0, mFormat.frameSize);
+  }
+
+  // Index of the last frame at or before timestampNanos, or -1 if all frames are later
+  public int floorFrame(long timestampNanos) {
+    int i = Arrays.binarySearch(mTimestamps, timestampNanos);
+    if (i >= 0) {
+      while (i + 1 < mTimestamps.length && mTimestamps[i + 1] == timestampNanos)
+        ++i;
+      return i;
+    }
+    return -i - 2;
+  }
+
+  @Override
+  public void close() throws IOException { mFile.close(); }
+
+  private void checkFrame(int frame) {
+    if (frame < 0 || frame >= mTimestamps.length)
+      throw new IndexOutOfBoundsException("frame " + frame + ", count " + mTimestamps.length);
+  }
+
+  private static ByteBuffer readIndex(File indexFile) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      ByteBuffer index = ByteBuffer.allocate((int) channel.size()).order(RawSegmentFormat.BYTE_ORDER);
+      while (index.hasRemaining())
+        if (channel.read(index) < 0)
+          break;
+      index.flip();
+      return index;
+    } finally {
+      file.close();
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package com.ru.cameraimu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Appends raw frames into preallocated, memory mapped segment files (see RawSegmentFormat)
+// instead of creating one file per frame. A segment is mapped once when it is created, so
+// appending a frame is a copy into the mapping plus one record on the side index.
+//
+// Frames must be committed in timestamp order, e.g. through an OrderedFrameCommitter.
+public class RawFrameSegmentWriter implements OrderedFrameCommitter.CommitSink, SessionWriter.Source {
+
+  private final File mDir;
+  private final RawSegmentFormat mFormat;
+  private final ByteBuffer mIndexRecord;
+
+  private int mSegment = -1;
+  private RandomAccessFile mSegmentFile;
+  private MappedByteBuffer mSegmentMap;
+  private FileChannel mIndexChannel;
+  private int mFramesInSegment = 0;
+  private long mFramesNum = 0;
+  private long mLastTimestampNanos = Long.MIN_VALUE;
+  private boolean mClosed = false;
+  private SessionIndexWriter mIndex = null;
+
+  public RawFrameSegmentWriter(File dir, RawSegmentFormat format) {
+    mDir = dir;
+    mFormat = format;
+    mIndexRecord = ByteBuffer.allocateDirect(RawSegmentFormat.INDEX_RECORD_SIZE).order(RawSegmentFormat.BYTE_ORDER);
+  }
+
+  // Every appended frame is also indexed there
+  public synchronized void setIndex(SessionIndexWriter index) { mIndex = index; }
+
+  public RawSegmentFormat getFormat() { return mFormat; }
+  public long getFramesNum() { return mFramesNum; }
+  public int getSegmentsNum() { return mSegment + 1; }
+
+  @Override
+  public void commit(long sequence, long timestampNanos, byte[] data, int length) throws IOException {
+    append(data, length, timestampNanos);
+  }
+
+  public synchronized void append(byte[] data, int length, long timestampNanos) throws IOException {
+    if (mClosed)
+      throw new IOException("Segment writer is closed");
+    if (length != mFormat.frameSize)
+      throw new IOException("Frame of " + length + " bytes in a segment of " + mFormat.frameSize + " byte frames");
+    if (timestampNanos < mLastTimestampNanos)
+      throw new IOException("Frame timestamp " + timestampNanos + " precedes " + mLastTimestampNanos);
+    if (mSegmentMap == null || mFramesInSegment == mFormat.capacity)
+      startSegment();
+
+    long offset = mFormat.frameOffset(mFramesInSegment);
+    mSegmentMap.position((int) offset);
+    mSegmentMap.put(data, 0, length);
+
+    // Index record first, then the frame count, so that a reader trusting the header never
+    // sees a frame without its timestamp
+    mIndexRecord.clear();
+    mIndexRecord.putLong(timestampNanos).putLong(offset).flip();
+    while (mIndexRecord.hasRemaining())
+      mIndexChannel.write(mIndexRecord);
+    ++mFramesInSegment;
+    mSegmentMap.putInt(RawSegmentFormat.FRAME_COUNT_OFFSET, mFramesInSegment);
+    if (mIndex != null)
+      mIndex.addRawFrame(mSegment, mFramesInSegment - 1, timestampNanos);
+
+    ++mFramesNum;
+    mLastTimestampNanos = timestampNanos;
+  }
+
+  // Frames are copied into the mapping by the encoder threads, the SessionWriter only decides
+  // when the page cache is forced out
+  @Override
+  public long drain() { return 0; }
+
+  @Override
+  public synchronized void sync() throws IOException {
+    if (mSegmentMap == null)
+      return;
+    mSegmentMap.force();
+    mIndexChannel.force(false);
+  }
+
+  @Override
+  public synchronized boolean isFinished() { return mClosed; }
+
+  // The last segment keeps its preallocated size, readers go by the frame count in the header
+  @Override
+  public synchronized void close() throws IOException {
+    mClosed = true;
+    finishSegment();
+  }
+
+  private void startSegment() throws IOException {
+    finishSegment();
+    ++mSegment;
+    mSegmentFile = new RandomAccessFile(new File(mDir, RawSegmentFormat.segmentName(mSegment)), "rw");
+    mSegmentFile.setLength(mFormat.segmentSize());
+    mSegmentMap = mSegmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mFormat.segmentSize());
+    mSegmentMap.order(RawSegmentFormat.BYTE_ORDER);
+    mFormat.writeHeader(mSegmentMap, 0);
+    mIndexChannel = new RandomAccessFile(new File(mDir, RawSegmentFormat.indexName(mSegment)), "rw").getChannel();
+    mIndexChannel.truncate(0);
+    mFramesInSegment = 0;
+  }
+
+  private void finishSegment() throws IOException {
+    if (mSegmentMap == null)
+      return;
+    try {
+      mSegmentMap.force();
+      mIndexChannel.force(false);
+    } finally {
+      mIndexChannel.close();
+      mSegmentMap = null;
+      mSegmentFile.close();
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package com.ru.cameraimu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+// Layout of the raw frame container, a series of preallocated segment files RAW%08d.seg each
+// paired with a side index RAW%08d.idx.
+//
+// A segment starts with a fixed HEADER_SIZE byte header (all little endian):
+//   int    magic          'CRAW'
+//   short  version
+//   short  header size
+//   int    width
+//   int    height
+//   int    pixel format   ImageFormat constant, 17 for NV21 or 0x20203859 (Y8) for the levels
+//                         of a LumaPyramid, whose number follows from the frame size
+//   int    frame size     bytes per frame
+//   int    capacity       frames the segment was preallocated for
+//   int    frame count    frames written so far, updated after every frame
+//   ...    reserved       zeros up to HEADER_SIZE
+// followed by capacity frame slots of frame size bytes, so frame i starts at
+// HEADER_SIZE + i * frame size. A segment is mapped whole, so it can be MAX_SEGMENT_SIZE bytes at
+// most, see maxCapacity().
+//
+// The index holds one INDEX_RECORD_SIZE record per frame: long timestamp in nanoseconds and
+// long offset of the frame in the segment.
+public final class RawSegmentFormat {
+
+  public static final int MAGIC = 0x57415243;  // "CRAW" read as a little endian int
+  public static final short VERSION = 1;
+  public static final int HEADER_SIZE = 64;
+  public static final int FRAME_COUNT_OFFSET = 28;
+  public static final int INDEX_RECORD_SIZE = 16;
+  public static final int PIXEL_FORMAT_NV21 = 17;
+  public static final int PIXEL_FORMAT_Y8 = 0x20203859;
+  public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+  public static final String SEGMENT_EXTENSION = ".seg";
+  public static final String INDEX_EXTENSION = ".idx";
+  // The most a single MappedByteBuffer can hold
+  public static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+  public final int width;
+  public final int height;
+  public final int pixelFormat;
+  public final int frameSize;
+  public final int capacity;
+
+  public RawSegmentFormat(int width, int height, int pixelFormat, int frameSize, int capacity) {
+    if (width <= 0 || height <= 0 || frameSize <= 0 || capacity <= 0)
+      throw new IllegalArgumentException("Invalid raw segment format " + width + "x" + height
+          + ", " + frameSize + " bytes x " + capacity);
+    if (HEADER_SIZE + (long) frameSize * capacity > MAX_SEGMENT_SIZE)
+      throw new IllegalArgumentException("Raw segment of " + capacity + " frames of " + frameSize
+          + " bytes exceeds " + MAX_SEGMENT_SIZE + " bytes, at most " + maxCapacity(frameSize) + " fit");
+    this.width = width;
+    this.height = height;
+    this.pixelFormat = pixelFormat;
+    this.frameSize = frameSize;
+    this.capacity = capacity;
+  }
+
+  public static RawSegmentFormat nv21(int width, int height, int capacity) {
+    return new RawSegmentFormat(width, height, PIXEL_FORMAT_NV21, Nv21.bufferSize(width, height), capacity);
+  }
+
+  // Frames of the given number of LumaPyramid levels
+  public static RawSegmentFormat luma(int width, int height, int levels, int capacity) {
+    return new RawSegmentFormat(width, height, PIXEL_FORMAT_Y8, LumaPyramid.size(width, height, levels), capacity);
+  }
+
+  // Frames of frameSize bytes that fit in one segment, 0 if not even one does
+  public static int maxCapacity(int frameSize) { return (int) ((MAX_SEGMENT_SIZE - HEADER_SIZE) / frameSize); }
+
+  public static String segmentName(int segment) {
+    return String.format(Locale.US, "RAW%08d", segment) + SEGMENT_EXTENSION;
+  }
+
+  public static String indexName(int segment) {
+    return String.format(Locale.US, "RAW%08d", segment) + INDEX_EXTENSION;
+  }
+
+  public long frameOffset(int frame) { return HEADER_SIZE + (long) frame * frameSize; }
+
+  public long segmentSize() { return frameOffset(capacity); }
+
+  // Writes the header at the buffer's absolute position 0
+  public void writeHeader(ByteBuffer dst, int frameCount) {
+    ByteBuffer header = dst.duplicate().order(BYTE_ORDER);
+    header.position(0);
+    header.putInt(MAGIC);
+    header.putShort(VERSION);
+    header.putShort((short) HEADER_SIZE);
+    header.putInt(width);
+    header.putInt(height);
+    header.putInt(pixelFormat);
+    header.putInt(frameSize);
+    header.putInt(capacity);
+    header.putInt(frameCount);
+    while (header.position() < HEADER_SIZE)
+      header.put((byte) 0);
+  }
+
+  // Parses the header at the buffer's absolute position 0
+  public static RawSegmentFormat readHeader(ByteBuffer src) throws IOException {
+    ByteBuffer header = src.duplicate().order(BYTE_ORDER);
+    header.position(0);
+    if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+      throw new IOException("Not a raw frame segment");
+    short version = header.getShort();
+    if (version != VERSION)
+      throw new IOException("Unsupported raw frame segment version: " + version);
+    if (header.getShort() != HEADER_SIZE)
+      throw new IOException("Unexpected raw frame segment header size");
+    try {
+      return new RawSegmentFormat(header.getInt(), header.getInt(), header.getInt(), header.getInt(), header.getInt());
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Corrupt raw frame segment header: " + e.getMessage());
+    }
+  }
+
+  public static int readFrameCount(ByteBuffer src) {
+    return src.duplicate().order(BYTE_ORDER).getInt(FRAME_COUNT_OFFSET);
+  }
+}
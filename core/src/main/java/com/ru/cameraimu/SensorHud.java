@@ -0,0 +1,64 @@
+package com.ru.cameraimu;
+
+// Text of the live sensor display: per sensor a line with its latest values and a line with the
+// timing statistics of its stream, then the timestamp of the newest sample. render() rebuilds the
+// text at most at the display rate, however often it is called and however fast samples arrive,
+// and the text is rebuilt in place so a refresh allocates nothing.
+public class SensorHud {
+
+  public static final double DEFAULT_RATE_HZ = 15;
+
+  private static final int VALUE_WIDTH = 11;
+  private static final int VALUE_DECIMALS = 6;
+
+  private final String[] mLabels;
+  private final SensorRateStats[] mStats;
+  private final SensorRateStats.Snapshot[] mSnapshots;
+  private final DisplayThrottle mThrottle;
+  private final HudText mText = new HudText(512);
+
+  public SensorHud(double rateHz, String[] labels, SensorRateStats[] stats) {
+    if (labels.length != stats.length)
+      throw new IllegalArgumentException(labels.length + " labels for " + stats.length + " sensors");
+    mLabels = labels.clone();
+    mStats = stats.clone();
+    mSnapshots = new SensorRateStats.Snapshot[stats.length];
+    for (int i = 0; i < stats.length; ++i)
+      mSnapshots[i] = new SensorRateStats.Snapshot(stats[i].arity());
+    mThrottle = new DisplayThrottle(rateHz);
+  }
+
+  // Valid until the next render() that returns true, may be appended to in between
+  public HudText text() { return mText; }
+
+  // Rebuilds the text if a refresh is due at nowNanos, returns whether it did
+  public boolean render(long nowNanos) {
+    if (!mThrottle.tryAcquire(nowNanos))
+      return false;
+
+    HudText text = mText.clear();
+    text.append("Sensor Information:");
+    long newestNanos = 0;
+    for (int i = 0; i < mStats.length; ++i) {
+      SensorRateStats.Snapshot s = mSnapshots[i];
+      mStats[i].snapshot(s);
+      newestNanos = Math.max(newestNanos, s.timestampNanos);
+
+      text.append('\n').append(mLabels[i]).append(':');
+      for (float v : s.values) {
+        int start = text.length();
+        text.append(v, VALUE_DECIMALS).padLeft(start, VALUE_WIDTH);
+      }
+      text.append('\n').append("  ");
+      if (!s.hasStats) {
+        text.append(s.samplesNum > 0 ? "measuring..." : "no samples");
+        continue;
+      }
+      text.append(s.rateHz, 1).append(" Hz  dt ")
+          .append(s.minIntervalNanos * 1e-6, 2).append("..").append(s.maxIntervalNanos * 1e-6, 2)
+          .append(" ms  jitter ").append(s.jitterNanos * 1e-6, 3).append(" ms");
+    }
+    text.append("\nTimestamp Nanos: ").append(newestNanos);
+    return true;
+  }
+}
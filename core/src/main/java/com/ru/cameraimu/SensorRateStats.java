@@ -0,0 +1,148 @@
+package com.ru.cameraimu;
+
+// Latest sample and timing statistics of one sensor stream, for display.
+//
+// Intervals between consecutive samples are accumulated over tumbling windows of windowNanos of
+// sensor time, and the statistics handed out are those of the last complete window: the rate,
+// the shortest and longest interval, and the jitter as the standard deviation of the interval.
+// Nothing is allocated per sample. Updated from the sensor thread and read from the UI thread
+// through a SeqLock, so a snapshot never mixes the values of one sample with the timestamp of
+// another and the sensor thread never waits for the display. A sample not newer than the last
+// one published is only counted as stale, so the snapshot always holds the newest sample.
+public class SensorRateStats {
+
+  public static final long DEFAULT_WINDOW_NANOS = 1000000000L;
+
+  public static final class Snapshot {
+    public final float[] values;
+    public long timestampNanos;
+    public long samplesNum;
+    // Only meaningful once hasStats is set, i.e. after the first complete window
+    public boolean hasStats;
+    public double rateHz;
+    public long minIntervalNanos;
+    public long maxIntervalNanos;
+    public double jitterNanos;
+
+    public Snapshot(int arity) { values = new float[arity]; }
+  }
+
+  // Published slots
+  private static final int TIMESTAMP = 0;
+  private static final int SAMPLES_NUM = 1;
+  private static final int HAS_STATS = 2;
+  private static final int RATE = 3;
+  private static final int MIN_INTERVAL = 4;
+  private static final int MAX_INTERVAL = 5;
+  private static final int JITTER = 6;
+  private static final int VALUES = 7;
+
+  private final int mArity;
+  private final long mWindowNanos;
+  private final SeqLock mPublished;
+
+  // Only touched from the sensor thread
+  private long mTimestampNanos;
+  private long mSamplesNum = 0;
+  private volatile long mStaleNum = 0;  // Only written by the sensor thread
+
+  // Window being accumulated
+  private long mWindowStartNanos;
+  private long mIntervalsNum;
+  private long mIntervalsSumNanos;
+  private double mIntervalsSquaredSum;
+  private long mMinIntervalNanos;
+  private long mMaxIntervalNanos;
+
+  public SensorRateStats(int arity) { this(arity, DEFAULT_WINDOW_NANOS); }
+
+  public SensorRateStats(int arity, long windowNanos) {
+    if (arity <= 0 || windowNanos <= 0)
+      throw new IllegalArgumentException("Invalid arity " + arity + " or window " + windowNanos);
+    mArity = arity;
+    mWindowNanos = windowNanos;
+    mPublished = new SeqLock(VALUES + arity);
+  }
+
+  public int arity() { return mArity; }
+
+  // Samples dropped for not being newer than the last one published, since the last reset()
+  public long getStaleNum() { return mStaleNum; }
+
+  // Only the first arity() entries of v are read, so SensorEvent.values can be passed directly
+  public void onSample(float[] v, long timestampNanos) {
+    if (mSamplesNum > 0 && timestampNanos - mTimestampNanos <= 0) {
+      ++mStaleNum;
+      return;
+    }
+    SeqLock published = mPublished;
+    published.beginWrite();
+    for (int axis = 0; axis < mArity; ++axis)
+      published.putFloat(VALUES + axis, v[axis]);
+    published.putLong(SAMPLES_NUM, ++mSamplesNum);
+    published.putLong(TIMESTAMP, timestampNanos);
+    long interval = timestampNanos - mTimestampNanos;
+    mTimestampNanos = timestampNanos;
+    if (mSamplesNum == 1) {
+      startWindow(timestampNanos);
+    } else {
+      ++mIntervalsNum;
+      mIntervalsSumNanos += interval;
+      mIntervalsSquaredSum += (double) interval * interval;
+      mMinIntervalNanos = Math.min(mMinIntervalNanos, interval);
+      mMaxIntervalNanos = Math.max(mMaxIntervalNanos, interval);
+      if (timestampNanos - mWindowStartNanos >= mWindowNanos)
+        publishWindow(timestampNanos);
+    }
+    published.endWrite();
+  }
+
+  // From any thread, retried while the sensor thread is in the middle of an update
+  public void snapshot(Snapshot out) {
+    SeqLock published = mPublished;
+    int arity = Math.min(mArity, out.values.length);
+    long sequence;
+    do {
+      sequence = published.beginRead();
+      for (int axis = 0; axis < arity; ++axis)
+        out.values[axis] = published.getFloat(VALUES + axis);
+      out.timestampNanos = published.getLong(TIMESTAMP);
+      out.samplesNum = published.getLong(SAMPLES_NUM);
+      out.hasStats = published.getLong(HAS_STATS) != 0;
+      out.rateHz = published.getDouble(RATE);
+      out.minIntervalNanos = published.getLong(MIN_INTERVAL);
+      out.maxIntervalNanos = published.getLong(MAX_INTERVAL);
+      out.jitterNanos = published.getDouble(JITTER);
+    } while (!published.validate(sequence));
+  }
+
+  // From the sensor thread, or while no samples are delivered
+  public void reset() {
+    mSamplesNum = 0;
+    mStaleNum = 0;
+    mPublished.beginWrite();
+    mPublished.putLong(SAMPLES_NUM, 0);
+    mPublished.putLong(HAS_STATS, 0);
+    mPublished.endWrite();
+  }
+
+  // Within a write of the published slots
+  private void publishWindow(long nowNanos) {
+    double mean = (double) mIntervalsSumNanos / mIntervalsNum;
+    mPublished.putDouble(RATE, 1e9 / mean);
+    mPublished.putLong(MIN_INTERVAL, mMinIntervalNanos);
+    mPublished.putLong(MAX_INTERVAL, mMaxIntervalNanos);
+    mPublished.putDouble(JITTER, Math.sqrt(Math.max(0, mIntervalsSquaredSum / mIntervalsNum - mean * mean)));
+    mPublished.putLong(HAS_STATS, 1);
+    startWindow(nowNanos);
+  }
+
+  private void startWindow(long startNanos) {
+    mWindowStartNanos = startNanos;
+    mIntervalsNum = 0;
+    mIntervalsSumNanos = 0;
+    mIntervalsSquaredSum = 0;
+    mMinIntervalNanos = Long.MAX_VALUE;
+    mMaxIntervalNanos = 0;
+  }
+}
@@ -0,0 +1,63 @@
+package com.ru.cameraimu;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Publishes a fixed number of 64 bit slots from a single writer to any number of readers, so
+// that a reader always sees all slots as of one write, e.g. x, y, z and the timestamp of the same
+// sensor sample, and the writer never waits for a reader.
+//
+// It is a sequence lock: the writer makes the sequence odd, stores the slots and makes it even
+// again; a reader copies the slots between two reads of the sequence and starts over if it was
+// odd or changed in between. The slots are atomics written with ordered stores and read with
+// volatile loads, which keeps the slot accesses between the two sequence accesses on either
+// side without the fences a plain seqlock needs. Neither side locks or allocates.
+//
+//   lock.beginWrite();                     long seq;
+//   lock.putFloat(X, x);                   do {
+//   ...                                      seq = lock.beginRead();
+//   lock.endWrite();                         x = lock.getFloat(X);
+//                                            ...
+//                                          } while (!lock.validate(seq));
+public final class SeqLock {
+
+  private final AtomicLong mSequence = new AtomicLong();
+  private final AtomicLongArray mSlots;
+
+  public SeqLock(int slotsNum) { mSlots = new AtomicLongArray(slotsNum); }
+
+  public int slotsNum() { return mSlots.length(); }
+
+  // Writer side, from a single thread at a time
+
+  public void beginWrite() {
+    // A full barrier, the slot stores may not move before it
+    mSequence.incrementAndGet();
+  }
+
+  public void putLong(int slot, long value) { mSlots.lazySet(slot, value); }
+  public void putDouble(int slot, double value) { mSlots.lazySet(slot, Double.doubleToRawLongBits(value)); }
+  public void putFloat(int slot, float value) { mSlots.lazySet(slot, Float.floatToRawIntBits(value)); }
+
+  public void endWrite() { mSequence.lazySet(mSequence.get() + 1); }
+
+  // Reader side, from any thread
+
+  // Waits out a write in progress and returns the sequence to validate() the reads against
+  public long beginRead() {
+    long sequence;
+    while (((sequence = mSequence.get()) & 1) != 0)
+      Thread.yield();
+    return sequence;
+  }
+
+  public long getLong(int slot) { return mSlots.get(slot); }
+  public double getDouble(int slot) { return Double.longBitsToDouble(mSlots.get(slot)); }
+  public float getFloat(int slot) { return Float.intBitsToFloat((int) mSlots.get(slot)); }
+
+  // Whether the slots read since beginRead() returned sequence all belong to the same write
+  public boolean validate(long sequence) { return mSequence.get() == sequence; }
+
+  // Completed writes so far
+  public long version() { return mSequence.get() >>> 1; }
+}
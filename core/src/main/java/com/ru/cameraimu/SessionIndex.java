@@ -0,0 +1,534 @@
+package com.ru.cameraimu;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// The index of a capture session, written incrementally by a SessionIndexWriter so that the
+// IMU records and frames of a time range are found in O(log n) without listing the image
+// directory or reading the data.
+//
+// The file starts with a fixed HEADER_SIZE byte header (all little endian):
+//   int    magic         'CIDX'
+//   short  version
+//   short  header size
+//   short  record size
+//   short  reserved
+//   byte[] frame format  FORMAT_NAME_SIZE bytes of zero padded US-ASCII, e.g. "JPEG"
+//   ...    reserved      zeros up to HEADER_SIZE
+// followed by RECORD_SIZE byte entries:
+//   byte   type          the IMU log type e.g. 'G', TYPE_FRAME, TYPE_RAW_FRAME or TYPE_END
+//   byte[] reserved      3 bytes
+//   int    count         IMU records in the block, frame bytes, frame in its raw segment, or
+//                        the number of entries before the end entry
+//   long   first         first IMU record of the block, frame sequence or raw segment
+//   long   min nanos     first and last timestamp of the block, the frame timestamp twice
+//   long   max nanos
+//   int    reserved
+//   int    crc           CRC-32 of the entry up to here
+// Entries are only appended, so a crash leaves a valid prefix and at most a torn last entry,
+// which the checksum rejects. A complete index ends with a TYPE_END entry, see recover() for
+// the others.
+public class SessionIndex {
+
+  public static final String FILENAME = "index.cidx";
+  public static final int MAGIC = 0x58444943;  // "CIDX" read as a little endian int
+  public static final short VERSION = 1;
+  public static final int HEADER_SIZE = 32;
+  public static final int RECORD_SIZE = 40;
+  public static final int FORMAT_NAME_SIZE = 16;
+  public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  public static final byte TYPE_FRAME = 'F';
+  public static final byte TYPE_RAW_FRAME = 'R';
+  public static final byte TYPE_END = 'E';
+
+  // IMU records per block entry, a few seconds of samples
+  public static final int IMU_BLOCK_RECORDS = 1024;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  public static final class ImuBlock {
+    public final char sensorType;
+    public final long firstRecord;
+    public final int count;
+    public final long minNanos;
+    public final long maxNanos;
+
+    ImuBlock(char sensorType, long firstRecord, int count, long minNanos, long maxNanos) {
+      this.sensorType = sensorType;
+      this.firstRecord = firstRecord;
+      this.count = count;
+      this.minNanos = minNanos;
+      this.maxNanos = maxNanos;
+    }
+
+    public long endRecord() { return firstRecord + count; }
+
+    @Override
+    public String toString() { return sensorType + "[" + firstRecord + ", " + endRecord() + ") " + minNanos + "-" + maxNanos; }
+  }
+
+  public static final class Frame {
+    public final long timestampNanos;
+    public final long sequence;  // -1 for raw frames
+    public final int length;  // -1 for raw frames
+    public final int segment;  // -1 for frame files
+    public final int segmentFrame;  // -1 for frame files
+    private final FrameFormat mFormat;
+
+    Frame(long timestampNanos, long sequence, int length, int segment, int segmentFrame, FrameFormat format) {
+      this.timestampNanos = timestampNanos;
+      this.sequence = sequence;
+      this.length = length;
+      this.segment = segment;
+      this.segmentFrame = segmentFrame;
+      mFormat = format;
+    }
+
+    public boolean isRaw() { return segment >= 0; }
+
+    // Relative to the session directory, the segment file for raw frames
+    public String path() {
+      return SessionReader.IMAGE_DIR + File.separator
+          + (isRaw() ? RawSegmentFormat.segmentName(segment) : FileFrameCommitSink.filename(timestampNanos, mFormat));
+    }
+
+    @Override
+    public String toString() { return timestampNanos + " " + path() + (isRaw() ? "#" + segmentFrame : ""); }
+  }
+
+  // Indexes the records read from a compressed log in blocks of IMU_BLOCK_RECORDS, skipping
+  // those before the first one the index lacks
+  private static final class TailBlocks implements ImuRingBuffer.Drain {
+    private final char mType;
+    private final long mFirstMissing;
+    private final SessionIndexWriter mWriter;
+    private long mNext;
+    private long mBlockFirst;
+    private int mBlockCount = 0;
+    private long mBlockMin;
+    private long mBlockMax;
+
+    TailBlocks(char type, long next, long firstMissing, SessionIndexWriter writer) {
+      mType = type;
+      mNext = next;
+      mFirstMissing = firstMissing;
+      mWriter = writer;
+    }
+
+    @Override
+    public void onSamples(float[][] values, long[] timestampsNanos, int offset, int count) {
+      for (int i = offset; i < offset + count; ++i, ++mNext) {
+        if (mNext < mFirstMissing)
+          continue;
+        if (mBlockCount == 0) {
+          mBlockFirst = mNext;
+          mBlockMin = timestampsNanos[i];
+        }
+        mBlockMax = timestampsNanos[i];
+        if (++mBlockCount == IMU_BLOCK_RECORDS)
+          finishBlock();
+      }
+    }
+
+    void finishBlock() {
+      if (mBlockCount == 0)
+        return;
+      mWriter.addImuBlock(mType, mBlockFirst, mBlockCount, mBlockMin, mBlockMax);
+      mBlockCount = 0;
+    }
+  }
+
+  // The blocks of one IMU log in record order
+  private static final class Blocks {
+    long[] first = new long[16];
+    int[] count = new int[16];
+    long[] min = new long[16];
+    long[] max = new long[16];
+    int size = 0;
+
+    void add(long first, int count, long min, long max) {
+      if (size == this.first.length) {
+        this.first = Arrays.copyOf(this.first, 2 * size);
+        this.count = Arrays.copyOf(this.count, 2 * size);
+        this.min = Arrays.copyOf(this.min, 2 * size);
+        this.max = Arrays.copyOf(this.max, 2 * size);
+      }
+      this.first[size] = first;
+      this.count[size] = count;
+      this.min[size] = min;
+      this.max[size] = max;
+      ++size;
+    }
+
+    long endRecord() { return size == 0 ? 0 : first[size - 1] + count[size - 1]; }
+  }
+
+  private final FrameFormat mFrameFormat;
+  private final Map<Character, Blocks> mImu = new LinkedHashMap<>();
+  private long[] mFrameTimestamps = new long[64];
+  private long[] mFrameFirsts = new long[64];
+  private int[] mFrameCounts = new int[64];
+  private boolean[] mFrameRaw = new boolean[64];
+  private int mFramesNum = 0;
+  private long mEntriesNum = 0;
+  private boolean mComplete = false;
+
+  private SessionIndex(FrameFormat frameFormat) { mFrameFormat = frameFormat; }
+
+  // Reads the index up to its end entry or its last whole entry, whichever comes first
+  public static SessionIndex read(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    byte[] bytes;
+    try {
+      if (randomAccessFile.length() < HEADER_SIZE)
+        throw new IOException("Truncated session index header: " + file);
+      bytes = new byte[(int) randomAccessFile.length()];
+      randomAccessFile.readFully(bytes);
+    } finally {
+      randomAccessFile.close();
+    }
+    ByteBuffer src = ByteBuffer.wrap(bytes).order(BYTE_ORDER);
+    SessionIndex index = new SessionIndex(readHeader(src));
+    CRC32 crc = new CRC32();
+    while (src.remaining() >= RECORD_SIZE) {
+      int start = src.position();
+      crc.reset();
+      crc.update(bytes, start, RECORD_SIZE - 4);
+      if (src.getInt(start + RECORD_SIZE - 4) != (int) crc.getValue())
+        break;
+      byte type = src.get();
+      src.position(start + 4);
+      int count = src.getInt();
+      long first = src.getLong();
+      long minNanos = src.getLong();
+      long maxNanos = src.getLong();
+      src.position(start + RECORD_SIZE);
+      if (type == TYPE_END) {
+        index.mComplete = true;
+        break;
+      }
+      index.add(type, count, first, minNanos, maxNanos);
+    }
+    return index;
+  }
+
+  // Reads the index of the session in dir and, unless it is complete, completes it: entries
+  // beyond the last whole one are dropped and everything the data files hold beyond what the
+  // index covers is indexed from the IMU logs, the raw segment indexes or the manifest, then the
+  // index is rewritten with its end entry. frameFormat is only used if there is no index at all.
+  public static SessionIndex recover(File dir, FrameFormat frameFormat) throws IOException {
+    File file = new File(dir, FILENAME);
+    SessionIndex index = file.length() >= HEADER_SIZE ? read(file) : new SessionIndex(frameFormat);
+    if (index.mComplete)
+      return index;
+
+    File recovered = new File(dir, FILENAME + ".tmp");
+    SessionIndexWriter writer = new SessionIndexWriter(recovered, index.mFrameFormat);
+    try {
+      index.replayInto(writer);
+      indexImuTails(dir, index, writer);
+      indexFrameTail(dir, index, writer);
+    } finally {
+      writer.close();
+    }
+    if (!recovered.renameTo(file) && !(file.delete() && recovered.renameTo(file)))
+      throw new IOException("Cannot replace " + file);
+    return read(file);
+  }
+
+  public boolean isComplete() { return mComplete; }
+  public long getEntriesNum() { return mEntriesNum; }
+  public FrameFormat getFrameFormat() { return mFrameFormat; }
+
+  public char[] getImuTypes() {
+    char[] types = new char[mImu.size()];
+    int i = 0;
+    for (char type : mImu.keySet())
+      types[i++] = type;
+    return types;
+  }
+
+  // Indexed records of the given IMU log
+  public long getImuRecordsNum(char sensorType) {
+    Blocks blocks = mImu.get(sensorType);
+    return blocks == null ? 0 : blocks.endRecord();
+  }
+
+  public int getFramesNum() { return mFramesNum; }
+
+  // The blocks of the IMU log holding any sample in [fromNanos, toNanos], in record order.
+  // Samples are expected in timestamp order, as the sensors deliver them.
+  public List<ImuBlock> imuBlocks(char sensorType, long fromNanos, long toNanos) {
+    List<ImuBlock> result = new ArrayList<>();
+    Blocks blocks = mImu.get(sensorType);
+    if (blocks == null)
+      return result;
+    // The first block ending at or after fromNanos
+    int low = 0;
+    int high = blocks.size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (blocks.max[mid] < fromNanos)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    for (int i = low; i < blocks.size && blocks.min[i] <= toNanos; ++i)
+      result.add(new ImuBlock(sensorType, blocks.first[i], blocks.count[i], blocks.min[i], blocks.max[i]));
+    return result;
+  }
+
+  // The frames with timestamps in [fromNanos, toNanos] in timestamp order
+  public List<Frame> frames(long fromNanos, long toNanos) {
+    List<Frame> result = new ArrayList<>();
+    for (int i = ceilFrame(fromNanos); i < mFramesNum && mFrameTimestamps[i] <= toNanos; ++i)
+      result.add(frameAt(i));
+    return result;
+  }
+
+  public Frame frameAt(int i) {
+    if (i < 0 || i >= mFramesNum)
+      throw new IndexOutOfBoundsException("frame " + i + ", count " + mFramesNum);
+    return mFrameRaw[i] ? new Frame(mFrameTimestamps[i], -1, -1, (int) mFrameFirsts[i], mFrameCounts[i], mFrameFormat)
+        : new Frame(mFrameTimestamps[i], mFrameFirsts[i], mFrameCounts[i], -1, -1, mFrameFormat);
+  }
+
+  // Index of the first frame at or after timestampNanos, getFramesNum() if there is none
+  public int ceilFrame(long timestampNanos) {
+    int low = 0;
+    int high = mFramesNum;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (mFrameTimestamps[mid] < timestampNanos)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(mComplete ? "complete" : "incomplete");
+    for (Map.Entry<Character, Blocks> entry : mImu.entrySet())
+      sb.append(", ").append(entry.getKey()).append(": ").append(entry.getValue().endRecord()).append(" records");
+    return sb.append(", ").append(mFramesNum).append(" frames").toString();
+  }
+
+  static void writeHeader(ByteBuffer dst, FrameFormat frameFormat) {
+    ByteOrder order = dst.order();
+    dst.order(BYTE_ORDER);
+    int start = dst.position();
+    dst.putInt(MAGIC);
+    dst.putShort(VERSION);
+    dst.putShort((short) HEADER_SIZE);
+    dst.putShort((short) RECORD_SIZE);
+    dst.putShort((short) 0);
+    byte[] name = frameFormat.name().getBytes(ASCII);
+    dst.put(name, 0, Math.min(name.length, FORMAT_NAME_SIZE));
+    while (dst.position() < start + HEADER_SIZE)
+      dst.put((byte) 0);
+    dst.order(order);
+  }
+
+  static FrameFormat readHeader(ByteBuffer src) throws IOException {
+    int start = src.position();
+    if (src.getInt() != MAGIC)
+      throw new IOException("Not a session index: bad magic");
+    short version = src.getShort();
+    if (version != VERSION)
+      throw new IOException("Unsupported session index version: " + version);
+    if (src.getShort() != HEADER_SIZE || src.getShort() != RECORD_SIZE)
+      throw new IOException("Unexpected session index header or record size");
+    src.getShort();
+    byte[] name = new byte[FORMAT_NAME_SIZE];
+    src.get(name);
+    int length = 0;
+    while (length < FORMAT_NAME_SIZE && name[length] != 0)
+      ++length;
+    src.position(start + HEADER_SIZE);
+    try {
+      return FrameFormat.valueOf(new String(name, 0, length, ASCII));
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Unknown frame format in session index: " + new String(name, 0, length, ASCII));
+    }
+  }
+
+  // Writes one entry at the position of a heap buffer in BYTE_ORDER
+  static void writeRecord(ByteBuffer dst, byte type, int count, long first, long minNanos, long maxNanos) {
+    int start = dst.position();
+    dst.put(type).put((byte) 0).put((byte) 0).put((byte) 0);
+    dst.putInt(count);
+    dst.putLong(first);
+    dst.putLong(minNanos);
+    dst.putLong(maxNanos);
+    dst.putInt(0);
+    CRC32 crc = new CRC32();
+    crc.update(dst.array(), dst.arrayOffset() + start, RECORD_SIZE - 4);
+    dst.putInt((int) crc.getValue());
+  }
+
+  private void add(byte type, int count, long first, long minNanos, long maxNanos) {
+    ++mEntriesNum;
+    if (type == TYPE_FRAME || type == TYPE_RAW_FRAME) {
+      if (mFramesNum == mFrameTimestamps.length) {
+        mFrameTimestamps = Arrays.copyOf(mFrameTimestamps, 2 * mFramesNum);
+        mFrameFirsts = Arrays.copyOf(mFrameFirsts, 2 * mFramesNum);
+        mFrameCounts = Arrays.copyOf(mFrameCounts, 2 * mFramesNum);
+        mFrameRaw = Arrays.copyOf(mFrameRaw, 2 * mFramesNum);
+      }
+      mFrameTimestamps[mFramesNum] = minNanos;
+      mFrameFirsts[mFramesNum] = first;
+      mFrameCounts[mFramesNum] = count;
+      mFrameRaw[mFramesNum] = type == TYPE_RAW_FRAME;
+      ++mFramesNum;
+    } else {
+      Blocks blocks = mImu.get((char) type);
+      if (blocks == null) {
+        blocks = new Blocks();
+        mImu.put((char) type, blocks);
+      }
+      blocks.add(first, count, minNanos, maxNanos);
+    }
+  }
+
+  private void replayInto(SessionIndexWriter writer) {
+    for (Map.Entry<Character, Blocks> entry : mImu.entrySet()) {
+      Blocks blocks = entry.getValue();
+      for (int i = 0; i < blocks.size; ++i)
+        writer.addImuBlock(entry.getKey(), blocks.first[i], blocks.count[i], blocks.min[i], blocks.max[i]);
+    }
+    for (int i = 0; i < mFramesNum; ++i) {
+      if (mFrameRaw[i])
+        writer.addRawFrame((int) mFrameFirsts[i], mFrameCounts[i], mFrameTimestamps[i]);
+      else
+        writer.addFrame(mFrameFirsts[i], mFrameTimestamps[i], mFrameCounts[i]);
+    }
+  }
+
+  private static void indexImuTails(File dir, SessionIndex index, final SessionIndexWriter writer) throws IOException {
+    File[] logs = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File d, String name) {
+        return name.length() == 1 + ImuLogFormat.FILE_EXTENSION.length() && name.endsWith(ImuLogFormat.FILE_EXTENSION)
+            || name.length() == 1 + CompressedImuLogWriter.FILE_EXTENSION.length()
+            && name.endsWith(CompressedImuLogWriter.FILE_EXTENSION);
+      }
+    });
+    if (logs == null)
+      return;
+    Arrays.sort(logs);
+    for (File log : logs) {
+      if (log.getName().endsWith(CompressedImuLogWriter.FILE_EXTENSION)) {
+        indexCompressedImuTail(log, index, writer);
+        continue;
+      }
+      ImuLogReader reader;
+      try {
+        reader = new ImuLogReader(log, IMU_BLOCK_RECORDS);
+      } catch (IOException e) {
+        continue;  // Killed before its header was written
+      }
+      try {
+        final char type = reader.getFormat().sensorType;
+        reader.seek(Math.min(index.getImuRecordsNum(type), reader.getRecordsNum()));
+        // Batches are exactly one block long
+        final long[] next = {reader.getPosition()};
+        reader.readAll(new ImuRingBuffer.Drain() {
+          @Override
+          public void onSamples(float[][] values, long[] timestampsNanos, int offset, int count) {
+            writer.addImuBlock(type, next[0], count, timestampsNanos[offset], timestampsNanos[offset + count - 1]);
+            next[0] += count;
+          }
+        });
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  private static void indexCompressedImuTail(File log, SessionIndex index, SessionIndexWriter writer)
+      throws IOException {
+    CompressedImuLogReader reader;
+    try {
+      reader = new CompressedImuLogReader(log);
+    } catch (IOException e) {
+      return;  // Killed before its header was written
+    }
+    try {
+      char type = reader.getFormat().sensorType;
+      long indexed = index.getImuRecordsNum(type);
+      if (reader.getBlocksNum() == 0 || indexed >= reader.getRecordsNum())
+        return;
+      // From the block holding the first record the index lacks
+      int block = 0;
+      while (block + 1 < reader.getBlocksNum() && reader.blockFirstRecord(block + 1) <= indexed)
+        ++block;
+      reader.seekBlock(block);
+      TailBlocks tail = new TailBlocks(type, reader.blockFirstRecord(block), indexed, writer);
+      reader.readAll(tail);
+      tail.finishBlock();
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static void indexFrameTail(File dir, SessionIndex index, SessionIndexWriter writer) throws IOException {
+    int last = index.mFramesNum - 1;
+    File imageDir = new File(dir, SessionReader.IMAGE_DIR);
+    File[] segments = RawFrameSegmentReader.listSegments(imageDir);
+    if (segments.length > 0) {
+      int segment = last >= 0 && index.mFrameRaw[last] ? (int) index.mFrameFirsts[last] : 0;
+      int frame = last >= 0 && index.mFrameRaw[last] ? index.mFrameCounts[last] + 1 : 0;
+      for (; segment < segments.length; ++segment, frame = 0) {
+        RawFrameSegmentReader reader = RawFrameSegmentReader.open(imageDir, segment);
+        try {
+          for (; frame < reader.getFrameCount(); ++frame)
+            writer.addRawFrame(segment, frame, reader.timestampAt(frame));
+        } finally {
+          reader.close();
+        }
+      }
+      return;
+    }
+
+    File manifest = new File(dir, FileFrameCommitSink.MANIFEST_FILENAME);
+    if (!manifest.isFile())
+      return;
+    long lastSequence = last >= 0 && !index.mFrameRaw[last] ? index.mFrameFirsts[last] : -1;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), ASCII));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        // "<sequence> <timestamp nanos> <file name> <bytes>", a torn last line is skipped
+        String[] fields = line.trim().split(" ");
+        if (fields.length < 4)
+          continue;
+        try {
+          long sequence = Long.parseLong(fields[0]);
+          if (sequence > lastSequence)
+            writer.addFrame(sequence, Long.parseLong(fields[1]), Integer.parseInt(fields[3]));
+        } catch (NumberFormatException e) {
+          // Torn line
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+}
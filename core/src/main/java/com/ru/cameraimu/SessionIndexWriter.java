@@ -0,0 +1,130 @@
+package com.ru.cameraimu;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Appends the entries of a session index (see SessionIndex) as the session progresses.
+//
+// Entries are staged in memory by whichever thread produces them, i.e. the I/O thread for the
+// IMU blocks and the committer for the frames, and written out by the SessionWriter I/O thread
+// on each of its passes. close() appends the end entry, after which the index is complete; an
+// index cut short by a crash is still readable up to its last whole entry.
+public class SessionIndexWriter implements Closeable {
+
+  private static final int INITIAL_STAGING_RECORDS = 256;
+
+  private final File mFile;
+  private final FrameFormat mFrameFormat;
+  private final Object mLock = new Object();
+  private ByteBuffer mStaging;  // Guarded by mLock
+  private ByteBuffer mWriting;  // Only touched from the I/O thread
+  private long mEntriesNum = 0;  // Guarded by mLock
+  private FileChannel mChannel = null;
+  private boolean mClosed = false;
+
+  public SessionIndexWriter(File file, FrameFormat frameFormat) {
+    mFile = file;
+    mFrameFormat = frameFormat;
+    mStaging = ByteBuffer.allocate(INITIAL_STAGING_RECORDS * SessionIndex.RECORD_SIZE).order(SessionIndex.BYTE_ORDER);
+    mWriting = ByteBuffer.allocate(mStaging.capacity()).order(SessionIndex.BYTE_ORDER);
+  }
+
+  public File getFile() { return mFile; }
+
+  public long getEntriesNum() {
+    synchronized (mLock) {
+      return mEntriesNum;
+    }
+  }
+
+  // count records of an IMU log starting at firstRecord, with timestamps in [minNanos, maxNanos]
+  public void addImuBlock(char sensorType, long firstRecord, int count, long minNanos, long maxNanos) {
+    add((byte) sensorType, count, firstRecord, minNanos, maxNanos);
+  }
+
+  // A frame written to its own file, see FileFrameCommitSink
+  public void addFrame(long sequence, long timestampNanos, int length) {
+    add(SessionIndex.TYPE_FRAME, length, sequence, timestampNanos, timestampNanos);
+  }
+
+  // A frame in a raw segment, see RawFrameSegmentWriter
+  public void addRawFrame(int segment, int frame, long timestampNanos) {
+    add(SessionIndex.TYPE_RAW_FRAME, frame, segment, timestampNanos, timestampNanos);
+  }
+
+  // Writes the staged entries, from the I/O thread
+  public void flush() throws IOException {
+    synchronized (mLock) {
+      if (mStaging.position() == 0)
+        return;
+      ByteBuffer staged = mStaging;
+      mStaging = mWriting.capacity() >= staged.capacity() ? mWriting : ByteBuffer.allocate(staged.capacity());
+      mStaging.clear();
+      mStaging.order(SessionIndex.BYTE_ORDER);
+      mWriting = staged;
+    }
+    if (mChannel == null)
+      open();
+    mWriting.flip();
+    while (mWriting.hasRemaining())
+      mChannel.write(mWriting);
+    mWriting.clear();
+  }
+
+  public void sync() throws IOException {
+    if (mChannel != null)
+      mChannel.force(false);
+  }
+
+  // Appends the end entry and closes the file, entries added afterwards are dropped
+  @Override
+  public void close() throws IOException {
+    synchronized (mLock) {
+      if (mClosed)
+        return;
+      stage(SessionIndex.TYPE_END, 0, mEntriesNum, 0, 0);
+      mClosed = true;
+    }
+    try {
+      flush();
+      sync();
+    } finally {
+      if (mChannel != null)
+        mChannel.close();
+      mChannel = null;
+    }
+  }
+
+  private void add(byte type, int count, long first, long minNanos, long maxNanos) {
+    synchronized (mLock) {
+      if (mClosed)
+        return;
+      stage(type, count, first, minNanos, maxNanos);
+      ++mEntriesNum;
+    }
+  }
+
+  private void stage(byte type, int count, long first, long minNanos, long maxNanos) {
+    if (mStaging.remaining() < SessionIndex.RECORD_SIZE) {
+      ByteBuffer grown = ByteBuffer.allocate(2 * mStaging.capacity()).order(SessionIndex.BYTE_ORDER);
+      mStaging.flip();
+      grown.put(mStaging);
+      mStaging = grown;
+    }
+    SessionIndex.writeRecord(mStaging, type, count, first, minNanos, maxNanos);
+  }
+
+  private void open() throws IOException {
+    mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+    ByteBuffer header = ByteBuffer.allocate(SessionIndex.HEADER_SIZE);
+    SessionIndex.writeHeader(header, mFrameFormat);
+    header.flip();
+    mChannel.truncate(0);
+    while (header.hasRemaining())
+      mChannel.write(header);
+  }
+}
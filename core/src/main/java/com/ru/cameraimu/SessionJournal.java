@@ -0,0 +1,297 @@
+package com.ru.cameraimu;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// The write-ahead journal of a capture session, appended by a SessionJournalWriter, which
+// records what of the session's files is known to be on the storage device: a record is only
+// written once the data it covers was forced out, so after a crash the journal tells the whole
+// files that were completely written from those that may be torn, and how much of every
+// appended file can be trusted.
+//
+// The file starts with a fixed HEADER_SIZE byte header (all little endian):
+//   int    magic         'CJNL'
+//   short  version
+//   short  header size
+//   short  record size
+//   ...    reserved      zeros up to HEADER_SIZE
+// followed by RECORD_SIZE byte records:
+//   byte   type          TYPE_STREAM, TYPE_FILE, TYPE_END or TYPE_RECOVERED
+//   byte   path length
+//   byte[] reserved      6 bytes
+//   long   length        bytes of the file that are durable
+//   byte[] path          PATH_SIZE bytes of zero padded US-ASCII, relative to the session directory
+//   int    crc           CRC-32 of the record up to here
+// A TYPE_STREAM record supersedes the earlier ones of the same file, which only ever grows; a
+// TYPE_FILE record covers a file written as a whole. A session closed cleanly ends with a
+// TYPE_END record, see recover() for the others.
+public class SessionJournal {
+
+  public static final String FILENAME = "journal.cjnl";
+  public static final int MAGIC = 0x4C4E4A43;  // "CJNL" read as a little endian int
+  public static final short VERSION = 1;
+  public static final int HEADER_SIZE = 16;
+  public static final int RECORD_SIZE = 48;
+  public static final int PATH_SIZE = 28;
+  public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  public static final byte TYPE_STREAM = 'S';
+  public static final byte TYPE_FILE = 'F';
+  public static final byte TYPE_END = 'E';
+  public static final byte TYPE_RECOVERED = 'R';
+
+  private final Map<String, Long> mStreams = new LinkedHashMap<>();
+  private final Map<String, Long> mFiles = new LinkedHashMap<>();
+  private long mRecordsNum = 0;
+  private long mValidSize = HEADER_SIZE;
+  private byte mEndType = 0;
+  private long mTruncatedBytes = 0;
+  private int mDeletedFilesNum = 0;
+
+  private SessionJournal() {}
+
+  // Reads the journal up to its end record or its last whole record, whichever comes first
+  public static SessionJournal read(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    byte[] bytes;
+    try {
+      if (randomAccessFile.length() < HEADER_SIZE)
+        throw new IOException("Truncated session journal header: " + file);
+      bytes = new byte[(int) randomAccessFile.length()];
+      randomAccessFile.readFully(bytes);
+    } finally {
+      randomAccessFile.close();
+    }
+    ByteBuffer src = ByteBuffer.wrap(bytes).order(BYTE_ORDER);
+    readHeader(src);
+    SessionJournal journal = new SessionJournal();
+    CRC32 crc = new CRC32();
+    byte[] path = new byte[PATH_SIZE];
+    while (src.remaining() >= RECORD_SIZE) {
+      int start = src.position();
+      crc.reset();
+      crc.update(bytes, start, RECORD_SIZE - 4);
+      if (src.getInt(start + RECORD_SIZE - 4) != (int) crc.getValue())
+        break;
+      byte type = src.get();
+      int pathLength = Math.min(src.get() & 0xFF, PATH_SIZE);
+      src.position(start + 8);
+      long length = src.getLong();
+      src.get(path);
+      src.position(start + RECORD_SIZE);
+      journal.mValidSize = src.position();
+      ++journal.mRecordsNum;
+      if (type == TYPE_END || type == TYPE_RECOVERED) {
+        journal.mEndType = type;
+        break;
+      }
+      String relativePath = new String(path, 0, pathLength, "US-ASCII");
+      if (type == TYPE_STREAM)
+        journal.mStreams.put(relativePath, length);
+      else if (type == TYPE_FILE)
+        journal.mFiles.put(relativePath, length);
+    }
+    return journal;
+  }
+
+  // Whether the session in dir has a journal that does not end cleanly
+  public static boolean needsRecovery(File dir) {
+    File file = new File(dir, FILENAME);
+    if (!file.isFile())
+      return false;
+    try {
+      return !read(file).isComplete();
+    } catch (IOException e) {
+      return file.length() < HEADER_SIZE;  // Killed while writing the header
+    }
+  }
+
+  // The directories under root holding a session to recover, in name order
+  public static File[] listIncomplete(File root) {
+    File[] dirs = root.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File d, String name) { return needsRecovery(new File(d, name)); }
+    });
+    if (dirs == null)
+      return new File[0];
+    Arrays.sort(dirs);
+    return dirs;
+  }
+
+  // Brings the session in dir back to what its journal committed, unless it ended cleanly:
+  //  - appended files are truncated to their last committed length, which drops both torn
+  //    writes and the preallocated tail. The frame manifest is only opened with the first frame,
+  //    which may come after the last fsync pass, so without a record it is cut to nothing.
+  //  - whole files in the image directory that the journal does not have, or has with another
+  //    length, were written after the last commit and are deleted
+  //  - the session index is rebuilt from what is left (see SessionIndex.recover())
+  // and the journal is then ended with a TYPE_RECOVERED record. Files the journal never
+  // mentions elsewhere, e.g. raw frame segments, are left to their own recovery.
+  // frameFormat is only used if there is no readable index.
+  public static SessionJournal recover(File dir, FrameFormat frameFormat) throws IOException {
+    File file = new File(dir, FILENAME);
+    if (!file.isFile())
+      throw new IOException("No session journal in " + dir);
+    SessionJournal journal = file.length() >= HEADER_SIZE ? read(file) : new SessionJournal();
+    if (journal.isComplete())
+      return journal;
+
+    File indexFile = new File(dir, SessionIndex.FILENAME);
+    FrameFormat format = frameFormat;
+    if (indexFile.length() >= SessionIndex.HEADER_SIZE) {
+      try {
+        format = SessionIndex.read(indexFile).getFrameFormat();
+      } catch (IOException e) {
+        // Rebuilt with the given format
+      }
+    }
+
+    for (Map.Entry<String, Long> stream : journal.mStreams.entrySet())
+      truncate(new File(dir, stream.getKey()), stream.getValue(), journal);
+    if (!journal.mStreams.containsKey(FileFrameCommitSink.MANIFEST_FILENAME))
+      truncate(new File(dir, FileFrameCommitSink.MANIFEST_FILENAME), 0, journal);
+
+    File imageDir = new File(dir, SessionReader.IMAGE_DIR);
+    File[] images = imageDir.listFiles();
+    if (images != null) {
+      for (File image : images) {
+        String name = image.getName();
+        if (!image.isFile() || !name.endsWith(format.extension))
+          continue;
+        Long committed = journal.mFiles.get(SessionReader.IMAGE_DIR + '/' + name);
+        if (committed != null && committed == image.length())
+          continue;
+        if (!image.delete())
+          throw new IOException("Cannot delete " + image);
+        ++journal.mDeletedFilesNum;
+      }
+    }
+
+    // Its entries may reach past what was committed, so it is rebuilt from scratch
+    if (indexFile.exists() && !indexFile.delete())
+      throw new IOException("Cannot delete " + indexFile);
+    SessionIndex.recover(dir, format);
+
+    end(file, journal);
+    return journal;
+  }
+
+  private static void truncate(File file, long committed, SessionJournal journal) throws IOException {
+    if (!file.isFile() || file.length() <= committed)
+      return;
+    journal.mTruncatedBytes += file.length() - committed;
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(committed);
+      randomAccessFile.getChannel().force(false);
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  public boolean isComplete() { return mEndType != 0; }
+  public boolean isRecovered() { return mEndType == TYPE_RECOVERED; }
+  public long getRecordsNum() { return mRecordsNum; }
+
+  // Durable length of an appended file, -1 if the journal has none
+  public long getStreamLength(String relativePath) {
+    Long length = mStreams.get(relativePath);
+    return length == null ? -1 : length;
+  }
+
+  // Length of a whole file, -1 if the journal has none
+  public long getFileLength(String relativePath) {
+    Long length = mFiles.get(relativePath);
+    return length == null ? -1 : length;
+  }
+
+  public int getStreamsNum() { return mStreams.size(); }
+  public int getFilesNum() { return mFiles.size(); }
+
+  // What the last recover() removed
+  public long getTruncatedBytes() { return mTruncatedBytes; }
+  public int getDeletedFilesNum() { return mDeletedFilesNum; }
+
+  @Override
+  public String toString() {
+    return (isRecovered() ? "recovered" : isComplete() ? "complete" : "incomplete") + ", " + mStreams.size()
+        + " streams, " + mFiles.size() + " files, truncated " + mTruncatedBytes + " bytes, deleted "
+        + mDeletedFilesNum + " files";
+  }
+
+  static void writeHeader(ByteBuffer dst) {
+    ByteOrder order = dst.order();
+    dst.order(BYTE_ORDER);
+    int start = dst.position();
+    dst.putInt(MAGIC);
+    dst.putShort(VERSION);
+    dst.putShort((short) HEADER_SIZE);
+    dst.putShort((short) RECORD_SIZE);
+    while (dst.position() < start + HEADER_SIZE)
+      dst.put((byte) 0);
+    dst.order(order);
+  }
+
+  static void readHeader(ByteBuffer src) throws IOException {
+    int start = src.position();
+    if (src.getInt() != MAGIC)
+      throw new IOException("Not a session journal: bad magic");
+    short version = src.getShort();
+    if (version != VERSION)
+      throw new IOException("Unsupported session journal version: " + version);
+    if (src.getShort() != HEADER_SIZE || src.getShort() != RECORD_SIZE)
+      throw new IOException("Unexpected session journal header or record size");
+    src.position(start + HEADER_SIZE);
+  }
+
+  // Writes one record at the position of a heap buffer in BYTE_ORDER. path is written from
+  // pathStart on as US-ASCII and must not be longer than PATH_SIZE from there.
+  static void writeRecord(ByteBuffer dst, byte type, String path, int pathStart, long length, CRC32 crc) {
+    int start = dst.position();
+    int pathLength = path.length() - pathStart;
+    dst.put(type).put((byte) pathLength);
+    for (int i = 0; i < 6; ++i)
+      dst.put((byte) 0);
+    dst.putLong(length);
+    for (int i = 0; i < PATH_SIZE; ++i) {
+      char c = i < pathLength ? path.charAt(pathStart + i) : 0;
+      // Both separators are stored as '/' so that a journal reads the same on any platform
+      dst.put((byte) (c == '\\' ? '/' : c < 0x80 ? c : '?'));
+    }
+    crc.reset();
+    crc.update(dst.array(), dst.arrayOffset() + start, RECORD_SIZE - 4);
+    dst.putInt((int) crc.getValue());
+  }
+
+  // Cuts off whatever follows the last whole record and appends the TYPE_RECOVERED record
+  private static void end(File file, SessionJournal journal) throws IOException {
+    FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + RECORD_SIZE).order(BYTE_ORDER);
+      long position = journal.mValidSize;
+      if (channel.size() < HEADER_SIZE) {
+        writeHeader(buffer);
+        position = 0;
+      }
+      writeRecord(buffer, TYPE_RECOVERED, "", 0, 0, new CRC32());
+      buffer.flip();
+      channel.truncate(position);
+      while (buffer.hasRemaining())
+        position += channel.write(buffer, position);
+      channel.force(false);
+    } finally {
+      channel.close();
+    }
+    journal.mEndType = TYPE_RECOVERED;
+    ++journal.mRecordsNum;
+  }
+}
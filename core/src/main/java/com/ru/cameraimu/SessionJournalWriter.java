@@ -0,0 +1,111 @@
+package com.ru.cameraimu;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+// Appends the records of a session journal (see SessionJournal) as the session progresses.
+//
+// Records are staged in memory as files are written and appended by sync(), which the
+// SessionWriter calls at the end of every fsync pass, once the data they cover was forced out.
+// Staging a record is a copy into a heap buffer and a checksum, and the records of a pass go out
+// in one write and one fsync (see SessionJournalBenchmark). close() appends the end record,
+// after which the session needs no recovery.
+//
+// Not thread safe, all calls are expected to come from the SessionWriter I/O thread.
+public class SessionJournalWriter implements Closeable {
+
+  private static final int INITIAL_STAGING_RECORDS = 64;
+
+  private final File mDir;
+  private final File mFile;
+  private final String mPrefix;
+  private final CRC32 mCrc = new CRC32();
+  private ByteBuffer mStaging;
+  private FileChannel mChannel = null;
+  private long mRecordsNum = 0;
+  private long mSyncsNum = 0;
+  private boolean mClosed = false;
+
+  // Journals the files under the session directory dir into its FILENAME
+  public SessionJournalWriter(File dir) {
+    mDir = dir;
+    mFile = new File(dir, SessionJournal.FILENAME);
+    mPrefix = dir.getPath() + File.separator;
+    mStaging = ByteBuffer.allocate(INITIAL_STAGING_RECORDS * SessionJournal.RECORD_SIZE)
+        .order(SessionJournal.BYTE_ORDER);
+  }
+
+  public File getFile() { return mFile; }
+  public long getRecordsNum() { return mRecordsNum; }
+  public long getSyncsNum() { return mSyncsNum; }
+
+  // The first length bytes of the appended file will be durable by the next sync()
+  public void commitStream(File file, long length) throws IOException { stage(SessionJournal.TYPE_STREAM, file, length); }
+
+  // The whole file, length bytes long, will be durable by the next sync()
+  public void commitFile(File file, long length) throws IOException { stage(SessionJournal.TYPE_FILE, file, length); }
+
+  // Appends the staged records and forces them out, after the data they cover
+  public void sync() throws IOException {
+    if (mStaging.position() == 0)
+      return;
+    if (mChannel == null)
+      open();
+    mStaging.flip();
+    while (mStaging.hasRemaining())
+      mChannel.write(mStaging);
+    mStaging.clear();
+    mChannel.force(false);
+    ++mSyncsNum;
+  }
+
+  // Appends the end record and closes the file, records committed afterwards are dropped
+  @Override
+  public void close() throws IOException {
+    if (mClosed)
+      return;
+    stage(SessionJournal.TYPE_END, null, 0);
+    mClosed = true;
+    try {
+      sync();
+    } finally {
+      if (mChannel != null)
+        mChannel.close();
+      mChannel = null;
+    }
+  }
+
+  private void stage(byte type, File file, long length) throws IOException {
+    if (mClosed)
+      return;
+    String path = file != null ? file.getPath() : "";
+    int pathStart = file != null ? mPrefix.length() : 0;
+    if (file != null && (!path.startsWith(mPrefix) || path.length() == pathStart))
+      throw new IOException(file + " is not in the session directory " + mDir);
+    if (path.length() - pathStart > SessionJournal.PATH_SIZE)
+      throw new IOException("Path too long for the session journal: " + file);
+    if (mStaging.remaining() < SessionJournal.RECORD_SIZE) {
+      ByteBuffer grown = ByteBuffer.allocate(2 * mStaging.capacity()).order(SessionJournal.BYTE_ORDER);
+      mStaging.flip();
+      grown.put(mStaging);
+      mStaging = grown;
+    }
+    SessionJournal.writeRecord(mStaging, type, path, pathStart, length, mCrc);
+    ++mRecordsNum;
+  }
+
+  private void open() throws IOException {
+    mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+    ByteBuffer header = ByteBuffer.allocate(SessionJournal.HEADER_SIZE);
+    SessionJournal.writeHeader(header);
+    header.flip();
+    mChannel.truncate(0);
+    while (header.hasRemaining())
+      mChannel.write(header);
+  }
+}
@@ -0,0 +1,247 @@
+package com.ru.cameraimu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The metrics of one capture session: named streams (see StreamMetrics), named latency
+// histograms, histograms of other values such as sizes, counters, and free form info such as
+// the device model, exported together as JSON so that sessions from different devices can be
+// compared. readInfo() reads the info back, e.g. for the offline tools.
+//
+// Streams and histograms are registered when the session is set up; recording into them is
+// lock-free, only the registry itself is synchronized.
+public class SessionMetrics {
+
+  public static final String FILENAME = "metrics.json";
+
+  // Info read back by the offline tools: the clock of the frame timestamps, "sensor" or "host",
+  // and what to add to host clock frame timestamps to get them on the sensor clock
+  public static final String INFO_FRAME_CLOCK = "frame_clock";
+  public static final String INFO_FRAME_OFFSET_NANOS = "frame_offset_ns";
+
+  // Percentiles exported for every histogram, next to count, min, mean and max
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final Map<String, String> mInfo = new LinkedHashMap<>();
+  private final Map<String, StreamMetrics> mStreams = new LinkedHashMap<>();
+  private final Map<String, LatencyHistogram> mLatencies = new LinkedHashMap<>();
+  private final Map<String, LatencyHistogram> mHistograms = new LinkedHashMap<>();
+  private final Map<String, AtomicLong> mCounters = new LinkedHashMap<>();
+
+  public synchronized void putInfo(String key, String value) { mInfo.put(key, value); }
+
+  // Created on first use
+  public synchronized StreamMetrics stream(String name) {
+    StreamMetrics stream = mStreams.get(name);
+    if (stream == null) {
+      stream = new StreamMetrics(name);
+      mStreams.put(name, stream);
+    }
+    return stream;
+  }
+
+  // Created on first use, values in nanoseconds
+  public synchronized LatencyHistogram latency(String name) {
+    LatencyHistogram latency = mLatencies.get(name);
+    if (latency == null) {
+      latency = new LatencyHistogram();
+      mLatencies.put(name, latency);
+    }
+    return latency;
+  }
+
+  // Created on first use, for values other than durations
+  public synchronized LatencyHistogram histogram(String name) {
+    LatencyHistogram histogram = mHistograms.get(name);
+    if (histogram == null) {
+      histogram = new LatencyHistogram();
+      mHistograms.put(name, histogram);
+    }
+    return histogram;
+  }
+
+  // Created on first use
+  public synchronized AtomicLong counter(String name) {
+    AtomicLong counter = mCounters.get(name);
+    if (counter == null) {
+      counter = new AtomicLong();
+      mCounters.put(name, counter);
+    }
+    return counter;
+  }
+
+  public synchronized String toJson() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\n  \"info\": {");
+    String separator = "\n";
+    for (Map.Entry<String, String> entry : mInfo.entrySet()) {
+      sb.append(separator).append("    ");
+      appendString(sb, entry.getKey()).append(": ");
+      appendString(sb, entry.getValue());
+      separator = ",\n";
+    }
+    sb.append("\n  },\n  \"streams\": {");
+    separator = "\n";
+    for (StreamMetrics stream : mStreams.values()) {
+      sb.append(separator).append("    ");
+      appendString(sb, stream.getName()).append(": {");
+      sb.append("\"samples\": ").append(stream.getSamplesNum());
+      sb.append(", \"rate_hz\": ").append(String.format(Locale.US, "%.4f", stream.getRateHz()));
+      sb.append(", \"dropped\": ").append(stream.getDroppedNum());
+      sb.append(", \"late\": ").append(stream.getLateNum());
+      sb.append(",\n      \"interval_ns\": ");
+      appendHistogram(sb, stream.getIntervals(), "      ");
+      sb.append('}');
+      separator = ",\n";
+    }
+    sb.append("\n  },\n  \"latencies_ns\": {");
+    separator = "\n";
+    for (Map.Entry<String, LatencyHistogram> entry : mLatencies.entrySet()) {
+      sb.append(separator).append("    ");
+      appendString(sb, entry.getKey()).append(": ");
+      appendHistogram(sb, entry.getValue(), "    ");
+      separator = ",\n";
+    }
+    sb.append("\n  },\n  \"histograms\": {");
+    separator = "\n";
+    for (Map.Entry<String, LatencyHistogram> entry : mHistograms.entrySet()) {
+      sb.append(separator).append("    ");
+      appendString(sb, entry.getKey()).append(": ");
+      appendHistogram(sb, entry.getValue(), "    ");
+      separator = ",\n";
+    }
+    sb.append("\n  },\n  \"counters\": {");
+    separator = "\n";
+    for (Map.Entry<String, AtomicLong> entry : mCounters.entrySet()) {
+      sb.append(separator).append("    ");
+      appendString(sb, entry.getKey()).append(": ").append(entry.getValue().get());
+      separator = ",\n";
+    }
+    return sb.append("\n  }\n}\n").toString();
+  }
+
+  public byte[] toJsonBytes() { return toJson().getBytes(UTF8); }
+
+  // The info of a file written from toJsonBytes()
+  public static Map<String, String> readInfo(File file) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) > 0)
+        bytes.write(buffer, 0, n);
+    } finally {
+      in.close();
+    }
+    return readInfo(new String(bytes.toByteArray(), UTF8));
+  }
+
+  // The info of JSON written by toJson(), only the string pairs of its info object are parsed
+  public static Map<String, String> readInfo(String json) throws IOException {
+    Map<String, String> info = new LinkedHashMap<>();
+    int[] pos = {json.indexOf("\"info\": {")};
+    if (pos[0] < 0)
+      throw new IOException("No info in the metrics");
+    pos[0] += "\"info\": {".length();
+    while (true) {
+      char c = next(json, pos);
+      if (c == '}')
+        return info;
+      if (c == ',')
+        continue;
+      --pos[0];
+      String key = readString(json, pos);
+      if (next(json, pos) != ':')
+        throw new IOException("Malformed metrics info at " + pos[0]);
+      info.put(key, readString(json, pos));
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (StreamMetrics stream : mStreams.values())
+      sb.append(sb.length() > 0 ? "; " : "").append(stream);
+    for (Map.Entry<String, LatencyHistogram> entry : mLatencies.entrySet())
+      sb.append(sb.length() > 0 ? "; " : "").append(entry.getKey()).append(": ").append(entry.getValue());
+    return sb.toString();
+  }
+
+  // Summary first, then the non-empty buckets as [lowest, highest, count] to merge or plot
+  private static void appendHistogram(final StringBuilder sb, LatencyHistogram histogram, String indent) {
+    sb.append("{\"count\": ").append(histogram.getCount());
+    sb.append(", \"min\": ").append(histogram.getMin());
+    sb.append(", \"mean\": ").append(String.format(Locale.US, "%.1f", histogram.getMean()));
+    for (int i = 0; i < PERCENTILES.length; ++i)
+      sb.append(", \"").append(PERCENTILE_NAMES[i]).append("\": ").append(histogram.valueAtPercentile(PERCENTILES[i]));
+    sb.append(", \"max\": ").append(histogram.getMax());
+    sb.append(",\n").append(indent).append(" \"buckets\": [");
+    final boolean[] first = {true};
+    histogram.forEachBucket(new LatencyHistogram.BucketVisitor() {
+      @Override
+      public void onBucket(long lowest, long highest, long count) {
+        if (!first[0])
+          sb.append(", ");
+        sb.append('[').append(lowest).append(", ").append(highest).append(", ").append(count).append(']');
+        first[0] = false;
+      }
+    });
+    sb.append("]}");
+  }
+
+  // The next character after whitespace, consumed
+  private static char next(String json, int[] pos) throws IOException {
+    while (pos[0] < json.length() && Character.isWhitespace(json.charAt(pos[0])))
+      ++pos[0];
+    if (pos[0] == json.length())
+      throw new IOException("Truncated metrics info");
+    return json.charAt(pos[0]++);
+  }
+
+  // Undoes appendString()
+  private static String readString(String json, int[] pos) throws IOException {
+    if (next(json, pos) != '"')
+      throw new IOException("Malformed metrics info at " + pos[0]);
+    StringBuilder sb = new StringBuilder();
+    try {
+      for (char c; (c = json.charAt(pos[0]++)) != '"'; ) {
+        if (c == '\\') {
+          c = json.charAt(pos[0]++);
+          if (c == 'u') {
+            c = (char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16);
+            pos[0] += 4;
+          }
+        }
+        sb.append(c);
+      }
+    } catch (IndexOutOfBoundsException | NumberFormatException e) {
+      throw new IOException("Malformed metrics info string at " + pos[0]);
+    }
+    return sb.toString();
+  }
+
+  private static StringBuilder appendString(StringBuilder sb, String s) {
+    sb.append('"');
+    for (int i = 0; i < s.length(); ++i) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\')
+        sb.append('\\').append(c);
+      else if (c < 0x20)
+        sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+      else
+        sb.append(c);
+    }
+    return sb.append('"');
+  }
+}
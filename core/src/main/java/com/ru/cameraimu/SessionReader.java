@@ -0,0 +1,642 @@
+package com.ru.cameraimu;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Reads a capture directory back as a single stream of IMU samples and camera frames in
+// timestamp order, for desktop tools that process or replay sessions (see SessionReplay).
+//
+// Every stream is read lazily through its own cursor and the cursors are k-way merged on a
+// small priority queue, so memory does not grow with the length of the session: IMU logs are
+// read in batches and frame data only when asked for. Both what the app writes now and the
+// legacy layout are understood:
+//   G.imu, A.imu, ...         binary IMU logs of the standard channels (see ImuChannelRegistry)
+//   G.imz, A.imz, ...         compressed IMU logs of the same (see CompressedImuLogWriter)
+//   G%08d.txt, A%08d.txt      legacy text chunks, e.g. from ImuLogConverter
+//   manifest.txt, IMG/*       encoded frames in commit order (see FileFrameCommitSink)
+//   IMG/%013d.<ext>           frames of sessions without a manifest
+//   IMG/RAW%08d.seg, .idx     raw frame segments (see RawFrameSegmentWriter)
+//
+// Frames are timestamped with the host clock and IMU samples with the sensor clock. They are
+// merged as recorded unless setFrameOffsetNanos() maps the frames onto the sensor clock.
+//
+// Not thread safe.
+public class SessionReader implements Closeable {
+
+  public static final String IMAGE_DIR = "IMG";
+  public static final char[] IMU_TYPES = ImuChannelRegistry.STANDARD_TYPES;
+
+  private static final int IMU_BATCH_SIZE = 1024;
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  public enum Kind { IMU, FRAME }
+
+  // Reused by the reader, only valid until the next call to next() or seek()
+  public static final class Event {
+    private Kind mKind;
+    private char mSensorType;
+    private long mTimestampNanos;
+    private long mRecordedNanos;
+    private float[] mValues;
+    private File mFrameFile;
+    private RawFrameSegmentReader mSegment;
+    private int mSegmentFrame;
+
+    public Kind kind() { return mKind; }
+    // The type of the IMU log, e.g. 'G' or 'A'
+    public char sensorType() { return mSensorType; }
+    // The merge order, i.e. the recorded timestamp plus the frame offset for frames
+    public long timestampNanos() { return mTimestampNanos; }
+    public long recordedNanos() { return mRecordedNanos; }
+    public float[] values() { return mValues; }
+    // Null for frames in raw segments
+    public File frameFile() { return mFrameFile; }
+
+    public byte[] readFrame() throws IOException {
+      if (mKind != Kind.FRAME)
+        throw new IllegalStateException("Not a frame: " + this);
+      if (mSegment != null) {
+        byte[] data = new byte[mSegment.getFormat().frameSize];
+        mSegment.readFrame(mSegmentFrame, data);
+        return data;
+      }
+      RandomAccessFile file = new RandomAccessFile(mFrameFile, "r");
+      try {
+        byte[] data = new byte[(int) file.length()];
+        file.readFully(data);
+        return data;
+      } finally {
+        file.close();
+      }
+    }
+
+    void setImu(char sensorType, float[] values, long timestampNanos) {
+      mKind = Kind.IMU;
+      mSensorType = sensorType;
+      mTimestampNanos = mRecordedNanos = timestampNanos;
+      mValues = values;
+      mFrameFile = null;
+      mSegment = null;
+    }
+
+    void setFrame(long timestampNanos, long recordedNanos, File file, RawFrameSegmentReader segment, int frame) {
+      mKind = Kind.FRAME;
+      mSensorType = 0;
+      mTimestampNanos = timestampNanos;
+      mRecordedNanos = recordedNanos;
+      mValues = null;
+      mFrameFile = file;
+      mSegment = segment;
+      mSegmentFrame = frame;
+    }
+
+    @Override
+    public String toString() {
+      return mKind == Kind.IMU ? mSensorType + " " + mTimestampNanos + " " + Arrays.toString(mValues)
+          : "frame " + mTimestampNanos + (mFrameFile != null ? " " + mFrameFile.getName() : "");
+    }
+  }
+
+  private final List<Cursor> mCursors = new ArrayList<>();
+  private final PriorityQueue<Cursor> mQueue;
+  private final Event mEvent = new Event();
+  private Cursor mFrames = null;
+  private Cursor mCurrent = null;  // The cursor of the event handed out last
+
+  public SessionReader(File dir) throws IOException {
+    if (!dir.isDirectory())
+      throw new IOException("Not a session directory: " + dir);
+    try {
+      // The rank breaks timestamp ties, IMU samples come before the frame they belong to
+      for (char type : IMU_TYPES) {
+        File log = new File(dir, type + ImuLogFormat.FILE_EXTENSION);
+        File compressed = new File(dir, type + CompressedImuLogWriter.FILE_EXTENSION);
+        File[] chunks = listTextChunks(dir, type);
+        if (log.isFile())
+          mCursors.add(new ImuLogCursor(new ImuLogReader(log, IMU_BATCH_SIZE), null, mCursors.size()));
+        else if (compressed.isFile())
+          mCursors.add(new ImuLogCursor(null, new CompressedImuLogReader(compressed), mCursors.size()));
+        else if (chunks.length > 0)
+          mCursors.add(new TextChunkCursor(type, chunks, mCursors.size()));
+      }
+      File imageDir = new File(dir, IMAGE_DIR);
+      File[] segments = RawFrameSegmentReader.listSegments(imageDir);
+      File manifest = new File(dir, FileFrameCommitSink.MANIFEST_FILENAME);
+      if (segments.length > 0)
+        mFrames = new RawSegmentCursor(segments, mCursors.size());
+      else if (manifest.isFile())
+        mFrames = new ManifestCursor(manifest, imageDir, mCursors.size());
+      else if (imageDir.isDirectory())
+        mFrames = new ImageDirCursor(imageDir, mCursors.size());
+      if (mFrames != null)
+        mCursors.add(mFrames);
+
+      mQueue = new PriorityQueue<>(Math.max(1, mCursors.size()), new Comparator<Cursor>() {
+        @Override
+        public int compare(Cursor a, Cursor b) {
+          long ta = a.key();
+          long tb = b.key();
+          return ta < tb ? -1 : ta > tb ? 1 : a.mRank - b.mRank;
+        }
+      });
+      refill();
+    } catch (IOException | RuntimeException e) {
+      try {
+        close();
+      } catch (IOException ignored) {
+        // The original failure is the one worth reporting
+      }
+      throw e;
+    }
+  }
+
+  public int getStreamsNum() { return mCursors.size(); }
+  public boolean hasFrames() { return mFrames != null; }
+
+  // Added to the frame timestamps to bring them onto the sensor clock, e.g. the clock offset
+  // estimated by the CameraImuSynchronizer. Applies to the events not handed out yet.
+  public void setFrameOffsetNanos(long offsetNanos) {
+    if (mFrames == null)
+      return;
+    mFrames.mOffsetNanos = offsetNanos;
+    List<Cursor> queued = new ArrayList<>(mQueue);
+    mQueue.clear();
+    mQueue.addAll(queued);
+  }
+
+  public long getFrameOffsetNanos() { return mFrames == null ? 0 : mFrames.mOffsetNanos; }
+
+  // The next event in timestamp order or null at the end of the session
+  public Event next() throws IOException {
+    if (mCurrent != null) {
+      if (mCurrent.advance())
+        mQueue.add(mCurrent);
+      mCurrent = null;
+    }
+    mCurrent = mQueue.poll();
+    if (mCurrent == null)
+      return null;
+    mCurrent.fill(mEvent);
+    return mEvent;
+  }
+
+  // Positions every stream so that next() returns the first event at or after timestampNanos
+  public void seek(long timestampNanos) throws IOException {
+    for (Cursor cursor : mCursors)
+      cursor.seek(timestampNanos - cursor.mOffsetNanos);
+    refill();
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException exception = null;
+    for (Cursor cursor : mCursors) {
+      try {
+        cursor.close();
+      } catch (IOException e) {
+        exception = e;
+      }
+    }
+    if (exception != null)
+      throw exception;
+  }
+
+  private void refill() throws IOException {
+    mQueue.clear();
+    mCurrent = null;
+    for (Cursor cursor : mCursors)
+      if (cursor.advance())
+        mQueue.add(cursor);
+  }
+
+  private static File[] listTextChunks(File dir, final char type) {
+    File[] chunks = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File d, String name) {
+        return name.length() == 13 && name.charAt(0) == type && name.endsWith(".txt")
+            && isDigits(name, 1, 9);
+      }
+    });
+    if (chunks == null)
+      return new File[0];
+    Arrays.sort(chunks);
+    return chunks;
+  }
+
+  private static boolean isDigits(String s, int start, int end) {
+    for (int i = start; i < end; ++i)
+      if (s.charAt(i) < '0' || s.charAt(i) > '9')
+        return false;
+    return start < end;
+  }
+
+  // One stream of the session. Positioned before its first item until advance() is called, a
+  // seek() may leave the item it stopped at pending for the next advance().
+  private abstract static class Cursor implements Closeable {
+    final int mRank;
+    long mOffsetNanos = 0;
+    long mTimestampNanos;
+    private boolean mPending = false;
+
+    Cursor(int rank) { mRank = rank; }
+
+    long key() { return mTimestampNanos + mOffsetNanos; }
+
+    // Moves to the next item, false at the end
+    final boolean advance() throws IOException {
+      if (mPending) {
+        mPending = false;
+        return true;
+      }
+      return moveNext();
+    }
+
+    abstract boolean moveNext() throws IOException;
+
+    // Positions the cursor before the first item at or after timestampNanos
+    abstract void seek(long timestampNanos) throws IOException;
+
+    abstract void fill(Event event);
+
+    // For cursors that can only seek by reading forward from some earlier item
+    void skipTo(long timestampNanos) throws IOException {
+      boolean found;
+      while ((found = moveNext()) && mTimestampNanos < timestampNanos)
+        continue;
+      mPending = found;
+    }
+
+    void clearPending() { mPending = false; }
+  }
+
+  // Over a binary log, or a compressed one read a block at a time
+  private static class ImuLogCursor extends Cursor implements ImuRingBuffer.Drain {
+    private final ImuLogReader mReader;
+    private final CompressedImuLogReader mCompressedReader;
+    private final char mType;
+    private final float[] mSample;
+    private float[][] mBatchValues;
+    private long[] mBatchTimestamps;
+    private int mBatchNext = 0;
+    private int mBatchEnd = 0;
+
+    // One of the readers is null, the cursor closes the other
+    ImuLogCursor(ImuLogReader reader, CompressedImuLogReader compressedReader, int rank) {
+      super(rank);
+      mReader = reader;
+      mCompressedReader = compressedReader;
+      ImuLogFormat format = reader != null ? reader.getFormat() : compressedReader.getFormat();
+      mType = format.sensorType;
+      mSample = new float[format.arity];
+    }
+
+    @Override
+    public void onSamples(float[][] values, long[] timestampsNanos, int offset, int count) {
+      mBatchValues = values;
+      mBatchTimestamps = timestampsNanos;
+      mBatchNext = offset;
+      mBatchEnd = offset + count;
+    }
+
+    @Override
+    boolean moveNext() throws IOException {
+      if (mBatchNext == mBatchEnd
+          && (mReader != null ? mReader.read(this) : mCompressedReader.read(this)) == 0)
+        return false;
+      int i = mBatchNext++;
+      mTimestampNanos = mBatchTimestamps[i];
+      for (int axis = 0; axis < mSample.length; ++axis)
+        mSample[axis] = mBatchValues[axis][i];
+      return true;
+    }
+
+    @Override
+    void seek(long timestampNanos) throws IOException {
+      clearPending();
+      mBatchNext = mBatchEnd = 0;
+      if (mReader != null) {
+        mReader.seek(mReader.ceilRecord(timestampNanos));
+      } else {
+        mCompressedReader.seekBlock(mCompressedReader.floorBlock(timestampNanos));
+        skipTo(timestampNanos);
+      }
+    }
+
+    @Override
+    void fill(Event event) { event.setImu(mType, mSample, mTimestampNanos); }
+
+    @Override
+    public void close() throws IOException {
+      if (mReader != null)
+        mReader.close();
+      else
+        mCompressedReader.close();
+    }
+  }
+
+  // Lines of "<value> ... <value> <timestamp>" spread over consecutive chunk files
+  private static class TextChunkCursor extends Cursor {
+    private final char mType;
+    private final File[] mChunks;
+    private int mNextChunk = 0;
+    private BufferedReader mReader = null;
+    private float[] mSample = new float[0];
+
+    TextChunkCursor(char type, File[] chunks, int rank) {
+      super(rank);
+      mType = type;
+      mChunks = chunks;
+    }
+
+    @Override
+    boolean moveNext() throws IOException {
+      while (true) {
+        if (mReader == null) {
+          if (mNextChunk == mChunks.length)
+            return false;
+          mReader = open(mChunks[mNextChunk++]);
+        }
+        String line = mReader.readLine();
+        if (line == null) {
+          mReader.close();
+          mReader = null;
+        } else if (!line.trim().isEmpty()) {
+          parse(line);
+          return true;
+        }
+      }
+    }
+
+    @Override
+    void seek(long timestampNanos) throws IOException {
+      clearPending();
+      if (mReader != null) {
+        mReader.close();
+        mReader = null;
+      }
+      // Start from the last chunk beginning at or before the target and read forward
+      int low = 0;
+      int high = mChunks.length - 1;
+      while (low < high) {
+        int mid = (low + high + 1) >>> 1;
+        if (firstTimestamp(mChunks[mid]) <= timestampNanos)
+          low = mid;
+        else
+          high = mid - 1;
+      }
+      mNextChunk = low;
+      skipTo(timestampNanos);
+    }
+
+    @Override
+    void fill(Event event) { event.setImu(mType, mSample, mTimestampNanos); }
+
+    @Override
+    public void close() throws IOException {
+      if (mReader != null)
+        mReader.close();
+    }
+
+    private void parse(String line) throws IOException {
+      String[] fields = line.trim().split("\\s+");
+      if (fields.length < 2)
+        throw new IOException("Malformed IMU line: " + line);
+      if (mSample.length != fields.length - 1)
+        mSample = new float[fields.length - 1];
+      try {
+        for (int axis = 0; axis < mSample.length; ++axis)
+          mSample[axis] = Float.parseFloat(fields[axis]);
+        mTimestampNanos = Long.parseLong(fields[mSample.length]);
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed IMU line: " + line);
+      }
+    }
+
+    // Long.MAX_VALUE for an empty chunk, which only makes the seek start earlier
+    private static long firstTimestamp(File chunk) throws IOException {
+      BufferedReader reader = open(chunk);
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (!line.isEmpty())
+            return Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+        }
+        return Long.MAX_VALUE;
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed IMU chunk: " + chunk);
+      } finally {
+        reader.close();
+      }
+    }
+
+    private static BufferedReader open(File file) throws IOException {
+      return new BufferedReader(new InputStreamReader(new FileInputStream(file), ASCII));
+    }
+  }
+
+  // "<sequence> <timestamp nanos> <file name> <bytes>" lines, in commit and so timestamp order
+  private static class ManifestCursor extends Cursor {
+    private final File mManifest;
+    private final File mImageDir;
+    private BufferedReader mReader;
+    private File mFile;
+
+    ManifestCursor(File manifest, File imageDir, int rank) throws IOException {
+      super(rank);
+      mManifest = manifest;
+      mImageDir = imageDir;
+      mReader = TextChunkCursor.open(manifest);
+    }
+
+    @Override
+    boolean moveNext() throws IOException {
+      String line;
+      while ((line = mReader.readLine()) != null) {
+        String[] fields = line.trim().split(" ");
+        if (fields.length < 3)
+          continue;
+        try {
+          mTimestampNanos = Long.parseLong(fields[1]);
+        } catch (NumberFormatException e) {
+          throw new IOException("Malformed manifest line: " + line);
+        }
+        mFile = new File(mImageDir, fields[2]);
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    void seek(long timestampNanos) throws IOException {
+      clearPending();
+      mReader.close();
+      mReader = TextChunkCursor.open(mManifest);
+      skipTo(timestampNanos);
+    }
+
+    @Override
+    void fill(Event event) { event.setFrame(key(), mTimestampNanos, mFile, null, 0); }
+
+    @Override
+    public void close() throws IOException { mReader.close(); }
+  }
+
+  // Frames named by their timestamp, only the names are held in memory
+  private static class ImageDirCursor extends Cursor {
+    private final File mDir;
+    private final String[] mNames;
+    private final long[] mTimestamps;
+    private int mNext = 0;
+
+    ImageDirCursor(File dir, int rank) {
+      super(rank);
+      mDir = dir;
+      String[] names = dir.list(new FilenameFilter() {
+        @Override
+        public boolean accept(File d, String name) {
+          int dot = name.indexOf('.');
+          return dot > 0 && isDigits(name, 0, dot);
+        }
+      });
+      if (names == null)
+        names = new String[0];
+      // Numeric order, the names are zero padded but may grow beyond the padding
+      Arrays.sort(names, new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+          int la = a.indexOf('.');
+          int lb = b.indexOf('.');
+          return la != lb ? la - lb : a.compareTo(b);
+        }
+      });
+      mNames = names;
+      mTimestamps = new long[names.length];
+      for (int i = 0; i < names.length; ++i)
+        mTimestamps[i] = Long.parseLong(names[i].substring(0, names[i].indexOf('.')));
+    }
+
+    @Override
+    boolean moveNext() {
+      if (mNext == mNames.length)
+        return false;
+      mTimestampNanos = mTimestamps[mNext++];
+      return true;
+    }
+
+    @Override
+    void seek(long timestampNanos) {
+      clearPending();
+      int i = Arrays.binarySearch(mTimestamps, timestampNanos);
+      if (i < 0)
+        i = -i - 1;
+      while (i > 0 && mTimestamps[i - 1] == timestampNanos)
+        --i;
+      mNext = i;
+    }
+
+    @Override
+    void fill(Event event) { event.setFrame(key(), mTimestampNanos, new File(mDir, mNames[mNext - 1]), null, 0); }
+
+    @Override
+    public void close() {}
+  }
+
+  // One segment is mapped at a time
+  private static class RawSegmentCursor extends Cursor {
+    private final File[] mSegments;
+    private int mNextSegment = 0;
+    private RawFrameSegmentReader mReader = null;
+    private int mFrame = -1;
+
+    RawSegmentCursor(File[] segments, int rank) {
+      super(rank);
+      mSegments = segments;
+    }
+
+    @Override
+    boolean moveNext() throws IOException {
+      while (mReader == null || mFrame + 1 >= mReader.getFrameCount()) {
+        if (mNextSegment == mSegments.length)
+          return false;
+        openSegment(mNextSegment++);
+        mFrame = -1;
+      }
+      mTimestampNanos = mReader.timestampAt(++mFrame);
+      return true;
+    }
+
+    @Override
+    void seek(long timestampNanos) throws IOException {
+      clearPending();
+      int low = 0;
+      int high = mSegments.length - 1;
+      while (low < high) {
+        int mid = (low + high + 1) >>> 1;
+        if (firstTimestamp(indexFile(mSegments[mid])) <= timestampNanos)
+          low = mid;
+        else
+          high = mid - 1;
+      }
+      mNextSegment = low;
+      if (mReader != null) {
+        mReader.close();
+        mReader = null;
+      }
+      if (mSegments.length > 0) {
+        openSegment(mNextSegment++);
+        mFrame = timestampNanos == Long.MIN_VALUE ? -1 : mReader.floorFrame(timestampNanos - 1);
+      }
+    }
+
+    @Override
+    void fill(Event event) { event.setFrame(key(), mTimestampNanos, null, mReader, mFrame); }
+
+    @Override
+    public void close() throws IOException {
+      if (mReader != null)
+        mReader.close();
+    }
+
+    private void openSegment(int segment) throws IOException {
+      if (mReader != null)
+        mReader.close();
+      mReader = null;
+      mReader = new RawFrameSegmentReader(mSegments[segment], indexFile(mSegments[segment]));
+    }
+
+    private static File indexFile(File segment) {
+      String name = segment.getName();
+      return new File(segment.getParentFile(),
+          name.substring(0, name.length() - RawSegmentFormat.SEGMENT_EXTENSION.length())
+          + RawSegmentFormat.INDEX_EXTENSION);
+    }
+
+    // The first index record, Long.MAX_VALUE for an empty segment
+    private static long firstTimestamp(File indexFile) throws IOException {
+      RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+      try {
+        if (file.length() < RawSegmentFormat.INDEX_RECORD_SIZE)
+          return Long.MAX_VALUE;
+        byte[] timestamp = new byte[8];
+        file.readFully(timestamp);
+        return ByteBuffer.wrap(timestamp).order(RawSegmentFormat.BYTE_ORDER).getLong();
+      } finally {
+        file.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package com.ru.cameraimu;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+// Plays a recorded session back through a Listener in timestamp order, either as fast as
+// possible or paced against the wall clock, e.g. at REAL_TIME to drive the same processing a
+// live capture would, such as a CameraImuSynchronizer (see synchronizerListener()).
+public class SessionReplay {
+
+  public interface Listener {
+    // The values are only valid during the call
+    void onImu(char sensorType, float[] values, long timestampNanos);
+    // The frame data can only be read during the call
+    void onFrame(SessionReader.Event frame);
+  }
+
+  public static final double REAL_TIME = 1;
+  public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+  private final SessionReader mReader;
+  private final double mSpeed;
+  private volatile boolean mStopped = false;
+  private volatile Thread mThread = null;
+
+  // speed is the ratio of session time to wall time
+  public SessionReplay(SessionReader reader, double speed) {
+    if (!(speed > 0))
+      throw new IllegalArgumentException("speed must be positive: " + speed);
+    mReader = reader;
+    mSpeed = speed;
+  }
+
+  // Replays from the reader's position until the end or stop(), returns the number of events
+  public long run(Listener listener) throws IOException, InterruptedException {
+    mThread = Thread.currentThread();
+    try {
+      long eventsNum = 0;
+      long firstNanos = 0;
+      long startNanos = 0;
+      SessionReader.Event event;
+      while (!mStopped && (event = mReader.next()) != null) {
+        if (mSpeed != MAX_SPEED) {
+          if (eventsNum == 0) {
+            firstNanos = event.timestampNanos();
+            startNanos = System.nanoTime();
+          } else {
+            long dueNanos = startNanos + (long) ((event.timestampNanos() - firstNanos) / mSpeed);
+            long waitNanos;
+            while (!mStopped && (waitNanos = dueNanos - System.nanoTime()) > 0) {
+              LockSupport.parkNanos(this, waitNanos);
+              if (Thread.interrupted())
+                throw new InterruptedException();
+            }
+            if (mStopped)
+              break;
+          }
+        }
+        if (event.kind() == SessionReader.Kind.IMU)
+          listener.onImu(event.sensorType(), event.values(), event.timestampNanos());
+        else
+          listener.onFrame(event);
+        ++eventsNum;
+      }
+      return eventsNum;
+    } finally {
+      mThread = null;
+    }
+  }
+
+  // From any thread, run() returns before its next event
+  public void stop() {
+    mStopped = true;
+    Thread thread = mThread;
+    if (thread != null)
+      LockSupport.unpark(thread);
+  }
+
+  // Feeds the synchronizer as the sensor and preview callbacks do during a capture. The host
+  // arrival time of the IMU samples is not recorded, it is taken to be their sensor timestamp
+  // less frameOffsetNanos, i.e. the offset the frames were merged with.
+  public static Listener synchronizerListener(final CameraImuSynchronizer synchronizer, final long frameOffsetNanos) {
+    return new Listener() {
+      @Override
+      public void onImu(char sensorType, float[] values, long timestampNanos) {
+        long hostNanos = timestampNanos - frameOffsetNanos;
+        if (sensorType == ImuChannelRegistry.GYROSCOPE)
+          synchronizer.addGyro(values[0], values[1], values[2], timestampNanos, hostNanos);
+        else if (sensorType == ImuChannelRegistry.ACCELEROMETER)
+          synchronizer.addAccel(values[0], values[1], values[2], timestampNanos, hostNanos);
+      }
+
+      @Override
+      public void onFrame(SessionReader.Event frame) { synchronizer.addFrame(frame.recordedNanos()); }
+    };
+  }
+}
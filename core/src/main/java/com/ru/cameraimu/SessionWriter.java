@@ -0,0 +1,620 @@
+package com.ru.cameraimu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+// Owns all disk output of a capture session under one directory, on a single I/O thread.
+//
+// Two kinds of producers feed it:
+//  - byte writes, either appended to a Stream or written as a whole file, are copied into
+//    recycled requests and queued. Producers block once more than maxQueuedBytes are queued,
+//    which bounds memory and pushes back on the frame encoder instead of piling up copies.
+//  - Sources, such as the IMU recorders, keep their own lock-free queues and are polled by the
+//    I/O thread, so their producers never block on it.
+// Every pass of the I/O thread takes everything queued at once and writes it in a batch.
+// Appended files grow in preallocated steps and are trimmed to their contents when closed.
+// Written data is made durable with fsync once syncBytes were written or syncIntervalMillis
+// passed since the last one, whichever comes first, and always when the session stops.
+// A non positive interval disables the periodic fsync altogether.
+// With a SessionJournalWriter, every fsync pass ends by journaling how much of each file it made
+// durable, so that a session cut short can be brought back to a consistent state.
+public class SessionWriter {
+
+  // Something that writes on its own, polled from the I/O thread
+  public interface Source {
+    // Writes whatever is pending and returns the number of bytes written
+    long drain() throws IOException;
+    // Makes everything drained so far durable
+    void sync() throws IOException;
+    // True once nothing more will come; the source is then drained, synced and closed a last time
+    boolean isFinished();
+    void close() throws IOException;
+  }
+
+  public static final class Stats {
+    public final long bytesWritten;
+    public final long writesNum;
+    public final long failedNum;
+    public final long meanWriteNanos;
+    public final long maxWriteNanos;
+    public final long syncsNum;
+    public final long meanSyncNanos;
+    public final long maxSyncNanos;
+    public final long queuedBytes;
+    public final long maxQueuedBytes;
+    public final double bytesPerSecond;
+
+    Stats(long bytesWritten, long writesNum, long failedNum, long writeNanos, long maxWriteNanos, long syncsNum,
+          long syncNanos, long maxSyncNanos, long queuedBytes, long maxQueuedBytes, long elapsedNanos) {
+      this.bytesWritten = bytesWritten;
+      this.writesNum = writesNum;
+      this.failedNum = failedNum;
+      this.meanWriteNanos = writesNum > 0 ? writeNanos / writesNum : 0;
+      this.maxWriteNanos = maxWriteNanos;
+      this.syncsNum = syncsNum;
+      this.meanSyncNanos = syncsNum > 0 ? syncNanos / syncsNum : 0;
+      this.maxSyncNanos = maxSyncNanos;
+      this.queuedBytes = queuedBytes;
+      this.maxQueuedBytes = maxQueuedBytes;
+      this.bytesPerSecond = elapsedNanos > 0 ? bytesWritten * 1e9 / elapsedNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "written %d bytes in %d writes (%.1f KiB/s, failed %d), write mean %.2f ms "
+              + "max %.2f ms, %d syncs mean %.2f ms max %.2f ms, queued %d bytes max %d",
+          bytesWritten, writesNum, bytesPerSecond / 1024, failedNum, meanWriteNanos / 1e6, maxWriteNanos / 1e6,
+          syncsNum, meanSyncNanos / 1e6, maxSyncNanos / 1e6, queuedBytes, maxQueuedBytes);
+    }
+  }
+
+  // An append only file of the session. Writes may come from any thread but are expected to be
+  // ordered by the caller; the file itself is only touched from the I/O thread.
+  public class Stream {
+    private final File mFile;
+    private RandomAccessFile mRandomAccessFile = null;
+    private FileChannel mChannel = null;
+    private long mPosition;
+    private long mAllocated;
+    private long mCommitted = -1;
+
+    private Stream(File file) { mFile = file; }
+
+    public File getFile() { return mFile; }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+      enqueue(Request.APPEND, this, null, data, offset, length);
+    }
+
+    public void write(byte[] data) throws IOException { write(data, 0, data.length); }
+
+    // Queued after the writes before it, the file is then trimmed and closed
+    public void close() throws IOException { enqueue(Request.CLOSE, this, null, null, 0, 0); }
+
+    private void append(byte[] data, int length) throws IOException {
+      if (mChannel == null) {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        mPosition = mAllocated = mChannel.size();
+        mOpenStreams.add(this);
+      }
+      if (mPosition + length > mAllocated) {
+        mAllocated = Math.max(mPosition + length, mAllocated + mPreallocateBytes);
+        mRandomAccessFile.setLength(mAllocated);
+      }
+      mPosition += writeFully(mChannel, data, length, mPosition);
+    }
+
+    private void sync() throws IOException {
+      if (mChannel == null)
+        return;
+      mChannel.force(false);
+      commit();
+    }
+
+    private void commit() throws IOException {
+      if (mJournal != null && mPosition != mCommitted) {
+        mJournal.commitStream(mFile, mPosition);
+        mCommitted = mPosition;
+      }
+    }
+
+    private void finish() throws IOException {
+      if (mChannel == null)
+        return;
+      mOpenStreams.remove(this);
+      try {
+        mChannel.truncate(mPosition);
+        if (mSyncIntervalNanos > 0) {
+          mChannel.force(false);
+          commit();
+        }
+      } finally {
+        mChannel = null;
+        mRandomAccessFile.close();
+      }
+    }
+  }
+
+  private static final class Request {
+    static final int APPEND = 0;
+    static final int WRITE_FILE = 1;
+    static final int CLOSE = 2;
+
+    int type;
+    Stream stream;
+    File file;
+    byte[] data = EMPTY;
+    int length;
+  }
+
+  public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 1000;
+  public static final long DEFAULT_SYNC_BYTES = 16 * 1024 * 1024;
+  public static final long DEFAULT_PREALLOCATE_BYTES = 4 * 1024 * 1024;
+  public static final long DEFAULT_MAX_QUEUED_BYTES = 32 * 1024 * 1024;
+
+  private static final byte[] EMPTY = new byte[0];
+  private static final long POLL_INTERVAL_MILLIS = 2;
+  private static final int IO_BUFFER_SIZE = 256 * 1024;
+  private static final int MAX_FREE_REQUESTS = 64;
+  // Whole files waiting for the next fsync are kept open, this many at most
+  private static final int MAX_UNSYNCED_FILES = 64;
+
+  // Directories of the sessions started in this process whose I/O thread has not exited yet
+  private static final Set<File> sActiveDirs = new HashSet<>();
+
+  private final File mDir;
+  private final long mSyncIntervalNanos;
+  private final long mSyncBytes;
+  private final long mPreallocateBytes;
+  private final long mMaxQueuedBytes;
+  private final Thread mThread;
+
+  private final Object mLock = new Object();
+  private ArrayDeque<Request> mQueue = new ArrayDeque<>();
+  private final ArrayDeque<Request> mFreeRequests = new ArrayDeque<>();
+  private long mQueuedBytes = 0;
+  private long mMaxQueuedBytesSeen = 0;
+  private boolean mStopping = false;
+
+  private final List<Source> mSources = new CopyOnWriteArrayList<>();
+
+  // Only touched from the I/O thread
+  private final List<Stream> mOpenStreams = new ArrayList<>();
+  private final List<RandomAccessFile> mUnsyncedFiles = new ArrayList<>();
+  private final ByteBuffer mIoBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+  private long mUnsyncedBytes = 0;
+  private long mLastSyncNanos;
+
+  private volatile long mBytesWritten = 0;
+  private volatile long mWritesNum = 0;
+  private volatile long mFailedNum = 0;
+  private volatile long mWriteNanos = 0;
+  private volatile long mMaxWriteNanos = 0;
+  private volatile long mSyncsNum = 0;
+  private volatile long mSyncNanos = 0;
+  private volatile long mMaxSyncNanos = 0;
+  private volatile long mStartNanos = 0;
+  private volatile long mEndNanos = 0;
+  private volatile IOException mException = null;
+  private volatile LatencyHistogram mWriteLatency = null;
+  private volatile LatencyHistogram mSyncLatency = null;
+  private volatile SessionIndexWriter mIndex = null;
+  private volatile SessionJournalWriter mJournal = null;
+
+  public SessionWriter(File dir) {
+    this(dir, DEFAULT_SYNC_INTERVAL_MILLIS, DEFAULT_SYNC_BYTES, DEFAULT_PREALLOCATE_BYTES, DEFAULT_MAX_QUEUED_BYTES);
+  }
+
+  public SessionWriter(File dir, long syncIntervalMillis, long syncBytes, long preallocateBytes, long maxQueuedBytes) {
+    if (maxQueuedBytes <= 0 || preallocateBytes < 0)
+      throw new IllegalArgumentException("Invalid sizes " + preallocateBytes + ", " + maxQueuedBytes);
+    mDir = dir;
+    mSyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+    mSyncBytes = syncBytes;
+    mPreallocateBytes = preallocateBytes;
+    mMaxQueuedBytes = maxQueuedBytes;
+    mThread = new Thread(new Runnable() {
+      @Override
+      public void run() { writeLoop(); }
+    }, "SessionWriter");
+  }
+
+  // Records the duration of every write and fsync pass from now on, either may be null
+  public void setLatencyHistograms(LatencyHistogram write, LatencyHistogram sync) {
+    mWriteLatency = write;
+    mSyncLatency = sync;
+  }
+
+  // Before start(). The index is flushed on every pass, synced with the files and completed
+  // once everything else is closed.
+  public void setIndex(SessionIndexWriter index) { mIndex = index; }
+
+  public SessionIndexWriter getIndex() { return mIndex; }
+
+  // Before start(). The journal is synced after the files on every fsync pass and ended once
+  // everything else is closed.
+  public void setJournal(SessionJournalWriter journal) { mJournal = journal; }
+
+  public SessionJournalWriter getJournal() { return mJournal; }
+
+  // The share of the queue in use, above 1 only for an oversized write
+  public double getBacklog() {
+    synchronized (mLock) {
+      return (double) mQueuedBytes / mMaxQueuedBytes;
+    }
+  }
+
+  public File getDir() { return mDir; }
+
+  public File file(String relativePath) { return new File(mDir, relativePath); }
+
+  public void start() {
+    mStartNanos = mLastSyncNanos = System.nanoTime();
+    synchronized (sActiveDirs) {
+      sActiveDirs.add(mDir.getAbsoluteFile());
+    }
+    mThread.start();
+  }
+
+  // Whether a session of this process is still writing to dir, which must then not be recovered
+  public static boolean isActive(File dir) {
+    synchronized (sActiveDirs) {
+      return sActiveDirs.contains(dir.getAbsoluteFile());
+    }
+  }
+
+  public Stream openStream(String relativePath) { return new Stream(file(relativePath)); }
+
+  public void addSource(Source source) { mSources.add(source); }
+
+  // Adds a recorder of the IMU log of format.sensorType, indexed and journaled with the session
+  public ImuStreamRecorder addLog(String name, ImuLogFormat format, int queueCapacity) {
+    return addLog(name, format, queueCapacity, null, null);
+  }
+
+  // The same with the log compressed and written under a flush policy, either may be null
+  public ImuStreamRecorder addLog(String name, ImuLogFormat format, int queueCapacity, ImuBlockCodec.Mode compression,
+                                  FlushPolicy flushPolicy) {
+    ImuStreamRecorder recorder = new ImuStreamRecorder(name,
+        file(ImuStreamRecorder.logFilename(format.sensorType, compression)), format, queueCapacity);
+    recorder.setIndex(mIndex);
+    recorder.setJournal(mJournal);
+    recorder.setCompression(compression);
+    recorder.setFlushPolicy(flushPolicy);
+    addSource(recorder);
+    return recorder;
+  }
+
+  // Writes data as the whole contents of the file at relativePath, replacing it.
+  // The directories must exist.
+  public void writeFile(String relativePath, byte[] data, int offset, int length) throws IOException {
+    enqueue(Request.WRITE_FILE, null, file(relativePath), data, offset, length);
+  }
+
+  // No more writes may be queued, the thread exits once the queue is written and every source
+  // finished. Does not wait, see awaitTermination().
+  public void stop() {
+    synchronized (mLock) {
+      mStopping = true;
+      mLock.notifyAll();
+    }
+  }
+
+  public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+    mThread.join(timeoutMillis);
+    return !mThread.isAlive();
+  }
+
+  // The first write failure, if any, cleared on return
+  public IOException takeException() {
+    IOException e = mException;
+    mException = null;
+    return e;
+  }
+
+  public Stats getStats() {
+    long queuedBytes;
+    long maxQueuedBytes;
+    synchronized (mLock) {
+      queuedBytes = mQueuedBytes;
+      maxQueuedBytes = mMaxQueuedBytesSeen;
+    }
+    long end = mEndNanos != 0 ? mEndNanos : System.nanoTime();
+    return new Stats(mBytesWritten, mWritesNum, mFailedNum, mWriteNanos, mMaxWriteNanos, mSyncsNum, mSyncNanos,
+        mMaxSyncNanos, queuedBytes, maxQueuedBytes, mStartNanos != 0 ? end - mStartNanos : 0);
+  }
+
+  private void enqueue(int type, Stream stream, File file, byte[] data, int offset, int length) throws IOException {
+    synchronized (mLock) {
+      if (mStopping)
+        throw new IOException("Session writer is stopped");
+      // An oversized write still goes through once the queue is empty
+      while (mQueuedBytes > 0 && mQueuedBytes + length > mMaxQueuedBytes) {
+        try {
+          mLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for the session writer");
+        }
+      }
+
+      Request request = mFreeRequests.poll();
+      if (request == null)
+        request = new Request();
+      if (request.data.length < length)
+        request.data = new byte[length];
+      if (length > 0)
+        System.arraycopy(data, offset, request.data, 0, length);
+      request.type = type;
+      request.stream = stream;
+      request.file = file;
+      request.length = length;
+
+      mQueue.add(request);
+      mQueuedBytes += length;
+      mMaxQueuedBytesSeen = Math.max(mMaxQueuedBytesSeen, mQueuedBytes);
+      mLock.notifyAll();
+    }
+  }
+
+  private void writeLoop() {
+    ArrayDeque<Request> batch = new ArrayDeque<>();
+    try {
+      while (true) {
+        boolean stopping;
+        synchronized (mLock) {
+          // stop() and new requests wake the thread up early, sources are polled
+          if (mQueue.isEmpty())
+            mLock.wait(POLL_INTERVAL_MILLIS);
+          ArrayDeque<Request> queued = mQueue;
+          mQueue = batch;
+          batch = queued;
+          stopping = mStopping;
+        }
+
+        long batchBytes = 0;
+        for (Request request : batch) {
+          perform(request);
+          batchBytes += request.length;
+        }
+        synchronized (mLock) {
+          for (Request request : batch) {
+            request.stream = null;
+            request.file = null;
+            if (mFreeRequests.size() < MAX_FREE_REQUESTS)
+              mFreeRequests.add(request);
+          }
+          mQueuedBytes -= batchBytes;
+          mLock.notifyAll();
+        }
+        boolean hadRequests = !batch.isEmpty();
+        batch.clear();
+
+        for (Source source : mSources) {
+          // Checked before the drain so that a source finishing in between is drained again
+          boolean finished = source.isFinished();
+          drain(source);
+          if (finished) {
+            mSources.remove(source);
+            sync(source);
+            close(source);
+          }
+        }
+
+        flushIndex();
+
+        long now = System.nanoTime();
+        if (mSyncIntervalNanos > 0 && (mUnsyncedBytes >= mSyncBytes || mUnsyncedFiles.size() >= MAX_UNSYNCED_FILES
+            || (mUnsyncedBytes > 0 && now - mLastSyncNanos >= mSyncIntervalNanos)))
+          syncAll();
+
+        if (stopping && !hadRequests && mSources.isEmpty()) {
+          synchronized (mLock) {
+            if (!mQueue.isEmpty())
+              continue;
+          }
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      syncAll();
+      for (Source source : mSources)
+        close(source);
+      for (Stream stream : new ArrayList<>(mOpenStreams)) {
+        try {
+          stream.finish();
+        } catch (IOException e) {
+          fail(e);
+        }
+      }
+      if (mIndex != null) {
+        try {
+          mIndex.close();
+        } catch (IOException e) {
+          fail(e);
+        }
+      }
+      if (mJournal != null) {
+        try {
+          mJournal.close();
+        } catch (IOException e) {
+          fail(e);
+        }
+      }
+      mEndNanos = System.nanoTime();
+      synchronized (sActiveDirs) {
+        sActiveDirs.remove(mDir.getAbsoluteFile());
+      }
+    }
+  }
+
+  private void perform(Request request) {
+    long start = System.nanoTime();
+    try {
+      switch (request.type) {
+        case Request.APPEND:
+          request.stream.append(request.data, request.length);
+          break;
+        case Request.WRITE_FILE:
+          writeWholeFile(request.file, request.data, request.length);
+          break;
+        case Request.CLOSE:
+          request.stream.finish();
+          return;
+      }
+    } catch (IOException e) {
+      fail(e);
+      return;
+    }
+    wrote(request.length, System.nanoTime() - start);
+  }
+
+  private void writeWholeFile(File file, byte[] data, int length) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      // Reserves the extent in one go and drops any longer previous contents
+      randomAccessFile.setLength(length);
+      writeFully(randomAccessFile.getChannel(), data, length, 0);
+      // Journaled once the pass that forces it out is over
+      if (mJournal != null)
+        mJournal.commitFile(file, length);
+    } catch (IOException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+    if (mSyncIntervalNanos > 0)
+      mUnsyncedFiles.add(randomAccessFile);
+    else
+      randomAccessFile.close();
+  }
+
+  private int writeFully(FileChannel channel, byte[] data, int length, long position) throws IOException {
+    int written = 0;
+    while (written < length) {
+      mIoBuffer.clear();
+      int chunk = Math.min(length - written, mIoBuffer.capacity());
+      mIoBuffer.put(data, written, chunk);
+      mIoBuffer.flip();
+      while (mIoBuffer.hasRemaining())
+        position += channel.write(mIoBuffer, position);
+      written += chunk;
+    }
+    return written;
+  }
+
+  private void drain(Source source) {
+    long start = System.nanoTime();
+    try {
+      long bytes = source.drain();
+      if (bytes > 0)
+        wrote(bytes, System.nanoTime() - start);
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void flushIndex() {
+    if (mIndex == null)
+      return;
+    try {
+      mIndex.flush();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void sync(Source source) {
+    try {
+      source.sync();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void close(Source source) {
+    try {
+      source.close();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void syncAll() {
+    long start = System.nanoTime();
+    for (Stream stream : mOpenStreams) {
+      try {
+        stream.sync();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+    for (RandomAccessFile file : mUnsyncedFiles) {
+      try {
+        file.getChannel().force(false);
+        file.close();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+    mUnsyncedFiles.clear();
+    for (Source source : mSources)
+      sync(source);
+    if (mIndex != null) {
+      try {
+        mIndex.sync();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+    // Last, so that it never covers more than what was forced out before it
+    if (mJournal != null) {
+      try {
+        mJournal.sync();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    long end = System.nanoTime();
+    mSyncsNum += 1;
+    mSyncNanos += end - start;
+    mMaxSyncNanos = Math.max(mMaxSyncNanos, end - start);
+    LatencyHistogram syncLatency = mSyncLatency;
+    if (syncLatency != null)
+      syncLatency.record(end - start);
+    mUnsyncedBytes = 0;
+    mLastSyncNanos = end;
+  }
+
+  private void wrote(long bytes, long nanos) {
+    mBytesWritten += bytes;
+    mUnsyncedBytes += bytes;
+    mWritesNum += 1;
+    mWriteNanos += nanos;
+    mMaxWriteNanos = Math.max(mMaxWriteNanos, nanos);
+    LatencyHistogram writeLatency = mWriteLatency;
+    if (writeLatency != null)
+      writeLatency.record(nanos);
+  }
+
+  private void fail(IOException e) {
+    mFailedNum += 1;
+    if (mException == null)
+      mException = e;
+  }
+}
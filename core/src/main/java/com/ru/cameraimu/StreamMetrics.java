@@ -0,0 +1,66 @@
+package com.ru.cameraimu;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Arrival statistics of one sample stream such as the camera frames or a sensor: its actual
+// rate, the distribution of the interval between consecutive samples (i.e. the jitter), and
+// the samples that were dropped or arrived late, i.e. not after the previous one.
+//
+// onSample() is meant to be called from the single thread delivering the stream, the counters
+// may be bumped and everything read from any thread. Nothing locks or allocates.
+public class StreamMetrics {
+
+  private final String mName;
+  private final LatencyHistogram mIntervals = new LatencyHistogram();
+  private final AtomicLong mDroppedNum = new AtomicLong();
+  private final AtomicLong mLateNum = new AtomicLong();
+
+  // Only written by the delivering thread, mSamplesNum last
+  private volatile long mFirstNanos;
+  private volatile long mLastNanos;
+  private volatile long mSamplesNum = 0;
+
+  public StreamMetrics(String name) { mName = name; }
+
+  public String getName() { return mName; }
+
+  public void onSample(long timestampNanos) {
+    long samplesNum = mSamplesNum;
+    if (samplesNum == 0) {
+      mFirstNanos = timestampNanos;
+    } else {
+      long interval = timestampNanos - mLastNanos;
+      if (interval <= 0) {
+        mLateNum.incrementAndGet();
+        return;
+      }
+      mIntervals.record(interval);
+    }
+    mLastNanos = timestampNanos;
+    mSamplesNum = samplesNum + 1;
+  }
+
+  public void onDropped() { mDroppedNum.incrementAndGet(); }
+
+  public void addDropped(long droppedNum) { mDroppedNum.addAndGet(droppedNum); }
+
+  public long getSamplesNum() { return mSamplesNum; }
+  public long getDroppedNum() { return mDroppedNum.get(); }
+  public long getLateNum() { return mLateNum.get(); }
+  public LatencyHistogram getIntervals() { return mIntervals; }
+
+  // Over the whole stream, from its first to its last sample
+  public double getRateHz() {
+    long samplesNum = mSamplesNum;
+    long span = mLastNanos - mFirstNanos;
+    return samplesNum < 2 || span <= 0 ? 0 : (samplesNum - 1) * 1e9 / span;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US, "%s: %d samples at %.2f Hz, dropped %d, late %d, interval p50 %.3f ms"
+            + " p99 %.3f ms max %.3f ms", mName, getSamplesNum(), getRateHz(), getDroppedNum(), getLateNum(),
+        mIntervals.valueAtPercentile(50) / 1e6, mIntervals.valueAtPercentile(99) / 1e6, mIntervals.getMax() / 1e6);
+  }
+}
@@ -0,0 +1,209 @@
+package com.ru.cameraimu;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CameraImuSynchronizerTest {
+
+  private static final long OFFSET = 5000000000L;
+  private static final long IMU_PERIOD = 5000000L;
+  private static final long FRAME_PERIOD = 33333333L;
+  private static final double RATE_Z = 1.0;
+
+  private static class Recorder implements CameraImuSynchronizer.Listener {
+    final List<long[]> stamps = new ArrayList<>();
+    final List<float[]> accels = new ArrayList<>();
+    final List<double[]> orientations = new ArrayList<>();
+    int invalidNum = 0;
+
+    @Override
+    public void onFrameSynced(CameraImuSynchronizer.SyncedFrame frame) {
+      if (!frame.isValid()) {
+        ++invalidNum;
+        return;
+      }
+      stamps.add(new long[] {frame.hostNanos(), frame.sensorNanos()});
+      accels.add(frame.accel().clone());
+      orientations.add(frame.orientation().clone());
+    }
+  }
+
+  // Accelerometer ramps linearly in x, gyroscope spins at a constant rate about z
+  private static float accelX(long sensorNanos) { return sensorNanos * 1e-9f; }
+
+  private static void run(CameraImuSynchronizer sync, long durationNanos, int burstSize, long seed) {
+    run(sync, durationNanos, burstSize, seed, false);
+  }
+
+  // Feeds IMU samples in shuffled bursts of burstSize and frames at 30 Hz, all in host time order,
+  // the frames stamped in host or sensor clock
+  private static void run(CameraImuSynchronizer sync, long durationNanos, int burstSize, long seed,
+                          boolean framesOnSensorClock) {
+    Random random = new Random(seed);
+    List<Long> burst = new ArrayList<>();
+    long nextFrame = OFFSET + FRAME_PERIOD;
+    for (long t = 0; t < durationNanos; t += IMU_PERIOD) {
+      burst.add(t);
+      if (burst.size() < burstSize)
+        continue;
+      // The whole burst is delivered at once, shortly after its last sample
+      long deliveredNanos = t + OFFSET + 200000 + random.nextInt(1000000);
+      while (nextFrame < deliveredNanos) {
+        sync.addFrame(framesOnSensorClock ? nextFrame - OFFSET : nextFrame);
+        nextFrame += FRAME_PERIOD;
+      }
+      Collections.shuffle(burst, random);
+      for (long s : burst) {
+        sync.addGyro(0, 0, (float) RATE_Z, s, deliveredNanos);
+        sync.addAccel(accelX(s), 0, 9.81f, s, deliveredNanos);
+      }
+      burst.clear();
+    }
+  }
+
+  private static void checkFrames(Recorder recorder, double toleranceNanos) {
+    assertFalse(recorder.stamps.isEmpty());
+    double[] rotation = new double[3];
+    for (int i = 0; i < recorder.stamps.size(); ++i) {
+      long[] stamps = recorder.stamps.get(i);
+      assertEquals(stamps[0] - OFFSET, stamps[1], toleranceNanos);
+      assertEquals(accelX(stamps[1]), recorder.accels.get(i)[0], 1e-6);
+
+      // The orientation is integrated from the first gyroscope sample at t = 0
+      Quaternion.toRotationVector(recorder.orientations.get(i), rotation);
+      assertEquals(0, rotation[0], 1e-6);
+      assertEquals(0, rotation[1], 1e-6);
+      double expected = Math.IEEEremainder(RATE_Z * stamps[1] * 1e-9, 2 * Math.PI);
+      assertEquals(expected, rotation[2], 1e-4);
+    }
+  }
+
+  @Test
+  public void framesAreAlignedWithBurstyOutOfOrderImu() throws Exception {
+    Recorder recorder = new Recorder();
+    CameraImuSynchronizer sync = new CameraImuSynchronizer(recorder);
+    run(sync, 10000000000L, 4, 7);
+
+    // 30 Hz over 10 s, every frame but the last few must already be out
+    assertTrue(recorder.stamps.size() > 290);
+    assertEquals(0, sync.getLateSamplesNum());
+    assertTrue(sync.getPendingFramesNum() <= 2);
+    checkFrames(recorder, 500000);
+  }
+
+  @Test
+  public void flushResolvesTheRemainingFrames() throws Exception {
+    Recorder recorder = new Recorder();
+    CameraImuSynchronizer sync = new CameraImuSynchronizer(recorder);
+    run(sync, 2000000000L, 1, 3);
+    sync.flush();
+    assertEquals(0, sync.getPendingFramesNum());
+    assertEquals(sync.getSyncedNum() + sync.getUnsyncedNum(), recorder.stamps.size() + recorder.invalidNum);
+    checkFrames(recorder, 500000);
+  }
+
+  @Test
+  public void framesOnSensorClockNeedNoClockOffset() throws Exception {
+    Recorder recorder = new Recorder();
+    CameraImuSynchronizer sync = new CameraImuSynchronizer(recorder);
+    sync.setFramesOnSensorClock(true);
+    run(sync, 2000000000L, 4, 11, true);
+    sync.flush();
+
+    assertTrue(recorder.stamps.size() > 55);
+    for (int i = 0; i < recorder.stamps.size(); ++i) {
+      long[] stamps = recorder.stamps.get(i);
+      assertEquals(stamps[0], stamps[1]);
+      assertEquals(accelX(stamps[1]), recorder.accels.get(i)[0], 1e-6);
+    }
+  }
+
+  @Test
+  public void motionBetweenFramesIsPreintegrated() throws Exception {
+    final List<double[]> orientations = new ArrayList<>();
+    final List<double[]> deltas = new ArrayList<>();
+    final List<Long> stamps = new ArrayList<>();
+    CameraImuSynchronizer sync = new CameraImuSynchronizer(new CameraImuSynchronizer.Listener() {
+      @Override
+      public void onFrameSynced(CameraImuSynchronizer.SyncedFrame frame) {
+        stamps.add(frame.sensorNanos());
+        orientations.add(frame.orientation().clone());
+        ImuPreintegrator preintegration = frame.preintegration();
+        if (preintegration == null) {
+          deltas.add(null);
+          return;
+        }
+        double[] q = new double[4];
+        preintegration.getDeltaRQuaternion(q);
+        deltas.add(new double[] {q[0], q[1], q[2], q[3], preintegration.getDeltaT()});
+      }
+    });
+    sync.setPreintegrator(new ImuPreintegrator());
+    run(sync, 3000000000L, 2, 5);
+
+    assertTrue(deltas.size() > 80);
+    assertNull(deltas.get(0));
+    double[] relative = new double[4];
+    for (int i = 1; i < deltas.size(); ++i) {
+      double[] delta = deltas.get(i);
+      assertEquals((stamps.get(i) - stamps.get(i - 1)) * 1e-9, delta[4], 1e-9);
+
+      // Orientation of the previous frame composed with the increment gives the current one
+      Quaternion.multiply(orientations.get(i - 1), delta, relative);
+      double dot = 0;
+      for (int k = 0; k < 4; ++k)
+        dot += relative[k] * orientations.get(i)[k];
+      assertEquals(1, Math.abs(dot), 1e-9);
+    }
+  }
+
+  @Test
+  public void framesWithoutImuAreReportedInvalid() throws Exception {
+    Recorder recorder = new Recorder();
+    CameraImuSynchronizer sync = new CameraImuSynchronizer(CameraImuSynchronizer.DEFAULT_REORDER_NANOS,
+        CameraImuSynchronizer.DEFAULT_HISTORY_CAPACITY, 4, recorder);
+    for (int i = 0; i < 6; ++i)
+      sync.addFrame(i * FRAME_PERIOD);
+    assertEquals(2, recorder.invalidNum);
+    assertEquals(4, sync.getPendingFramesNum());
+
+    sync.flush();
+    assertEquals(6, recorder.invalidNum);
+    assertEquals(6, sync.getUnsyncedNum());
+  }
+
+  @Test
+  public void samplesBehindTheWindowAreDropped() throws Exception {
+    CameraImuSynchronizer sync = new CameraImuSynchronizer(1000, 16, 4, null);
+    sync.addAccel(0, 0, 0, 10000, OFFSET);
+    sync.addAccel(0, 0, 0, 20000, OFFSET);
+    sync.addAccel(0, 0, 0, 5000, OFFSET);
+    sync.addAccel(0, 0, 0, 20000, OFFSET);
+    assertEquals(2, sync.getLateSamplesNum());
+  }
+
+  @Test
+  public void windowInterpolatesAndSlerps() throws Exception {
+    ImuStreamWindow window = new ImuStreamWindow(8, 8, 0, true);
+    window.add(0, 0, 2, 0);
+    window.add(0, 0, 2, 500000000L);
+    window.add(0, 0, 2, 1000000000L);
+
+    float[] values = new float[3];
+    double[] q = new double[4];
+    double[] rotation = new double[3];
+    assertTrue(window.interpolate(250000000L, values, q));
+    assertEquals(2, values[2], 0);
+    Quaternion.toRotationVector(q, rotation);
+    assertEquals(0.5, rotation[2], 1e-9);
+
+    assertFalse(window.interpolate(-1, values, q));
+    assertFalse(window.interpolate(1000000001L, values, q));
+  }
+}
@@ -0,0 +1,136 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CaptureBackendTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  private static final int W = 6;
+  private static final int H = 4;
+
+  private static int uvRowStride(int rowStride, int pixelStride) { return pixelStride == 2 ? rowStride : rowStride / 2; }
+
+  // The Y, U and V planes of the NV21 frame as an android.media.Image would hold them, rows
+  // padded to rowStride and chroma pixels pixelStride apart
+  private static ByteBuffer[] planes(byte[] nv21, int rowStride, int pixelStride) {
+    byte[] y = new byte[rowStride * H];
+    for (int row = 0; row < H; ++row)
+      System.arraycopy(nv21, row * W, y, row * rowStride, W);
+    int uvRowStride = uvRowStride(rowStride, pixelStride);
+    byte[] u = new byte[uvRowStride * H / 2 + 1];
+    byte[] v = new byte[uvRowStride * H / 2 + 1];
+    for (int row = 0; row < H / 2; ++row) {
+      for (int x = 0; x < W / 2; ++x) {
+        v[row * uvRowStride + x * pixelStride] = nv21[W * H + row * W + 2 * x];
+        u[row * uvRowStride + x * pixelStride] = nv21[W * H + row * W + 2 * x + 1];
+      }
+    }
+    return new ByteBuffer[] {ByteBuffer.wrap(y), ByteBuffer.wrap(u), ByteBuffer.wrap(v)};
+  }
+
+  @Test
+  public void yuv420PlanesConvertToNv21() throws Exception {
+    byte[] nv21 = new byte[Nv21.bufferSize(W, H)];
+    new Random(3).nextBytes(nv21);
+    int[][] layouts = {{W, 1}, {8, 1}, {W, 2}, {8, 2}};
+    for (int[] layout : layouts) {
+      ByteBuffer[] planes = planes(nv21, layout[0], layout[1]);
+      byte[] converted = new byte[nv21.length];
+      Nv21.fromYuv420(W, H, planes[0], layout[0], planes[1], planes[2],
+          uvRowStride(layout[0], layout[1]), layout[1], converted);
+      assertArrayEquals("row stride " + layout[0] + ", pixel stride " + layout[1], nv21, converted);
+    }
+  }
+
+  @Test
+  public void fakeFramesRunThroughTheEncodePipeline() throws Exception {
+    final int framesNum = 40;
+    final FakeCaptureBackend backend = new FakeCaptureBackend(32, 16, 2000000L);
+    backend.setSensorClockOffsetNanos(1000000000L);
+    backend.open();
+    assertTrue(backend.isSensorClock());
+    final FrameBufferPool pool = new FrameBufferPool(backend.getFrameBufferSize(), 6, backend.getBufferSink(6));
+    pool.prime();
+
+    File imageDir = mTmp.newFolder("IMG");
+    SessionWriter session = new SessionWriter(mTmp.getRoot());
+    session.start();
+    FileFrameCommitSink sink = new FileFrameCommitSink(session, "IMG", FrameFormat.GRAY);
+    final ParallelFrameEncoder encoder = new ParallelFrameEncoder(new LumaFrameCompressor(1, true), FrameFormat.GRAY,
+        95, new OrderedFrameCommitter(ParallelFrameEncoder.defaultWindow(2), sink));
+    final FrameEncodePipeline pipeline = new FrameEncodePipeline(encoder, 4, 2, FrameEncodePipeline.DropPolicy.DROP_OLDEST,
+        new FrameEncodePipeline.Listener() {
+      @Override
+      public void onFrameDone(FrameEncodePipeline.Frame frame, boolean encoded) {
+        encoder.onFrameDone(frame, encoded);
+        pool.recycle(frame.data());
+      }
+
+      @Override
+      public void onEncodeFailed(FrameEncodePipeline.Frame frame, Exception e) {}
+    });
+
+    final CountDownLatch delivered = new CountDownLatch(framesNum);
+    backend.startFrames(new CaptureBackend.FrameListener() {
+      @Override
+      public void onFrame(byte[] nv21, int width, int height, long timestampNanos) {
+        pool.onFrameReceived(nv21);
+        if (delivered.getCount() > 0)
+          pipeline.submit(nv21, width, height, timestampNanos);
+        else
+          pool.recycle(nv21);
+        delivered.countDown();
+      }
+    });
+    assertTrue(delivered.await(10, TimeUnit.SECONDS));
+    backend.release();
+    pipeline.shutdown();
+    assertTrue(pipeline.awaitTermination(10000));
+    sink.close();
+    session.stop();
+    assertTrue(session.awaitTermination(5000));
+    assertNull(session.takeException());
+
+    assertEquals(0, pool.getForeignNum());
+    assertEquals(pool.getReceivedNum(), pool.getRecycledNum());
+    assertEquals(backend.getDeliveredNum(), pool.getReceivedNum());
+    long committed = encoder.getCommitter().getCommittedNum();
+    assertEquals(framesNum - pipeline.getStats().dropped(), committed);
+
+    // Frames are 2 ms apart on a sensor clock a second behind the host clock, with the moving pattern
+    List<String> lines = Files.readAllLines(session.file(FileFrameCommitSink.MANIFEST_FILENAME).toPath());
+    assertEquals(committed, lines.size());
+    long now = System.nanoTime();
+    long first = Long.parseLong(lines.get(0).split(" ")[1]);
+    assertTrue(first < now - 1000000000L);
+    int headerSize = LumaPyramid.pgmHeader(32, 16).length;
+    byte[] expected = new byte[Nv21.bufferSize(32, 16)];
+    long firstIndex = -1;
+    for (String line : lines) {
+      String[] fields = line.split(" ");
+      long sinceFirst = Long.parseLong(fields[1]) - first;
+      assertEquals(0, sinceFirst % 2000000L);
+      byte[] pgm = Files.readAllBytes(new File(imageDir, fields[2]).toPath());
+      assertEquals(headerSize + 32 * 16, pgm.length);
+      if (firstIndex < 0)
+        firstIndex = pgm[headerSize] & 0xFF;
+      FakeCaptureBackend.fill(expected, 32, 16, firstIndex + sinceFirst / 2000000L);
+      for (int i = 0; i < 32 * 16; ++i)
+        assertEquals(expected[i], pgm[headerSize + i]);
+    }
+  }
+}
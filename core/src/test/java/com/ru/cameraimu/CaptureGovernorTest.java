@@ -0,0 +1,198 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CaptureGovernorTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  private static final long PERIOD = CaptureGovernor.DEFAULT_PERIOD_NANOS;
+  private static final long MS = 1000000L;
+
+  private long mNow = 0;
+
+  // Feeds the same load for the given number of periods, returns the level after each
+  private int[] run(CaptureGovernor governor, int periods, double backlog, long writeLatencyNanos,
+                    double frameRateHz, double temperature) {
+    int[] levels = new int[periods];
+    for (int i = 0; i < periods; ++i) {
+      mNow += PERIOD;
+      governor.update(mNow, backlog, writeLatencyNanos, frameRateHz, temperature);
+      levels[i] = governor.getLevel();
+    }
+    return levels;
+  }
+
+  private int[] idle(CaptureGovernor governor, int periods) {
+    return run(governor, periods, 0, 2 * MS, 30, 35);
+  }
+
+  @Test
+  public void idleCaptureRunsAtFullQuality() throws Exception {
+    CaptureGovernor governor = new CaptureGovernor(95);
+    idle(governor, 60);
+    run(governor, 60, 0.05, -1, 30, Double.NaN);
+
+    assertEquals(0, governor.getLevel());
+    assertEquals(95, governor.getQuality());
+    assertEquals(1, governor.getDecimation());
+    assertEquals(FlushPolicy.DEFAULT_MAX_AGE_NANOS, governor.getFlushAgeNanos());
+    assertEquals(0, governor.getStepsUpNum());
+  }
+
+  @Test
+  public void sustainedBacklogDegradesQualityThenFlushesThenFrames() throws Exception {
+    CaptureGovernor governor = new CaptureGovernor(95, 80, 3, 250 * MS, 1000 * MS);
+    assertEquals(3 + 2 + 2, governor.getMaxLevel());
+
+    run(governor, 3, 0.75, 2 * MS, 30, 35);
+    assertEquals(80, governor.getQuality());
+    assertEquals(250 * MS, governor.getFlushAgeNanos());
+    assertEquals(1, governor.getDecimation());
+
+    run(governor, 2, 0.75, 2 * MS, 30, 35);
+    assertEquals(1000 * MS, governor.getFlushAgeNanos());
+    assertEquals(1, governor.getDecimation());
+
+    // Bounded however long the load lasts
+    run(governor, 20, 0.75, 2 * MS, 30, 35);
+    assertEquals(governor.getMaxLevel(), governor.getLevel());
+    assertEquals(80, governor.getQuality());
+    assertEquals(3, governor.getDecimation());
+    assertEquals(7, governor.getStepsUpNum());
+
+    // One level back every RELAX_UPDATES periods of low load, frames come back first
+    int[] levels = idle(governor, CaptureGovernor.RELAX_UPDATES);
+    assertEquals(7, levels[CaptureGovernor.RELAX_UPDATES - 2]);
+    assertEquals(6, levels[CaptureGovernor.RELAX_UPDATES - 1]);
+    assertEquals(2, governor.getDecimation());
+    idle(governor, 6 * CaptureGovernor.RELAX_UPDATES);
+    assertEquals(0, governor.getLevel());
+    assertEquals(95, governor.getQuality());
+    assertEquals(7, governor.getStepsDownNum());
+  }
+
+  @Test
+  public void loadBetweenTheThresholdsHoldsTheLevel() throws Exception {
+    CaptureGovernor governor = new CaptureGovernor(95);
+    run(governor, 2, 0, 2 * MS, 30, 45);
+    assertEquals(2, governor.getLevel());
+
+    // Warm and with some write latency, but neither is high
+    run(governor, 30, 0, 30 * MS, 30, 41);
+    assertEquals(2, governor.getLevel());
+    // A single low period among moderate ones does not relax
+    for (int i = 0; i < 10; ++i) {
+      run(governor, CaptureGovernor.RELAX_UPDATES - 1, 0, 2 * MS, 30, 35);
+      run(governor, 1, 0, 2 * MS, 30, 41);
+    }
+    assertEquals(2, governor.getLevel());
+    idle(governor, CaptureGovernor.RELAX_UPDATES);
+    assertEquals(1, governor.getLevel());
+  }
+
+  @Test
+  public void throttledCameraAndSlowWritesRaiseTheLevel() throws Exception {
+    CaptureGovernor governor = new CaptureGovernor(95);
+    idle(governor, 10);
+    // The camera falls from 30 to 24 Hz as the device heats up and the encoder lags behind
+    run(governor, 1, 0.25, 2 * MS, 24, 38);
+    assertEquals(1 - 24 / (30 * CaptureGovernor.PEAK_RATE_RETENTION), governor.getFrameDeficit(), 1e-9);
+    assertEquals(1, governor.getLevel());
+    run(governor, 1, 0, 80 * MS, 30, 38);
+    assertEquals(2, governor.getLevel());
+    assertEquals(85, governor.getQuality());
+  }
+
+  @Test
+  public void cameraSlowingDownOnItsOwnIsNoLoad() throws Exception {
+    CaptureGovernor governor = new CaptureGovernor(95);
+    idle(governor, 10);
+    // Longer exposures in low light halve the frame rate, nothing else is loaded
+    run(governor, 60, 0, 2 * MS, 15, 35);
+    assertEquals(0, governor.getLevel());
+    assertEquals(0, governor.getStepsUpNum());
+    // The peak has decayed to the new rate, which is no deficit anymore
+    assertTrue(governor.getFrameDeficit() < CaptureGovernor.FRAME_DEFICIT_LOW);
+  }
+
+  @Test
+  public void deficitRelaxesOnceThePeakHasDecayed() throws Exception {
+    CaptureGovernor governor = new CaptureGovernor(95);
+    idle(governor, 10);
+    run(governor, 1, 0.25, 20 * MS, 15, 35);
+    assertEquals(1, governor.getLevel());
+    // The rate stays low but the strain is gone, the deficit fades and the level comes back
+    run(governor, 60, 0, 2 * MS, 15, 35);
+    assertEquals(0, governor.getLevel());
+  }
+
+  @Test
+  public void decimationAdmitsEveryNthFrame() throws Exception {
+    CaptureGovernor governor = new CaptureGovernor(80, 80, 3, 250 * MS, 250 * MS);
+    for (int i = 0; i < 10; ++i)
+      assertTrue(governor.admit());
+    run(governor, 2, 1, 2 * MS, 30, 35);
+    assertEquals(3, governor.getDecimation());
+    int admitted = 0;
+    for (int i = 0; i < 30; ++i)
+      if (governor.admit())
+        ++admitted;
+    assertEquals(10, admitted);
+  }
+
+  @Test
+  public void adjustmentsAreAppliedLoggedAndCounted() throws Exception {
+    File dir = mTmp.newFolder();
+    SessionWriter session = new SessionWriter(dir);
+    SessionMetrics metrics = new SessionMetrics();
+    ParallelFrameEncoder encoder = new ParallelFrameEncoder(null, FrameFormat.JPEG, 95, null);
+    FlushPolicy policy = new FlushPolicy(session);
+    CaptureGovernor governor = new CaptureGovernor(95, 90, 2, 250 * MS, 500 * MS);
+    governor.setEncoder(encoder);
+    governor.addFlushPolicy(policy);
+    governor.setMetrics(metrics);
+    governor.startLog(session);
+    session.start();
+    run(governor, 3, 0.75, 2 * MS, 30, 35);
+    idle(governor, 20);
+    governor.stopLog();
+    session.stop();
+    assertTrue(session.awaitTermination(5000));
+    assertNull(session.takeException());
+
+    assertEquals(95, encoder.getQuality());
+    assertEquals(250 * MS, policy.getMaxAgeNanos());
+    assertEquals(3, metrics.counter("governor_steps_up").get());
+    assertEquals(3, metrics.counter("governor_steps_down").get());
+    final float[][] records = new float[6][];
+    ImuLogReader log = new ImuLogReader(new File(dir, CaptureGovernor.LOG_FILENAME));
+    assertTrue(log.getFormat().isCompatibleWith(CaptureGovernor.logFormat()));
+    assertEquals(6, log.readAll(new ImuRingBuffer.Drain() {
+      private int mNum = 0;
+
+      @Override
+      public void onSamples(float[][] values, long[] timestampsNanos, int offset, int count) {
+        for (int i = offset; i < offset + count; ++i) {
+          records[mNum] = new float[CaptureGovernor.LOG_ARITY];
+          for (int j = 0; j < CaptureGovernor.LOG_ARITY; ++j)
+            records[mNum][j] = values[j][i];
+          ++mNum;
+        }
+      }
+    }));
+    log.close();
+    // Level, quality, decimation, flush age at the top of the load
+    assertArrayEquals(new float[] {3, 90, 2, 500}, Arrays.copyOf(records[2], 4), 0f);
+    assertEquals(0.75f, records[2][4], 1e-6f);
+    assertArrayEquals(new float[] {0, 95, 1, 250}, Arrays.copyOf(records[5], 4), 0f);
+  }
+}
@@ -0,0 +1,59 @@
+package com.ru.cameraimu;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ClockOffsetEstimatorTest {
+
+  private static final long OFFSET = 123456789000L;
+
+  @Test
+  public void constantOffsetIsTheLatencyFloor() throws Exception {
+    ClockOffsetEstimator clock = new ClockOffsetEstimator();
+    assertFalse(clock.hasEstimate());
+
+    Random random = new Random(1);
+    for (long t = 0; t < 3000000000L; t += 5000000L)
+      clock.addObservation(t, t + OFFSET + 100000 + random.nextInt(2000000));
+
+    assertTrue(clock.hasEstimate());
+    assertEquals(OFFSET + 100000, clock.offsetAt(2000000000L), 50000);
+    assertEquals(0, clock.getDriftPpm(), 50);
+  }
+
+  @Test
+  public void driftIsTracked() throws Exception {
+    ClockOffsetEstimator clock = new ClockOffsetEstimator();
+    double drift = 200e-6;
+    Random random = new Random(2);
+    long t = 0;
+    for (; t < 20000000000L; t += 5000000L)
+      clock.addObservation(t, t + OFFSET + Math.round(drift * t) + random.nextInt(1000000));
+
+    assertEquals(200, clock.getDriftPpm(), 20);
+    assertEquals(OFFSET + Math.round(drift * t), clock.offsetAt(t), 100000);
+    long host = t + clock.offsetAt(t);
+    assertEquals(t, clock.toSensorNanos(host), 1);
+    assertEquals(host, clock.toHostNanos(t));
+  }
+
+  @Test
+  public void outOfOrderObservationsInsideTheWindowCount() throws Exception {
+    ClockOffsetEstimator clock = new ClockOffsetEstimator(1000, 4);
+    clock.addObservation(3500, 3500 + OFFSET + 700);
+    clock.addObservation(3100, 3100 + OFFSET + 200);
+    assertEquals(OFFSET + 200, clock.offsetAt(3500));
+
+    // Outside of the window and ignored
+    clock.addObservation(-1000, -1000 + OFFSET);
+    assertEquals(OFFSET + 200, clock.offsetAt(3500));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void noEstimateWithoutObservations() throws Exception {
+    new ClockOffsetEstimator().offsetAt(0);
+  }
+}
@@ -0,0 +1,137 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class FlushPolicyTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  private static final long MAX_AGE = 250000000L;
+  private static final long POLL = 2000000L;  // As often as the I/O thread looks
+
+  // Feeds a stream of bytesPerSecond to the policy for the given time, flushing as it says
+  private static void run(FlushPolicy policy, double bytesPerSecond, long nanos, double queueFill) {
+    double pending = 0;
+    for (long now = POLL; now <= nanos; now += POLL) {
+      pending += bytesPerSecond * POLL / 1e9;
+      FlushPolicy.Reason reason = policy.check((int) pending, queueFill, now);
+      if (reason != null) {
+        policy.onFlushed(reason, (int) pending, now);
+        pending -= (int) pending;
+      }
+    }
+  }
+
+  @Test
+  public void fastStreamsAreWrittenInChunksOfHalfTheMaximumAge() throws Exception {
+    FlushPolicy policy = new FlushPolicy(null, MAX_AGE, 256, 64 * 1024);
+    run(policy, 40000, 10000000000L, 0);
+    assertEquals(40000, policy.getBytesPerSecond(), 400);
+    assertEquals(5000, policy.getTargetBytes(), 100);
+    // The first chunk went by age while the rate was still unknown
+    assertTrue(policy.getFlushesNum(FlushPolicy.Reason.AGE) <= 1);
+    assertTrue(policy.getFlushesNum(FlushPolicy.Reason.SIZE) >= 75);
+    assertTrue(policy.getChunkAgeNanos().getMax() <= MAX_AGE);
+    assertEquals(5000, policy.getChunkBytes().valueAtPercentile(50), 5000 * 0.04);
+  }
+
+  @Test
+  public void slowStreamsAreWrittenByAge() throws Exception {
+    FlushPolicy policy = new FlushPolicy(null, MAX_AGE, 4096, 64 * 1024);
+    run(policy, 400, 5000000000L, 0);
+    assertEquals(0, policy.getFlushesNum(FlushPolicy.Reason.SIZE));
+    assertEquals(20, policy.getFlushesNum(FlushPolicy.Reason.AGE), 1);
+    assertTrue(policy.getChunkAgeNanos().getMax() <= MAX_AGE + POLL);
+  }
+
+  @Test
+  public void raisedMaximumAgeWritesFewerChunks() throws Exception {
+    FlushPolicy policy = new FlushPolicy(null, MAX_AGE, 4096, 64 * 1024);
+    policy.setMaxAgeNanos(4 * MAX_AGE);
+    run(policy, 400, 5000000000L, 0);
+    assertEquals(5, policy.getFlushesNum(FlushPolicy.Reason.AGE), 1);
+    assertTrue(policy.getChunkAgeNanos().getMax() <= 4 * MAX_AGE + POLL);
+  }
+
+  @Test
+  public void fastStreamsAreCappedByMaxBytes() throws Exception {
+    FlushPolicy policy = new FlushPolicy(null, MAX_AGE, 256, 1024);
+    run(policy, 400000, 2000000000L, 0);
+    assertEquals(1024, policy.getTargetBytes());
+    assertTrue(policy.getChunkBytes().getMax() < 1024 + 400000 * POLL / 1e9 + 1);
+  }
+
+  @Test
+  public void halfFullQueueIsWrittenAtOnce() throws Exception {
+    FlushPolicy policy = new FlushPolicy(null, MAX_AGE, 4096, 64 * 1024);
+    assertNull(policy.check(100, 0.49, 0));
+    assertEquals(FlushPolicy.Reason.QUEUE, policy.check(100, 0.5, POLL));
+    assertNull(policy.check(0, 0.9, 2 * POLL));
+  }
+
+  @Test
+  public void backloggedSessionGetsLargerChunks() throws Exception {
+    File dir = mTmp.newFolder();
+    SessionWriter session = new SessionWriter(dir, 0, 0, 0, 1000);
+    FlushPolicy policy = new FlushPolicy(session, MAX_AGE, 256, 64 * 1024);
+    run(policy, 40000, 2000000000L, 0);
+    assertEquals(5000, policy.getTargetBytes(), 100);
+
+    // Never started, so the queued write stays queued
+    session.writeFile("queued", new byte[600], 0, 600);
+    assertEquals(0.6, session.getBacklog(), 1e-9);
+    run(policy, 40000, 2000000000L, 0);
+    assertEquals(10000, policy.getTargetBytes(), 200);
+  }
+
+  @Test
+  public void decisionsAreExportedToTheSessionMetrics() throws Exception {
+    SessionMetrics metrics = new SessionMetrics();
+    FlushPolicy policy = new FlushPolicy(null, MAX_AGE, 4096, 64 * 1024);
+    policy.setMetrics(metrics, "gyro");
+    run(policy, 400, 1000000000L, 0);
+    assertEquals(policy.getFlushesNum(FlushPolicy.Reason.AGE), metrics.counter("gyro_flushes_age").get());
+    assertSame(policy.getChunkBytes(), metrics.histogram("gyro_flush_bytes"));
+    assertSame(policy.getChunkAgeNanos(), metrics.latency("gyro_flush_age"));
+    String json = metrics.toJson();
+    assertTrue(json, json.contains("\"gyro_flushes_age\": " + policy.getFlushesNum(FlushPolicy.Reason.AGE)));
+    assertTrue(json, json.contains("\"gyro_flushes_final\": 0"));
+    assertTrue(json, json.indexOf("\"gyro_flush_bytes\": {\"count\"") > json.indexOf("\"histograms\""));
+  }
+
+  @Test
+  public void recorderWritesEverythingUnderThePolicy() throws Exception {
+    SessionWriter session = new SessionWriter(mTmp.newFolder());
+    ImuStreamRecorder recorder = new ImuStreamRecorder("G", session.file("G.imu"), new ImuLogFormat('G', 3, "rad/s"));
+    FlushPolicy policy = new FlushPolicy(session, 50000000L, 1024, 64 * 1024);
+    recorder.setFlushPolicy(policy);
+    session.addSource(recorder);
+    session.start();
+
+    float[] v = new float[3];
+    for (int i = 0; i < 200; ++i) {
+      assertTrue(recorder.offer(v, i));
+      Thread.sleep(1);
+    }
+    recorder.stop();
+    session.stop();
+    assertTrue(session.awaitTermination(5000));
+    assertNull(session.takeException());
+
+    assertEquals(200, recorder.getWrittenNum());
+    long flushes = 0;
+    for (FlushPolicy.Reason reason : FlushPolicy.Reason.values())
+      flushes += policy.getFlushesNum(reason);
+    assertEquals(flushes, policy.getChunkBytes().getCount());
+    assertEquals(200 * 20, policy.getChunkBytes().getMean() * flushes, 1e-6);
+    // Far fewer writes than the I/O thread passes over 200 ms
+    assertTrue("flushes " + flushes, flushes < 20);
+  }
+}
@@ -0,0 +1,143 @@
+package com.ru.cameraimu;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class FrameBufferPoolTest {
+
+  // Stands in for the camera: queues the buffers it is given and fills them in order
+  private static class FakeCamera implements FrameBufferPool.BufferSink {
+    final ArrayDeque<byte[]> queued = new ArrayDeque<>();
+    final Set<byte[]> seen = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+
+    @Override
+    public void onBufferAvailable(byte[] buffer) {
+      queued.add(buffer);
+      seen.add(buffer);
+    }
+
+    byte[] deliver() { return queued.poll(); }
+  }
+
+  @Test
+  public void nv21BufferSize_matchesTwelveBitsPerPixel() throws Exception {
+    assertEquals(640 * 480 * 3 / 2, Nv21.bufferSize(640, 480));
+    assertEquals(3 * 3 + 2 * 2 * 2, Nv21.bufferSize(3, 3));
+  }
+
+  @Test
+  public void buffersCycleWithoutNewAllocations() throws Exception {
+    FakeCamera camera = new FakeCamera();
+    FrameBufferPool pool = new FrameBufferPool(Nv21.bufferSize(4, 4), 3, camera);
+    pool.prime();
+    assertEquals(3, pool.getAvailableNum());
+
+    for (int i = 0; i < 100; ++i) {
+      byte[] frame = camera.deliver();
+      pool.onFrameReceived(frame);
+      assertEquals(1, pool.getInFlightNum());
+      pool.recycle(frame);
+    }
+
+    assertEquals(3, camera.seen.size());
+    assertEquals(100, pool.getReceivedNum());
+    assertEquals(100, pool.getRecycledNum());
+    assertEquals(0, pool.getStarvationNum());
+    assertEquals(2, pool.getMinAvailableNum());
+  }
+
+  @Test
+  public void starvationIsCountedWhenConsumerHoldsEveryBuffer() throws Exception {
+    FakeCamera camera = new FakeCamera();
+    FrameBufferPool pool = new FrameBufferPool(8, 2, camera);
+    pool.prime();
+
+    byte[] first = camera.deliver();
+    pool.onFrameReceived(first);
+    byte[] second = camera.deliver();
+    pool.onFrameReceived(second);
+
+    assertNull(camera.deliver());
+    assertEquals(1, pool.getStarvationNum());
+    assertEquals(0, pool.getAvailableNum());
+    assertEquals(2, pool.getInFlightNum());
+
+    pool.recycle(first);
+    assertSame(first, camera.deliver());
+  }
+
+  @Test
+  public void foreignBuffersAreIgnored() throws Exception {
+    FakeCamera camera = new FakeCamera();
+    FrameBufferPool pool = new FrameBufferPool(8, 1, camera);
+    pool.prime();
+    camera.queued.clear();
+
+    pool.onFrameReceived(new byte[4]);
+    pool.recycle(new byte[16]);
+    assertEquals(2, pool.getForeignNum());
+    assertEquals(1, pool.getAvailableNum());
+    assertTrue(camera.queued.isEmpty());
+  }
+
+  @Test
+  public void closedPoolStopsFeedingTheSink() throws Exception {
+    FakeCamera camera = new FakeCamera();
+    FrameBufferPool pool = new FrameBufferPool(8, 1, camera);
+    pool.prime();
+    byte[] frame = camera.deliver();
+    pool.onFrameReceived(frame);
+
+    pool.close();
+    pool.recycle(frame);
+    assertNull(camera.deliver());
+    assertEquals(1, pool.getRecycledNum());
+  }
+
+  @Test
+  public void poolDrivesPipelineWithoutLosingBuffers() throws Exception {
+    final FakeCamera camera = new FakeCamera();
+    final FrameBufferPool pool = new FrameBufferPool(8, 4, new FrameBufferPool.BufferSink() {
+      @Override
+      public void onBufferAvailable(byte[] buffer) {
+        synchronized (camera) { camera.onBufferAvailable(buffer); }
+      }
+    });
+    FrameEncodePipeline pipeline = new FrameEncodePipeline(new FrameEncodePipeline.FrameEncoder() {
+      @Override
+      public void encode(FrameEncodePipeline.Frame frame) throws Exception { Thread.sleep(1); }
+    }, 2, 1, FrameEncodePipeline.DropPolicy.DROP_OLDEST, new FrameEncodePipeline.Listener() {
+      @Override
+      public void onFrameDone(FrameEncodePipeline.Frame frame, boolean encoded) { pool.recycle(frame.data()); }
+
+      @Override
+      public void onEncodeFailed(FrameEncodePipeline.Frame frame, Exception e) {}
+    });
+    pool.prime();
+
+    int delivered = 0;
+    for (int i = 0; i < 200; ++i) {
+      byte[] frame;
+      synchronized (camera) { frame = camera.deliver(); }
+      if (frame == null) {
+        Thread.sleep(1);
+        continue;
+      }
+      pool.onFrameReceived(frame);
+      pipeline.submit(frame, 2, 2, i);
+      ++delivered;
+    }
+    pipeline.shutdown();
+    assertTrue(pipeline.awaitTermination(5000));
+
+    assertEquals(4, camera.seen.size());
+    assertEquals(4, pool.getAvailableNum());
+    assertEquals(delivered, pool.getRecycledNum());
+  }
+}
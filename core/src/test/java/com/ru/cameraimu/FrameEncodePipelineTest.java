@@ -0,0 +1,211 @@
+package com.ru.cameraimu;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FrameEncodePipelineTest {
+
+  // Encodes nothing, but can be held back to simulate an encoder that cannot keep up
+  private static class FakeEncoder implements FrameEncodePipeline.FrameEncoder {
+    final CountDownLatch gate;
+    final List<Long> encoded = Collections.synchronizedList(new ArrayList<Long>());
+
+    FakeEncoder(CountDownLatch gate) { this.gate = gate; }
+
+    @Override
+    public void encode(FrameEncodePipeline.Frame frame) throws Exception {
+      if (gate != null)
+        gate.await();
+      if (frame.timestampNanos() < 0)
+        throw new IllegalArgumentException("negative timestamp");
+      encoded.add(frame.timestampNanos());
+    }
+  }
+
+  private static class RecordingListener implements FrameEncodePipeline.Listener {
+    final List<Long> done = Collections.synchronizedList(new ArrayList<Long>());
+    final List<Long> dropped = Collections.synchronizedList(new ArrayList<Long>());
+    final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+
+    @Override
+    public void onFrameDone(FrameEncodePipeline.Frame frame, boolean encoded) {
+      assertNotNull(frame.data());
+      done.add(frame.timestampNanos());
+      if (!encoded)
+        dropped.add(frame.timestampNanos());
+    }
+
+    @Override
+    public void onEncodeFailed(FrameEncodePipeline.Frame frame, Exception e) { errors.add(e); }
+  }
+
+  private static void finish(FrameEncodePipeline pipeline) throws InterruptedException {
+    pipeline.shutdown();
+    assertTrue(pipeline.awaitTermination(5000));
+  }
+
+  // Submits one frame and waits until the single worker has picked it up and blocked on the gate
+  private static void occupyWorker(FrameEncodePipeline pipeline) throws InterruptedException {
+    pipeline.submit(new byte[1], 1, 1, 0);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (pipeline.getQueueDepth() > 0 && System.currentTimeMillis() < deadline)
+      Thread.sleep(1);
+    assertEquals(0, pipeline.getQueueDepth());
+  }
+
+  @Test
+  public void allFramesAreEncodedWhenEncoderKeepsUp() throws Exception {
+    FakeEncoder encoder = new FakeEncoder(null);
+    RecordingListener listener = new RecordingListener();
+    FrameEncodePipeline pipeline = new FrameEncodePipeline(encoder, 4, 3,
+        FrameEncodePipeline.DropPolicy.BLOCK, listener);
+    for (int i = 0; i < 200; ++i)
+      assertTrue(pipeline.submit(new byte[16], 4, 4, i));
+    finish(pipeline);
+
+    FrameEncodePipeline.Stats stats = pipeline.getStats();
+    assertEquals(200, stats.submitted);
+    assertEquals(200, stats.encoded);
+    assertEquals(0, stats.dropped());
+    assertEquals(200, listener.done.size());
+    assertTrue(stats.maxQueueDepth <= 4);
+  }
+
+  @Test
+  public void dropNewest_rejectsFramesOnceQueueIsFull() throws Exception {
+    CountDownLatch gate = new CountDownLatch(1);
+    FakeEncoder encoder = new FakeEncoder(gate);
+    RecordingListener listener = new RecordingListener();
+    FrameEncodePipeline pipeline = new FrameEncodePipeline(encoder, 2, 1,
+        FrameEncodePipeline.DropPolicy.DROP_NEWEST, listener);
+    occupyWorker(pipeline);
+
+    assertTrue(pipeline.submit(new byte[1], 1, 1, 1));
+    assertTrue(pipeline.submit(new byte[1], 1, 1, 2));
+    assertFalse(pipeline.submit(new byte[1], 1, 1, 3));
+    assertEquals(Collections.singletonList(3L), listener.dropped);
+
+    gate.countDown();
+    finish(pipeline);
+    assertEquals(3, encoder.encoded.size());
+    assertEquals(1, pipeline.getStats().droppedNewest);
+  }
+
+  @Test
+  public void dropOldest_keepsMostRecentFrames() throws Exception {
+    CountDownLatch gate = new CountDownLatch(1);
+    FakeEncoder encoder = new FakeEncoder(gate);
+    RecordingListener listener = new RecordingListener();
+    FrameEncodePipeline pipeline = new FrameEncodePipeline(encoder, 2, 1,
+        FrameEncodePipeline.DropPolicy.DROP_OLDEST, listener);
+    occupyWorker(pipeline);
+
+    for (long t = 1; t <= 5; ++t)
+      assertTrue(pipeline.submit(new byte[1], 1, 1, t));
+    assertEquals(3, listener.dropped.size());
+    assertEquals(2, pipeline.getQueueDepth());
+
+    gate.countDown();
+    finish(pipeline);
+    assertEquals(Arrays.asList(1L, 2L, 3L), listener.dropped);
+    assertEquals(Arrays.asList(0L, 4L, 5L), encoder.encoded);
+    assertEquals(3, pipeline.getStats().droppedOldest);
+  }
+
+  @Test
+  public void block_waitsForRoomInsteadOfDropping() throws Exception {
+    final CountDownLatch gate = new CountDownLatch(1);
+    FakeEncoder encoder = new FakeEncoder(gate);
+    RecordingListener listener = new RecordingListener();
+    final FrameEncodePipeline pipeline = new FrameEncodePipeline(encoder, 1, 1,
+        FrameEncodePipeline.DropPolicy.BLOCK, listener);
+    occupyWorker(pipeline);
+    assertTrue(pipeline.submit(new byte[1], 1, 1, 1));
+
+    final CountDownLatch submitted = new CountDownLatch(1);
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        pipeline.submit(new byte[1], 1, 1, 2);
+        submitted.countDown();
+      }
+    });
+    producer.start();
+    assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+
+    gate.countDown();
+    assertTrue(submitted.await(5, TimeUnit.SECONDS));
+    finish(pipeline);
+    assertEquals(3, encoder.encoded.size());
+    assertEquals(0, pipeline.getStats().dropped());
+  }
+
+  @Test
+  public void failuresAreReportedAndFramesStillReleased() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    FrameEncodePipeline pipeline = new FrameEncodePipeline(new FakeEncoder(null), 4, 1,
+        FrameEncodePipeline.DropPolicy.BLOCK, listener);
+    pipeline.submit(new byte[1], 1, 1, -1);
+    pipeline.submit(new byte[1], 1, 1, 1);
+    finish(pipeline);
+
+    assertEquals(1, listener.errors.size());
+    assertEquals(2, listener.done.size());
+    assertEquals(1, pipeline.getStats().failed);
+  }
+
+  @Test
+  public void submitAfterShutdownIsRejected() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    FrameEncodePipeline pipeline = new FrameEncodePipeline(new FakeEncoder(null), 4, 1,
+        FrameEncodePipeline.DropPolicy.BLOCK, listener);
+    finish(pipeline);
+
+    assertFalse(pipeline.submit(new byte[1], 1, 1, 1));
+    assertEquals(1, listener.dropped.size());
+  }
+
+  @Test
+  public void frameQueuedAfterTheWorkersExitedIsReleased() throws Exception {
+    final CountDownLatch gate = new CountDownLatch(1);
+    final FrameEncodePipeline[] pipeline = new FrameEncodePipeline[1];
+    final List<Long> done = Collections.synchronizedList(new ArrayList<Long>());
+    // Releasing the oldest frame for the newest one happens after submit() checked for a shutdown
+    // and before it queues the frame: shut down right there and let the only worker exit
+    pipeline[0] = new FrameEncodePipeline(new FakeEncoder(gate), 1, 1, FrameEncodePipeline.DropPolicy.DROP_OLDEST,
+        new FrameEncodePipeline.Listener() {
+      @Override
+      public void onFrameDone(FrameEncodePipeline.Frame frame, boolean encoded) {
+        done.add(frame.timestampNanos());
+        if (frame.timestampNanos() != 1)
+          return;
+        pipeline[0].shutdown();
+        gate.countDown();
+        try {
+          assertTrue(pipeline[0].awaitTermination(5000));
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      @Override
+      public void onEncodeFailed(FrameEncodePipeline.Frame frame, Exception e) {}
+    });
+    occupyWorker(pipeline[0]);
+    pipeline[0].submit(new byte[1], 1, 1, 1);
+    pipeline[0].submit(new byte[1], 1, 1, 2);
+
+    // The dropped frame, the encoded one, then the one queued with no worker left
+    assertEquals(Arrays.asList(1L, 0L, 2L), done);
+    assertEquals(0, pipeline[0].getQueueDepth());
+    assertEquals(2, pipeline[0].getStats().dropped());
+  }
+}
@@ -0,0 +1,64 @@
+package com.ru.cameraimu;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HudTextTest {
+
+  @Test
+  public void numbersMatchStringFormat() throws Exception {
+    HudText text = new HudText(4);
+    Random random = new Random(7);
+    for (int i = 0; i < 10000; ++i) {
+      double v = random.nextGaussian() * Math.pow(10, random.nextInt(8) - 3);
+      int decimals = random.nextInt(7);
+      String expected = String.format(Locale.US, "%." + decimals + "f", v);
+      if (expected.matches("-0\\.?0*"))
+        expected = expected.substring(1);
+      assertEquals(expected, text.clear().append(v, decimals).toString());
+      long l = random.nextLong() >> random.nextInt(64);
+      assertEquals(Long.toString(l), text.clear().append(l).toString());
+    }
+    assertEquals("0", text.clear().append(0L).toString());
+    assertEquals(Long.toString(Long.MIN_VALUE), text.clear().append(Long.MIN_VALUE).toString());
+    assertEquals("NaN", text.clear().append(Double.NaN, 2).toString());
+  }
+
+  @Test
+  public void roundingDoesNotProduceNegativeZero() throws Exception {
+    HudText text = new HudText(16);
+    assertEquals("0.00", text.append(-0.001, 2).toString());
+    assertEquals("-0.01", text.clear().append(-0.005, 2).toString());
+    assertEquals("1.0", text.clear().append(0.95, 1).toString());
+  }
+
+  @Test
+  public void padLeftAlignsTheAppendedPart() throws Exception {
+    HudText text = new HudText(4);
+    text.append("G:");
+    int start = text.length();
+    text.append(-1.5, 3).padLeft(start, 9);
+    assertEquals("G:   -1.500", text.toString());
+    start = text.length();
+    text.append("longer than width").padLeft(start, 3);
+    assertEquals("G:   -1.500longer than width", text.toString());
+  }
+
+  @Test
+  public void bufferIsReusedOnceGrown() throws Exception {
+    HudText text = new HudText(8);
+    for (int i = 0; i < 10; ++i)
+      text.append(Math.PI, 6).append(' ');
+    char[] chars = text.chars();
+    for (int round = 0; round < 100; ++round) {
+      text.clear();
+      for (int i = 0; i < 10; ++i)
+        text.append(round * Math.PI, 6).append(' ');
+      assertSame(chars, text.chars());
+    }
+  }
+}
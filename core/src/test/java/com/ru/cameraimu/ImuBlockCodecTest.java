@@ -0,0 +1,235 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ImuBlockCodecTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  private static final int SAMPLES_NUM = 5000;
+  private static final float RESOLUTION = 0.001f;
+  private static final long PERIOD = 5000000L;
+
+  private final float[][] mValues = new float[3][SAMPLES_NUM];
+  private final long[] mTimestamps = new long[SAMPLES_NUM];
+
+  // A 200 Hz gyroscope at rest with some slow motion, in counts of its resolution, with jittery
+  // timestamps on the boot clock
+  private void recordGyro() {
+    Random random = new Random(3);
+    for (int i = 0; i < SAMPLES_NUM; ++i) {
+      mTimestamps[i] = 123456789000000L + i * PERIOD + random.nextInt(100000);
+      for (int axis = 0; axis < 3; ++axis) {
+        double signal = 0.3 * Math.sin(2 * Math.PI * 0.5 * i * PERIOD / 1e9 + axis) + 0.002 * random.nextGaussian();
+        mValues[axis][i] = Math.round(signal / RESOLUTION) * RESOLUTION;
+      }
+    }
+  }
+
+  private static final class CollectingDrain implements ImuRingBuffer.Drain {
+    final float[][] values = new float[3][SAMPLES_NUM];
+    final long[] timestamps = new long[SAMPLES_NUM];
+    int count = 0;
+
+    @Override
+    public void onSamples(float[][] v, long[] timestampsNanos, int offset, int n) {
+      for (int axis = 0; axis < 3; ++axis)
+        System.arraycopy(v[axis], offset, values[axis], count, n);
+      System.arraycopy(timestampsNanos, offset, timestamps, count, n);
+      count += n;
+    }
+  }
+
+  private int roundTrip(ImuBlockCodec codec, int count, float[][] decoded, long[] decodedTimestamps) throws IOException {
+    ByteBuffer block = ByteBuffer.allocate(codec.maxBlockSize(count));
+    int size = codec.encode(mValues, mTimestamps, 0, count, block);
+    assertEquals(size, block.position());
+    block.flip();
+    assertEquals(count, codec.decode(block, decoded, decodedTimestamps, 0));
+    assertFalse(block.hasRemaining());
+    return size;
+  }
+
+  @Test
+  public void xorIsLossless() throws Exception {
+    recordGyro();
+    mValues[1][7] = Float.NaN;
+    mValues[1][8] = Float.POSITIVE_INFINITY;
+    mValues[2][9] = -0.0f;
+    mValues[0][10] = Float.MIN_VALUE;
+    mTimestamps[20] = mTimestamps[19] - 3 * PERIOD;  // Out of order
+    mTimestamps[21] = Long.MAX_VALUE;
+    mTimestamps[22] = Long.MIN_VALUE;
+
+    float[][] decoded = new float[3][SAMPLES_NUM];
+    long[] decodedTimestamps = new long[SAMPLES_NUM];
+    roundTrip(new ImuBlockCodec(3, ImuBlockCodec.Mode.XOR, 0), SAMPLES_NUM, decoded, decodedTimestamps);
+    assertArrayEquals(mTimestamps, decodedTimestamps);
+    for (int axis = 0; axis < 3; ++axis)
+      for (int i = 0; i < SAMPLES_NUM; ++i)
+        assertEquals(Float.floatToRawIntBits(mValues[axis][i]), Float.floatToRawIntBits(decoded[axis][i]));
+  }
+
+  @Test
+  public void quantizationErrorIsWithinHalfAStep() throws Exception {
+    Random random = new Random(5);
+    for (int i = 0; i < SAMPLES_NUM; ++i) {
+      mTimestamps[i] = i * PERIOD;
+      for (int axis = 0; axis < 3; ++axis)
+        mValues[axis][i] = (float) (20 * random.nextGaussian());
+    }
+    float[][] decoded = new float[3][SAMPLES_NUM];
+    long[] decodedTimestamps = new long[SAMPLES_NUM];
+    roundTrip(new ImuBlockCodec(3, ImuBlockCodec.Mode.QUANTIZED, ImuBlockCodec.DEFAULT_STEP), SAMPLES_NUM,
+        decoded, decodedTimestamps);
+    assertArrayEquals(mTimestamps, decodedTimestamps);
+    for (int axis = 0; axis < 3; ++axis)
+      for (int i = 0; i < SAMPLES_NUM; ++i)
+        assertEquals(mValues[axis][i], decoded[axis][i], ImuBlockCodec.DEFAULT_STEP / 2 + Math.ulp(mValues[axis][i]));
+  }
+
+  @Test
+  public void quantizationAtTheSensorResolutionIsLosslessAndSmall() throws Exception {
+    recordGyro();
+    float[][] decoded = new float[3][SAMPLES_NUM];
+    long[] decodedTimestamps = new long[SAMPLES_NUM];
+    int size = roundTrip(new ImuBlockCodec(3, ImuBlockCodec.Mode.QUANTIZED, RESOLUTION), SAMPLES_NUM,
+        decoded, decodedTimestamps);
+    for (int axis = 0; axis < 3; ++axis)
+      for (int i = 0; i < SAMPLES_NUM; ++i)
+        assertEquals(mValues[axis][i], decoded[axis][i], Math.ulp(mValues[axis][i]));
+    // Against 20 bytes per record in the binary log and some 45 per line of text
+    assertTrue("bytes " + size, size < 0.35 * SAMPLES_NUM * ImuLogFormat.recordSize(3));
+
+    int xorSize = roundTrip(new ImuBlockCodec(3, ImuBlockCodec.Mode.XOR, 0), SAMPLES_NUM, decoded, decodedTimestamps);
+    assertTrue("bytes " + xorSize, xorSize < SAMPLES_NUM * ImuLogFormat.recordSize(3));
+  }
+
+  @Test
+  public void unquantizableBlockFallsBackToXor() throws Exception {
+    recordGyro();
+    mValues[0][100] = Float.NaN;
+    mValues[1][200] = 1e30f;
+    float[][] decoded = new float[3][SAMPLES_NUM];
+    long[] decodedTimestamps = new long[SAMPLES_NUM];
+    roundTrip(new ImuBlockCodec(3, ImuBlockCodec.Mode.QUANTIZED, RESOLUTION), 300, decoded, decodedTimestamps);
+    assertTrue(Float.isNaN(decoded[0][100]));
+    assertEquals(1e30f, decoded[1][200], 0);
+    assertEquals(mValues[2][299], decoded[2][299], 0);
+  }
+
+  @Test
+  public void emptyAndSingleSampleBlocks() throws Exception {
+    recordGyro();
+    for (ImuBlockCodec.Mode mode : ImuBlockCodec.Mode.values()) {
+      ImuBlockCodec codec = new ImuBlockCodec(3, mode, RESOLUTION);
+      float[][] decoded = new float[3][1];
+      long[] decodedTimestamps = new long[1];
+      roundTrip(codec, 0, decoded, decodedTimestamps);
+      roundTrip(codec, 1, decoded, decodedTimestamps);
+      assertEquals(mTimestamps[0], decodedTimestamps[0]);
+      assertEquals(mValues[2][0], decoded[2][0], Math.ulp(mValues[2][0]));
+    }
+  }
+
+  @Test
+  public void logRoundTripsAndSeeksByBlock() throws Exception {
+    recordGyro();
+    for (ImuBlockCodec.Mode mode : ImuBlockCodec.Mode.values()) {
+      File file = mTmp.newFile("G" + mode + CompressedImuLogWriter.FILE_EXTENSION);
+      CompressedImuLogWriter writer = CompressedImuLogWriter.open(file, new ImuLogFormat('G', 3, "rad/s"), mode,
+          RESOLUTION, 256);
+      writer.write(mValues, mTimestamps, 0, 1000);
+      writer.flush();  // A partial block of its own
+      writer.onSamples(mValues, mTimestamps, 1000, SAMPLES_NUM - 1000);
+      writer.close();
+      assertEquals(file.length(), writer.getSize());
+      assertEquals(SAMPLES_NUM, writer.getRecordsNum());
+
+      CompressedImuLogReader reader = new CompressedImuLogReader(file);
+      assertTrue(reader.getFormat().isCompatibleWith(new ImuLogFormat('G', 3, "rad/s")));
+      assertEquals(mode, reader.getCodec().getMode());
+      assertEquals(SAMPLES_NUM, reader.getRecordsNum());
+      assertEquals((1000 + 255) / 256 + (SAMPLES_NUM - 1000 + 255) / 256, reader.getBlocksNum());
+      CollectingDrain drain = new CollectingDrain();
+      assertEquals(SAMPLES_NUM, reader.readAll(drain));
+      assertArrayEquals(mTimestamps, drain.timestamps);
+      for (int axis = 0; axis < 3; ++axis)
+        for (int i = 0; i < SAMPLES_NUM; ++i)
+          assertEquals(mValues[axis][i], drain.values[axis][i], Math.ulp(mValues[axis][i]));
+
+      // Starting from the middle decodes that block alone
+      int block = reader.floorBlock(mTimestamps[3000]);
+      assertTrue(reader.blockFirstNanos(block) <= mTimestamps[3000]);
+      assertTrue(block + 1 == reader.getBlocksNum() || reader.blockFirstNanos(block + 1) > mTimestamps[3000]);
+      reader.seekBlock(block);
+      drain = new CollectingDrain();
+      int n = reader.read(drain);
+      assertEquals(mTimestamps[(int) reader.blockFirstRecord(block)], drain.timestamps[0]);
+      assertEquals(mTimestamps[(int) reader.blockFirstRecord(block) + n - 1], drain.timestamps[n - 1]);
+      assertEquals(0, reader.floorBlock(0));
+      assertEquals(reader.getBlocksNum() - 1, reader.floorBlock(Long.MAX_VALUE));
+      reader.close();
+    }
+  }
+
+  @Test
+  public void blockCutShortByACrashIsIgnored() throws Exception {
+    recordGyro();
+    File file = mTmp.newFile("G" + CompressedImuLogWriter.FILE_EXTENSION);
+    CompressedImuLogWriter writer = CompressedImuLogWriter.open(file, new ImuLogFormat('G', 3, "rad/s"),
+        ImuBlockCodec.Mode.QUANTIZED);
+    writer.write(mValues, mTimestamps, 0, SAMPLES_NUM);
+    writer.close();
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.setLength(file.length() - 10);
+    randomAccessFile.close();
+
+    CompressedImuLogReader reader = new CompressedImuLogReader(file);
+    assertEquals(SAMPLES_NUM / CompressedImuLogWriter.DEFAULT_BLOCK_SIZE, reader.getBlocksNum());
+    assertEquals(reader.getBlocksNum() * CompressedImuLogWriter.DEFAULT_BLOCK_SIZE,
+        reader.readAll(new CollectingDrain()));
+    reader.close();
+  }
+
+  @Test
+  public void corruptBlockIsReported() throws Exception {
+    recordGyro();
+    File file = mTmp.newFile("G" + CompressedImuLogWriter.FILE_EXTENSION);
+    CompressedImuLogWriter writer = CompressedImuLogWriter.open(file, new ImuLogFormat('G', 3, "rad/s"),
+        ImuBlockCodec.Mode.XOR);
+    writer.write(mValues, mTimestamps, 0, SAMPLES_NUM);
+    writer.close();
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.seek(CompressedImuLogWriter.HEADER_SIZE + CompressedImuLogWriter.BLOCK_HEADER_SIZE + 40);
+    randomAccessFile.write(0x5A);
+    randomAccessFile.close();
+
+    CompressedImuLogReader reader = new CompressedImuLogReader(file);
+    try {
+      reader.read(new CollectingDrain());
+      fail("Corrupt block decoded");
+    } catch (IOException expected) {
+    }
+    reader.seekBlock(1);
+    assertEquals(CompressedImuLogWriter.DEFAULT_BLOCK_SIZE, reader.read(new CollectingDrain()));
+    reader.close();
+
+    try {
+      new ImuLogReader(file).close();
+      fail("Compressed log read as a binary log");
+    } catch (IOException expected) {
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ImuChannelRegistryTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  @Test
+  public void channelsMustDifferInTypeAndName() throws Exception {
+    ImuChannelRegistry registry = new ImuChannelRegistry();
+    registry.register(ImuChannelRegistry.standard(ImuChannelRegistry.GYROSCOPE));
+    try {
+      registry.register(new ImuChannel(ImuChannelRegistry.GYROSCOPE, "gyro2", 3, "rad/s"));
+      fail("Same type registered twice");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      registry.register(new ImuChannel('X', "gyro", 3, "rad/s"));
+      fail("Same name registered twice");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new ImuChannel(ImuPreintegrator.LOG_TYPE, "preintegration", 3, "rad");
+      fail("Reserved type accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(1, registry.size());
+    assertNull(registry.get(ImuChannelRegistry.ACCELEROMETER));
+  }
+
+  @Test
+  public void everyStandardChannelIsRecordedAndReadBack() throws Exception {
+    File dir = mTmp.newFolder();
+    ImuChannelRegistry registry = new ImuChannelRegistry();
+    for (char type : ImuChannelRegistry.STANDARD_TYPES)
+      registry.register(ImuChannelRegistry.standard(type));
+    assertArrayEquals(ImuChannelRegistry.STANDARD_TYPES, registry.types());
+    SensorHud hud = new SensorHud(10, registry.labels(), registry.stats());
+
+    SessionWriter session = new SessionWriter(dir);
+    SessionMetrics metrics = new SessionMetrics();
+    registry.startRecording(session, metrics);
+    session.start();
+    float[] values = new float[6];
+    for (int i = 0; i < 100; ++i) {
+      for (ImuChannel channel : registry) {
+        for (int axis = 0; axis < values.length; ++axis)
+          values[axis] = i + axis;
+        // The rotation vector of older devices comes without its w
+        float[] v = channel.getType() == ImuChannelRegistry.ROTATION_VECTOR ? new float[3] : values;
+        if (v != values)
+          System.arraycopy(values, 0, v, 0, v.length);
+        channel.onSample(v, 1000000L * i + channel.getType());
+      }
+    }
+    List<ImuStreamRecorder> recorders = registry.stopRecording();
+    assertEquals(registry.size(), recorders.size());
+    assertTrue(registry.stopRecording().isEmpty());
+    session.stop();
+    assertTrue(session.awaitTermination(5000));
+    assertNull(session.takeException());
+
+    for (ImuChannel channel : registry) {
+      assertFalse(channel.isRecording());
+      assertEquals(100, metrics.stream(channel.getName()).getSamplesNum());
+      ImuLogReader log = new ImuLogReader(new File(dir, channel.getLogFilename()));
+      assertTrue(log.getFormat().isCompatibleWith(channel.getFormat()));
+      assertEquals(100, log.getRecordsNum());
+      log.close();
+    }
+    String json = metrics.toJson();
+    assertTrue(json, json.contains("\"channels\": \"gyro accel mag rotation pressure accel_uncal\""));
+
+    SessionReader reader = new SessionReader(dir);
+    assertEquals(registry.size(), reader.getStreamsNum());
+    int[] counts = new int[128];
+    SessionReader.Event event;
+    while ((event = reader.next()) != null) {
+      ImuChannel channel = registry.get(event.sensorType());
+      assertEquals(channel.getArity(), event.values().length);
+      int i = counts[event.sensorType()]++;
+      assertEquals(i, event.values()[0], 0);
+      if (channel.getType() == ImuChannelRegistry.ROTATION_VECTOR)
+        assertTrue(Float.isNaN(event.values()[3]));
+      else
+        assertEquals(i + channel.getArity() - 1, event.values()[channel.getArity() - 1], 0);
+    }
+    reader.close();
+    for (char type : ImuChannelRegistry.STANDARD_TYPES)
+      assertEquals(100, counts[type]);
+    assertTrue(hud.render(0));
+    assertTrue(hud.text().toString(), hud.text().toString().contains("\nU:"));
+  }
+
+  @Test
+  public void compressedChannelsAreRecordedAndReadBack() throws Exception {
+    File dir = mTmp.newFolder();
+    ImuChannelRegistry registry = new ImuChannelRegistry();
+    registry.register(ImuChannelRegistry.standard(ImuChannelRegistry.GYROSCOPE)).setCompression(ImuBlockCodec.Mode.XOR);
+    registry.register(ImuChannelRegistry.standard(ImuChannelRegistry.ACCELEROMETER))
+        .setCompression(ImuBlockCodec.Mode.QUANTIZED);
+
+    SessionWriter session = new SessionWriter(dir);
+    registry.startRecording(session, new SessionMetrics());
+    session.start();
+    int n = 3 * CompressedImuLogWriter.DEFAULT_BLOCK_SIZE + 7;
+    float[] v = new float[3];
+    for (int i = 0; i < n; ++i) {
+      v[0] = i * 0.125f;
+      for (ImuChannel channel : registry)
+        channel.onSample(v, 1000000L * i + channel.getType());
+    }
+    registry.stopRecording();
+    session.stop();
+    assertTrue(session.awaitTermination(5000));
+    assertNull(session.takeException());
+
+    for (ImuChannel channel : registry) {
+      assertEquals(channel.getType() + CompressedImuLogWriter.FILE_EXTENSION, channel.getLogFilename());
+      assertFalse(new File(dir, channel.getType() + ImuLogFormat.FILE_EXTENSION).exists());
+      CompressedImuLogReader log = new CompressedImuLogReader(new File(dir, channel.getLogFilename()));
+      assertEquals(channel.getCompression(), log.getCodec().getMode());
+      assertEquals(n, log.getRecordsNum());
+      log.close();
+    }
+    SessionReader reader = new SessionReader(dir);
+    assertEquals(2, reader.getStreamsNum());
+    int[] counts = new int[128];
+    SessionReader.Event event;
+    while ((event = reader.next()) != null) {
+      int i = counts[event.sensorType()]++;
+      assertEquals(1000000L * i + event.sensorType(), event.timestampNanos());
+      assertEquals(i * 0.125f, event.values()[0], 0);
+    }
+    reader.close();
+    assertEquals(n, counts[ImuChannelRegistry.GYROSCOPE]);
+    assertEquals(n, counts[ImuChannelRegistry.ACCELEROMETER]);
+  }
+}
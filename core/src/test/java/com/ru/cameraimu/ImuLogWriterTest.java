@@ -0,0 +1,123 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ImuLogWriterTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  private final ImuLogFormat mGyroFormat = new ImuLogFormat('G', 3, "rad/s");
+
+  private static ImuRingBuffer samples(int from, int to) {
+    ImuRingBuffer buffer = new ImuRingBuffer(to - from);
+    for (int i = from; i < to; ++i)
+      buffer.record(i * 0.5f, -i, i * 0.25f, 1000L * i);
+    return buffer;
+  }
+
+  private static List<Long> readTimestamps(File file) throws IOException {
+    final List<Long> timestamps = new ArrayList<>();
+    ImuLogReader reader = new ImuLogReader(file, 7);
+    try {
+      reader.readAll(new ImuRingBuffer.Drain() {
+        @Override
+        public void onSamples(float[][] values, long[] timestampsNanos, int offset, int count) {
+          for (int i = offset; i < offset + count; ++i) {
+            assertEquals(timestampsNanos[i] / 1000 * 0.5f, values[0][i], 0f);
+            timestamps.add(timestampsNanos[i]);
+          }
+        }
+      });
+    } finally {
+      reader.close();
+    }
+    return timestamps;
+  }
+
+  @Test
+  public void header_roundTrips() throws Exception {
+    File file = mTmp.newFile("G.imu");
+    ImuLogWriter.open(file, mGyroFormat).close();
+
+    assertEquals(ImuLogFormat.HEADER_SIZE, file.length());
+    ImuLogReader reader = new ImuLogReader(file);
+    assertEquals('G', reader.getFormat().sensorType);
+    assertEquals(3, reader.getFormat().arity);
+    assertEquals("rad/s", reader.getFormat().units);
+    assertEquals(0, reader.getRecordsNum());
+    reader.close();
+  }
+
+  @Test
+  public void records_roundTripAcrossSmallBuffers() throws Exception {
+    File file = mTmp.newFile("G.imu");
+    // A 50 byte buffer holds only two 20 byte records, forcing many channel writes
+    ImuLogWriter writer = ImuLogWriter.open(file, mGyroFormat, 50);
+    samples(0, 25).drainTo(writer);
+    writer.close();
+
+    assertEquals(ImuLogFormat.HEADER_SIZE + 25 * 20, file.length());
+    List<Long> timestamps = readTimestamps(file);
+    assertEquals(25, timestamps.size());
+    for (int i = 0; i < 25; ++i)
+      assertEquals(1000L * i, (long) timestamps.get(i));
+  }
+
+  @Test
+  public void open_appendsToExistingLogAndTrimsPartialRecord() throws Exception {
+    File file = mTmp.newFile("G.imu");
+    ImuLogWriter writer = ImuLogWriter.open(file, mGyroFormat);
+    samples(0, 10).drainTo(writer);
+    writer.close();
+
+    // Simulate a crash in the middle of a record
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(raf.length() + 7);
+    raf.close();
+
+    writer = ImuLogWriter.open(file, mGyroFormat);
+    assertEquals(10, writer.getRecordsNum());
+    samples(10, 15).drainTo(writer);
+    writer.close();
+
+    List<Long> timestamps = readTimestamps(file);
+    assertEquals(15, timestamps.size());
+    assertEquals(14000L, (long) timestamps.get(14));
+  }
+
+  @Test(expected = IOException.class)
+  public void open_rejectsIncompatibleLog() throws Exception {
+    File file = mTmp.newFile("G.imu");
+    ImuLogWriter.open(file, mGyroFormat).close();
+    ImuLogWriter.open(file, new ImuLogFormat('A', 3, "m/s^2"));
+  }
+
+  @Test
+  public void converter_emitsLegacyTextChunks() throws Exception {
+    File file = mTmp.newFile("G.imu");
+    ImuLogWriter writer = ImuLogWriter.open(file, mGyroFormat);
+    samples(0, 5).drainTo(writer);
+    writer.close();
+
+    File outputDir = mTmp.newFolder("text");
+    assertEquals(3, ImuLogConverter.convert(file, outputDir, 2));
+
+    List<String> lines = Files.readAllLines(new File(outputDir, "G00000000.txt").toPath());
+    assertEquals(2, lines.size());
+    assertEquals("0.000000 0.000000 0.000000 0", lines.get(0));
+    assertEquals("0.500000 -1.000000 0.250000 1000", lines.get(1));
+    assertEquals(1, Files.readAllLines(new File(outputDir, "G00000002.txt").toPath()).size());
+  }
+}
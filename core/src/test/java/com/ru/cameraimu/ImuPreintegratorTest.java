@@ -0,0 +1,90 @@
+package com.ru.cameraimu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImuPreintegratorTest {
+
+  private static final double DT = 0.005;
+  private static final int STEPS = 200;
+
+  @Test
+  public void constantRateIntegratesToTheExactRotation() throws Exception {
+    ImuPreintegrator preintegrator = new ImuPreintegrator();
+    for (int i = 0; i < STEPS; ++i)
+      preintegrator.integrate(0, 0, 1, 0, 0, 0, DT);
+
+    double[] r = preintegrator.deltaR();
+    assertEquals(Math.cos(1), r[0], 1e-9);
+    assertEquals(-Math.sin(1), r[1], 1e-9);
+    assertEquals(Math.sin(1), r[3], 1e-9);
+    assertEquals(1, r[8], 1e-9);
+
+    double[] q = new double[4];
+    preintegrator.getDeltaRQuaternion(q);
+    assertEquals(Math.cos(0.5), q[0], 1e-9);
+    assertEquals(Math.sin(0.5), q[3], 1e-9);
+    assertEquals(STEPS, preintegrator.getSamplesNum());
+    assertEquals(1, preintegrator.getDeltaT(), 1e-9);
+  }
+
+  @Test
+  public void constantAccelerationIntegratesToVelocityAndPosition() throws Exception {
+    ImuPreintegrator preintegrator = new ImuPreintegrator();
+    preintegrator.setAccelBias(0.5, 0, 0);
+    for (int i = 0; i < STEPS; ++i)
+      preintegrator.integrate(0, 0, 0, 1.5, 2, 3, DT);
+
+    assertArrayEquals(new double[] {1, 2, 3}, preintegrator.deltaV(), 1e-9);
+    assertArrayEquals(new double[] {0.5, 1, 1.5}, preintegrator.deltaP(), 1e-9);
+  }
+
+  @Test
+  public void covarianceFollowsTheRandomWalks() throws Exception {
+    double gyroNoise = 1e-3;
+    double accelNoise = 1e-2;
+    ImuPreintegrator preintegrator = new ImuPreintegrator(gyroNoise, accelNoise);
+    for (int i = 0; i < STEPS; ++i)
+      preintegrator.integrate(0, 0, 0, 0, 0, 0, DT);
+
+    // Without motion the blocks decouple into a random walk on rotation and on velocity,
+    // whose integral drives the position
+    double[] c = preintegrator.covariance();
+    double t = preintegrator.getDeltaT();
+    assertEquals(gyroNoise * gyroNoise * t, c[0], 1e-12);
+    assertEquals(accelNoise * accelNoise * t, c[3 * 9 + 3], 1e-9);
+    assertEquals(accelNoise * accelNoise * t * t * t / 3, c[6 * 9 + 6], 1e-7);
+    assertEquals(0, c[3], 0);
+  }
+
+  @Test
+  public void covarianceStaysSymmetricUnderMotion() throws Exception {
+    ImuPreintegrator preintegrator = new ImuPreintegrator();
+    for (int i = 0; i < STEPS; ++i)
+      preintegrator.integrate(0.3, -0.2, 1, 0.1 * i, 9.8, -0.4, DT);
+
+    double[] c = preintegrator.covariance();
+    for (int i = 0; i < 9; ++i) {
+      assertTrue(c[i * 9 + i] > 0);
+      for (int j = 0; j < 9; ++j)
+        assertEquals(c[i * 9 + j], c[j * 9 + i], 0);
+    }
+  }
+
+  @Test
+  public void recordLayout() throws Exception {
+    ImuPreintegrator preintegrator = new ImuPreintegrator();
+    preintegrator.integrate(0, 0, 0, 1, 0, 0, 0.5);
+
+    float[] record = new float[ImuPreintegrator.RECORD_ARITY];
+    preintegrator.toRecord(record);
+    assertEquals(1, record[0], 0);
+    assertEquals(0.5f, record[4], 1e-7);
+    assertEquals(0.125f, record[7], 1e-7);
+    assertEquals(0.5f, record[10], 0);
+    assertEquals((float) preintegrator.covariance()[0], record[11], 0);
+    assertEquals((float) preintegrator.covariance()[80], record[ImuPreintegrator.RECORD_ARITY - 1], 0);
+    assertEquals(ImuPreintegrator.RECORD_ARITY, ImuPreintegrator.logFormat().arity);
+  }
+}
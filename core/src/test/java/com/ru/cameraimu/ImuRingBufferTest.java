@@ -0,0 +1,146 @@
+package com.ru.cameraimu;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ImuRingBufferTest {
+
+  // Collects drained samples and the number of contiguous runs it was handed
+  private static class CollectingDrain implements ImuRingBuffer.Drain {
+    final List<float[]> values = new ArrayList<>();
+    final List<Long> timestamps = new ArrayList<>();
+    int runs = 0;
+
+    @Override
+    public void onSamples(float[][] v, long[] timestampsNanos, int offset, int count) {
+      ++runs;
+      for (int i = offset; i < offset + count; ++i) {
+        float[] sample = new float[v.length];
+        for (int axis = 0; axis < v.length; ++axis)
+          sample[axis] = v[axis][i];
+        values.add(sample);
+        timestamps.add(timestampsNanos[i]);
+      }
+    }
+  }
+
+  @Test
+  public void capacity_isRoundedUpToPowerOfTwo() throws Exception {
+    assertEquals(512, new ImuRingBuffer(500).capacity());
+    assertEquals(8, new ImuRingBuffer(8).capacity());
+    assertEquals(1, new ImuRingBuffer(1).capacity());
+  }
+
+  @Test
+  public void record_keepsInsertionOrder() throws Exception {
+    ImuRingBuffer buffer = new ImuRingBuffer(4);
+    assertTrue(buffer.isEmpty());
+    assertTrue(buffer.record(1f, 2f, 3f, 10L));
+    assertTrue(buffer.record(new float[] {4f, 5f, 6f}, 20L));
+
+    assertEquals(2, buffer.size());
+    assertEquals(1f, buffer.valueAt(0, 0), 0f);
+    assertEquals(6f, buffer.valueAt(1, 2), 0f);
+    assertEquals(20L, buffer.timestampAt(1));
+  }
+
+  @Test
+  public void record_rejectsWhenFull() throws Exception {
+    ImuRingBuffer buffer = new ImuRingBuffer(2);
+    assertTrue(buffer.record(0f, 0f, 0f, 1L));
+    assertTrue(buffer.record(0f, 0f, 0f, 2L));
+    assertTrue(buffer.isFull());
+    assertFalse(buffer.record(0f, 0f, 0f, 3L));
+    assertEquals(1, buffer.getDroppedNum());
+    assertEquals(2L, buffer.timestampAt(1));
+  }
+
+  @Test
+  public void drainTo_splitsWrappedContentsIntoTwoRuns() throws Exception {
+    ImuRingBuffer buffer = new ImuRingBuffer(4);
+    for (int i = 0; i < 3; ++i)
+      buffer.record(i, 0f, 0f, i);
+    assertEquals(3, buffer.drainTo(new CollectingDrain()));
+
+    // The next three samples start at slot 3 and wrap around to slots 0 and 1
+    for (int i = 3; i < 6; ++i)
+      buffer.record(i, -i, 2 * i, i);
+    CollectingDrain drain = new CollectingDrain();
+    assertEquals(3, buffer.drainTo(drain));
+
+    assertEquals(2, drain.runs);
+    assertTrue(buffer.isEmpty());
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(i + 3L, (long) drain.timestamps.get(i));
+      assertArrayEquals(new float[] {i + 3, -(i + 3), 2 * (i + 3)}, drain.values.get(i), 0f);
+    }
+  }
+
+  @Test
+  public void drainTo_respectsMaxCount() throws Exception {
+    ImuRingBuffer buffer = new ImuRingBuffer(8);
+    for (int i = 0; i < 5; ++i)
+      buffer.record(0f, 0f, 0f, i);
+
+    CollectingDrain drain = new CollectingDrain();
+    assertEquals(2, buffer.drainTo(drain, 2));
+    assertEquals(3, buffer.size());
+    assertEquals(2L, buffer.timestampAt(0));
+  }
+
+  @Test
+  public void arity_isNotLimitedToThreeAxes() throws Exception {
+    ImuRingBuffer buffer = new ImuRingBuffer(1, 4);
+    buffer.record(new float[] {1013.25f, 99f}, 7L);
+
+    CollectingDrain drain = new CollectingDrain();
+    buffer.drainTo(drain);
+    assertEquals(1, drain.values.get(0).length);
+    assertEquals(1013.25f, drain.values.get(0)[0], 0f);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void recordXyz_requiresArityThree() throws Exception {
+    new ImuRingBuffer(1, 4).record(0f, 0f, 0f, 0L);
+  }
+
+  @Test
+  public void spsc_consumerSeesEverySampleInOrder() throws Exception {
+    final int samplesNum = 1000000;
+    final ImuRingBuffer buffer = new ImuRingBuffer(64);
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < samplesNum; ++i)
+          while (!buffer.record(i, -i, 2 * i, i))
+            Thread.yield();
+      }
+    });
+    producer.start();
+
+    final long[] next = new long[1];
+    ImuRingBuffer.Drain drain = new ImuRingBuffer.Drain() {
+      @Override
+      public void onSamples(float[][] values, long[] timestampsNanos, int offset, int count) {
+        for (int i = offset; i < offset + count; ++i) {
+          long expected = next[0]++;
+          assertEquals(expected, timestampsNanos[i]);
+          assertEquals((float) expected, values[0][i], 0);
+          assertEquals((float) -expected, values[1][i], 0);
+          assertEquals((float) (2 * expected), values[2][i], 0);
+        }
+      }
+    };
+    while (next[0] < samplesNum) {
+      if (buffer.drainTo(drain) == 0)
+        Thread.yield();
+    }
+    producer.join();
+    assertTrue(buffer.isEmpty());
+    assertTrue(buffer.getDroppedNum() > 0);
+  }
+}
@@ -0,0 +1,157 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ImuStreamRecorderTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  private static final ImuLogFormat FORMAT = new ImuLogFormat('G', 3, "rad/s");
+
+  // Checks that the log holds exactly the accepted timestamps, strictly increasing
+  private static void checkLog(File file, final long acceptedNum, final long lastAccepted) throws Exception {
+    ImuLogReader reader = new ImuLogReader(file);
+    final long[] previous = {-1};
+    final long[] count = {0};
+    try {
+      reader.readAll(new ImuRingBuffer.Drain() {
+        @Override
+        public void onSamples(float[][] values, long[] timestampsNanos, int offset, int n) {
+          for (int i = offset; i < offset + n; ++i) {
+            assertTrue(timestampsNanos[i] > previous[0]);
+            assertEquals((float) timestampsNanos[i], values[0][i], 0);
+            previous[0] = timestampsNanos[i];
+            ++count[0];
+          }
+        }
+      });
+    } finally {
+      reader.close();
+    }
+    assertEquals(acceptedNum, count[0]);
+    assertEquals(lastAccepted, previous[0]);
+  }
+
+  @Test
+  public void nothingAcceptedIsLostWhenStoppingMidStream() throws Exception {
+    for (int round = 0; round < 20; ++round) {
+      SessionWriter session = new SessionWriter(mTmp.newFolder("session" + round));
+      File file = session.file("G.imu");
+      final ImuStreamRecorder recorder = new ImuStreamRecorder("G", file, FORMAT, 256);
+      session.addSource(recorder);
+      session.start();
+
+      final AtomicLong accepted = new AtomicLong();
+      final AtomicLong lastAccepted = new AtomicLong(-1);
+      Thread producer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          float[] v = new float[3];
+          // Keeps going until it runs into the closed gate
+          for (long t = 0; recorder.getRejectedNum() == 0; ++t) {
+            v[0] = t;
+            if (recorder.offer(v, t)) {
+              accepted.incrementAndGet();
+              lastAccepted.set(t);
+            }
+            if (t % 64 == 0)
+              Thread.yield();
+          }
+        }
+      });
+      producer.start();
+      Thread.sleep(round % 5);
+      recorder.stop();
+      producer.join();
+      session.stop();
+      assertTrue(session.awaitTermination(5000));
+
+      assertNull(session.takeException());
+      assertEquals(accepted.get(), recorder.getWrittenNum());
+      assertTrue(recorder.getRejectedNum() > 0);
+      checkLog(file, accepted.get(), lastAccepted.get());
+    }
+  }
+
+  @Test
+  public void offerNeverWaitsForTheSession() throws Exception {
+    // Not part of any session, so nothing drains the queue
+    ImuStreamRecorder recorder = new ImuStreamRecorder("G", new File(mTmp.getRoot(), "G.imu"), FORMAT, 16);
+    float[] v = new float[3];
+    long start = System.nanoTime();
+    int accepted = 0;
+    for (int t = 0; t < 100000; ++t)
+      if (recorder.offer(v, t))
+        ++accepted;
+    long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+    assertEquals(16, accepted);
+    assertEquals(100000 - 16, recorder.getDroppedNum());
+    assertTrue("offer took " + elapsedMillis + " ms", elapsedMillis < 2000);
+  }
+
+  @Test
+  public void samplesAfterStopAreRejected() throws Exception {
+    SessionWriter session = new SessionWriter(mTmp.getRoot());
+    File file = session.file("A.imu");
+    ImuStreamRecorder recorder = new ImuStreamRecorder("A", file, FORMAT);
+    session.addSource(recorder);
+    session.start();
+    float[] v = {1, 0, 0};
+    assertTrue(recorder.offer(v, 1));
+    recorder.stop();
+    assertFalse(recorder.offer(v, 2));
+    session.stop();
+    assertTrue(session.awaitTermination(5000));
+    assertEquals(1, recorder.getRejectedNum());
+    assertEquals(1, recorder.getWrittenNum());
+    checkLog(file, 1, 1);
+  }
+
+  @Test
+  public void compressedLogIsWrittenWhenThePolicyAsks() throws Exception {
+    // Without periodic syncs, only the policy gets partial blocks out
+    SessionWriter session = new SessionWriter(mTmp.getRoot(), 0, Long.MAX_VALUE, 0, 1024 * 1024);
+    File file = session.file("G" + CompressedImuLogWriter.FILE_EXTENSION);
+    ImuStreamRecorder recorder = new ImuStreamRecorder("G", file, FORMAT);
+    recorder.setCompression(ImuBlockCodec.Mode.XOR);
+    FlushPolicy policy = new FlushPolicy(session, 20000000L, 1024, 64 * 1024);
+    recorder.setFlushPolicy(policy);
+    session.addSource(recorder);
+    session.start();
+
+    float[] v = new float[3];
+    for (int i = 0; i < 10; ++i) {
+      v[0] = i;
+      assertTrue(recorder.offer(v, i));
+    }
+    // Far fewer samples than a block, still in the file well within a few maximum ages
+    long deadline = System.currentTimeMillis() + 2000;
+    long recordsNum = 0;
+    while (recordsNum < 10 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      if (file.length() < CompressedImuLogWriter.HEADER_SIZE)
+        continue;
+      CompressedImuLogReader reader = new CompressedImuLogReader(file);
+      recordsNum = reader.getRecordsNum();
+      reader.close();
+    }
+    assertEquals(10, recordsNum);
+    assertTrue(policy.getFlushesNum(FlushPolicy.Reason.AGE) >= 1);
+
+    recorder.stop();
+    session.stop();
+    assertTrue(session.awaitTermination(5000));
+    assertNull(session.takeException());
+    // The session counts what reached the file, not the records handed over
+    assertEquals(file.length() - CompressedImuLogWriter.HEADER_SIZE, session.getStats().bytesWritten);
+  }
+}
@@ -0,0 +1,115 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KeyframeFilterTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  private static final int W = 160;
+  private static final int H = 120;
+  private static final long FRAME_PERIOD = 33333333L;
+
+  private final Random mRandom = new Random(7);
+
+  // A gradient scene seen from shift pixels further right, brightened by gain, with sensor noise
+  private byte[] frame(int shift, int gain) {
+    byte[] frame = new byte[Nv21.bufferSize(W, H)];
+    for (int y = 0; y < H; ++y)
+      for (int x = 0; x < W; ++x)
+        frame[y * W + x] = (byte) Math.min(255, (x + shift) % W + y / 2 + gain + mRandom.nextInt(5));
+    return frame;
+  }
+
+  @Test
+  public void staticSceneIsThinnedToTheMaximumInterval() throws Exception {
+    KeyframeFilter filter = new KeyframeFilter(W, H);
+    for (int i = 0; i < 90; ++i) {
+      KeyframeFilter.Decision decision = filter.decide(frame(0, 0), i * FRAME_PERIOD);
+      if (i == 0)
+        assertEquals(KeyframeFilter.Decision.FIRST, decision);
+      else if (i == 31 || i == 62)
+        assertEquals("frame " + i, KeyframeFilter.Decision.INTERVAL, decision);
+      else
+        assertEquals("frame " + i, KeyframeFilter.Decision.SKIP, decision);
+    }
+    assertTrue(filter.getLastMeanDifference() < 1);
+    assertEquals(87, filter.getDecisionsNum(KeyframeFilter.Decision.SKIP));
+  }
+
+  @Test
+  public void movingContentIsKept() throws Exception {
+    KeyframeFilter filter = new KeyframeFilter(W, H);
+    assertTrue(filter.accept(frame(0, 0), 0));
+    // A slow pan only counts once it added up since the last kept frame
+    assertFalse(filter.accept(frame(2, 0), FRAME_PERIOD));
+    assertEquals(KeyframeFilter.Decision.DIFFERENCE, filter.decide(frame(40, 0), 2 * FRAME_PERIOD));
+    assertTrue(filter.getLastMeanDifference() > KeyframeFilter.DEFAULT_MEAN_DIFFERENCE);
+    assertFalse(filter.accept(frame(40, 0), 3 * FRAME_PERIOD));
+  }
+
+  @Test
+  public void exposureChangeIsKept() throws Exception {
+    KeyframeFilter filter = new KeyframeFilter(W, H);
+    assertTrue(filter.accept(frame(0, 0), 0));
+    assertEquals(KeyframeFilter.Decision.HISTOGRAM, filter.decide(frame(0, 40), FRAME_PERIOD));
+  }
+
+  @Test
+  public void rotationSinceTheKeyframeIsKept() throws Exception {
+    KeyframeFilter filter = new KeyframeFilter(W, H);
+    byte[] frame = frame(0, 0);
+    assertTrue(filter.accept(frame, 0));
+    // 0.5 rad/s for 80 ms, below the threshold
+    for (int i = 0; i <= 16; ++i)
+      filter.onGyro(0.3f, 0.4f, 0, i * 5000000L);
+    assertFalse(filter.accept(frame, FRAME_PERIOD));
+    // Another 40 ms, now 0.06 rad since the keyframe
+    for (int i = 17; i <= 24; ++i)
+      filter.onGyro(0.3f, 0.4f, 0, i * 5000000L);
+    assertEquals(KeyframeFilter.Decision.MOTION, filter.decide(frame, 2 * FRAME_PERIOD));
+    assertEquals(KeyframeFilter.Decision.SKIP, filter.decide(frame, 3 * FRAME_PERIOD));
+  }
+
+  @Test
+  public void decisionsAreLoggedAndCounted() throws Exception {
+    File dir = mTmp.newFolder();
+    SessionWriter session = new SessionWriter(dir);
+    SessionMetrics metrics = new SessionMetrics();
+    KeyframeFilter filter = new KeyframeFilter(W, H);
+    filter.setMetrics(metrics);
+    filter.startLog(session);
+    session.start();
+    for (int i = 0; i < 10; ++i)
+      filter.accept(frame(i < 5 ? 0 : 60, 0), i * FRAME_PERIOD);
+    filter.stopLog();
+    session.stop();
+    assertTrue(session.awaitTermination(5000));
+    assertNull(session.takeException());
+
+    assertEquals(8, metrics.counter("frames_skip").get());
+    assertEquals(1, metrics.counter("frames_difference").get());
+    final int[] decisions = new int[10];
+    ImuLogReader log = new ImuLogReader(new File(dir, KeyframeFilter.LOG_FILENAME));
+    assertTrue(log.getFormat().isCompatibleWith(KeyframeFilter.logFormat()));
+    assertEquals(10, log.readAll(new ImuRingBuffer.Drain() {
+      @Override
+      public void onSamples(float[][] values, long[] timestampsNanos, int offset, int count) {
+        for (int i = offset; i < offset + count; ++i)
+          decisions[(int) (timestampsNanos[i] / FRAME_PERIOD)] = (int) values[0][i];
+      }
+    }));
+    log.close();
+    assertEquals(KeyframeFilter.Decision.FIRST.ordinal(), decisions[0]);
+    assertEquals(KeyframeFilter.Decision.DIFFERENCE.ordinal(), decisions[5]);
+    assertEquals(KeyframeFilter.Decision.SKIP.ordinal(), decisions[9]);
+  }
+}
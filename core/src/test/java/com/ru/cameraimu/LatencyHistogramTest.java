@@ -0,0 +1,102 @@
+package com.ru.cameraimu;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void bucketsCoverEveryValueWithinThreePercent() throws Exception {
+    Random random = new Random(3);
+    for (int i = 0; i < 100000; ++i) {
+      long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+      int index = LatencyHistogram.indexOf(value);
+      long lowest = LatencyHistogram.lowestValueAt(index);
+      long highest = LatencyHistogram.highestValueAt(index);
+      assertTrue(value + " in [" + lowest + ", " + highest + "]", lowest <= value && value <= highest);
+      assertTrue(highest - lowest <= lowest / 32.0);
+    }
+    for (long value = 0; value < 32; ++value)
+      assertEquals(value, LatencyHistogram.highestValueAt(LatencyHistogram.indexOf(value)));
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueAt(LatencyHistogram.indexOf(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void percentilesMatchSortedValues() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    Random random = new Random(5);
+    long[] values = new long[10000];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = 1000000 + (long) (Math.abs(random.nextGaussian()) * 200000);
+      histogram.record(values[i]);
+    }
+    Arrays.sort(values);
+    for (double percentile : new double[] {50, 90, 99, 99.9}) {
+      long expected = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+      long actual = histogram.valueAtPercentile(percentile);
+      assertTrue(percentile + ": " + actual + " vs " + expected, actual >= expected && actual <= expected * 1.032);
+    }
+    assertEquals(values.length, histogram.getCount());
+    assertEquals(values[0], histogram.getMin());
+    assertEquals(values[values.length - 1], histogram.getMax());
+    assertEquals(values[values.length - 1], histogram.valueAtPercentile(100));
+  }
+
+  @Test
+  public void emptyAndResetHistogramsReportZero() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getMin());
+    assertEquals(0, histogram.valueAtPercentile(99));
+    histogram.record(-5);
+    histogram.record(42);
+    assertEquals(0, histogram.getMin());
+    assertEquals(21.0, histogram.getMean(), 1e-9);
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0.0, histogram.getMean(), 0);
+  }
+
+  @Test
+  public void concurrentRecordsAreAllCounted() throws Exception {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    final int threadsNum = 4;
+    final int perThread = 100000;
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[threadsNum];
+    for (int t = 0; t < threadsNum; ++t) {
+      final int offset = t;
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < perThread; ++i)
+            histogram.record(i % 1000 + offset);
+        }
+      });
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread thread : threads)
+      thread.join();
+
+    final long[] bucketed = {0};
+    histogram.forEachBucket(new LatencyHistogram.BucketVisitor() {
+      @Override
+      public void onBucket(long lowest, long highest, long count) { bucketed[0] += count; }
+    });
+    assertEquals(threadsNum * perThread, histogram.getCount());
+    assertEquals(threadsNum * perThread, bucketed[0]);
+    assertEquals(0, histogram.getMin());
+    assertEquals(999 + threadsNum - 1, histogram.getMax());
+  }
+}
@@ -0,0 +1,123 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LumaPyramidTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  private static final int W = 10;
+  private static final int H = 7;
+
+  private static byte[] frame(int width, int height) {
+    byte[] nv21 = new byte[Nv21.bufferSize(width, height)];
+    new Random(5).nextBytes(nv21);
+    return nv21;
+  }
+
+  @Test
+  public void levelsHalveTheSizeAndDropOddEdges() throws Exception {
+    assertEquals(3, LumaPyramid.maxLevels(W, H));
+    assertEquals(70 + 15 + 2, LumaPyramid.size(W, H, 3));
+    assertEquals(70, LumaPyramid.levelOffset(W, H, 1));
+    assertEquals(3, LumaPyramid.levelsOf(W, H, 87));
+    assertEquals(1, LumaPyramid.levelsOf(W, H, 70));
+    assertEquals(-1, LumaPyramid.levelsOf(W, H, 80));
+    assertEquals(9, LumaPyramid.maxLevels(640, 480));
+    try {
+      LumaPyramid.size(W, H, 4);
+      fail("level of zero pixels");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void everyLevelAveragesTheBlocksOfTheOneBefore() throws Exception {
+    byte[] nv21 = frame(W, H);
+    byte[] pyramid = new byte[LumaPyramid.size(W, H, 3)];
+    LumaPyramid.build(nv21, W, H, 3, pyramid, 0);
+    for (int i = 0; i < W * H; ++i)
+      assertEquals(nv21[i], pyramid[i]);
+    int src = 0;
+    for (int l = 1; l < 3; ++l) {
+      int srcW = W >> (l - 1);
+      int dst = LumaPyramid.levelOffset(W, H, l);
+      for (int y = 0; y < H >> l; ++y) {
+        for (int x = 0; x < W >> l; ++x) {
+          int top = src + 2 * y * srcW + 2 * x;
+          int sum = (pyramid[top] & 0xFF) + (pyramid[top + 1] & 0xFF) + (pyramid[top + srcW] & 0xFF)
+              + (pyramid[top + srcW + 1] & 0xFF);
+          assertEquals("level " + l + " at " + x + ", " + y, Math.round(sum / 4.0 + 1e-9),
+              pyramid[dst + y * (W >> l) + x] & 0xFF);
+        }
+      }
+      src = dst;
+    }
+  }
+
+  @Test
+  public void compressorWritesOnePgmPerLevel() throws Exception {
+    byte[] nv21 = frame(W, H);
+    FrameEncodePipeline.Frame frame = new FrameEncodePipeline.Frame();
+    frame.set(nv21, W, H, 0, 0, 0);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new LumaFrameCompressor(2, true).compress(frame, FrameFormat.GRAY, 95, out);
+    byte[] pgm = out.toByteArray();
+
+    byte[] header0 = "P5\n10 7\n255\n".getBytes("US-ASCII");
+    byte[] header1 = "P5\n5 3\n255\n".getBytes("US-ASCII");
+    assertEquals(header0.length + 70 + header1.length + 15, pgm.length);
+    for (int i = 0; i < header0.length; ++i)
+      assertEquals(header0[i], pgm[i]);
+    for (int i = 0; i < 70; ++i)
+      assertEquals(nv21[i], pgm[header0.length + i]);
+    int level1 = header0.length + 70;
+    for (int i = 0; i < header1.length; ++i)
+      assertEquals(header1[i], pgm[level1 + i]);
+
+    // Bare levels for raw segments, the same pixels
+    ByteArrayOutputStream bare = new ByteArrayOutputStream();
+    new LumaFrameCompressor(2, false).compress(frame, FrameFormat.GRAY, 95, bare);
+    byte[] pyramid = new byte[LumaPyramid.size(W, H, 2)];
+    LumaPyramid.build(nv21, W, H, 2, pyramid, 0);
+    assertArrayEquals(pyramid, bare.toByteArray());
+
+    try {
+      new LumaFrameCompressor(1, true).compress(frame, FrameFormat.JPEG, 95, out);
+      fail("not a luma format");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void pyramidsFillRawSegments() throws Exception {
+    File dir = mTmp.newFolder();
+    RawSegmentFormat format = RawSegmentFormat.luma(W, H, 3, 4);
+    assertEquals(RawSegmentFormat.PIXEL_FORMAT_Y8, format.pixelFormat);
+    assertEquals(3, LumaPyramid.levelsOf(W, H, format.frameSize));
+    RawFrameSegmentWriter writer = new RawFrameSegmentWriter(dir, format);
+    byte[] pyramid = new byte[format.frameSize];
+    for (int i = 0; i < 6; ++i) {
+      LumaPyramid.build(frame(W, H), W, H, 3, pyramid, 0);
+      writer.append(pyramid, pyramid.length, i);
+    }
+    writer.close();
+    assertEquals(2, writer.getSegmentsNum());
+    RawFrameSegmentReader reader = RawFrameSegmentReader.open(dir, 1);
+    assertEquals(2, reader.getFrameCount());
+    assertEquals(RawSegmentFormat.PIXEL_FORMAT_Y8, reader.getFormat().pixelFormat);
+    reader.close();
+  }
+}
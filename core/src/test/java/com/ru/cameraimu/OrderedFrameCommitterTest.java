@@ -0,0 +1,123 @@
+package com.ru.cameraimu;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OrderedFrameCommitterTest {
+
+  private static class RecordingSink implements OrderedFrameCommitter.CommitSink {
+    final List<Long> sequences = new ArrayList<>();
+    final List<String> payloads = new ArrayList<>();
+
+    @Override
+    public void commit(long sequence, long timestampNanos, byte[] data, int length) throws IOException {
+      if (timestampNanos < 0)
+        throw new IOException("disk full");
+      sequences.add(sequence);
+      payloads.add(new String(data, 0, length, "US-ASCII"));
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  private static void complete(OrderedFrameCommitter committer, long sequence) throws Exception {
+    OrderedFrameCommitter.Slot slot = committer.acquire(sequence);
+    slot.write(("frame" + sequence).getBytes("US-ASCII"));
+    committer.complete(slot, sequence, sequence * 100);
+  }
+
+  @Test
+  public void outOfOrderCompletionsAreCommittedInOrder() throws Exception {
+    RecordingSink sink = new RecordingSink();
+    OrderedFrameCommitter committer = new OrderedFrameCommitter(8, sink);
+
+    complete(committer, 2);
+    complete(committer, 1);
+    assertTrue(sink.sequences.isEmpty());
+    assertEquals(2, committer.getPendingNum());
+
+    complete(committer, 0);
+    assertEquals(Arrays.asList(0L, 1L, 2L), sink.sequences);
+    assertEquals(Arrays.asList("frame0", "frame1", "frame2"), sink.payloads);
+    assertEquals(3, committer.getNextSequence());
+    assertEquals(0, committer.getPendingNum());
+  }
+
+  @Test
+  public void skippedSequencesDoNotHoldBackLaterFrames() throws Exception {
+    RecordingSink sink = new RecordingSink();
+    OrderedFrameCommitter committer = new OrderedFrameCommitter(8, sink);
+
+    complete(committer, 1);
+    committer.skip(0);
+    committer.skip(2);
+    complete(committer, 3);
+
+    assertEquals(Arrays.asList(1L, 3L), sink.sequences);
+    assertEquals(2, committer.getSkippedNum());
+    assertEquals(4, committer.getNextSequence());
+  }
+
+  @Test
+  public void slotsAreReused() throws Exception {
+    OrderedFrameCommitter committer = new OrderedFrameCommitter(4, new RecordingSink());
+    for (long i = 0; i < 100; ++i)
+      complete(committer, i);
+    assertEquals(1, committer.getSlotsNum());
+  }
+
+  @Test
+  public void acquireWaitsForTheWindowToAdvance() throws Exception {
+    final OrderedFrameCommitter committer = new OrderedFrameCommitter(2, new RecordingSink());
+    complete(committer, 1);
+
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread worker = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          committer.acquire(2);
+          acquired.countDown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    worker.start();
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+    complete(committer, 0);
+    assertTrue(acquired.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void sinkFailuresAreKeptAndDoNotStallCommits() throws Exception {
+    RecordingSink sink = new RecordingSink();
+    OrderedFrameCommitter committer = new OrderedFrameCommitter(8, sink);
+
+    OrderedFrameCommitter.Slot slot = committer.acquire(0);
+    committer.complete(slot, 0, -1);
+    complete(committer, 1);
+
+    assertEquals(Arrays.asList(1L), sink.sequences);
+    assertEquals(1, committer.getCommitFailedNum());
+    assertEquals("disk full", committer.takeException().getMessage());
+    assertNull(committer.takeException());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void completingTwiceIsRejected() throws Exception {
+    OrderedFrameCommitter committer = new OrderedFrameCommitter(8, new RecordingSink());
+    complete(committer, 0);
+    committer.skip(0);
+  }
+}
@@ -0,0 +1,135 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ParallelFrameEncoderTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  // Writes the first luma byte after a random delay, so that workers finish out of order,
+  // and fails on frames whose first byte is negative
+  private static class JitteryCompressor implements FrameCompressor {
+    @Override
+    public void compress(FrameEncodePipeline.Frame frame, FrameFormat format, int quality, OutputStream out)
+        throws IOException {
+      try {
+        Thread.sleep(new Random(frame.sequence()).nextInt(4));
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      if (frame.data()[0] < 0)
+        throw new IOException("corrupt frame");
+      out.write(frame.data()[0]);
+      out.write(quality);
+    }
+  }
+
+  private FrameEncodePipeline newPipeline(final ParallelFrameEncoder encoder, int workersNum) {
+    return new FrameEncodePipeline(encoder, 4, workersNum, FrameEncodePipeline.DropPolicy.BLOCK,
+        new FrameEncodePipeline.Listener() {
+      @Override
+      public void onFrameDone(FrameEncodePipeline.Frame frame, boolean encoded) { encoder.onFrameDone(frame, encoded); }
+
+      @Override
+      public void onEncodeFailed(FrameEncodePipeline.Frame frame, Exception e) {}
+    });
+  }
+
+  @Test
+  public void framesAreCommittedInTimestampOrderWithManifest() throws Exception {
+    File imageDir = mTmp.newFolder("IMG");
+    SessionWriter session = new SessionWriter(mTmp.getRoot());
+    session.start();
+    FileFrameCommitSink sink = new FileFrameCommitSink(session, "IMG", FrameFormat.JPEG);
+    ParallelFrameEncoder encoder = new ParallelFrameEncoder(new JitteryCompressor(), FrameFormat.JPEG, 80,
+        new OrderedFrameCommitter(ParallelFrameEncoder.defaultWindow(4), sink));
+    FrameEncodePipeline pipeline = newPipeline(encoder, 4);
+
+    int framesNum = 60;
+    for (int i = 0; i < framesNum; ++i) {
+      // Every tenth frame fails to encode and must be skipped without stalling later ones
+      byte first = (byte) (i % 10 == 9 ? -1 : i);
+      pipeline.submit(new byte[] {first}, 1, 1, 1000L + i);
+    }
+    pipeline.shutdown();
+    assertTrue(pipeline.awaitTermination(10000));
+    sink.close();
+    session.stop();
+    assertTrue(session.awaitTermination(5000));
+    assertNull(session.takeException());
+
+    List<String> lines = Files.readAllLines(session.file(FileFrameCommitSink.MANIFEST_FILENAME).toPath());
+    assertEquals(framesNum - framesNum / 10, lines.size());
+    long lastTimestamp = -1;
+    for (String line : lines) {
+      String[] fields = line.split(" ");
+      long timestamp = Long.parseLong(fields[1]);
+      assertTrue(timestamp > lastTimestamp);
+      lastTimestamp = timestamp;
+
+      assertEquals(FileFrameCommitSink.filename(timestamp, FrameFormat.JPEG), fields[2]);
+      byte[] contents = Files.readAllBytes(new File(imageDir, fields[2]).toPath());
+      assertEquals(2, contents.length);
+      assertEquals((byte) (timestamp - 1000), contents[0]);
+      assertEquals(80, contents[1]);
+    }
+    assertEquals(framesNum / 10, encoder.getCommitter().getSkippedNum());
+    assertEquals(framesNum, encoder.getCommitter().getNextSequence());
+  }
+
+  @Test
+  public void qualityChangesApplyToLaterFrames() throws Exception {
+    final List<Integer> qualities = new ArrayList<>();
+    ParallelFrameEncoder encoder = new ParallelFrameEncoder(new JitteryCompressor(), FrameFormat.JPEG, 90,
+        new OrderedFrameCommitter(2, new OrderedFrameCommitter.CommitSink() {
+      @Override
+      public void commit(long sequence, long timestampNanos, byte[] data, int length) {
+        qualities.add((int) data[1]);
+      }
+
+      @Override
+      public void close() {}
+    }));
+    FrameEncodePipeline pipeline = newPipeline(encoder, 1);
+    pipeline.submit(new byte[] {1}, 1, 1, 1);
+    while (encoder.getCommitter().getNextSequence() < 1)
+      Thread.sleep(1);
+    encoder.setQuality(50);
+    pipeline.submit(new byte[] {2}, 1, 1, 2);
+    pipeline.shutdown();
+    assertTrue(pipeline.awaitTermination(5000));
+
+    assertEquals(Arrays.asList(90, 50), qualities);
+  }
+
+  @Test
+  public void nv21ToArgb_convertsGrayAndPrimaries() throws Exception {
+    // 2x2 frame: one chroma sample shared by all four pixels
+    byte[] gray = {(byte) 128, (byte) 128, (byte) 128, (byte) 128, (byte) 128, (byte) 128};
+    int[] argb = new int[4];
+    Nv21.toArgb(gray, 2, 2, argb);
+    for (int pixel : argb)
+      assertEquals(0xFF808080, pixel);
+
+    // Maximum V pushes red up and green down
+    byte[] reddish = {(byte) 128, (byte) 128, (byte) 128, (byte) 128, (byte) 255, (byte) 128};
+    Nv21.toArgb(reddish, 2, 2, argb);
+    assertEquals(255, (argb[0] >> 16) & 0xFF);
+    assertTrue(((argb[0] >> 8) & 0xFF) < 128);
+    assertEquals(128, argb[0] & 0xFF);
+  }
+}
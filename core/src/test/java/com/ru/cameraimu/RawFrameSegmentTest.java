@@ -0,0 +1,142 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class RawFrameSegmentTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  private static final int W = 8;
+  private static final int H = 4;
+
+  private static byte[] frame(int n) {
+    byte[] data = new byte[Nv21.bufferSize(W, H)];
+    for (int i = 0; i < data.length; ++i)
+      data[i] = (byte) (n * 31 + i);
+    return data;
+  }
+
+  private File writeFrames(int framesNum, int capacity) throws IOException {
+    File dir = mTmp.newFolder();
+    RawFrameSegmentWriter writer = new RawFrameSegmentWriter(dir, RawSegmentFormat.nv21(W, H, capacity));
+    for (int n = 0; n < framesNum; ++n) {
+      byte[] data = frame(n);
+      writer.commit(n, 1000L * n, data, data.length);
+    }
+    writer.close();
+    assertEquals(framesNum, writer.getFramesNum());
+    return dir;
+  }
+
+  @Test
+  public void framesRollOverIntoNewSegments() throws Exception {
+    File dir = writeFrames(10, 4);
+
+    File[] segments = RawFrameSegmentReader.listSegments(dir);
+    assertEquals(3, segments.length);
+    assertEquals(RawSegmentFormat.segmentName(0), segments[0].getName());
+
+    int[] expectedCounts = {4, 4, 2};
+    byte[] buffer = new byte[Nv21.bufferSize(W, H)];
+    for (int s = 0; s < 3; ++s) {
+      RawFrameSegmentReader reader = RawFrameSegmentReader.open(dir, s);
+      assertEquals(expectedCounts[s], reader.getFrameCount());
+      assertEquals(W, reader.getFormat().width);
+      for (int i = 0; i < reader.getFrameCount(); ++i) {
+        int n = 4 * s + i;
+        assertEquals(1000L * n, reader.timestampAt(i));
+        reader.readFrame(i, buffer);
+        assertArrayEquals(frame(n), buffer);
+      }
+      reader.close();
+    }
+  }
+
+  @Test
+  public void frameViewsAreRandomAccess() throws Exception {
+    File dir = writeFrames(4, 4);
+    RawFrameSegmentReader reader = RawFrameSegmentReader.open(dir, 0);
+
+    ByteBuffer view = reader.frame(2);
+    assertEquals(Nv21.bufferSize(W, H), view.remaining());
+    byte[] contents = new byte[view.remaining()];
+    view.get(contents);
+    assertArrayEquals(frame(2), contents);
+    assertTrue(reader.frame(3).isReadOnly());
+    reader.close();
+  }
+
+  @Test
+  public void floorFrameFindsByTimestamp() throws Exception {
+    File dir = writeFrames(4, 8);
+    RawFrameSegmentReader reader = RawFrameSegmentReader.open(dir, 0);
+    assertEquals(-1, reader.floorFrame(-5));
+    assertEquals(0, reader.floorFrame(0));
+    assertEquals(1, reader.floorFrame(1999));
+    assertEquals(2, reader.floorFrame(2000));
+    assertEquals(3, reader.floorFrame(Long.MAX_VALUE));
+    reader.close();
+  }
+
+  @Test
+  public void framesWithoutIndexRecordAreHidden() throws Exception {
+    File dir = writeFrames(3, 8);
+
+    // Simulate a crash between copying a frame and finishing its index record
+    RandomAccessFile index = new RandomAccessFile(new File(dir, RawSegmentFormat.indexName(0)), "rw");
+    index.setLength(2 * RawSegmentFormat.INDEX_RECORD_SIZE + 5);
+    index.close();
+
+    RawFrameSegmentReader reader = RawFrameSegmentReader.open(dir, 0);
+    assertEquals(2, reader.getFrameCount());
+    reader.close();
+  }
+
+  @Test
+  public void segmentsAreBoundedByWhatCanBeMapped() throws Exception {
+    // 4K NV21 frames, 12.4 MB each
+    int frameSize = Nv21.bufferSize(3840, 2160);
+    int capacity = RawSegmentFormat.maxCapacity(frameSize);
+    assertEquals(172, capacity);
+    assertTrue(RawSegmentFormat.nv21(3840, 2160, capacity).segmentSize() <= Integer.MAX_VALUE);
+    try {
+      RawSegmentFormat.nv21(3840, 2160, 256);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("at most 172 fit"));
+    }
+    assertEquals(0, RawSegmentFormat.maxCapacity(Integer.MAX_VALUE));
+  }
+
+  @Test(expected = IOException.class)
+  public void wrongFrameSizeIsRejected() throws Exception {
+    RawFrameSegmentWriter writer = new RawFrameSegmentWriter(mTmp.newFolder(), RawSegmentFormat.nv21(W, H, 4));
+    try {
+      writer.commit(0, 0, new byte[3], 3);
+    } finally {
+      writer.close();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void timestampsMustNotGoBackwards() throws Exception {
+    RawFrameSegmentWriter writer = new RawFrameSegmentWriter(mTmp.newFolder(), RawSegmentFormat.nv21(W, H, 4));
+    byte[] data = frame(0);
+    try {
+      writer.commit(0, 10, data, data.length);
+      writer.commit(1, 5, data, data.length);
+    } finally {
+      writer.close();
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.ru.cameraimu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SensorHudTest {
+
+  @Test
+  public void throttleKeepsToTheRateWithoutDrift() throws Exception {
+    DisplayThrottle throttle = new DisplayThrottle(15);
+    int updates = 0;
+    // Polled at 60 Hz with some jitter for ten seconds
+    for (long t = 0; t < 10000000000L; t += 16666667L + (t / 16666667L % 3 - 1) * 2000000L)
+      if (throttle.tryAcquire(t))
+        ++updates;
+    assertEquals(150, updates, 2);
+  }
+
+  @Test
+  public void throttleStartsOverAfterAStall() throws Exception {
+    DisplayThrottle throttle = new DisplayThrottle(10);
+    assertTrue(throttle.tryAcquire(0));
+    assertFalse(throttle.tryAcquire(99999999L));
+    assertTrue(throttle.tryAcquire(100000000L));
+    // A second late, one update and not ten
+    assertTrue(throttle.tryAcquire(1200000000L));
+    assertFalse(throttle.tryAcquire(1250000000L));
+    assertTrue(throttle.tryAcquire(1300000000L));
+    throttle.reset();
+    assertTrue(throttle.tryAcquire(1300000001L));
+  }
+
+  @Test
+  public void rendersLatestValuesAndStats() throws Exception {
+    SensorRateStats gyro = new SensorRateStats(3);
+    SensorRateStats accel = new SensorRateStats(3);
+    SensorHud hud = new SensorHud(15, new String[] {"G", "A"}, new SensorRateStats[] {gyro, accel});
+
+    assertTrue(hud.render(0));
+    assertEquals("Sensor Information:\n"
+        + "G:   0.000000   0.000000   0.000000\n  no samples\n"
+        + "A:   0.000000   0.000000   0.000000\n  no samples\n"
+        + "Timestamp Nanos: 0", hud.text().toString());
+
+    for (long t = 0; t <= 1000000000L; t += 5000000L)
+      gyro.onSample(new float[] {0.5f, -0.25f, 1e-7f}, t);
+    accel.onSample(new float[] {0, 9.81f, -12.5f}, 7);
+    assertFalse(hud.render(1000000L));
+    assertTrue(hud.render(100000000L));
+    assertEquals("Sensor Information:\n"
+        + "G:   0.500000  -0.250000   0.000000\n  200.0 Hz  dt 5.00..5.00 ms  jitter 0.000 ms\n"
+        + "A:   0.000000   9.810000 -12.500000\n  measuring...\n"
+        + "Timestamp Nanos: 1000000000", hud.text().toString());
+  }
+}
@@ -0,0 +1,68 @@
+package com.ru.cameraimu;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SensorRateStatsTest {
+
+  @Test
+  public void statsOfTheLastCompleteWindow() throws Exception {
+    SensorRateStats stats = new SensorRateStats(3);
+    SensorRateStats.Snapshot snapshot = new SensorRateStats.Snapshot(3);
+    float[] v = new float[4];  // Longer than the arity, like SensorEvent.values can be
+
+    // 200 Hz with +-100 us of uniform jitter
+    Random random = new Random(1);
+    long t = 0;
+    for (int i = 0; i < 100; ++i) {
+      stats.onSample(v, t);
+      t += 5000000L + random.nextInt(200001) - 100000;
+    }
+    stats.snapshot(snapshot);
+    assertFalse(snapshot.hasStats);
+    assertEquals(100, snapshot.samplesNum);
+
+    for (int i = 0; i < 1000; ++i) {
+      v[0] = i;
+      stats.onSample(v, t);
+      t += 5000000L + random.nextInt(200001) - 100000;
+    }
+    stats.snapshot(snapshot);
+    assertTrue(snapshot.hasStats);
+    assertEquals(999, snapshot.values[0], 0);
+    assertEquals(200, snapshot.rateHz, 1);
+    assertTrue(snapshot.minIntervalNanos >= 4900000L && snapshot.minIntervalNanos < 4910000L);
+    assertTrue(snapshot.maxIntervalNanos <= 5100000L && snapshot.maxIntervalNanos > 5090000L);
+    // Standard deviation of a uniform distribution over 200 us
+    assertEquals(200000 / Math.sqrt(12), snapshot.jitterNanos, 10000);
+  }
+
+  @Test
+  public void staleSamplesAreOnlyCounted() throws Exception {
+    SensorRateStats stats = new SensorRateStats(1, 100);
+    SensorRateStats.Snapshot snapshot = new SensorRateStats.Snapshot(1);
+    for (long t = 0; t <= 100; t += 10)
+      stats.onSample(new float[] {1}, t);
+    stats.onSample(new float[] {2}, 50);
+    stats.onSample(new float[] {3}, 100);
+    stats.snapshot(snapshot);
+    // The values stay those of the newest sample, published with its timestamp
+    assertEquals(1, snapshot.values[0], 0);
+    assertEquals(100, snapshot.timestampNanos);
+    assertEquals(11, snapshot.samplesNum);
+    assertEquals(2, stats.getStaleNum());
+    assertEquals(1e8, snapshot.rateHz, 1);
+    assertEquals(10, snapshot.minIntervalNanos);
+    assertEquals(10, snapshot.maxIntervalNanos);
+    assertEquals(0, snapshot.jitterNanos, 1e-6);
+
+    stats.reset();
+    stats.snapshot(snapshot);
+    assertFalse(snapshot.hasStats);
+    assertEquals(0, snapshot.samplesNum);
+    assertEquals(0, stats.getStaleNum());
+  }
+}
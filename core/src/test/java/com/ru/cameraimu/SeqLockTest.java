@@ -0,0 +1,120 @@
+package com.ru.cameraimu;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SeqLockTest {
+
+  private static final int READERS_NUM = 3;
+  private static final int WRITES_NUM = 300000;
+
+  // Runs the reader on a few threads at once against the writer until it is done, returns the
+  // number of reads
+  private static long race(final Runnable writer, final Runnable reader) throws Exception {
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicLong readsNum = new AtomicLong();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread[] readers = new Thread[READERS_NUM];
+    for (int i = 0; i < readers.length; ++i) {
+      readers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (!done.get()) {
+              reader.run();
+              readsNum.incrementAndGet();
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+        }
+      });
+      readers[i].start();
+    }
+    try {
+      writer.run();
+    } finally {
+      done.set(true);
+      for (Thread thread : readers)
+        thread.join();
+    }
+    if (failure.get() != null)
+      throw new AssertionError(failure.get());
+    return readsNum.get();
+  }
+
+  @Test
+  public void readersNeverSeeATornTuple() throws Exception {
+    final SeqLock lock = new SeqLock(4);
+    long readsNum = race(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 1; i <= WRITES_NUM; ++i) {
+          lock.beginWrite();
+          lock.putFloat(0, i);
+          lock.putFloat(1, -i);
+          lock.putDouble(2, 0.5 * i);
+          lock.putLong(3, i);
+          lock.endWrite();
+        }
+      }
+    }, new Runnable() {
+      @Override
+      public void run() {
+        long sequence;
+        float x;
+        float y;
+        double z;
+        long t;
+        do {
+          sequence = lock.beginRead();
+          x = lock.getFloat(0);
+          y = lock.getFloat(1);
+          z = lock.getDouble(2);
+          t = lock.getLong(3);
+        } while (!lock.validate(sequence));
+        assertEquals(t, x, 0);
+        assertEquals(-t, y, 0);
+        assertEquals(0.5 * t, z, 0);
+      }
+    });
+    assertTrue(readsNum > 0);
+    assertEquals(WRITES_NUM, lock.version());
+  }
+
+  @Test
+  public void snapshotsMatchOneSample() throws Exception {
+    final SensorRateStats stats = new SensorRateStats(3, 1000000L);
+    race(new Runnable() {
+      @Override
+      public void run() {
+        float[] v = new float[3];
+        for (int i = 1; i <= WRITES_NUM; ++i) {
+          v[0] = i;
+          v[1] = 2 * i;
+          v[2] = 3 * i;
+          stats.onSample(v, 1000L * i);
+        }
+      }
+    }, new Runnable() {
+      @Override
+      public void run() {
+        SensorRateStats.Snapshot snapshot = new SensorRateStats.Snapshot(3);
+        stats.snapshot(snapshot);
+        if (snapshot.samplesNum == 0)
+          return;
+        assertEquals(snapshot.samplesNum, snapshot.values[0], 0);
+        assertEquals(2 * snapshot.values[0], snapshot.values[1], 0);
+        assertEquals(3 * snapshot.values[0], snapshot.values[2], 0);
+        assertEquals(1000L * snapshot.samplesNum, snapshot.timestampNanos);
+        if (snapshot.hasStats)
+          assertEquals(1000, snapshot.minIntervalNanos);
+      }
+    });
+  }
+}
@@ -0,0 +1,192 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SessionIndexTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  private static final int GYRO_NUM = 3000;
+  private static final long GYRO_PERIOD = 5000000L;
+  private static final int FRAMES_NUM = 100;
+  private static final long FRAME_PERIOD = 33000000L;
+
+  private static long frameTimestamp(int i) { return 2000000L + i * FRAME_PERIOD; }
+
+  // A session recorded through the SessionWriter with its index, as the app does
+  private File recordSession(boolean raw) throws Exception { return recordSession(raw, null); }
+
+  private File recordSession(boolean raw, ImuBlockCodec.Mode compression) throws Exception {
+    File dir = mTmp.newFolder();
+    assertTrue(new File(dir, SessionReader.IMAGE_DIR).mkdir());
+    SessionWriter session = new SessionWriter(dir);
+    session.setIndex(new SessionIndexWriter(session.file(SessionIndex.FILENAME), raw ? FrameFormat.RAW : FrameFormat.JPEG));
+    String log = "G" + (compression != null ? CompressedImuLogWriter.FILE_EXTENSION : ImuLogFormat.FILE_EXTENSION);
+    ImuStreamRecorder recorder = new ImuStreamRecorder("G", session.file(log), new ImuLogFormat('G', 3, "rad/s"));
+    recorder.setIndex(session.getIndex());
+    recorder.setCompression(compression);
+    session.addSource(recorder);
+    OrderedFrameCommitter.CommitSink sink;
+    if (raw) {
+      RawFrameSegmentWriter segmentWriter = new RawFrameSegmentWriter(session.file(SessionReader.IMAGE_DIR),
+          RawSegmentFormat.nv21(4, 2, 16));
+      segmentWriter.setIndex(session.getIndex());
+      session.addSource(segmentWriter);
+      sink = segmentWriter;
+    } else {
+      sink = new FileFrameCommitSink(session, SessionReader.IMAGE_DIR, FrameFormat.JPEG);
+    }
+    session.start();
+
+    float[] v = new float[3];
+    for (int i = 0; i < GYRO_NUM; ++i)
+      assertTrue(recorder.offer(v, i * GYRO_PERIOD));
+    byte[] frame = new byte[Nv21.bufferSize(4, 2)];
+    for (int i = 0; i < FRAMES_NUM; ++i)
+      sink.commit(i, frameTimestamp(i), frame, frame.length);
+    recorder.stop();
+    sink.close();
+    session.stop();
+    assertTrue(session.awaitTermination(5000));
+    assertNull(session.takeException());
+    return dir;
+  }
+
+  private static void checkIndex(SessionIndex index, boolean raw) {
+    assertTrue(index.isComplete());
+    assertEquals(raw ? FrameFormat.RAW : FrameFormat.JPEG, index.getFrameFormat());
+    assertEquals(GYRO_NUM, index.getImuRecordsNum('G'));
+    assertEquals(FRAMES_NUM, index.getFramesNum());
+    for (int i = 0; i < FRAMES_NUM; ++i) {
+      SessionIndex.Frame frame = index.frameAt(i);
+      assertEquals(frameTimestamp(i), frame.timestampNanos);
+      assertEquals(raw, frame.isRaw());
+      if (raw) {
+        assertEquals(i / 16, frame.segment);
+        assertEquals(i % 16, frame.segmentFrame);
+      } else {
+        assertEquals(i, frame.sequence);
+      }
+    }
+  }
+
+  @Test
+  public void recordingBuildsACompleteIndex() throws Exception {
+    File dir = recordSession(false);
+    SessionIndex index = SessionIndex.read(new File(dir, SessionIndex.FILENAME));
+    checkIndex(index, false);
+
+    List<SessionIndex.ImuBlock> blocks = index.imuBlocks('G', Long.MIN_VALUE, Long.MAX_VALUE);
+    assertEquals(3, blocks.size());
+    assertEquals(SessionIndex.IMU_BLOCK_RECORDS, blocks.get(0).count);
+    assertEquals(GYRO_NUM - 2 * SessionIndex.IMU_BLOCK_RECORDS, blocks.get(2).count);
+    assertEquals(blocks.get(0).endRecord(), blocks.get(1).firstRecord);
+    assertEquals((GYRO_NUM - 1) * GYRO_PERIOD, blocks.get(2).maxNanos);
+    for (SessionIndex.Frame frame : index.frames(0, Long.MAX_VALUE))
+      assertTrue(frame.path(), new File(dir, frame.path()).isFile());
+  }
+
+  @Test
+  public void rangeQueriesMatchAScan() throws Exception {
+    SessionIndex index = SessionIndex.read(new File(recordSession(false), SessionIndex.FILENAME));
+    Random random = new Random(17);
+    for (int round = 0; round < 200; ++round) {
+      long from = (long) (random.nextDouble() * GYRO_NUM * GYRO_PERIOD * 1.1) - GYRO_PERIOD;
+      long to = from + (long) (random.nextDouble() * 6e9);
+
+      List<SessionIndex.Frame> frames = index.frames(from, to);
+      int expected = 0;
+      for (int i = 0; i < FRAMES_NUM; ++i) {
+        if (frameTimestamp(i) >= from && frameTimestamp(i) <= to)
+          assertEquals(frameTimestamp(i), frames.get(expected++).timestampNanos);
+      }
+      assertEquals(expected, frames.size());
+
+      // Every sample in the range is in one of the blocks, and every block has one
+      List<SessionIndex.ImuBlock> blocks = index.imuBlocks('G', from, to);
+      for (int i = 0; i < GYRO_NUM; ++i) {
+        long t = i * GYRO_PERIOD;
+        if (t < from || t > to)
+          continue;
+        boolean found = false;
+        for (SessionIndex.ImuBlock block : blocks)
+          found |= i >= block.firstRecord && i < block.endRecord();
+        assertTrue("sample " + i, found);
+      }
+      for (SessionIndex.ImuBlock block : blocks)
+        assertTrue(block.maxNanos >= from && block.minNanos <= to);
+    }
+    assertTrue(index.imuBlocks('A', 0, Long.MAX_VALUE).isEmpty());
+  }
+
+  @Test
+  public void indexCutShortByACrashIsRecovered() throws Exception {
+    for (boolean raw : new boolean[] {false, true}) {
+      File dir = recordSession(raw);
+      File file = new File(dir, SessionIndex.FILENAME);
+      // As if killed while writing the 5th entry
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      randomAccessFile.setLength(SessionIndex.HEADER_SIZE + 4 * SessionIndex.RECORD_SIZE + 17);
+      randomAccessFile.close();
+
+      SessionIndex cut = SessionIndex.read(file);
+      assertFalse(cut.isComplete());
+      assertEquals(4, cut.getEntriesNum());
+
+      checkIndex(SessionIndex.recover(dir, FrameFormat.PNG), raw);
+      checkIndex(SessionIndex.read(file), raw);
+      assertFalse(new File(dir, SessionIndex.FILENAME + ".tmp").exists());
+    }
+  }
+
+  @Test
+  public void missingIndexIsRebuiltFromTheData() throws Exception {
+    File dir = recordSession(false);
+    assertTrue(new File(dir, SessionIndex.FILENAME).delete());
+    checkIndex(SessionIndex.recover(dir, FrameFormat.JPEG), false);
+  }
+
+  @Test
+  public void compressedLogIsIndexedAndRecovered() throws Exception {
+    File dir = recordSession(false, ImuBlockCodec.Mode.QUANTIZED);
+    File file = new File(dir, SessionIndex.FILENAME);
+    checkIndex(SessionIndex.read(file), false);
+
+    // As if killed while writing the 5th entry, the IMU records beyond are indexed from the log
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.setLength(SessionIndex.HEADER_SIZE + 4 * SessionIndex.RECORD_SIZE + 17);
+    randomAccessFile.close();
+    assertTrue(SessionIndex.read(file).getImuRecordsNum('G') < GYRO_NUM);
+    SessionIndex index = SessionIndex.recover(dir, FrameFormat.JPEG);
+    checkIndex(index, false);
+    List<SessionIndex.ImuBlock> blocks = index.imuBlocks('G', Long.MIN_VALUE, Long.MAX_VALUE);
+    assertEquals((GYRO_NUM + SessionIndex.IMU_BLOCK_RECORDS - 1) / SessionIndex.IMU_BLOCK_RECORDS, blocks.size());
+    for (int i = 0; i < blocks.size(); ++i) {
+      assertEquals((long) i * SessionIndex.IMU_BLOCK_RECORDS, blocks.get(i).firstRecord);
+      assertEquals(blocks.get(i).firstRecord * GYRO_PERIOD, blocks.get(i).minNanos);
+    }
+  }
+
+  @Test
+  public void corruptEntryEndsTheValidPrefix() throws Exception {
+    File file = new File(recordSession(false), SessionIndex.FILENAME);
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.seek(SessionIndex.HEADER_SIZE + 10 * SessionIndex.RECORD_SIZE + 12);
+    randomAccessFile.write(0x5A);
+    randomAccessFile.close();
+
+    SessionIndex index = SessionIndex.read(file);
+    assertFalse(index.isComplete());
+    assertEquals(10, index.getEntriesNum());
+  }
+}
@@ -0,0 +1,208 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class SessionJournalTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  private static final int GYRO_NUM = 3000;
+  private static final long GYRO_PERIOD = 5000000L;
+  private static final int FRAMES_NUM = 20;
+  private static final long FRAME_PERIOD = 33000000L;
+  private static final ImuLogFormat GYRO_FORMAT = new ImuLogFormat('G', 3, "rad/s");
+
+  private static String framePath(int i) {
+    return SessionReader.IMAGE_DIR + "/" + FileFrameCommitSink.filename(i * FRAME_PERIOD, FrameFormat.JPEG);
+  }
+
+  private static String manifestLine(int i, int length) {
+    return i + " " + i * FRAME_PERIOD + " " + FileFrameCommitSink.filename(i * FRAME_PERIOD, FrameFormat.JPEG) + " "
+        + length + "\n";
+  }
+
+  private static void append(File file, byte[] data) throws Exception {
+    FileOutputStream out = new FileOutputStream(file, true);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  @Test
+  public void cleanSessionEndsWithEveryFileCommitted() throws Exception {
+    File dir = mTmp.newFolder();
+    assertTrue(new File(dir, SessionReader.IMAGE_DIR).mkdir());
+    SessionWriter session = new SessionWriter(dir);
+    session.setIndex(new SessionIndexWriter(session.file(SessionIndex.FILENAME), FrameFormat.JPEG));
+    session.setJournal(new SessionJournalWriter(dir));
+    ImuStreamRecorder recorder = new ImuStreamRecorder("G", session.file("G.imu"), GYRO_FORMAT);
+    recorder.setJournal(session.getJournal());
+    session.addSource(recorder);
+    FileFrameCommitSink sink = new FileFrameCommitSink(session, SessionReader.IMAGE_DIR, FrameFormat.JPEG);
+    session.start();
+
+    float[] v = new float[3];
+    for (int i = 0; i < GYRO_NUM; ++i)
+      assertTrue(recorder.offer(v, i * GYRO_PERIOD));
+    byte[] frame = new byte[100];
+    for (int i = 0; i < FRAMES_NUM; ++i)
+      sink.commit(i, i * FRAME_PERIOD, frame, frame.length - i);
+    recorder.stop();
+    sink.close();
+    session.stop();
+    assertTrue(session.awaitTermination(5000));
+    assertNull(session.takeException());
+
+    assertFalse(SessionJournal.needsRecovery(dir));
+    SessionJournal journal = SessionJournal.read(new File(dir, SessionJournal.FILENAME));
+    assertTrue(journal.isComplete());
+    assertFalse(journal.isRecovered());
+    assertEquals(new File(dir, "G.imu").length(), journal.getStreamLength("G.imu"));
+    assertEquals(ImuLogFormat.HEADER_SIZE + GYRO_NUM * GYRO_FORMAT.recordSize(), journal.getStreamLength("G.imu"));
+    assertEquals(new File(dir, FileFrameCommitSink.MANIFEST_FILENAME).length(),
+        journal.getStreamLength(FileFrameCommitSink.MANIFEST_FILENAME));
+    assertEquals(FRAMES_NUM, journal.getFilesNum());
+    for (int i = 0; i < FRAMES_NUM; ++i)
+      assertEquals(frame.length - i, journal.getFileLength(framePath(i)));
+    assertEquals(-1, journal.getFileLength("missing.jpg"));
+  }
+
+  // A session killed after its journal committed half of it, written the way the SessionWriter
+  // would have: data first, then the journal records covering it
+  private File killedSession() throws Exception {
+    File dir = mTmp.newFolder();
+    File imageDir = new File(dir, SessionReader.IMAGE_DIR);
+    assertTrue(imageDir.mkdir());
+    SessionJournalWriter journal = new SessionJournalWriter(dir);
+    File gyro = new File(dir, "G.imu");
+    File manifest = new File(dir, FileFrameCommitSink.MANIFEST_FILENAME);
+
+    ImuLogWriter log = ImuLogWriter.open(gyro, GYRO_FORMAT);
+    float[][] values = new float[3][GYRO_NUM];
+    long[] timestamps = new long[GYRO_NUM];
+    for (int i = 0; i < GYRO_NUM; ++i)
+      timestamps[i] = i * GYRO_PERIOD;
+    log.write(values, timestamps, 0, GYRO_NUM / 2);
+    log.sync();
+    journal.commitStream(gyro, log.getSize());
+    for (int i = 0; i < FRAMES_NUM / 2; ++i) {
+      File frame = new File(dir, framePath(i));
+      append(frame, new byte[50 + i]);
+      journal.commitFile(frame, frame.length());
+      append(manifest, manifestLine(i, 50 + i).getBytes("US-ASCII"));
+    }
+    journal.commitStream(manifest, manifest.length());
+    journal.sync();
+
+    // Written after the last commit: more records, another frame and half of its manifest line,
+    // then the preallocated tail of the log and a torn journal record
+    log.write(values, timestamps, GYRO_NUM / 2, GYRO_NUM / 2);
+    log.close();
+    append(gyro, new byte[4096]);
+    append(new File(dir, framePath(FRAMES_NUM / 2)), new byte[10]);
+    append(manifest, manifestLine(FRAMES_NUM / 2, 10).substring(0, 10).getBytes("US-ASCII"));
+    append(new File(dir, SessionJournal.FILENAME), new byte[SessionJournal.RECORD_SIZE / 2]);
+    return dir;
+  }
+
+  @Test
+  public void recoverCutsTheSessionBackToTheLastCommit() throws Exception {
+    File dir = killedSession();
+    File gyro = new File(dir, "G.imu");
+    long committedGyro = ImuLogFormat.HEADER_SIZE + GYRO_NUM / 2 * GYRO_FORMAT.recordSize();
+    long extra = gyro.length() - committedGyro;
+    assertTrue(SessionJournal.needsRecovery(dir));
+    assertEquals(1, SessionJournal.listIncomplete(dir.getParentFile()).length);
+
+    SessionJournal journal = SessionJournal.recover(dir, FrameFormat.JPEG);
+    assertTrue(journal.isRecovered());
+    assertEquals(1, journal.getDeletedFilesNum());
+    assertEquals(extra + 10, journal.getTruncatedBytes());
+    assertEquals(committedGyro, gyro.length());
+    assertFalse(new File(dir, framePath(FRAMES_NUM / 2)).exists());
+    assertTrue(new File(dir, framePath(FRAMES_NUM / 2 - 1)).exists());
+    assertFalse(SessionJournal.needsRecovery(dir));
+
+    // The index only covers what is left
+    SessionIndex index = SessionIndex.read(new File(dir, SessionIndex.FILENAME));
+    assertTrue(index.isComplete());
+    assertEquals(GYRO_NUM / 2, index.getImuRecordsNum('G'));
+    assertEquals(FRAMES_NUM / 2, index.getFramesNum());
+    ImuLogReader reader = new ImuLogReader(gyro);
+    assertEquals(GYRO_NUM / 2, reader.getRecordsNum());
+    reader.close();
+
+    // Recovered sessions are left alone
+    SessionJournal again = SessionJournal.recover(dir, FrameFormat.JPEG);
+    assertTrue(again.isRecovered());
+    assertEquals(0, again.getTruncatedBytes());
+    assertEquals(FRAMES_NUM / 2, again.getFilesNum());
+  }
+
+  @Test
+  public void manifestOpenedAfterTheLastCommitIsCutToNothing() throws Exception {
+    File dir = mTmp.newFolder();
+    File imageDir = new File(dir, SessionReader.IMAGE_DIR);
+    assertTrue(imageDir.mkdir());
+    SessionJournalWriter journal = new SessionJournalWriter(dir);
+    File gyro = new File(dir, "G.imu");
+    ImuLogWriter log = ImuLogWriter.open(gyro, GYRO_FORMAT);
+    log.sync();
+    journal.commitStream(gyro, log.getSize());
+    journal.sync();
+
+    // The first frame and its manifest line, with the preallocated tail, never committed
+    File manifest = new File(dir, FileFrameCommitSink.MANIFEST_FILENAME);
+    append(new File(dir, framePath(0)), new byte[50]);
+    append(manifest, manifestLine(0, 50).getBytes("US-ASCII"));
+    append(manifest, new byte[4096]);
+    log.close();
+
+    SessionJournal recovered = SessionJournal.recover(dir, FrameFormat.JPEG);
+    assertEquals(1, recovered.getDeletedFilesNum());
+    assertEquals(0, manifest.length());
+    assertEquals(0, SessionIndex.read(new File(dir, SessionIndex.FILENAME)).getFramesNum());
+  }
+
+  @Test
+  public void tornRecordsAreIgnored() throws Exception {
+    File dir = mTmp.newFolder();
+    File file = new File(dir, "A.imu");
+    append(file, new byte[100]);
+    SessionJournalWriter writer = new SessionJournalWriter(dir);
+    writer.commitStream(file, 10);
+    writer.commitStream(file, 20);
+    writer.commitStream(file, 30);
+    writer.sync();
+    assertEquals(1, writer.getSyncsNum());
+    assertEquals(3, writer.getRecordsNum());
+
+    // The last record is damaged, the one before it stands
+    File journalFile = new File(dir, SessionJournal.FILENAME);
+    RandomAccessFile randomAccessFile = new RandomAccessFile(journalFile, "rw");
+    randomAccessFile.seek(SessionJournal.HEADER_SIZE + 2 * SessionJournal.RECORD_SIZE + 8);
+    randomAccessFile.write(0xFF);
+    randomAccessFile.close();
+    SessionJournal journal = SessionJournal.read(journalFile);
+    assertFalse(journal.isComplete());
+    assertEquals(2, journal.getRecordsNum());
+    assertEquals(20, journal.getStreamLength("A.imu"));
+  }
+
+  @Test(expected = java.io.IOException.class)
+  public void pathsOutsideTheSessionAreRejected() throws Exception {
+    File dir = mTmp.newFolder();
+    new SessionJournalWriter(dir).commitFile(mTmp.newFile("other.jpg"), 1);
+  }
+}
@@ -0,0 +1,85 @@
+package com.ru.cameraimu;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SessionMetricsTest {
+
+  @Test
+  public void streamMeasuresRateJitterAndLateSamples() throws Exception {
+    StreamMetrics stream = new StreamMetrics("gyro");
+    long t = 1000000000L;
+    for (int i = 0; i < 201; ++i) {
+      stream.onSample(t);
+      t += i % 2 == 0 ? 4000000 : 6000000;  // 200 Hz on average, +-1 ms of jitter
+    }
+    stream.onSample(t - 10000000);  // Older than the last one
+    stream.onSample(t - 5000000);   // Same as the last one
+    stream.onDropped();
+    stream.addDropped(2);
+
+    assertEquals(201, stream.getSamplesNum());
+    assertEquals(200.0, stream.getRateHz(), 1e-6);
+    assertEquals(2, stream.getLateNum());
+    assertEquals(3, stream.getDroppedNum());
+    assertEquals(200, stream.getIntervals().getCount());
+    assertEquals(4000000, stream.getIntervals().getMin());
+    assertEquals(6000000, stream.getIntervals().getMax());
+    assertEquals(5000000.0, stream.getIntervals().getMean(), 1e-6);
+  }
+
+  @Test
+  public void singleSampleHasNoRate() throws Exception {
+    StreamMetrics stream = new StreamMetrics("camera");
+    assertEquals(0.0, stream.getRateHz(), 0);
+    stream.onSample(5);
+    assertEquals(0.0, stream.getRateHz(), 0);
+    assertEquals(0, stream.getIntervals().getCount());
+  }
+
+  @Test
+  public void jsonHoldsInfoStreamsAndLatencies() throws Exception {
+    SessionMetrics metrics = new SessionMetrics();
+    metrics.putInfo("device", "Some \"Phone\"");
+    StreamMetrics camera = metrics.stream("camera");
+    assertSame(camera, metrics.stream("camera"));
+    camera.onSample(0);
+    camera.onSample(33000000);
+    camera.onDropped();
+    metrics.latency("encode").record(12000000);
+    assertSame(metrics.latency("encode"), metrics.latency("encode"));
+
+    String json = metrics.toJson();
+    assertTrue(json, json.contains("\"device\": \"Some \\\"Phone\\\"\""));
+    assertTrue(json, json.contains("\"camera\": {\"samples\": 2, \"rate_hz\": 30.3030, \"dropped\": 1, \"late\": 0"));
+    assertTrue(json, json.contains("\"interval_ns\": {\"count\": 1, \"min\": 33000000"));
+    assertTrue(json, json.contains("\"encode\": {\"count\": 1, \"min\": 12000000, \"mean\": 12000000.0"));
+    assertTrue(json, json.contains("\"max\": 12000000"));
+    assertTrue(json, json.indexOf("\"info\"") < json.indexOf("\"streams\""));
+    assertTrue(json, json.indexOf("\"streams\"") < json.indexOf("\"latencies_ns\""));
+    assertEquals(json, new String(metrics.toJsonBytes(), "UTF-8"));
+  }
+
+  @Test
+  public void infoIsReadBack() throws Exception {
+    SessionMetrics metrics = new SessionMetrics();
+    metrics.putInfo("device", "Some \"Phone\" \\ \t");
+    metrics.putInfo(SessionMetrics.INFO_FRAME_OFFSET_NANOS, "-123456789");
+    metrics.stream("camera").onSample(0);
+    Map<String, String> info = SessionMetrics.readInfo(metrics.toJson());
+    assertEquals(2, info.size());
+    assertEquals("Some \"Phone\" \\ \t", info.get("device"));
+    assertEquals("-123456789", info.get(SessionMetrics.INFO_FRAME_OFFSET_NANOS));
+    assertTrue(SessionMetrics.readInfo(new SessionMetrics().toJson()).isEmpty());
+    try {
+      SessionMetrics.readInfo(metrics.toJson().substring(0, 30));
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,312 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SessionReaderTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  private static final long GYRO_PERIOD = 5000000L;
+  private static final long ACCEL_PERIOD = 10000000L;
+  private static final long ACCEL_PHASE = 1000000L;
+  private static final long FRAME_PERIOD = 30000000L;  // Every 6th frame shares its gyro timestamp
+
+  private static final int GYRO_NUM = 1200;
+  private static final int ACCEL_NUM = 600;
+  private static final int FRAMES_NUM = 200;
+
+  // Exact in the six decimals of the legacy text layout
+  private static float value(char type, int i, int axis) { return (type == 'G' ? 0.25f : 0.75f) + i * 0.5f + axis; }
+
+  private static byte[] frame(int i, int length) {
+    byte[] data = new byte[length];
+    for (int j = 0; j < length; ++j)
+      data[j] = (byte) (i * 7 + j);
+    return data;
+  }
+
+  private static void writeImu(File dir, char type, int n, long phase, long period) throws IOException {
+    ImuLogWriter writer = ImuLogWriter.open(new File(dir, type + ImuLogFormat.FILE_EXTENSION),
+        new ImuLogFormat(type, 3, "unit"));
+    float[][] values = new float[3][n];
+    long[] timestamps = new long[n];
+    for (int i = 0; i < n; ++i) {
+      timestamps[i] = phase + i * period;
+      for (int axis = 0; axis < 3; ++axis)
+        values[axis][i] = value(type, i, axis);
+    }
+    writer.write(values, timestamps, 0, n);
+    writer.close();
+  }
+
+  // Rewrites the binary log of type in dir as an exact compressed log in to, in short blocks
+  private static void compress(File dir, char type, File to) throws IOException {
+    ImuLogReader reader = new ImuLogReader(new File(dir, type + ImuLogFormat.FILE_EXTENSION));
+    CompressedImuLogWriter writer = CompressedImuLogWriter.open(new File(to, type + CompressedImuLogWriter.FILE_EXTENSION),
+        reader.getFormat(), ImuBlockCodec.Mode.XOR, ImuBlockCodec.DEFAULT_STEP, 100);
+    reader.readAll(writer);
+    reader.close();
+    writer.close();
+  }
+
+  // Binary IMU logs and encoded frames with a manifest, as the app writes them
+  private File writeSession() throws IOException {
+    File dir = mTmp.newFolder();
+    writeImu(dir, 'G', GYRO_NUM, 0, GYRO_PERIOD);
+    writeImu(dir, 'A', ACCEL_NUM, ACCEL_PHASE, ACCEL_PERIOD);
+    File imageDir = new File(dir, SessionReader.IMAGE_DIR);
+    assertTrue(imageDir.mkdir());
+    OutputStream manifest = new FileOutputStream(new File(dir, FileFrameCommitSink.MANIFEST_FILENAME));
+    for (int i = 0; i < FRAMES_NUM; ++i) {
+      long timestamp = i * FRAME_PERIOD;
+      String filename = FileFrameCommitSink.filename(timestamp, FrameFormat.JPEG);
+      byte[] data = frame(i, 10 + i % 5);
+      OutputStream out = new FileOutputStream(new File(imageDir, filename));
+      out.write(data);
+      out.close();
+      manifest.write((i + " " + timestamp + " " + filename + " " + data.length + "\n").getBytes("US-ASCII"));
+    }
+    manifest.close();
+    return dir;
+  }
+
+  private static List<String> readAll(SessionReader reader) throws IOException {
+    List<String> events = new ArrayList<>();
+    SessionReader.Event event;
+    while ((event = reader.next()) != null)
+      events.add(event.toString());
+    return events;
+  }
+
+  @Test
+  public void streamsAreMergedInTimestampOrder() throws Exception {
+    SessionReader reader = new SessionReader(writeSession());
+    assertEquals(3, reader.getStreamsNum());
+    assertTrue(reader.hasFrames());
+
+    int[] counts = new int[3];
+    long last = Long.MIN_VALUE;
+    boolean lastWasGyro = false;
+    SessionReader.Event event;
+    while ((event = reader.next()) != null) {
+      assertTrue(event.timestampNanos() >= last);
+      if (event.kind() == SessionReader.Kind.FRAME) {
+        int i = counts[2]++;
+        assertEquals(i * FRAME_PERIOD, event.timestampNanos());
+        assertArrayEquals(frame(i, 10 + i % 5), event.readFrame());
+        // The gyro sample with the same timestamp comes first
+        if (event.timestampNanos() == last)
+          assertTrue(lastWasGyro);
+      } else {
+        int i = event.sensorType() == 'G' ? counts[0]++ : counts[1]++;
+        assertEquals(value(event.sensorType(), i, 2), event.values()[2], 0);
+      }
+      lastWasGyro = event.kind() == SessionReader.Kind.IMU && event.sensorType() == 'G';
+      last = event.timestampNanos();
+    }
+    assertArrayEquals(new int[] {GYRO_NUM, ACCEL_NUM, FRAMES_NUM}, counts);
+    assertNull(reader.next());
+    reader.close();
+  }
+
+  @Test
+  public void legacyLayoutReadsTheSameAsTheBinaryOne() throws Exception {
+    File dir = writeSession();
+    File legacy = mTmp.newFolder();
+    ImuLogConverter.convert(new File(dir, "G" + ImuLogFormat.FILE_EXTENSION), legacy, 100);
+    ImuLogConverter.convert(new File(dir, "A" + ImuLogFormat.FILE_EXTENSION), legacy, 70);
+    // No manifest, the frames are only listed from the image directory
+    assertTrue(new File(dir, SessionReader.IMAGE_DIR).renameTo(new File(legacy, SessionReader.IMAGE_DIR)));
+    assertTrue(new File(dir, SessionReader.IMAGE_DIR).mkdir());
+    File[] names = new File(legacy, SessionReader.IMAGE_DIR).listFiles();
+    for (File file : names)
+      new FileOutputStream(new File(new File(dir, SessionReader.IMAGE_DIR), file.getName())).close();
+
+    SessionReader binary = new SessionReader(dir);
+    SessionReader text = new SessionReader(legacy);
+    List<String> expected = readAll(binary);
+    List<String> actual = readAll(text);
+    binary.close();
+    text.close();
+    assertEquals(GYRO_NUM + ACCEL_NUM + FRAMES_NUM, actual.size());
+    for (int i = 0; i < expected.size(); ++i)
+      assertEquals(expected.get(i).replace(" " + SessionReader.IMAGE_DIR, ""), actual.get(i));
+  }
+
+  @Test
+  public void compressedLogsReadTheSameAsTheBinaryOnes() throws Exception {
+    File dir = writeSession();
+    File compressed = mTmp.newFolder();
+    compress(dir, 'G', compressed);
+    compress(dir, 'A', compressed);
+    assertTrue(new File(dir, SessionReader.IMAGE_DIR).renameTo(new File(compressed, SessionReader.IMAGE_DIR)));
+    assertTrue(new File(dir, FileFrameCommitSink.MANIFEST_FILENAME)
+        .renameTo(new File(compressed, FileFrameCommitSink.MANIFEST_FILENAME)));
+
+    SessionReader binary = new SessionReader(dir);
+    SessionReader reader = new SessionReader(compressed);
+    assertEquals(3, reader.getStreamsNum());
+    List<String> expected = readAll(binary);
+    List<String> actual = readAll(reader);
+    binary.close();
+    reader.close();
+    assertEquals(GYRO_NUM + ACCEL_NUM, expected.size());
+    assertEquals(GYRO_NUM + ACCEL_NUM + FRAMES_NUM, actual.size());
+    int imu = 0;
+    for (String event : actual)
+      if (!event.startsWith("frame"))
+        assertEquals(expected.get(imu++), event);
+  }
+
+  @Test
+  public void seekStartsAtTheFirstEventAtOrAfterTheTarget() throws Exception {
+    File dir = writeSession();
+    File legacy = mTmp.newFolder();
+    ImuLogConverter.convert(new File(dir, "G" + ImuLogFormat.FILE_EXTENSION), legacy, 64);
+    ImuLogConverter.convert(new File(dir, "A" + ImuLogFormat.FILE_EXTENSION), legacy, 64);
+    File compressed = mTmp.newFolder();
+    compress(dir, 'G', compressed);
+    compress(dir, 'A', compressed);
+
+    for (File session : new File[] {dir, legacy, compressed}) {
+      SessionReader reader = new SessionReader(session);
+      List<Long> timestamps = new ArrayList<>();
+      SessionReader.Event event;
+      while ((event = reader.next()) != null)
+        timestamps.add(event.timestampNanos());
+      List<String> all = readAllAfterSeek(reader, Long.MIN_VALUE);
+      assertEquals(timestamps.size(), all.size());
+
+      Random random = new Random(11);
+      for (int round = 0; round < 50; ++round) {
+        long target = (long) (random.nextDouble() * 6.5e9) - 100000000L;
+        int first = 0;
+        while (first < timestamps.size() && timestamps.get(first) < target)
+          ++first;
+        List<String> rest = readAllAfterSeek(reader, target);
+        assertEquals(all.subList(first, all.size()), rest);
+      }
+      reader.close();
+    }
+  }
+
+  private static List<String> readAllAfterSeek(SessionReader reader, long target) throws IOException {
+    reader.seek(target);
+    return readAll(reader);
+  }
+
+  @Test
+  public void rawSegmentsAreReadOneAtATime() throws Exception {
+    File dir = mTmp.newFolder();
+    writeImu(dir, 'G', 100, 0, GYRO_PERIOD);
+    File imageDir = new File(dir, SessionReader.IMAGE_DIR);
+    assertTrue(imageDir.mkdir());
+    RawFrameSegmentWriter writer = new RawFrameSegmentWriter(imageDir, RawSegmentFormat.nv21(4, 2, 3));
+    int frameSize = Nv21.bufferSize(4, 2);
+    for (int i = 0; i < 10; ++i) {
+      byte[] data = frame(i, frameSize);
+      writer.commit(i, i * 50000000L + 2500000L, data, data.length);
+    }
+    writer.close();
+
+    SessionReader reader = new SessionReader(dir);
+    int frames = 0;
+    int samples = 0;
+    SessionReader.Event event;
+    while ((event = reader.next()) != null) {
+      if (event.kind() == SessionReader.Kind.FRAME) {
+        assertNull(event.frameFile());
+        assertEquals(frames * 50000000L + 2500000L, event.timestampNanos());
+        assertArrayEquals(frame(frames, frameSize), event.readFrame());
+        ++frames;
+      } else {
+        assertEquals(samples++ * GYRO_PERIOD, event.timestampNanos());
+      }
+    }
+    assertEquals(10, frames);
+    assertEquals(100, samples);
+
+    reader.seek(7 * 50000000L);
+    event = reader.next();
+    assertEquals(SessionReader.Kind.IMU, event.kind());
+    assertEquals(7 * 50000000L, event.timestampNanos());
+    event = reader.next();
+    assertEquals(SessionReader.Kind.FRAME, event.kind());
+    assertArrayEquals(frame(7, frameSize), event.readFrame());
+    reader.close();
+  }
+
+  @Test
+  public void frameOffsetMovesFramesOntoTheSensorClock() throws Exception {
+    SessionReader reader = new SessionReader(writeSession());
+    reader.setFrameOffsetNanos(2000000L);
+    long gyroBefore = -1;
+    SessionReader.Event event;
+    while ((event = reader.next()) != null) {
+      if (event.kind() == SessionReader.Kind.IMU && event.sensorType() == 'G') {
+        gyroBefore = event.timestampNanos();
+      } else if (event.kind() == SessionReader.Kind.FRAME) {
+        assertEquals(event.recordedNanos() + 2000000L, event.timestampNanos());
+        assertEquals(event.recordedNanos(), gyroBefore);
+      }
+    }
+    reader.close();
+  }
+
+  @Test
+  public void replayPacesEventsAgainstTheWallClock() throws Exception {
+    SessionReader reader = new SessionReader(writeSession());
+    final long[] counts = new long[2];
+    SessionReplay.Listener listener = new SessionReplay.Listener() {
+      @Override
+      public void onImu(char sensorType, float[] values, long timestampNanos) { ++counts[0]; }
+
+      @Override
+      public void onFrame(SessionReader.Event frame) { ++counts[1]; }
+    };
+    assertEquals(GYRO_NUM + ACCEL_NUM + FRAMES_NUM, new SessionReplay(reader, SessionReplay.MAX_SPEED).run(listener));
+    assertEquals(GYRO_NUM + ACCEL_NUM, counts[0]);
+    assertEquals(FRAMES_NUM, counts[1]);
+
+    // The last 200 ms of the session at twice the speed
+    long end = (GYRO_NUM - 1) * GYRO_PERIOD;
+    reader.seek(end - 200000000L);
+    long start = System.nanoTime();
+    long eventsNum = new SessionReplay(reader, 2 * SessionReplay.REAL_TIME).run(listener);
+    long elapsed = System.nanoTime() - start;
+    assertTrue(eventsNum > 0);
+    assertTrue("replayed in " + elapsed, elapsed >= 100000000L && elapsed < 2000000000L);
+    reader.close();
+  }
+
+  @Test
+  public void stopEndsAPacedReplay() throws Exception {
+    SessionReader reader = new SessionReader(writeSession());
+    final SessionReplay replay = new SessionReplay(reader, SessionReplay.REAL_TIME / 100);
+    SessionReplay.Listener listener = new SessionReplay.Listener() {
+      @Override
+      public void onImu(char sensorType, float[] values, long timestampNanos) {
+        if (timestampNanos > 0)
+          replay.stop();
+      }
+
+      @Override
+      public void onFrame(SessionReader.Event frame) {}
+    };
+    assertEquals(3, replay.run(listener));
+    reader.close();
+  }
+}
@@ -0,0 +1,172 @@
+package com.ru.cameraimu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SessionWriterTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  // Counts drains and syncs, finishes once told to
+  private static class CountingSource implements SessionWriter.Source {
+    final AtomicInteger drainsNum = new AtomicInteger();
+    final AtomicInteger syncsNum = new AtomicInteger();
+    volatile boolean finished = false;
+    volatile boolean closed = false;
+    volatile boolean drainedAfterFinish = false;
+
+    @Override
+    public long drain() {
+      drainsNum.incrementAndGet();
+      if (finished)
+        drainedAfterFinish = true;
+      return 1;
+    }
+
+    @Override
+    public void sync() { syncsNum.incrementAndGet(); }
+
+    @Override
+    public boolean isFinished() { return finished; }
+
+    @Override
+    public void close() { closed = true; }
+  }
+
+  private static byte[] bytes(int length, int seed) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; ++i)
+      data[i] = (byte) (seed + i);
+    return data;
+  }
+
+  @Test
+  public void streamsAndFilesAreWrittenInOrderAndTrimmed() throws Exception {
+    SessionWriter session = new SessionWriter(mTmp.getRoot(), 1000, 1 << 20, 4096, 1 << 20);
+    session.start();
+    SessionWriter.Stream stream = session.openStream("stream.bin");
+    mTmp.newFolder("IMG");
+
+    byte[] expected = new byte[0];
+    for (int i = 0; i < 100; ++i) {
+      byte[] chunk = bytes(37 + i, i);
+      stream.write(chunk);
+      byte[] grown = new byte[expected.length + chunk.length];
+      System.arraycopy(expected, 0, grown, 0, expected.length);
+      System.arraycopy(chunk, 0, grown, expected.length, chunk.length);
+      expected = grown;
+
+      byte[] frame = bytes(200, i);
+      session.writeFile("IMG" + File.separator + i + ".bin", frame, 10, 50 + i);
+    }
+    stream.close();
+    session.stop();
+    assertTrue(session.awaitTermination(5000));
+    assertNull(session.takeException());
+
+    // The preallocated tail is gone once the stream is closed
+    assertArrayEquals(expected, Files.readAllBytes(stream.getFile().toPath()));
+    for (int i = 0; i < 100; ++i) {
+      byte[] frame = Files.readAllBytes(session.file("IMG" + File.separator + i + ".bin").toPath());
+      assertEquals(50 + i, frame.length);
+      assertEquals((byte) (i + 10), frame[0]);
+    }
+
+    SessionWriter.Stats stats = session.getStats();
+    assertEquals(expected.length + 100 * 50 + 99 * 100 / 2, stats.bytesWritten);
+    assertEquals(0, stats.failedNum);
+    assertEquals(0, stats.queuedBytes);
+    assertTrue(stats.syncsNum >= 1);
+  }
+
+  @Test
+  public void streamsLeftOpenAreTrimmedOnStop() throws Exception {
+    SessionWriter session = new SessionWriter(mTmp.getRoot(), 0, 0, 1 << 16, 1 << 20);
+    assertFalse(SessionWriter.isActive(mTmp.getRoot()));
+    session.start();
+    assertTrue(SessionWriter.isActive(mTmp.getRoot()));
+    SessionWriter.Stream stream = session.openStream("open.bin");
+    stream.write(bytes(123, 0));
+    session.stop();
+    assertTrue(session.awaitTermination(5000));
+    assertEquals(123, stream.getFile().length());
+    assertFalse(SessionWriter.isActive(mTmp.getRoot()));
+  }
+
+  @Test
+  public void writesAfterStopFail() throws Exception {
+    SessionWriter session = new SessionWriter(mTmp.getRoot());
+    session.start();
+    session.stop();
+    try {
+      session.openStream("late.bin").write(bytes(1, 0));
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+    assertTrue(session.awaitTermination(5000));
+  }
+
+  @Test
+  public void queuedBytesAreBounded() throws Exception {
+    final SessionWriter session = new SessionWriter(mTmp.getRoot(), 0, 0, 0, 4096);
+    final SessionWriter.Stream stream = session.openStream("bounded.bin");
+    final AtomicInteger written = new AtomicInteger();
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < 64; ++i) {
+            stream.write(bytes(1024, i));
+            written.incrementAndGet();
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    producer.start();
+
+    // Nothing drains the queue yet, so the producer has to wait once it is full
+    Thread.sleep(100);
+    assertEquals(4, written.get());
+    assertEquals(4096, session.getStats().queuedBytes);
+
+    session.start();
+    producer.join(5000);
+    assertEquals(64, written.get());
+    session.stop();
+    assertTrue(session.awaitTermination(5000));
+    assertEquals(64 * 1024, stream.getFile().length());
+    assertTrue(session.getStats().maxQueuedBytes <= 4096);
+  }
+
+  @Test
+  public void sourcesAreSyncedPeriodicallyAndFinishedOnStop() throws Exception {
+    SessionWriter session = new SessionWriter(mTmp.getRoot(), 5, 1 << 20, 0, 1 << 20);
+    CountingSource source = new CountingSource();
+    session.addSource(source);
+    session.start();
+    Thread.sleep(100);
+    assertTrue(source.drainsNum.get() > 1);
+    assertTrue(source.syncsNum.get() > 1);
+
+    // The session waits for its sources, and drains them once more after they finished
+    session.stop();
+    assertFalse(session.awaitTermination(50));
+    source.finished = true;
+    assertTrue(session.awaitTermination(5000));
+    assertTrue(source.drainedAfterFinish);
+    assertTrue(source.closed);
+    assertTrue(session.getStats().syncsNum > 1);
+  }
+}
@@ -0,0 +1,148 @@
+package com.ru.cameraimu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+// Structural checks of encoded frame files through a read-only mapping, which only pages in
+// what is looked at: for a JPEG the marker segments up to the start of the scan and the end of
+// image marker, not the entropy coded data in between, for a PGM the headers of its levels.
+// Nothing is decoded, so a JPEG that passes may still hold garbled scan data, but truncated,
+// empty, overwritten or misnamed files are caught at a fraction of the cost of decoding them.
+public final class FrameFileCheck {
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private static final int MARKER_SOF0 = 0xC0;
+  private static final int MARKER_SOI = 0xD8;
+  private static final int MARKER_EOI = 0xD9;
+  private static final int MARKER_SOS = 0xDA;
+
+  private FrameFileCheck() {}
+
+  // null if the file looks sound, what is wrong with it otherwise
+  public static String check(File file, FrameFormat format) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      long length = raf.length();
+      if (length == 0)
+        return "empty";
+      if (length > Integer.MAX_VALUE)
+        return "too large";
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+      switch (format) {
+        case JPEG:
+          return checkJpeg(data);
+        case GRAY:
+          return checkPgm(data);
+        case PNG:
+          return checkPng(data);
+        default:
+          return null;
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  // The frame format of a file name, null if it is none of them
+  public static FrameFormat formatOf(String name) {
+    for (FrameFormat format : FrameFormat.values())
+      if (name.endsWith(format.extension))
+        return format;
+    return null;
+  }
+
+  static String checkJpeg(MappedByteBuffer data) {
+    int length = data.limit();
+    if (length < 4 || (data.get(0) & 0xFF) != 0xFF || (data.get(1) & 0xFF) != MARKER_SOI)
+      return "no JPEG start of image";
+    if ((data.get(length - 2) & 0xFF) != 0xFF || (data.get(length - 1) & 0xFF) != MARKER_EOI)
+      return "no JPEG end of image, truncated";
+    boolean hasFrame = false;
+    int pos = 2;
+    while (true) {
+      if (pos + 4 > length)
+        return "JPEG headers run past the end";
+      if ((data.get(pos) & 0xFF) != 0xFF)
+        return "JPEG marker expected at " + pos;
+      int marker = data.get(pos + 1) & 0xFF;
+      if (marker == 0xFF) {  // Fill byte
+        ++pos;
+        continue;
+      }
+      if (marker == MARKER_EOI)
+        return "JPEG ends before its scan";
+      if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+        pos += 2;
+        continue;
+      }
+      int segmentLength = ((data.get(pos + 2) & 0xFF) << 8) | (data.get(pos + 3) & 0xFF);
+      if (segmentLength < 2 || pos + 2 + segmentLength > length)
+        return "JPEG segment " + Integer.toHexString(marker) + " runs past the end";
+      if (marker >= MARKER_SOF0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC)
+        hasFrame = true;
+      if (marker == MARKER_SOS)
+        return hasFrame ? null : "JPEG scan without a frame header";
+      pos += 2 + segmentLength;
+    }
+  }
+
+  // One or more "P5\n<w> <h>\n255\n" images back to back, see LumaFrameCompressor
+  static String checkPgm(MappedByteBuffer data) {
+    int length = data.limit();
+    int pos = 0;
+    int images = 0;
+    while (pos < length) {
+      int end = pos;
+      int newlines = 0;
+      while (end < length && newlines < 3 && end - pos < 32)
+        if (data.get(end++) == '\n')
+          ++newlines;
+      if (newlines < 3)
+        return "PGM header of level " + images + " is malformed";
+      byte[] header = new byte[end - pos];
+      for (int i = 0; i < header.length; ++i)
+        header[i] = data.get(pos + i);
+      String[] fields = new String(header, ASCII).trim().split("\\s+");
+      int w;
+      int h;
+      try {
+        if (fields.length != 4 || !fields[0].equals("P5") || !fields[3].equals("255"))
+          return "PGM header of level " + images + " is malformed";
+        w = Integer.parseInt(fields[1]);
+        h = Integer.parseInt(fields[2]);
+      } catch (NumberFormatException e) {
+        return "PGM header of level " + images + " is malformed";
+      }
+      if (w <= 0 || h <= 0)
+        return "PGM level " + images + " of " + w + " x " + h;
+      if ((long) end + (long) w * h > length)
+        return "PGM level " + images + " is truncated";
+      int next = end + w * h;
+      if (next <= pos)
+        return "PGM level " + images + " is malformed";
+      pos = next;
+      ++images;
+    }
+    return null;
+  }
+
+  static String checkPng(MappedByteBuffer data) {
+    byte[] signature = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    if (data.limit() < signature.length + 12)
+      return "PNG is truncated";
+    for (int i = 0; i < signature.length; ++i)
+      if (data.get(i) != signature[i])
+        return "no PNG signature";
+    // The last chunk is IEND with its CRC
+    int iend = data.limit() - 8;
+    if (data.get(iend) != 'I' || data.get(iend + 1) != 'E' || data.get(iend + 2) != 'N' || data.get(iend + 3) != 'D')
+      return "no PNG end chunk, truncated";
+    return null;
+  }
+}
@@ -0,0 +1,72 @@
+package com.ru.cameraimu;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Verifies captured sessions offline and prints a report per session, see SessionVerifier.
+// Exits with 1 if any session has issues or could not be read. Without --frame-offset, the
+// offset the app recorded in metrics.json is used.
+//
+// Usage: SessionTool [--threads <n>] [--gap-factor <f>] [--frame-offset <nanos>] <session dir>...
+//   ./gradlew :sessiontool:run -Pargs="<session dir>"
+public class SessionTool {
+
+  private static final String USAGE =
+      "Usage: SessionTool [--threads <n>] [--gap-factor <f>] [--frame-offset <nanos>] <session dir>...";
+
+  public static void main(String[] args) throws InterruptedException {
+    int threadsNum = Runtime.getRuntime().availableProcessors();
+    double gapFactor = TimestampStats.DEFAULT_GAP_FACTOR;
+    Long frameOffsetNanos = null;
+    List<File> dirs = new ArrayList<>();
+    try {
+      for (int i = 0; i < args.length; ++i) {
+        if (args[i].equals("--threads"))
+          threadsNum = Integer.parseInt(args[++i]);
+        else if (args[i].equals("--gap-factor"))
+          gapFactor = Double.parseDouble(args[++i]);
+        else if (args[i].equals("--frame-offset"))
+          frameOffsetNanos = Long.parseLong(args[++i]);
+        else if (args[i].startsWith("--"))
+          throw new IllegalArgumentException("Unknown option " + args[i]);
+        else
+          dirs.add(new File(args[i]));
+      }
+      if (dirs.isEmpty() || threadsNum <= 0)
+        throw new IllegalArgumentException("No session directory");
+    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+      System.err.println(USAGE);
+      System.exit(1);
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(threadsNum);
+    int status = 0;
+    try {
+      SessionVerifier verifier = new SessionVerifier(executor, gapFactor);
+      if (frameOffsetNanos != null)
+        verifier.setFrameOffsetNanos(frameOffsetNanos);
+      for (File dir : dirs) {
+        long start = System.nanoTime();
+        try {
+          SessionVerifier.Report report = verifier.verify(dir);
+          System.out.print(report);
+          System.out.println(String.format(Locale.US, "  verified in %.3f s", (System.nanoTime() - start) / 1e9));
+          if (report.hasIssues())
+            status = 1;
+        } catch (IOException e) {
+          System.err.println(dir + ": " + e.getMessage());
+          status = 1;
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+    System.exit(status);
+  }
+}
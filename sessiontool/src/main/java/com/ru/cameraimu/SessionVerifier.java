@@ -0,0 +1,575 @@
+package com.ru.cameraimu;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Checks a session directory written by the app without decoding anything, on the threads of an
+// executor: every IMU stream is read by a task of its own (binary logs in batches, compressed
+// logs block by block, legacy G%08d.txt chunks through a mapping), and the frame files are
+// checked in batches of FRAME_BATCH_SIZE (see FrameFileCheck) while the frame timestamps are
+// analyzed on the calling thread. The outcome is a Report of the rates, jitter and gaps of every
+// stream, the frames that are corrupt, missing, misnamed or out of order, and how much of the
+// camera stream the IMU streams cover.
+//
+// Frame timestamps are on the host clock unless the session was captured with sensor
+// timestamps. They are mapped onto the sensor clock for the coverage by the offset given to
+// setFrameOffsetNanos(), or else by the one the app recorded in metrics.json. Host clock frames
+// without either are not held against the session when none of them is within the IMU streams.
+public class SessionVerifier {
+
+  public static final int FRAME_BATCH_SIZE = 512;
+  // Problems listed in the report, the others are only counted
+  public static final int LISTED_PROBLEMS_NUM = 16;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  // The IMU streams the coverage of the frames is computed against
+  private static final char[] COVERAGE_TYPES = {ImuChannelRegistry.GYROSCOPE, ImuChannelRegistry.ACCELEROMETER};
+
+  public static final class Report {
+    private final File mDir;
+    private final List<TimestampStats> mStreams = new ArrayList<>();
+    private TimestampStats mFrames = null;
+    private final List<String> mProblems = new ArrayList<>();
+    private long mProblemsNum = 0;
+    private long mCheckedNum = 0;
+    private long mCorruptNum = 0;
+    private long mMissingNum = 0;
+    private long mUnlistedNum = 0;
+    private long mMisnamedNum = 0;
+    private long mOverlapNanos = 0;
+    private long mUncoveredNum = 0;
+    private long mFrameOffsetNanos = 0;
+    private String mJournal = "none";
+
+    Report(File dir) { mDir = dir; }
+
+    public File getDir() { return mDir; }
+    public List<TimestampStats> getStreams() { return mStreams; }
+    // null without frames
+    public TimestampStats getFrames() { return mFrames; }
+    public long getCheckedNum() { return mCheckedNum; }
+    public long getCorruptNum() { return mCorruptNum; }
+    // Listed in the manifest but not on disk or of another size
+    public long getMissingNum() { return mMissingNum; }
+    // On disk but not in the manifest
+    public long getUnlistedNum() { return mUnlistedNum; }
+    // Names that are not the %013d timestamp of the frame
+    public long getMisnamedNum() { return mMisnamedNum; }
+    // Time covered by the frames and the IMU streams alike
+    public long getOverlapNanos() { return mOverlapNanos; }
+    // Frames outside of the span of the IMU streams
+    public long getUncoveredNum() { return mUncoveredNum; }
+    // Added to the frame timestamps for the coverage
+    public long getFrameOffsetNanos() { return mFrameOffsetNanos; }
+    public long getProblemsNum() { return mProblemsNum; }
+    public List<String> getProblems() { return mProblems; }
+
+    public boolean hasIssues() {
+      if (mProblemsNum > 0 || (mFrames != null && mFrames.hasIssues()))
+        return true;
+      for (TimestampStats stream : mStreams)
+        if (stream.hasIssues())
+          return true;
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder s = new StringBuilder(mDir.getPath()).append(hasIssues() ? ": ISSUES" : ": OK").append('\n');
+      s.append("  journal: ").append(mJournal).append('\n');
+      for (TimestampStats stream : mStreams)
+        s.append("  ").append(stream).append('\n');
+      if (mFrames != null) {
+        s.append("  ").append(mFrames).append('\n');
+        s.append(String.format(Locale.US, "  frame files: %d checked, %d corrupt, %d missing, %d unlisted, %d misnamed\n",
+            mCheckedNum, mCorruptNum, mMissingNum, mUnlistedNum, mMisnamedNum));
+        s.append(String.format(Locale.US, "  camera/IMU overlap: %.3f s, %d frames outside the IMU streams, "
+            + "frame offset %d ns\n", mOverlapNanos / 1e9, mUncoveredNum, mFrameOffsetNanos));
+      }
+      for (String problem : mProblems)
+        s.append("  ! ").append(problem).append('\n');
+      if (mProblemsNum > mProblems.size())
+        s.append("  ! ... ").append(mProblemsNum - mProblems.size()).append(" more\n");
+      return s.toString();
+    }
+
+    synchronized void addProblem(String problem) {
+      ++mProblemsNum;
+      if (mProblems.size() < LISTED_PROBLEMS_NUM)
+        mProblems.add(problem);
+    }
+  }
+
+  private final ExecutorService mExecutor;
+  private final double mGapFactor;
+  private long mFrameOffsetNanos = 0;
+  private boolean mHasFrameOffset = false;
+
+  public SessionVerifier(ExecutorService executor) { this(executor, TimestampStats.DEFAULT_GAP_FACTOR); }
+
+  public SessionVerifier(ExecutorService executor, double gapFactor) {
+    mExecutor = executor;
+    mGapFactor = gapFactor;
+  }
+
+  // Added to the frame timestamps to get them on the sensor clock, instead of the offset the
+  // app recorded
+  public void setFrameOffsetNanos(long offsetNanos) {
+    mFrameOffsetNanos = offsetNanos;
+    mHasFrameOffset = true;
+  }
+
+  public Report verify(File dir) throws IOException, InterruptedException {
+    if (!dir.isDirectory())
+      throw new IOException("Not a session directory: " + dir);
+    Report report = new Report(dir);
+    checkJournal(report);
+
+    List<Future<TimestampStats>> streams = new ArrayList<>();
+    List<String> streamNames = new ArrayList<>();
+    submitStreams(dir, streams, streamNames);
+
+    List<Future<long[]>> frameChecks = new ArrayList<>();
+    long[] frameTimestamps = checkFrames(dir, report, frameChecks);
+
+    for (int i = 0; i < streams.size(); ++i) {
+      TimestampStats stream = get(streams.get(i), streamNames.get(i), report);
+      if (stream != null)
+        report.mStreams.add(stream);
+    }
+    for (Future<long[]> check : frameChecks) {
+      long[] counts = get(check, SessionReader.IMAGE_DIR, report);
+      if (counts != null) {
+        report.mCheckedNum += counts[0];
+        report.mCorruptNum += counts[1];
+        report.mMissingNum += counts[2];
+      }
+    }
+    if (frameTimestamps != null)
+      computeCoverage(report, frameTimestamps, readInfo(report));
+    return report;
+  }
+
+  private static <T> T get(Future<T> future, String name, Report report) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      report.addProblem(name + ": " + e.getCause());
+      return null;
+    }
+  }
+
+  private static void checkJournal(Report report) {
+    File file = new File(report.mDir, SessionJournal.FILENAME);
+    if (!file.isFile())
+      return;
+    try {
+      SessionJournal journal = SessionJournal.read(file);
+      if (journal.isRecovered()) {
+        report.mJournal = "recovered after the capture was cut short";
+      } else if (journal.isComplete()) {
+        report.mJournal = "complete";
+      } else {
+        report.mJournal = "capture cut short, not recovered";
+        report.addProblem(SessionJournal.FILENAME + ": capture cut short, not recovered");
+      }
+    } catch (IOException e) {
+      report.mJournal = "unreadable";
+      report.addProblem(SessionJournal.FILENAME + ": " + e.getMessage());
+    }
+  }
+
+  // Binary and compressed logs of any type but the governor's, whose records are adjustments
+  // rather than samples, and the legacy text chunks of the standard types without either log
+  private void submitStreams(File dir, List<Future<TimestampStats>> streams, List<String> names) {
+    String[] logs = dir.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File d, String name) {
+        return (name.endsWith(ImuLogFormat.FILE_EXTENSION) || name.endsWith(CompressedImuLogWriter.FILE_EXTENSION))
+            && !name.equals(CaptureGovernor.LOG_FILENAME);
+      }
+    });
+    if (logs == null)
+      logs = new String[0];
+    Arrays.sort(logs);
+    for (final String name : logs) {
+      final File file = new File(dir, name);
+      names.add(name);
+      streams.add(mExecutor.submit(new Callable<TimestampStats>() {
+        @Override
+        public TimestampStats call() throws IOException { return readLog(file, name); }
+      }));
+    }
+    for (final char type : SessionReader.IMU_TYPES) {
+      if (new File(dir, type + ImuLogFormat.FILE_EXTENSION).isFile()
+          || new File(dir, type + CompressedImuLogWriter.FILE_EXTENSION).isFile())
+        continue;
+      final File[] chunks = listTextChunks(dir, type);
+      if (chunks.length == 0)
+        continue;
+      final String name = type + "%08d.txt";
+      names.add(name);
+      streams.add(mExecutor.submit(new Callable<TimestampStats>() {
+        @Override
+        public TimestampStats call() throws IOException {
+          TimestampStats stats = new TimestampStats(name, mGapFactor);
+          for (File chunk : chunks)
+            readTextChunk(chunk, stats);
+          stats.finish();
+          return stats;
+        }
+      }));
+    }
+  }
+
+  private TimestampStats readLog(File file, String name) throws IOException {
+    final TimestampStats stats = new TimestampStats(name, mGapFactor);
+    ImuRingBuffer.Drain drain = new ImuRingBuffer.Drain() {
+      @Override
+      public void onSamples(float[][] values, long[] timestampsNanos, int offset, int count) {
+        for (int i = offset; i < offset + count; ++i)
+          stats.add(timestampsNanos[i]);
+      }
+    };
+    if (name.endsWith(CompressedImuLogWriter.FILE_EXTENSION)) {
+      CompressedImuLogReader reader = new CompressedImuLogReader(file);
+      try {
+        reader.readAll(drain);
+      } finally {
+        reader.close();
+      }
+    } else {
+      ImuLogReader reader = new ImuLogReader(file);
+      try {
+        reader.readAll(drain);
+      } finally {
+        reader.close();
+      }
+    }
+    stats.finish();
+    return stats;
+  }
+
+  // The timestamp is the last field of every "<value> ... <value> <timestamp>" line
+  static void readTextChunk(File chunk, TimestampStats stats) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(chunk, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      int length = data.limit();
+      long value = 0;
+      boolean integer = true;
+      int tokenLength = 0;
+      long lastValue = 0;
+      boolean lastInteger = false;
+      boolean lineHasToken = false;
+      for (int i = 0; i <= length; ++i) {
+        byte b = i < length ? data.get(i) : (byte) '\n';
+        if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+          if (tokenLength > 0) {
+            lastValue = value;
+            lastInteger = integer;
+            lineHasToken = true;
+          }
+          tokenLength = 0;
+          value = 0;
+          integer = true;
+          if (b == '\n') {
+            if (lineHasToken && !lastInteger)
+              throw new IOException("Malformed IMU line in " + chunk.getName());
+            if (lineHasToken)
+              stats.add(lastValue);
+            lineHasToken = false;
+          }
+        } else {
+          ++tokenLength;
+          if (b >= '0' && b <= '9')
+            value = 10 * value + (b - '0');
+          else
+            integer = false;
+        }
+      }
+    } finally {
+      file.close();
+    }
+  }
+
+  // Analyzes the frame timestamps in recording order and submits the checks of the frame files.
+  // Returns the timestamps, null without frames.
+  private long[] checkFrames(File dir, final Report report, List<Future<long[]>> checks) throws IOException {
+    File imageDir = new File(dir, SessionReader.IMAGE_DIR);
+    File[] segments = RawFrameSegmentReader.listSegments(imageDir);
+    File manifest = new File(dir, FileFrameCommitSink.MANIFEST_FILENAME);
+    if (segments.length > 0)
+      return checkSegments(segments, report);
+    if (!manifest.isFile() && !imageDir.isDirectory())
+      return null;
+
+    final List<File> files = new ArrayList<>();
+    final List<Long> lengths = new ArrayList<>();
+    long[] timestamps;
+    if (manifest.isFile()) {
+      timestamps = readManifest(manifest, imageDir, report, files, lengths);
+      String[] names = imageDir.list();
+      Set<String> listed = new HashSet<>();
+      for (File file : files)
+        listed.add(file.getName());
+      if (names != null)
+        for (String name : names)
+          if (FrameFileCheck.formatOf(name) != null && !listed.contains(name))
+            ++report.mUnlistedNum;
+    } else {
+      timestamps = listImageDir(imageDir, report, files);
+      for (int i = 0; i < files.size(); ++i)
+        lengths.add(-1L);
+    }
+
+    TimestampStats frames = new TimestampStats("frames", mGapFactor);
+    for (long timestamp : timestamps)
+      frames.add(timestamp);
+    frames.finish();
+    report.mFrames = frames;
+
+    for (int start = 0; start < files.size(); start += FRAME_BATCH_SIZE) {
+      final int from = start;
+      final int to = Math.min(files.size(), start + FRAME_BATCH_SIZE);
+      checks.add(mExecutor.submit(new Callable<long[]>() {
+        @Override
+        public long[] call() throws IOException {
+          // {checked, corrupt, missing}
+          long[] counts = new long[3];
+          for (int i = from; i < to; ++i) {
+            File file = files.get(i);
+            long expected = lengths.get(i);
+            if (!file.isFile() || (expected >= 0 && file.length() != expected)) {
+              ++counts[2];
+              report.addProblem(file.getName() + ": " + (file.isFile() ? "not of the manifest length " + expected
+                  : "missing"));
+              continue;
+            }
+            String problem = FrameFileCheck.check(file, FrameFileCheck.formatOf(file.getName()));
+            ++counts[0];
+            if (problem != null) {
+              ++counts[1];
+              report.addProblem(file.getName() + ": " + problem);
+            }
+          }
+          return counts;
+        }
+      }));
+    }
+    return timestamps;
+  }
+
+  // "<sequence> <timestamp nanos> <file name> <bytes>" lines in commit order
+  private static long[] readManifest(File manifest, File imageDir, Report report, List<File> files,
+                                     List<Long> lengths) throws IOException {
+    long[] timestamps = new long[1024];
+    int n = 0;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), ASCII));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.trim().split(" ");
+        if (line.trim().isEmpty())
+          continue;
+        long timestamp;
+        long length;
+        try {
+          if (fields.length < 4)
+            throw new NumberFormatException();
+          timestamp = Long.parseLong(fields[1]);
+          length = Long.parseLong(fields[3]);
+        } catch (NumberFormatException e) {
+          report.addProblem(FileFrameCommitSink.MANIFEST_FILENAME + ": malformed line " + line);
+          continue;
+        }
+        if (n == timestamps.length)
+          timestamps = Arrays.copyOf(timestamps, 2 * n);
+        timestamps[n++] = timestamp;
+        files.add(new File(imageDir, fields[2]));
+        lengths.add(length);
+        checkName(fields[2], timestamp, report);
+      }
+    } finally {
+      reader.close();
+    }
+    return Arrays.copyOf(timestamps, n);
+  }
+
+  // Frames named by their timestamp, in numeric order
+  private static long[] listImageDir(File imageDir, Report report, List<File> files) {
+    String[] names = imageDir.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File d, String name) { return FrameFileCheck.formatOf(name) != null; }
+    });
+    if (names == null)
+      names = new String[0];
+    final long[] parsed = new long[names.length];
+    Integer[] order = new Integer[names.length];
+    for (int i = 0; i < names.length; ++i) {
+      String stem = names[i].substring(0, names[i].indexOf('.'));
+      try {
+        parsed[i] = Long.parseLong(stem);
+      } catch (NumberFormatException e) {
+        parsed[i] = Long.MIN_VALUE;
+      }
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) { return Long.compare(parsed[a], parsed[b]); }
+    });
+    long[] timestamps = new long[names.length];
+    int n = 0;
+    for (int i : order) {
+      if (parsed[i] == Long.MIN_VALUE) {
+        ++report.mMisnamedNum;
+        report.addProblem(names[i] + ": not named by its timestamp");
+        continue;
+      }
+      checkName(names[i], parsed[i], report);
+      timestamps[n++] = parsed[i];
+      files.add(new File(imageDir, names[i]));
+    }
+    return Arrays.copyOf(timestamps, n);
+  }
+
+  private static void checkName(String name, long timestamp, Report report) {
+    FrameFormat format = FrameFileCheck.formatOf(name);
+    if (format == null || !name.equals(FileFrameCommitSink.filename(timestamp, format))) {
+      ++report.mMisnamedNum;
+      report.addProblem(name + ": not named %013d" + (format != null ? format.extension : "") + " of " + timestamp);
+    }
+  }
+
+  // Raw segments carry their timestamps in their index, opening them checks both are consistent
+  private long[] checkSegments(File[] segments, Report report) {
+    TimestampStats frames = new TimestampStats("frames", mGapFactor);
+    long[] timestamps = new long[0];
+    for (File segment : segments) {
+      String name = segment.getName();
+      File index = new File(segment.getParentFile(), name.substring(0,
+          name.length() - RawSegmentFormat.SEGMENT_EXTENSION.length()) + RawSegmentFormat.INDEX_EXTENSION);
+      try {
+        RawFrameSegmentReader reader = new RawFrameSegmentReader(segment, index);
+        try {
+          int n = timestamps.length;
+          timestamps = Arrays.copyOf(timestamps, n + reader.getFrameCount());
+          for (int i = 0; i < reader.getFrameCount(); ++i) {
+            timestamps[n + i] = reader.timestampAt(i);
+            frames.add(reader.timestampAt(i));
+          }
+          report.mCheckedNum += reader.getFrameCount();
+        } finally {
+          reader.close();
+        }
+      } catch (IOException e) {
+        ++report.mCorruptNum;
+        report.addProblem(name + ": " + e.getMessage());
+      }
+    }
+    frames.finish();
+    report.mFrames = frames;
+    return timestamps;
+  }
+
+  private static Map<String, String> readInfo(Report report) {
+    File file = new File(report.mDir, SessionMetrics.FILENAME);
+    if (!file.isFile())
+      return Collections.emptyMap();
+    try {
+      return SessionMetrics.readInfo(file);
+    } catch (IOException e) {
+      report.addProblem(SessionMetrics.FILENAME + ": " + e.getMessage());
+      return Collections.emptyMap();
+    }
+  }
+
+  private void computeCoverage(Report report, long[] frameTimestamps, Map<String, String> info) {
+    // Frames on the host clock cannot be placed against the IMU streams without an offset
+    boolean unmapped = false;
+    long offsetNanos = 0;
+    if (mHasFrameOffset) {
+      offsetNanos = mFrameOffsetNanos;
+    } else if (info.containsKey(SessionMetrics.INFO_FRAME_OFFSET_NANOS)) {
+      String offset = info.get(SessionMetrics.INFO_FRAME_OFFSET_NANOS);
+      try {
+        offsetNanos = Long.parseLong(offset);
+      } catch (NumberFormatException e) {
+        report.addProblem(SessionMetrics.FILENAME + ": bad frame offset " + offset);
+        unmapped = true;
+      }
+    } else {
+      unmapped = "host".equals(info.get(SessionMetrics.INFO_FRAME_CLOCK));
+    }
+    report.mFrameOffsetNanos = offsetNanos;
+
+    long start = Long.MIN_VALUE;
+    long end = Long.MAX_VALUE;
+    for (char type : COVERAGE_TYPES) {
+      TimestampStats stream = find(report, type);
+      if (stream == null || stream.getCount() == 0) {
+        start = Long.MAX_VALUE;
+        break;
+      }
+      start = Math.max(start, stream.getFirstNanos());
+      end = Math.min(end, stream.getLastNanos());
+    }
+    long framesStart = Long.MAX_VALUE;
+    long framesEnd = Long.MIN_VALUE;
+    for (long timestamp : frameTimestamps) {
+      long t = timestamp + offsetNanos;
+      framesStart = Math.min(framesStart, t);
+      framesEnd = Math.max(framesEnd, t);
+      if (t < start || t > end)
+        ++report.mUncoveredNum;
+    }
+    report.mOverlapNanos = Math.max(0, Math.min(end, framesEnd) - Math.max(start, framesStart));
+    if (frameTimestamps.length > 0 && report.mUncoveredNum == frameTimestamps.length && !unmapped)
+      report.addProblem("no frame within the IMU streams, frame offset " + offsetNanos + " ns");
+  }
+
+  // The binary log of the type if there is one, the streams are in name order
+  private static TimestampStats find(Report report, char type) {
+    for (TimestampStats stream : report.mStreams)
+      if (stream.getName().charAt(0) == type)
+        return stream;
+    return null;
+  }
+
+  private static File[] listTextChunks(File dir, final char type) {
+    File[] chunks = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File d, String name) {
+        return name.length() == 13 && name.charAt(0) == type && name.endsWith(".txt")
+            && name.substring(1, 9).matches("[0-9]+");
+      }
+    });
+    if (chunks == null)
+      return new File[0];
+    Arrays.sort(chunks);
+    return chunks;
+  }
+}
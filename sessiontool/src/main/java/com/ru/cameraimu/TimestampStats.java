@@ -0,0 +1,156 @@
+package com.ru.cameraimu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Timing of one recorded stream from its timestamps in recording order: the rate, the interval
+// distribution and its standard deviation (the jitter), the timestamps that went backwards or
+// repeated the previous one, and the gaps, i.e. intervals longer than gapFactor times the
+// nominal interval.
+//
+// The nominal interval is the median of the first NOMINAL_INTERVALS intervals, which are held
+// back until it is known; everything after streams through in constant memory.
+public class TimestampStats {
+
+  public static final double DEFAULT_GAP_FACTOR = 2.5;
+  public static final int NOMINAL_INTERVALS = 255;
+  // Gaps listed in the report, the others are only counted
+  public static final int LISTED_GAPS_NUM = 8;
+
+  private final String mName;
+  private final double mGapFactor;
+  private final long[] mHeld = new long[NOMINAL_INTERVALS + 1];
+  private int mHeldNum = 0;
+  private long mNominalNanos = -1;
+
+  private long mCount = 0;
+  private long mFirstNanos;
+  private long mLastNanos;
+  private long mBackwardNum = 0;
+  private long mDuplicateNum = 0;
+  private final LatencyHistogram mIntervals = new LatencyHistogram();
+  // Welford's running mean and sum of squared deviations of the intervals
+  private double mMeanInterval = 0;
+  private double mSquaredDeviations = 0;
+  private long mIntervalsNum = 0;
+
+  private long mGapsNum = 0;
+  private long mGapNanos = 0;
+  private long mLongestGapNanos = 0;
+  private final List<long[]> mListedGaps = new ArrayList<>();
+
+  public TimestampStats(String name) { this(name, DEFAULT_GAP_FACTOR); }
+
+  public TimestampStats(String name, double gapFactor) {
+    if (gapFactor <= 1)
+      throw new IllegalArgumentException("Gap factor must exceed 1: " + gapFactor);
+    mName = name;
+    mGapFactor = gapFactor;
+  }
+
+  public void add(long timestampNanos) {
+    if (mNominalNanos < 0) {
+      mHeld[mHeldNum++] = timestampNanos;
+      if (mHeldNum == mHeld.length)
+        release();
+      return;
+    }
+    record(timestampNanos);
+  }
+
+  // To be called after the last timestamp
+  public void finish() {
+    if (mNominalNanos < 0)
+      release();
+  }
+
+  public String getName() { return mName; }
+  public long getCount() { return mCount; }
+  public long getFirstNanos() { return mFirstNanos; }
+  public long getLastNanos() { return mLastNanos; }
+  public long getBackwardNum() { return mBackwardNum; }
+  public long getDuplicateNum() { return mDuplicateNum; }
+  public long getNominalIntervalNanos() { return Math.max(0, mNominalNanos); }
+  public LatencyHistogram getIntervals() { return mIntervals; }
+  public long getGapsNum() { return mGapsNum; }
+  // Time spent in gaps beyond the nominal interval
+  public long getGapNanos() { return mGapNanos; }
+  public long getLongestGapNanos() { return mLongestGapNanos; }
+  // {start, length} of the first LISTED_GAPS_NUM gaps
+  public List<long[]> getListedGaps() { return mListedGaps; }
+
+  public double getRateHz() {
+    long span = mLastNanos - mFirstNanos;
+    return mCount < 2 || span <= 0 ? 0 : (mCount - 1) * 1e9 / span;
+  }
+
+  public double getJitterNanos() { return mIntervalsNum < 2 ? 0 : Math.sqrt(mSquaredDeviations / (mIntervalsNum - 1)); }
+
+  public boolean hasIssues() { return mBackwardNum > 0 || mDuplicateNum > 0 || mGapsNum > 0; }
+
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder(String.format(Locale.US,
+        "%s: %d samples at %.2f Hz over %.3f s, interval p50 %.3f ms p99 %.3f ms max %.3f ms, jitter %.3f ms",
+        mName, mCount, getRateHz(), (mLastNanos - mFirstNanos) / 1e9, mIntervals.valueAtPercentile(50) / 1e6,
+        mIntervals.valueAtPercentile(99) / 1e6, mIntervals.getMax() / 1e6, getJitterNanos() / 1e6));
+    if (mBackwardNum > 0)
+      s.append(", ").append(mBackwardNum).append(" backward");
+    if (mDuplicateNum > 0)
+      s.append(", ").append(mDuplicateNum).append(" duplicate");
+    if (mGapsNum > 0) {
+      s.append(String.format(Locale.US, ", %d gaps of %.3f s in all, longest %.3f s", mGapsNum, mGapNanos / 1e9,
+          mLongestGapNanos / 1e9));
+      for (long[] gap : mListedGaps)
+        s.append(String.format(Locale.US, "\n    gap of %.3f ms after %d", gap[1] / 1e6, gap[0]));
+      if (mGapsNum > mListedGaps.size())
+        s.append("\n    ...");
+    }
+    return s.toString();
+  }
+
+  // Settles the nominal interval from the held timestamps and records them
+  private void release() {
+    long[] intervals = new long[Math.max(0, mHeldNum - 1)];
+    int n = 0;
+    for (int i = 1; i < mHeldNum; ++i)
+      if (mHeld[i] > mHeld[i - 1])
+        intervals[n++] = mHeld[i] - mHeld[i - 1];
+    Arrays.sort(intervals, 0, n);
+    mNominalNanos = n == 0 ? 0 : intervals[n / 2];
+    for (int i = 0; i < mHeldNum; ++i)
+      record(mHeld[i]);
+    mHeldNum = 0;
+  }
+
+  private void record(long timestampNanos) {
+    if (mCount++ == 0) {
+      mFirstNanos = mLastNanos = timestampNanos;
+      return;
+    }
+    long interval = timestampNanos - mLastNanos;
+    if (interval < 0) {
+      ++mBackwardNum;
+      return;
+    }
+    if (interval == 0) {
+      ++mDuplicateNum;
+      return;
+    }
+    mIntervals.record(interval);
+    ++mIntervalsNum;
+    double delta = interval - mMeanInterval;
+    mMeanInterval += delta / mIntervalsNum;
+    mSquaredDeviations += delta * (interval - mMeanInterval);
+    if (mNominalNanos > 0 && interval > mGapFactor * mNominalNanos) {
+      ++mGapsNum;
+      mGapNanos += interval - mNominalNanos;
+      mLongestGapNanos = Math.max(mLongestGapNanos, interval);
+      if (mListedGaps.size() < LISTED_GAPS_NUM)
+        mListedGaps.add(new long[] {mLastNanos, interval});
+    }
+    mLastNanos = timestampNanos;
+  }
+}
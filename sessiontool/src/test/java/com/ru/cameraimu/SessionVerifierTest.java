@@ -0,0 +1,241 @@
+package com.ru.cameraimu;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class SessionVerifierTest {
+
+  @Rule
+  public TemporaryFolder mTmp = new TemporaryFolder();
+
+  private final ExecutorService mExecutor = Executors.newFixedThreadPool(3);
+
+  @After
+  public void tearDown() { mExecutor.shutdownNow(); }
+
+  // SOI, a frame header, a scan header, two bytes of scan data and EOI
+  private static final byte[] JPEG = {
+      (byte) 0xFF, (byte) 0xD8,
+      (byte) 0xFF, (byte) 0xC0, 0, 11, 8, 0, 2, 0, 2, 1, 1, 0x11, 0,
+      (byte) 0xFF, (byte) 0xDA, 0, 8, 1, 1, 0, 0, 63, 0,
+      0x12, 0x34,
+      (byte) 0xFF, (byte) 0xD9};
+
+  private static void write(File file, byte[] data) throws IOException {
+    file.getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void writeLog(File file, char type, long from, long to, long periodNanos) throws IOException {
+    ImuRingBuffer buffer = new ImuRingBuffer((int) ((to - from) / periodNanos) + 1);
+    for (long t = from; t <= to; t += periodNanos)
+      buffer.record(0.1f, 0.2f, 0.3f, t);
+    ImuLogWriter writer = ImuLogWriter.open(file, new ImuLogFormat(type, 3, "m/s^2"));
+    try {
+      buffer.drainTo(writer);
+    } finally {
+      writer.close();
+    }
+  }
+
+  @Test
+  public void timestampStats_findGapsDuplicatesAndBackwardSteps() throws Exception {
+    TimestampStats stats = new TimestampStats("G", 2.5);
+    long t = 0;
+    for (int i = 0; i < 1000; ++i) {
+      if (i == 400)
+        t += 50000000L;  // 50 ms gap in a 200 Hz stream
+      stats.add(t);
+      if (i == 600)
+        stats.add(t);
+      if (i == 800)
+        stats.add(t - 1000);
+      t += 5000000L;
+    }
+    stats.finish();
+
+    assertEquals(1002, stats.getCount());
+    assertEquals(5000000L, stats.getNominalIntervalNanos());
+    assertEquals(1, stats.getGapsNum());
+    assertEquals(50000000L, stats.getGapNanos());
+    assertEquals(55000000L, stats.getLongestGapNanos());
+    assertEquals(1, stats.getListedGaps().size());
+    assertEquals(399 * 5000000L, stats.getListedGaps().get(0)[0]);
+    assertEquals(1, stats.getDuplicateNum());
+    assertEquals(1, stats.getBackwardNum());
+    assertTrue(stats.hasIssues());
+    assertEquals(200, stats.getRateHz(), 12);
+  }
+
+  @Test
+  public void timestampStats_shortStreamSettlesOnFinish() throws Exception {
+    TimestampStats stats = new TimestampStats("frames");
+    for (int i = 0; i < 10; ++i)
+      stats.add(33000000L * i);
+    stats.finish();
+
+    assertEquals(10, stats.getCount());
+    assertEquals(33000000L, stats.getNominalIntervalNanos());
+    assertEquals(0, stats.getJitterNanos(), 1e-6);
+    assertFalse(stats.hasIssues());
+  }
+
+  @Test
+  public void frameFileCheck_catchesTruncatedFiles() throws Exception {
+    File jpeg = mTmp.newFile("a.jpg");
+    write(jpeg, JPEG);
+    assertNull(FrameFileCheck.check(jpeg, FrameFormat.JPEG));
+    write(jpeg, Arrays.copyOf(JPEG, JPEG.length - 1));
+    assertNotNull(FrameFileCheck.check(jpeg, FrameFormat.JPEG));
+    write(jpeg, new byte[0]);
+    assertEquals("empty", FrameFileCheck.check(jpeg, FrameFormat.JPEG));
+
+    File pgm = mTmp.newFile("a.pgm");
+    byte[] levels = "P5\n4 2\n255\n01234567P5\n2 1\n255\n01".getBytes("US-ASCII");
+    write(pgm, levels);
+    assertNull(FrameFileCheck.check(pgm, FrameFormat.GRAY));
+    write(pgm, Arrays.copyOf(levels, levels.length - 1));
+    assertEquals("PGM level 1 is truncated", FrameFileCheck.check(pgm, FrameFormat.GRAY));
+    // A level that would take the walk backwards, or nowhere
+    write(pgm, "P5\n-13 1\n255\n".getBytes("US-ASCII"));
+    assertNotNull(FrameFileCheck.check(pgm, FrameFormat.GRAY));
+    write(pgm, "P5\n0 4\n255\n".getBytes("US-ASCII"));
+    assertNotNull(FrameFileCheck.check(pgm, FrameFormat.GRAY));
+  }
+
+  @Test
+  public void textChunks_yieldTheirTimestamps() throws Exception {
+    File chunk = mTmp.newFile("G00000000.txt");
+    write(chunk, "0.1 -0.2 0.3 1000\r\n0.1 0.2 0.3 2000\n\n-1 2 3 3000".getBytes("US-ASCII"));
+    TimestampStats stats = new TimestampStats("G");
+    SessionVerifier.readTextChunk(chunk, stats);
+    stats.finish();
+
+    assertEquals(3, stats.getCount());
+    assertEquals(1000, stats.getFirstNanos());
+    assertEquals(3000, stats.getLastNanos());
+
+    write(chunk, "0.1 0.2 0.3 1.5e3\n".getBytes("US-ASCII"));
+    try {
+      SessionVerifier.readTextChunk(chunk, new TimestampStats("G"));
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void verify_reportsStreamsFramesAndCoverage() throws Exception {
+    File dir = mTmp.newFolder("session");
+    long start = 1000000000L;
+    writeLog(new File(dir, "G.imu"), 'G', start, start + 1000000000L, 5000000L);
+    writeLog(new File(dir, "A.imu"), 'A', start, start + 1000000000L, 10000000L);
+
+    File imageDir = new File(dir, SessionReader.IMAGE_DIR);
+    StringBuilder manifest = new StringBuilder();
+    for (int i = 0; i < 20; ++i) {
+      long t = start + 100000000L + 33000000L * i;
+      String name = i == 5 ? "frame.jpg" : FileFrameCommitSink.filename(t, FrameFormat.JPEG);
+      byte[] data = i == 7 ? Arrays.copyOf(JPEG, JPEG.length - 2) : JPEG;
+      if (i != 9)
+        write(new File(imageDir, name), data);
+      manifest.append(i).append(' ').append(t).append(' ').append(name).append(' ').append(data.length).append('\n');
+    }
+    write(new File(imageDir, FileFrameCommitSink.filename(42, FrameFormat.JPEG)), JPEG);
+    write(new File(dir, FileFrameCommitSink.MANIFEST_FILENAME), manifest.toString().getBytes("US-ASCII"));
+
+    SessionVerifier.Report report = new SessionVerifier(mExecutor).verify(dir);
+
+    assertEquals(2, report.getStreams().size());
+    assertEquals("A.imu", report.getStreams().get(0).getName());
+    assertEquals(101, report.getStreams().get(0).getCount());
+    assertEquals(201, report.getStreams().get(1).getCount());
+    assertFalse(report.getStreams().get(1).hasIssues());
+    assertEquals(20, report.getFrames().getCount());
+    assertEquals(19, report.getCheckedNum());
+    assertEquals(1, report.getCorruptNum());
+    assertEquals(1, report.getMissingNum());
+    assertEquals(1, report.getUnlistedNum());
+    assertEquals(1, report.getMisnamedNum());
+    assertEquals(0, report.getUncoveredNum());
+    assertEquals(19 * 33000000L, report.getOverlapNanos());
+    assertEquals(3, report.getProblemsNum());
+    assertTrue(report.hasIssues());
+    assertTrue(report.toString().contains("frame files: 19 checked, 1 corrupt, 1 missing, 1 unlisted, 1 misnamed"));
+
+    SessionVerifier shifted = new SessionVerifier(mExecutor);
+    shifted.setFrameOffsetNanos(5000000000L);
+    assertEquals(20, shifted.verify(dir).getUncoveredNum());
+  }
+
+  @Test
+  public void verify_listsImageDirWithoutManifest() throws Exception {
+    File dir = mTmp.newFolder("session");
+    File imageDir = new File(dir, SessionReader.IMAGE_DIR);
+    for (int i = 0; i < 10; ++i)
+      write(new File(imageDir, FileFrameCommitSink.filename(1000000000L + 33000000L * i, FrameFormat.JPEG)), JPEG);
+    write(new File(imageDir, "thumb.jpg"), JPEG);
+
+    SessionVerifier.Report report = new SessionVerifier(mExecutor).verify(dir);
+
+    assertEquals(10, report.getFrames().getCount());
+    assertEquals(10, report.getCheckedNum());
+    assertEquals(0, report.getCorruptNum());
+    assertEquals(1, report.getMisnamedNum());
+    // No IMU stream covers the frames
+    assertEquals(10, report.getUncoveredNum());
+    assertTrue(report.hasIssues());
+  }
+
+  @Test
+  public void hostClockFramesUseTheRecordedOffset() throws Exception {
+    File dir = mTmp.newFolder("session");
+    long sensorStart = 1000000000L;
+    long hostStart = 500000000000L;
+    writeLog(new File(dir, "G.imu"), 'G', sensorStart, sensorStart + 1000000000L, 5000000L);
+    writeLog(new File(dir, "A.imu"), 'A', sensorStart, sensorStart + 1000000000L, 10000000L);
+    File imageDir = new File(dir, SessionReader.IMAGE_DIR);
+    for (int i = 0; i < 10; ++i)
+      write(new File(imageDir, FileFrameCommitSink.filename(hostStart + 33000000L * i, FrameFormat.JPEG)), JPEG);
+    SessionMetrics metrics = new SessionMetrics();
+    metrics.putInfo(SessionMetrics.INFO_FRAME_CLOCK, "host");
+    File metricsFile = new File(dir, SessionMetrics.FILENAME);
+    write(metricsFile, metrics.toJsonBytes());
+
+    // Without an offset the frames cannot be placed, which is no fault of the session
+    SessionVerifier.Report report = new SessionVerifier(mExecutor).verify(dir);
+    assertEquals(10, report.getUncoveredNum());
+    assertEquals(0, report.getProblemsNum());
+
+    long offset = sensorStart + 100000000L - hostStart;
+    metrics.putInfo(SessionMetrics.INFO_FRAME_OFFSET_NANOS, Long.toString(offset));
+    write(metricsFile, metrics.toJsonBytes());
+    report = new SessionVerifier(mExecutor).verify(dir);
+    assertEquals(offset, report.getFrameOffsetNanos());
+    assertEquals(0, report.getUncoveredNum());
+    assertFalse(report.hasIssues());
+
+    // An offset given explicitly wins over the recorded one
+    SessionVerifier verifier = new SessionVerifier(mExecutor);
+    verifier.setFrameOffsetNanos(0);
+    report = verifier.verify(dir);
+    assertEquals(10, report.getUncoveredNum());
+    assertEquals(1, report.getProblemsNum());
+  }
+}